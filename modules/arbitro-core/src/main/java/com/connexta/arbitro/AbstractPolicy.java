@@ -49,7 +49,10 @@ import com.connexta.arbitro.combine.CombinerParameter;
 import com.connexta.arbitro.combine.CombiningAlgorithm;
 import com.connexta.arbitro.combine.PolicyCombiningAlgorithm;
 import com.connexta.arbitro.combine.RuleCombiningAlgorithm;
+import com.connexta.arbitro.ctx.BasicEvaluationCtx;
 import com.connexta.arbitro.ctx.AbstractResult;
+import com.connexta.arbitro.ctx.Deadline;
+import com.connexta.arbitro.ctx.ResultFactory;
 import com.connexta.arbitro.xacml3.Advice;
 import com.connexta.arbitro.xacml3.AdviceExpression;
 import org.w3c.dom.NamedNodeMap;
@@ -58,6 +61,7 @@ import org.w3c.dom.NodeList;
 import com.connexta.arbitro.combine.CombiningAlgFactory;
 import com.connexta.arbitro.ctx.EvaluationCtx;
 import com.connexta.arbitro.ctx.xacml2.Result;
+import com.connexta.arbitro.metrics.MetricsCollector;
 
 /**
  * Represents an instance of an XACML policy.
@@ -519,7 +523,12 @@ public abstract class AbstractPolicy  implements PolicyTreeElement{
      * @return the result of trying to match the policy and the request
      */
     public MatchResult match(EvaluationCtx context) {
-        return target.match(context);
+        MatchResult result = target.match(context);
+        MetricsCollector metrics = BasicEvaluationCtx.getMetricsCollector(context);
+        if (metrics != null) {
+            metrics.policyMatched(this, result.getResult());
+        }
+        return result;
     }
 
     /**
@@ -560,7 +569,38 @@ public abstract class AbstractPolicy  implements PolicyTreeElement{
      * @return the result of evaluation
      */
     public AbstractResult evaluate(EvaluationCtx context) {
-        
+
+        Deadline deadline = BasicEvaluationCtx.getDeadline(context);
+        if (deadline != null && deadline.isExceeded()) {
+            // it is not known what the decision would have been with XACML 3.0
+            int decision = AbstractResult.DECISION_INDETERMINATE;
+            if (metaData != null && metaData.getXACMLVersion() == XACMLConstants.XACML_VERSION_3_0) {
+                decision = AbstractResult.DECISION_INDETERMINATE_DENY_OR_PERMIT;
+            }
+            return ResultFactory.getFactory().getResult(decision, deadline.getStatus(), context);
+        }
+
+        MetricsCollector metrics = BasicEvaluationCtx.getMetricsCollector(context);
+        if (metrics == null) {
+            return evaluatePolicy(context);
+        }
+
+        metrics.policyEvaluationStarted(this);
+        long start = System.nanoTime();
+        AbstractResult result = evaluatePolicy(context);
+        metrics.policyEvaluated(this, System.nanoTime() - start, result.getDecision());
+        return result;
+    }
+
+    /**
+     * Private helper that evaluates the policy
+     *
+     * @param context the representation of the request
+     *
+     * @return the result of evaluation
+     */
+    private AbstractResult evaluatePolicy(EvaluationCtx context) {
+
         // evaluate
         AbstractResult result = combiningAlg.combine(context, parameters, childElements);
 
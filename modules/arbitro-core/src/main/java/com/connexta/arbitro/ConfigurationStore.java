@@ -48,6 +48,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
 
 import javax.xml.parsers.DocumentBuilder;
@@ -82,6 +83,8 @@ import org.w3c.dom.NodeList;
 import com.connexta.arbitro.attr.AttributeFactoryProxy;
 import com.connexta.arbitro.combine.CombiningAlgFactory;
 import com.connexta.arbitro.finder.AttributeFinder;
+import com.connexta.arbitro.finder.AttributeFinderModule;
+import com.connexta.arbitro.finder.ModuleGuard;
 import org.xml.sax.SAXException;
 
 /**
@@ -343,12 +346,19 @@ public class ConfigurationStore {
     }
 
     /**
-     * Private helper that handles the pdp elements.
+     * Private helper that handles the pdp elements. The optional requestTimeout attribute limits
+     * the time in milliseconds the evaluation of a request may take. An attributeFinderModule
+     * element may isolate its module with the maxConcurrentCalls, failureRateThreshold,
+     * slowCallMillis, windowSize, openMillis and fallbackSize attributes of a
+     * <code>ModuleGuard</code>, and the coalesceAttributeLookups attribute of the pdp element
+     * makes identical concurrent attribute lookups wait for each other.
      */
     private PDPConfig parsePDPConfig(Node root) throws ParsingException {
         ArrayList attrModules = new ArrayList();
         HashSet policyModules = new HashSet();
         ArrayList rsrcModules = new ArrayList();
+        HashMap<AttributeFinderModule, ModuleGuard> guards =
+                new HashMap<AttributeFinderModule, ModuleGuard>();
 
         // go through all elements of the pdp, loading the specified modules
         NodeList children = root.getChildNodes();
@@ -359,7 +369,12 @@ public class ConfigurationStore {
             if (name.equals("policyFinderModule")) {
                 policyModules.add(loadClass("module", child));
             } else if (name.equals("attributeFinderModule")) {
-                attrModules.add(loadClass("module", child));
+                Object module = loadClass("module", child);
+                attrModules.add(module);
+                ModuleGuard guard = parseModuleGuard(child);
+                if (guard != null) {
+                    guards.put((AttributeFinderModule) module, guard);
+                }
             } else if (name.equals("resourceFinderModule")) {
                 rsrcModules.add(loadClass("module", child));
             }
@@ -370,6 +385,13 @@ public class ConfigurationStore {
 
         AttributeFinder attrFinder = new AttributeFinder();
         attrFinder.setModules(attrModules);
+        for (Map.Entry<AttributeFinderModule, ModuleGuard> entry : guards.entrySet()) {
+            attrFinder.setModuleGuard(entry.getKey(), entry.getValue());
+        }
+        Node coalesceNode = root.getAttributes().getNamedItem("coalesceAttributeLookups");
+        if (coalesceNode != null) {
+            attrFinder.setCoalescing(coalesceNode.getNodeValue().equals("true"));
+        }
 
         PolicyFinder policyFinder = new PolicyFinder();
         policyFinder.setModules(policyModules);
@@ -377,7 +399,91 @@ public class ConfigurationStore {
         ResourceFinder rsrcFinder = new ResourceFinder();
         rsrcFinder.setModules(rsrcModules);
 
-        return new PDPConfig(attrFinder, policyFinder, rsrcFinder);
+        // an optional limit on the time the evaluation of a request may take
+        long requestTimeout = getLong(root, "requestTimeout", 0);
+
+        PDPConfig config = new PDPConfig(attrFinder, policyFinder, rsrcFinder, true);
+        config.setRequestTimeout(requestTimeout);
+        return config;
+    }
+
+    /**
+     * Private helper that handles the guard attributes of an attributeFinderModule element,
+     * returning null if the module is not guarded.
+     */
+    private ModuleGuard parseModuleGuard(Node root) throws ParsingException {
+        String[] names = {"maxConcurrentCalls", "failureRateThreshold", "slowCallMillis",
+                "windowSize", "openMillis", "fallbackSize"};
+        boolean guarded = false;
+        for (String name : names) {
+            if (root.getAttributes().getNamedItem(name) != null) {
+                guarded = true;
+            }
+        }
+        if (!guarded) {
+            return null;
+        }
+
+        try {
+            return new ModuleGuard(getInt(root, "maxConcurrentCalls", 0),
+                    getDouble(root, "failureRateThreshold",
+                            ModuleGuard.DEFAULT_FAILURE_RATE_THRESHOLD),
+                    getLong(root, "slowCallMillis", 0),
+                    getInt(root, "windowSize", ModuleGuard.DEFAULT_WINDOW_SIZE),
+                    getLong(root, "openMillis", ModuleGuard.DEFAULT_OPEN_MILLIS),
+                    getInt(root, "fallbackSize", 0));
+        } catch (IllegalArgumentException iae) {
+            throw new ParsingException("invalid module guard", iae);
+        }
+    }
+
+    /**
+     * Private helper that reads an optional attribute of an element that is a whole number and
+     * not negative
+     */
+    private long getLong(Node root, String name, long defaultValue) throws ParsingException {
+        Node node = root.getAttributes().getNamedItem(name);
+        if (node == null) {
+            return defaultValue;
+        }
+        long value;
+        try {
+            value = Long.parseLong(node.getNodeValue().trim());
+        } catch (NumberFormatException nfe) {
+            throw new ParsingException("invalid " + name + ": " + node.getNodeValue());
+        }
+        if (value < 0) {
+            throw new ParsingException("invalid " + name + ": " + node.getNodeValue());
+        }
+        return value;
+    }
+
+    /**
+     * Private helper that reads an optional attribute of an element that is a whole number, not
+     * negative and within the range of an int
+     */
+    private int getInt(Node root, String name, int defaultValue) throws ParsingException {
+        long value = getLong(root, name, defaultValue);
+        if (value > Integer.MAX_VALUE) {
+            throw new ParsingException("invalid " + name + ": " + value);
+        }
+        return (int) value;
+    }
+
+    /**
+     * Private helper that reads an optional numeric attribute of an element
+     */
+    private double getDouble(Node root, String name, double defaultValue)
+            throws ParsingException {
+        Node node = root.getAttributes().getNamedItem(name);
+        if (node == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(node.getNodeValue().trim());
+        } catch (NumberFormatException nfe) {
+            throw new ParsingException("invalid " + name + ": " + node.getNodeValue());
+        }
     }
 
     /**
@@ -0,0 +1,363 @@
+/*
+*  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import com.connexta.arbitro.combine.CombinerElement;
+import com.connexta.arbitro.combine.CombiningAlgorithm;
+import com.connexta.arbitro.ctx.BasicEvaluationCtx;
+import com.connexta.arbitro.ctx.AbstractResult;
+import com.connexta.arbitro.ctx.EvaluationCtx;
+import com.connexta.arbitro.ctx.ResultFactory;
+import com.connexta.arbitro.ctx.Status;
+import com.connexta.arbitro.ctx.xacml2.Result;
+import com.connexta.arbitro.finder.PolicyFinder;
+import com.connexta.arbitro.metrics.MetricsCollector;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * A <code>Policy</code> or <code>PolicySet</code> of which only the id, version, meta-data and
+ * target are built when it is loaded. The rest of the policy, its rules or child policies,
+ * variables, obligations and advice, is built from its <code>Source</code> the first time it is
+ * needed, which is normally when its target has matched a request. Most of the policies of a
+ * large policy store never match, so this saves the time and memory of building them.
+ * <p>
+ * The body may be built by several threads at once, in which case all of them use the first one
+ * that is built. A body that has not been used for a while may be dropped with
+ * <code>evict</code>, and is built again when it is next needed.
+ * </p>
+ */
+public class LazyPolicy extends AbstractPolicy {
+
+    /**
+     * Provides the DOM of the policy when its body has to be built
+     */
+    public interface Source {
+
+        /**
+         * Returns the root node of the policy document
+         *
+         * @return the root node
+         * @throws Exception if the policy document can not be read
+         */
+        Node load() throws Exception;
+    }
+
+    private URI id;
+
+    private String version;
+
+    private String defaultVersion;
+
+    private AbstractTarget target;
+
+    private PolicyMetaData metaData;
+
+    private boolean policySet;
+
+    private Source source;
+
+    private PolicyFinder finder;
+
+    // the built policy, or null if it is not built or has been evicted
+    private volatile AbstractPolicy body;
+
+    // when the body was last used
+    private volatile long lastUsed;
+
+    // the logger we'll use for all messages
+    private static Log log = LogFactory.getLog(LazyPolicy.class);
+
+    /**
+     * Creates a <code>LazyPolicy</code>
+     *
+     * @param id the policy identifier
+     * @param version the policy version
+     * @param defaultVersion the XPath version to use
+     * @param target the policy's target
+     * @param metaData the meta-data of the policy
+     * @param policySet true if this is a <code>PolicySet</code>
+     * @param source where the body of the policy is built from
+     * @param finder the policy finder that a <code>PolicySet</code> uses to resolve references
+     */
+    public LazyPolicy(URI id, String version, String defaultVersion, AbstractTarget target,
+            PolicyMetaData metaData, boolean policySet, Source source, PolicyFinder finder) {
+        this.id = id;
+        this.version = version;
+        this.defaultVersion = defaultVersion;
+        this.target = target;
+        this.metaData = metaData;
+        this.policySet = policySet;
+        this.source = source;
+        this.finder = finder;
+    }
+
+    /**
+     * Creates a <code>LazyPolicy</code> from the root of a policy document. Only the attributes,
+     * defaults and target of the policy are read.
+     *
+     * @param root the DOM root of a Policy or PolicySet
+     * @param source where the body of the policy is built from
+     * @param finder the policy finder that a <code>PolicySet</code> uses to resolve references
+     * @return a new <code>LazyPolicy</code>
+     * @throws ParsingException if the policy is invalid
+     */
+    public static LazyPolicy getInstance(Node root, Source source, PolicyFinder finder)
+            throws ParsingException {
+
+        String policyPrefix = DOMHelper.getLocalName(root);
+        if (!policyPrefix.equals("Policy") && !policyPrefix.equals("PolicySet")) {
+            throw new ParsingException("Unknown policy document type : " + policyPrefix);
+        }
+
+        NamedNodeMap attrs = root.getAttributes();
+        URI id;
+        try {
+            id = new URI(attrs.getNamedItem(policyPrefix + "Id").getNodeValue());
+        } catch (Exception e) {
+            throw new ParsingException("Error parsing required attribute " + policyPrefix + "Id", e);
+        }
+
+        String version = "1.0";
+        Node versionNode = attrs.getNamedItem("Version");
+        if (versionNode != null) {
+            version = versionNode.getNodeValue();
+        }
+
+        // the defaults are needed for the meta-data, which is needed for the target
+        String defaultVersion = null;
+        Node targetNode = null;
+        NodeList children = root.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++) {
+            Node child = children.item(i);
+            String name = DOMHelper.getLocalName(child);
+            if (name.equals(policyPrefix + "Defaults")) {
+                NodeList nodes = child.getChildNodes();
+                for (int j = 0; j < nodes.getLength(); j++) {
+                    Node node = nodes.item(j);
+                    if (DOMHelper.getLocalName(node).equals("XPathVersion")) {
+                        defaultVersion = node.getFirstChild().getNodeValue();
+                    }
+                }
+            } else if (name.equals("Target")) {
+                targetNode = child;
+            }
+        }
+
+        PolicyMetaData metaData = new PolicyMetaData(root.getNamespaceURI(), defaultVersion);
+        if (targetNode == null) {
+            throw new ParsingException(policyPrefix + " " + id + " has no Target");
+        }
+        AbstractTarget target = TargetFactory.getFactory().getTarget(targetNode, metaData);
+
+        return new LazyPolicy(id, version, defaultVersion, target, metaData,
+                policyPrefix.equals("PolicySet"), source, finder);
+    }
+
+    /**
+     * Returns whether this is a <code>PolicySet</code> or a <code>Policy</code>
+     *
+     * @return true if this is a <code>PolicySet</code>
+     */
+    public boolean isPolicySet() {
+        return policySet;
+    }
+
+    /**
+     * Returns whether the body of this policy is currently built
+     *
+     * @return true if the body is built
+     */
+    public boolean isMaterialized() {
+        return body != null;
+    }
+
+    /**
+     * Returns the policy with its body, building it if needed
+     *
+     * @return the <code>Policy</code> or <code>PolicySet</code>
+     * @throws ProcessingException if the body can not be built
+     */
+    public AbstractPolicy getPolicy() {
+        AbstractPolicy policy = body;
+        if (policy == null) {
+            policy = materialize();
+        }
+        lastUsed = System.currentTimeMillis();
+        return policy;
+    }
+
+    /**
+     * Drops the body of this policy if it has not been used for the given time. It is built
+     * again when it is next needed.
+     *
+     * @param idleMillis how long the body must not have been used, in milliseconds
+     * @return true if the body was dropped
+     */
+    public boolean evict(long idleMillis) {
+        if (body != null && System.currentTimeMillis() - lastUsed >= idleMillis) {
+            synchronized (this) {
+                if (body != null && System.currentTimeMillis() - lastUsed >= idleMillis) {
+                    body = null;
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Private helper that builds the body, once for all threads that need it at the same time
+     *
+     * @return the built policy
+     */
+    private synchronized AbstractPolicy materialize() {
+
+        AbstractPolicy policy = body;
+        if (policy != null) {
+            return policy;
+        }
+
+        try {
+            Node root = source.load();
+            if (policySet) {
+                policy = PolicySet.getInstance(root, finder);
+            } else {
+                policy = Policy.getInstance(root);
+            }
+        } catch (Exception e) {
+            log.error("Fail to build the body of policy : " + id, e);
+            throw new ProcessingException("couldn't build the body of policy " + id, e);
+        }
+
+        // the source may have changed since the target was read
+        if (!id.equals(policy.getId())) {
+            throw new ProcessingException("policy " + id + " has changed to " + policy.getId());
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Built the body of policy : " + id);
+        }
+        body = policy;
+        return policy;
+    }
+
+    public URI getId() {
+        return id;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public String getDefaultVersion() {
+        return defaultVersion;
+    }
+
+    public AbstractTarget getTarget() {
+        return target;
+    }
+
+    public PolicyMetaData getMetaData() {
+        return metaData;
+    }
+
+    public CombiningAlgorithm getCombiningAlg() {
+        return getPolicy().getCombiningAlg();
+    }
+
+    public List getCombiningParameters() {
+        return getPolicy().getCombiningParameters();
+    }
+
+    public String getDescription() {
+        return getPolicy().getDescription();
+    }
+
+    public List<PolicyTreeElement> getChildren() {
+        return getPolicy().getChildren();
+    }
+
+    public List<CombinerElement> getChildElements() {
+        return getPolicy().getChildElements();
+    }
+
+    public Set getObligationExpressions() {
+        return getPolicy().getObligationExpressions();
+    }
+
+    public Set getAdviceExpressions() {
+        return getPolicy().getAdviceExpressions();
+    }
+
+    /**
+     * Given the input context sees whether or not the request matches this policy. Only the
+     * target is used, so this does not build the body.
+     *
+     * @param context the representation of the request
+     *
+     * @return the result of trying to match the policy and the request
+     */
+    public MatchResult match(EvaluationCtx context) {
+        MatchResult result = target.match(context);
+        MetricsCollector metrics = BasicEvaluationCtx.getMetricsCollector(context);
+        if (metrics != null) {
+            metrics.policyMatched(this, result.getResult());
+        }
+        return result;
+    }
+
+    /**
+     * Evaluates the policy, building its body first if needed. If the body can not be built,
+     * the result is Indeterminate.
+     *
+     * @param context the representation of the request
+     *
+     * @return the result of evaluation
+     */
+    public AbstractResult evaluate(EvaluationCtx context) {
+        AbstractPolicy policy;
+        try {
+            policy = getPolicy();
+        } catch (ProcessingException e) {
+            ArrayList<String> code = new ArrayList<String>();
+            code.add(Status.STATUS_PROCESSING_ERROR);
+            Status status = new Status(code, e.getMessage());
+            return ResultFactory.getFactory().getResult(Result.DECISION_INDETERMINATE, status,
+                    context);
+        }
+        return policy.evaluate(context);
+    }
+
+    public String encode() {
+        return getPolicy().encode();
+    }
+
+    public void encode(StringBuilder builder) {
+        getPolicy().encode(builder);
+    }
+}
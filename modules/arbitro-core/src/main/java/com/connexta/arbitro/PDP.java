@@ -38,23 +38,34 @@ package com.connexta.arbitro;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.connexta.arbitro.audit.DecisionAuditor;
+import com.connexta.arbitro.audit.DecisionRecord;
 import com.connexta.arbitro.combine.CombinerElement;
+import com.connexta.arbitro.ctx.BasicEvaluationCtx;
 import com.connexta.arbitro.ctx.AbstractRequestCtx;
 import com.connexta.arbitro.ctx.AbstractResult;
+import com.connexta.arbitro.ctx.Deadline;
 import com.connexta.arbitro.ctx.EvaluationCtx;
 import com.connexta.arbitro.ctx.EvaluationCtxFactory;
 import com.connexta.arbitro.ctx.RequestCtxFactory;
 import com.connexta.arbitro.ctx.ResponseCtx;
 import com.connexta.arbitro.ctx.ResultFactory;
+import com.connexta.arbitro.ctx.ResultHandler;
 import com.connexta.arbitro.ctx.Status;
+import com.connexta.arbitro.ctx.StreamingResponseWriter;
+import com.connexta.arbitro.ctx.json.JSONRequestParser;
+import com.connexta.arbitro.ctx.json.JSONResponseWriter;
 import com.connexta.arbitro.ctx.xacml3.Result;
 import com.connexta.arbitro.ctx.xacml3.XACML3EvaluationCtx;
 import com.connexta.arbitro.finder.PolicyFinder;
+import com.connexta.arbitro.metrics.MetricsCollector;
 import com.connexta.arbitro.xacml3.MultipleCtxResult;
+import com.connexta.arbitro.xacml3.Obligation;
 
 import com.connexta.arbitro.ctx.xacml3.RequestCtx;
 import com.connexta.arbitro.finder.PolicyFinderResult;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -81,6 +92,16 @@ public class PDP {
      */
 	private PolicyFinder policyFinder;
 
+    /**
+     * receives the timings and counts of the evaluation, or null if none are collected
+     */
+    private MetricsCollector metrics;
+
+    /**
+     * receives a record of every decision, or null if decisions are not audited
+     */
+    private DecisionAuditor auditor;
+
     /**
      * the logger we'll use for all messages
      */
@@ -102,6 +123,9 @@ public class PDP {
         
 		policyFinder = pdpConfig.getPolicyFinder();
 		policyFinder.init();
+        pdpConfig.getAttributeFinder().registerModuleGuards();
+        metrics = pdpConfig.getMetricsCollector();
+        auditor = pdpConfig.getDecisionAuditor();
 	}
 
     /**
@@ -113,18 +137,47 @@ public class PDP {
      * Note that if the request is somehow invalid (it was missing a required attribute, it was
      * using an unsupported scope, etc), then the result will be a decision of INDETERMINATE.
      *
+     * <p>
+     * The request may be either XML or JSON (JSON Profile of XACML 3.0), which is detected from its
+     * first non-whitespace character. The response is encoded in the same format as the request.
+     *
      * @param request the request to evaluate
      *
      * @return a response paired to the request
      */
     public String evaluate(String request) {
+        return evaluate(request, pdpConfig.getRequestTimeout());
+    }
 
+    /**
+     * Attempts to evaluate the request against the policies known to this PDP, within the given
+     * time. If the evaluation takes longer, the result is INDETERMINATE with a processing error.
+     * The time includes parsing the request, but not encoding the response.
+     *
+     * @param request the request to evaluate
+     * @param timeoutMillis the time in milliseconds the evaluation may take, or 0 to use the
+     *            request timeout of the <code>PDPConfig</code>
+     *
+     * @return a response paired to the request
+     */
+    public String evaluate(String request, long timeoutMillis) {
+
+        Deadline deadline = getDeadline(timeoutMillis);
         AbstractRequestCtx requestCtx;
         ResponseCtx responseCtx;
+        boolean json = JSONRequestParser.isJSON(request);
 
         try {
-            requestCtx = RequestCtxFactory.getFactory().getRequestCtx(request.replaceAll(">\\s+<", "><"));
-            responseCtx = evaluate(requestCtx);
+            long start = metrics == null ? 0 : System.nanoTime();
+            if(json){
+                requestCtx = JSONRequestParser.getRequestCtx(request);
+            } else {
+                requestCtx = RequestCtxFactory.getFactory().getRequestCtx(request.replaceAll(">\\s+<", "><"));
+            }
+            if(metrics != null){
+                metrics.requestParsed(System.nanoTime() - start);
+            }
+            responseCtx = evaluate(requestCtx, deadline);
         } catch (ParsingException e) {
             String error = "Invalid request  : " + e.getMessage();
             logger.error(error);
@@ -138,7 +191,17 @@ public class PDP {
             responseCtx = new ResponseCtx(new Result(AbstractResult.DECISION_INDETERMINATE, status));
         }
 
-        return responseCtx.encode();
+        long start = metrics == null ? 0 : System.nanoTime();
+        String response;
+        if(json){
+            response = JSONResponseWriter.encode(responseCtx);
+        } else {
+            response = responseCtx.encode();
+        }
+        if(metrics != null){
+            metrics.responseEncoded(System.nanoTime() - start);
+        }
+        return response;
     }
 
 
@@ -156,10 +219,36 @@ public class PDP {
 	 * @return a response paired to the request
 	 */
 	public ResponseCtx evaluate(AbstractRequestCtx request) {
+        return evaluate(request, getDeadline(pdpConfig.getRequestTimeout()));
+    }
+
+    /**
+     * Attempts to evaluate the request against the policies known to this PDP, within the given
+     * time. If the evaluation takes longer, the result is INDETERMINATE with a processing error.
+     *
+     * @param request the request to evaluate
+     * @param timeoutMillis the time in milliseconds the evaluation may take, or 0 to use the
+     *            request timeout of the <code>PDPConfig</code>
+     *
+     * @return a response paired to the request
+     */
+    public ResponseCtx evaluate(AbstractRequestCtx request, long timeoutMillis) {
+        return evaluate(request, getDeadline(timeoutMillis));
+    }
+
+    /**
+     * A private helper routine that evaluates the request with the given deadline
+     *
+     * @param request the request to evaluate
+     * @param deadline the deadline of the evaluation, or null if there is none
+     * @return a response paired to the request
+     */
+    private ResponseCtx evaluate(AbstractRequestCtx request, Deadline deadline) {
 
         EvaluationCtx evalContext = null;
 		try {
             evalContext = EvaluationCtxFactory.getFactory().getEvaluationCtx(request, pdpConfig);
+            BasicEvaluationCtx.setDeadline(evalContext, deadline);
 			return evaluate(evalContext);
 		} catch (ParsingException e) {
 			logger.error("Invalid request  : " + e.getMessage());
@@ -189,25 +278,197 @@ public class PDP {
 	 */
 	public ResponseCtx evaluate(EvaluationCtx context) {
 
+        ResultCollector collector = new ResultCollector();
+        boolean multiple;
+        try {
+            multiple = evaluateResults(context, collector);
+        } catch (IOException e) {
+            // can not happen, results are only kept in memory
+            throw new IllegalStateException(e);
+        }
+
+        if(multiple){
+            // XACML 3.0.version
+            return new ResponseCtx(collector.results, XACMLConstants.XACML_VERSION_3_0);
+        } else {
+            return new ResponseCtx(collector.results.iterator().next());
+        }
+	}
+
+    /**
+     * Attempts to evaluate the request against the policies known to this PDP, handing every
+     * <code>Result</code> to the given <code>ResultHandler</code> as soon as it has been
+     * produced instead of building a <code>ResponseCtx</code>. This is meant for requests that
+     * use the multiple decision profile, where the response may contain a large number of results.
+     * <p>
+     * Note that if the request is somehow invalid, then a single result with a decision of
+     * INDETERMINATE is handed to the handler.
+     *
+     * @param request the request to evaluate
+     * @param handler receives the results of the evaluation
+     * @throws IOException if the handler fails to process a result
+     */
+    public void evaluate(AbstractRequestCtx request, ResultHandler handler) throws IOException {
+        evaluate(request, getDeadline(pdpConfig.getRequestTimeout()), handler);
+    }
+
+    /**
+     * A private helper routine that evaluates the request with the given deadline, handing every
+     * <code>Result</code> to the given <code>ResultHandler</code>
+     *
+     * @param request the request to evaluate
+     * @param deadline the deadline of the evaluation, or null if there is none
+     * @param handler receives the results of the evaluation
+     * @throws IOException if the handler fails to process a result
+     */
+    private void evaluate(AbstractRequestCtx request, Deadline deadline, ResultHandler handler)
+            throws IOException {
+
+        EvaluationCtx evalContext;
+        try {
+            evalContext = EvaluationCtxFactory.getFactory().getEvaluationCtx(request, pdpConfig);
+            BasicEvaluationCtx.setDeadline(evalContext, deadline);
+        } catch (ParsingException e) {
+            logger.error("Invalid request  : " + e.getMessage());
+            ArrayList<String> code = new ArrayList<String>();
+            code.add(Status.STATUS_SYNTAX_ERROR);
+            Status status = new Status(code, e.getMessage());
+            handler.handleResult(ResultFactory.getFactory().
+                getResult(AbstractResult.DECISION_INDETERMINATE, status, request.getXacmlVersion()));
+            return;
+        }
+
+        evaluateResults(evalContext, handler);
+    }
+
+    /**
+     * Uses the given <code>EvaluationCtx</code> against the available policies, handing every
+     * <code>Result</code> to the given <code>ResultHandler</code> as soon as it has been
+     * produced. The results are handed over in the same order as they are evaluated.
+     *
+     * @param context representation of the request and the context used for evaluation
+     * @param handler receives the results of the evaluation
+     * @throws IOException if the handler fails to process a result
+     */
+    public void evaluate(EvaluationCtx context, ResultHandler handler) throws IOException {
+        evaluateResults(context, handler);
+    }
+
+    /**
+     * Reads a request from the given input stream, evaluates it and writes the response to the
+     * given output stream. The request may be either XML or JSON (JSON Profile of XACML 3.0); the
+     * format is detected from the first non-whitespace character of the stream, and the response
+     * is written in the same format. Unlike the deprecated <code>evaluate(InputStream)</code>, the
+     * response is never built in memory; each <code>Result</code> is written out as soon as it
+     * has been evaluated. The output stream is flushed, but not closed.
+     * <p>
+     * If the request is invalid, then the response contains a single result with a decision of
+     * INDETERMINATE.
+     *
+     * @param input a stream that contains an XML RequestType or a JSON request
+     * @param output a stream into which the response is written
+     * @throws IOException if the response can not be written
+     */
+    public void evaluate(InputStream input, OutputStream output) throws IOException {
+
+        if(!input.markSupported()){
+            input = new BufferedInputStream(input);
+        }
+
+        if(JSONRequestParser.isJSON(input)){
+            JSONResponseWriter writer = new JSONResponseWriter(output);
+            evaluateStream(input, true, writer);
+            writer.close();
+        } else {
+            StreamingResponseWriter writer = new StreamingResponseWriter(output);
+            evaluateStream(input, false, writer);
+            writer.close();
+        }
+    }
+
+    /**
+     * A private helper routine that reads a request from a stream and evaluates it
+     *
+     * @param input the stream to read the request from
+     * @param json whether the request is JSON
+     * @param handler receives the results
+     * @throws IOException if the handler fails to process a result
+     */
+    private void evaluateStream(InputStream input, boolean json, ResultHandler handler)
+            throws IOException {
+
+        Deadline deadline = getDeadline(pdpConfig.getRequestTimeout());
+        AbstractRequestCtx request;
+
+        try {
+            long start = metrics == null ? 0 : System.nanoTime();
+            if(json){
+                request = JSONRequestParser.getRequestCtx(input);
+            } else {
+                request = RequestCtxFactory.getFactory().getRequestCtx(input);
+            }
+            if(metrics != null){
+                metrics.requestParsed(System.nanoTime() - start);
+            }
+        } catch (Exception pe) {
+            logger.error("Invalid request  : " + pe.getMessage());
+            ArrayList<String> code = new ArrayList<String>();
+            code.add(Status.STATUS_SYNTAX_ERROR);
+            Status status = new Status(code, "invalid request: " + pe.getMessage());
+            // can not determine XACML version at here. therefore return assume as XACML 3
+            handler.handleResult(ResultFactory.getFactory().
+                getResult(AbstractResult.DECISION_INDETERMINATE, status, XACMLConstants.XACML_VERSION_3_0));
+            return;
+        }
+
+        evaluate(request, deadline, handler);
+    }
+
+    /**
+     * A private helper routine that evaluates the given context, either as a single request or,
+     * if this PDP is configured to support it, as multiple individual requests.
+     *
+     * @param context context
+     * @param handler receives the results
+     * @return true if the results make up a multiple decision response
+     * @throws IOException if the handler fails to process a result
+     */
+    private boolean evaluateResults(EvaluationCtx context, ResultHandler handler)
+            throws IOException {
+
+        if(metrics != null){
+            handler = new MeteredResultHandler(handler, metrics);
+        }
+        if(BasicEvaluationCtx.getDeadline(context) == null){
+            BasicEvaluationCtx.setDeadline(context, getDeadline(pdpConfig.getRequestTimeout()));
+        }
+
         // check whether this PDP configure to support multiple decision profile
         if(pdpConfig.isMultipleRequestHandle()){
 
             Set<EvaluationCtx> evaluationCtxSet;
             MultipleCtxResult multipleCtxResult = context.getMultipleEvaluationCtx();
             if(multipleCtxResult.isIndeterminate()){
-                return new ResponseCtx(ResultFactory.getFactory().
+                handler.handleResult(ResultFactory.getFactory().
                         getResult(AbstractResult.DECISION_INDETERMINATE,multipleCtxResult.getStatus(), context));
+                return false;
             } else {
-                evaluationCtxSet = multipleCtxResult.getEvaluationCtxSet();                
-                HashSet<AbstractResult> results = new HashSet<AbstractResult>();
+                evaluationCtxSet = multipleCtxResult.getEvaluationCtxSet();
+                // the individual requests share the deadline of the request
+                for(EvaluationCtx ctx : evaluationCtxSet){
+                    BasicEvaluationCtx.setDeadline(ctx, BasicEvaluationCtx.getDeadline(context));
+                }
+                if(context instanceof XACML3EvaluationCtx && ((RequestCtx)context.
+                        getRequestCtx()).isCombinedDecision()){
+                    // all individual decisions are combined in to a single result
+                    handler.handleResult(evaluateCombined(evaluationCtxSet));
+                    return false;
+                }
                 for(EvaluationCtx ctx : evaluationCtxSet){
-                    // do the evaluation, for all evaluate context
-                    AbstractResult result = evaluateContext(ctx);
-                    // add the result
-                    results.add(result);
+                    // do the evaluation, for all evaluate context and pass the result on
+                    handler.handleResult(evaluateContext(ctx));
                 }
-                // XACML 3.0.version
-                return new ResponseCtx(results, XACMLConstants.XACML_VERSION_3_0);
+                return true;
             }
         } else {
             // this is special case that specific to XACML3 request
@@ -218,7 +479,7 @@ public class PDP {
                 code.add(Status.STATUS_SYNTAX_ERROR);
                 Status status = new Status(code, "PDP does not supports multiple decision profile. " +
                         "Multiple AttributesType elements with the same Category can be existed");
-                return new ResponseCtx(ResultFactory.getFactory().
+                handler.handleResult(ResultFactory.getFactory().
                         getResult(AbstractResult.DECISION_INDETERMINATE,
                         status, context));
             } else if(context instanceof XACML3EvaluationCtx && ((RequestCtx)context.
@@ -227,15 +488,80 @@ public class PDP {
                 code.add(Status.STATUS_PROCESSING_ERROR);
                 Status status = new Status(code, "PDP does not supports multiple decision profile. " +
                         "Multiple decision is not existed to combine them");
-                return new ResponseCtx(ResultFactory.getFactory().
+                handler.handleResult(ResultFactory.getFactory().
                         getResult(AbstractResult.DECISION_INDETERMINATE,
                         status, context));
             } else {
-                return new ResponseCtx(evaluateContext(context));
+                handler.handleResult(evaluateContext(context));
             }
+            return false;
         }
+    }
 
-	}
+    /**
+     * A private helper routine that evaluates all individual requests of a multiple decision
+     * request and combines their decisions in to a single result, as defined by the XACML 3.0
+     * multiple decision profile. The combined decision is Permit, Deny or NotApplicable only if
+     * all individual decisions are the same and none of them has obligations or advice; in all
+     * other cases it is Indeterminate. A combined result never has obligations or advice.
+     * <p>
+     * The individual requests are evaluated one after another, and evaluation stops as soon as
+     * the combined decision can no longer change, i.e. with the first Indeterminate decision,
+     * the first decision that differs from the previous ones, or the first decision with
+     * obligations or advice. The remaining requests are never
+     * evaluated, so no attributes are looked up for them. Without individual requests, the
+     * combined decision is Indeterminate.
+     *
+     * @param evaluationCtxSet contexts of the individual requests
+     * @return the combined result
+     */
+    private AbstractResult evaluateCombined(Set<EvaluationCtx> evaluationCtxSet) {
+
+        if(evaluationCtxSet.isEmpty()){
+            List<String> code = new ArrayList<String>();
+            code.add(Status.STATUS_PROCESSING_ERROR);
+            Status status = new Status(code, "Individual decisions can not be combined as " +
+                    "there are no individual requests");
+            return new Result(AbstractResult.DECISION_INDETERMINATE, status);
+        }
+
+        int combinedDecision = -1;
+
+        for(EvaluationCtx ctx : evaluationCtxSet){
+            AbstractResult result = evaluateContext(ctx);
+            int decision = result.getDecision();
+
+            if(decision != AbstractResult.DECISION_PERMIT && decision != AbstractResult.DECISION_DENY
+                    && decision != AbstractResult.DECISION_NOT_APPLICABLE){
+                // any kind of Indeterminate is final
+                return new Result(AbstractResult.DECISION_INDETERMINATE, result.getStatus());
+            }
+
+            if(combinedDecision == -1){
+                combinedDecision = decision;
+            } else if(combinedDecision != decision){
+                List<String> code = new ArrayList<String>();
+                code.add(Status.STATUS_PROCESSING_ERROR);
+                Status status = new Status(code, "Individual decisions can not be combined as " +
+                        AbstractResult.DECISIONS[combinedDecision] + " and " +
+                        AbstractResult.DECISIONS[decision] + " have been found");
+                return new Result(AbstractResult.DECISION_INDETERMINATE, status);
+            }
+
+            if((result.getObligations() != null && !result.getObligations().isEmpty()) ||
+                    (result.getAdvices() != null && !result.getAdvices().isEmpty())){
+                // obligations and advice can not be combined, as the PEP could not tell which
+                // individual request they belong to
+                List<String> code = new ArrayList<String>();
+                code.add(Status.STATUS_PROCESSING_ERROR);
+                Status status = new Status(code, "Individual decisions can not be combined as " +
+                        "obligations or advice have been found");
+                return new Result(AbstractResult.DECISION_INDETERMINATE, status);
+            }
+        }
+
+        return new Result(combinedDecision, Status.getOkInstance());
+    }
 
 	/**
 	 * A private helper routine that resolves a policy for the given context, and then tries to
@@ -245,33 +571,105 @@ public class PDP {
      * @return a response
      */
 	private AbstractResult evaluateContext(EvaluationCtx context) {
+        if(metrics == null){
+            return evaluatePolicies(context);
+        }
+
+        metrics.requestEvaluationStarted();
+        long start = System.nanoTime();
+        AbstractResult result = evaluatePolicies(context);
+        metrics.requestEvaluated(System.nanoTime() - start, result.getDecision());
+        return result;
+    }
+
+    /**
+     * Private helper that resolves a policy for the given context and evaluates it
+     *
+     * @param context  context
+     * @return a response
+     */
+    private AbstractResult evaluatePolicies(EvaluationCtx context) {
+        Deadline deadline = BasicEvaluationCtx.getDeadline(context);
+        if(deadline != null && deadline.isExceeded()){
+            return audit(context, null, ResultFactory.getFactory().
+                    getResult(AbstractResult.DECISION_INDETERMINATE, deadline.getStatus(), context));
+        }
+
 		// first off, try to find a policy
+        long start = 0;
+        if(metrics != null){
+            metrics.policyLookupStarted();
+            start = System.nanoTime();
+        }
 		PolicyFinderResult finderResult = policyFinder.findPolicy(context);
+        if(metrics != null){
+            metrics.policiesFound(System.nanoTime() - start, getCandidates(finderResult));
+        }
 
 		// see if there weren't any applicable policies
 		if (finderResult.notApplicable()){
-            return ResultFactory.getFactory().getResult(AbstractResult.DECISION_NOT_APPLICABLE, context);
+            return audit(context, null, ResultFactory.getFactory().
+                    getResult(AbstractResult.DECISION_NOT_APPLICABLE, context));
         }
 		// see if there were any errors in trying to get a policy
 		if (finderResult.indeterminate()){
-            return ResultFactory.getFactory().getResult(AbstractResult.DECISION_INDETERMINATE,
-                    finderResult.getStatus(), context);
+            return audit(context, null, ResultFactory.getFactory().
+                    getResult(AbstractResult.DECISION_INDETERMINATE, finderResult.getStatus(), context));
         }
 
 		// we found a valid policy,
 
-        // list all found policies if XACML 3.0
-        if(context instanceof XACML3EvaluationCtx && ((RequestCtx)context.getRequestCtx()).
-                                                                            isReturnPolicyIdList()){
-            Set<PolicyReference> references = new HashSet<PolicyReference>();
+        // list all found policies if XACML 3.0, or if they are audited
+        Set<PolicyReference> references = null;
+        boolean returnPolicyIdList = context instanceof XACML3EvaluationCtx &&
+                ((RequestCtx)context.getRequestCtx()).isReturnPolicyIdList();
+        if(returnPolicyIdList || auditor != null){
+            references = new HashSet<PolicyReference>();
             processPolicyReferences(finderResult.getPolicy(), references);
-            ((XACML3EvaluationCtx) context).setPolicyReferences(references);
+            if(returnPolicyIdList){
+                ((XACML3EvaluationCtx) context).setPolicyReferences(references);
+            }
         }
 
         // so we can do the evaluation
-		return finderResult.getPolicy().evaluate(context);
+		return audit(context, references, finderResult.getPolicy().evaluate(context));
 	}
 
+    /**
+     * Private helper that hands a record of the decision to the auditor, if there is one
+     *
+     * @param context  context
+     * @param references the policies that were evaluated, or null if none were found
+     * @param result the result of the evaluation
+     * @return the result
+     */
+    private AbstractResult audit(EvaluationCtx context, Set<PolicyReference> references,
+                                 AbstractResult result) {
+        if(auditor == null){
+            return result;
+        }
+
+        List<String> policyIds = new ArrayList<String>();
+        if(references != null){
+            for(PolicyReference reference : references){
+                policyIds.add(String.valueOf(reference.getReference()));
+            }
+        }
+        List<String> obligationIds = new ArrayList<String>();
+        if(result.getObligations() != null){
+            for(ObligationResult obligation : result.getObligations()){
+                if(obligation instanceof Obligation){
+                    obligationIds.add(String.valueOf(((Obligation) obligation).getObligationId()));
+                } else if(obligation instanceof AbstractObligation){
+                    obligationIds.add(String.valueOf(((AbstractObligation) obligation).getId()));
+                }
+            }
+        }
+        auditor.audit(new DecisionRecord(context.getRequestCtx(), result.getDecision(), policyIds,
+                obligationIds));
+        return result;
+    }
+
 	/**
 	 * A utility method that wraps the functionality of the other evaluate method with input and
 	 * output streams. This is useful if you've got a PDP that is taking inputs from some stream and
@@ -327,6 +725,10 @@ public class PDP {
      */
     private void processPolicyReferences(AbstractPolicy policy, Set<PolicyReference> references){
 
+        if(policy instanceof LazyPolicy){
+            policy = ((LazyPolicy) policy).getPolicy();
+        }
+
         if(policy instanceof Policy){
             references.add(new PolicyReference(policy.getId(),
                                                 PolicyReference.POLICY_REFERENCE, null, null));
@@ -346,4 +748,76 @@ public class PDP {
         }
     }
 
+    /**
+     * A private helper that creates a deadline that passes after the given time from now
+     *
+     * @param timeoutMillis the time in milliseconds, or 0 if there is no limit
+     * @return the deadline, or null if there is no limit
+     */
+    private static Deadline getDeadline(long timeoutMillis) {
+        return timeoutMillis > 0 ? new Deadline(timeoutMillis) : null;
+    }
+
+    /**
+     * A private helper that returns the number of top-level policies that were found. Several
+     * policies that apply are combined in to a policy set without id.
+     *
+     * @param finderResult the result of finding the policies
+     * @return number of policies
+     */
+    private static int getCandidates(PolicyFinderResult finderResult) {
+        if(finderResult.notApplicable() || finderResult.indeterminate()){
+            return 0;
+        }
+        AbstractPolicy policy = finderResult.getPolicy();
+        if(policy instanceof PolicySet && policy.getId() == null){
+            return policy.getChildren().size();
+        }
+        return 1;
+    }
+
+    /**
+     * Counts the decisions of the results of an evaluation, and times how long the handler takes
+     * to encode them, before passing them on
+     */
+    private static class MeteredResultHandler implements ResultHandler {
+
+        private ResultHandler handler;
+
+        private MetricsCollector metrics;
+
+        // results kept in memory are encoded later, if at all
+        private boolean encoding;
+
+        MeteredResultHandler(ResultHandler handler, MetricsCollector metrics) {
+            this.handler = handler;
+            this.metrics = metrics;
+            this.encoding = !(handler instanceof ResultCollector);
+        }
+
+        public void handleResult(AbstractResult result) throws IOException {
+            metrics.decisionMade(result.getDecision());
+            if(encoding){
+                long start = System.nanoTime();
+                handler.handleResult(result);
+                metrics.responseEncoded(System.nanoTime() - start);
+            } else {
+                handler.handleResult(result);
+            }
+        }
+    }
+
+    /**
+     * Keeps the results of an evaluation in memory, so that a <code>ResponseCtx</code> can be
+     * built from them
+     */
+    private static class ResultCollector implements ResultHandler {
+
+        private Set<AbstractResult> results = new HashSet<AbstractResult>();
+
+        public void handleResult(AbstractResult result) {
+            results.add(result);
+        }
+    }
+
 }
@@ -35,9 +35,11 @@
 
 package com.connexta.arbitro;
 
+import com.connexta.arbitro.audit.DecisionAuditor;
 import com.connexta.arbitro.finder.PolicyFinder;
 import com.connexta.arbitro.finder.ResourceFinder;
 import com.connexta.arbitro.finder.AttributeFinder;
+import com.connexta.arbitro.metrics.MetricsCollector;
 
 /**
  * This class is used as a container that holds configuration information for the PDP, which
@@ -62,6 +64,15 @@ public class PDPConfig {
     //
     private boolean multipleRequestHandle;
 
+    //
+    private MetricsCollector metricsCollector;
+
+    //
+    private DecisionAuditor decisionAuditor;
+
+    //
+    private long requestTimeout;
+
     /**
      * Constructor that creates a <code>PDPConfig</code> from components.
      *
@@ -143,4 +154,64 @@ public class PDPConfig {
     public boolean isMultipleRequestHandle() {
         return multipleRequestHandle;
     }
+
+    /**
+     * Returns the <code>MetricsCollector</code> that was configured, or null if none was configured
+     *
+     * @return the <code>MetricsCollector</code> or null
+     */
+    public MetricsCollector getMetricsCollector() {
+        return metricsCollector;
+    }
+
+    /**
+     * Sets the <code>MetricsCollector</code> that receives the timings and counts of the
+     * evaluation. This must be set before the PDP is created from this configuration.
+     *
+     * @param metricsCollector the <code>MetricsCollector</code>, or null if none should be
+     *            collected
+     */
+    public void setMetricsCollector(MetricsCollector metricsCollector) {
+        this.metricsCollector = metricsCollector;
+    }
+
+    /**
+     * Returns the <code>DecisionAuditor</code> that was configured, or null if none was configured
+     *
+     * @return the <code>DecisionAuditor</code> or null
+     */
+    public DecisionAuditor getDecisionAuditor() {
+        return decisionAuditor;
+    }
+
+    /**
+     * Sets the <code>DecisionAuditor</code> that receives a record of every decision. This must be
+     * set before the PDP is created from this configuration.
+     *
+     * @param decisionAuditor the <code>DecisionAuditor</code>, or null if decisions should not be
+     *            audited
+     */
+    public void setDecisionAuditor(DecisionAuditor decisionAuditor) {
+        this.decisionAuditor = decisionAuditor;
+    }
+
+    /**
+     * Returns the time in milliseconds the evaluation of a request may take, unless another
+     * deadline is given to the PDP
+     *
+     * @return the time in milliseconds, or 0 if there is no limit
+     */
+    public long getRequestTimeout() {
+        return requestTimeout;
+    }
+
+    /**
+     * Sets the time in milliseconds the evaluation of a request may take before its result is
+     * Indeterminate
+     *
+     * @param requestTimeout the time in milliseconds, or 0 if there is no limit
+     */
+    public void setRequestTimeout(long requestTimeout) {
+        this.requestTimeout = requestTimeout;
+    }
 }
@@ -0,0 +1,337 @@
+/*
+*  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Shares structurally equal parts of policies, such as <code>TargetMatch</code>,
+ * <code>Apply</code>, attribute designators and attribute values, between all the policies that
+ * are loaded with the same interner. Generated policies repeat the same parts many times, and as
+ * these are immutable once built, one instance of each is enough.
+ * <p>
+ * Parts are identified by the shape of their DOM, together with the XACML and XPath versions of
+ * the policy, so a part that is found again is not even parsed. Every distinct element gets a
+ * number, and the shape of an element is its name, attributes and text with the numbers of its
+ * child elements, so the key of a part does not grow with the size of its children. Parts that
+ * depend on more than their own DOM, such as variable references and XPath expressions, are
+ * never shared.
+ * </p>
+ * <p>
+ * The parsing code uses the interner of the current thread, which is set with
+ * <code>setCurrent</code> while policies are loaded. Once they are loaded, <code>clear</code>
+ * frees the shapes and instances the interner keeps, so that only the policies hold on to the
+ * shared parts.
+ * </p>
+ */
+public class PolicyInterner {
+
+    // rough sizes of what is built from the DOM, used to estimate the memory saved
+    private static final int ELEMENT_SIZE = 80;
+
+    private static final int ATTRIBUTE_SIZE = 48;
+
+    private static final int CHAR_SIZE = 2;
+
+    private static final Object NOT_SHARED = new Object();
+
+    private static final ThreadLocal<PolicyInterner> current = new ThreadLocal<PolicyInterner>();
+
+    /**
+     * the shapes of the elements of the document that is loaded on the current thread
+     */
+    private static final ThreadLocal<Map<Node, Object>> nodeShapes =
+            new ThreadLocal<Map<Node, Object>>();
+
+    private ConcurrentMap<String, Shape> shapes = new ConcurrentHashMap<String, Shape>();
+
+    private ConcurrentMap<String, Shared> instances = new ConcurrentHashMap<String, Shared>();
+
+    private AtomicInteger nextShape = new AtomicInteger();
+
+    private AtomicInteger instanceCount = new AtomicInteger();
+
+    private AtomicLong hits = new AtomicLong();
+
+    private AtomicLong bytesSaved = new AtomicLong();
+
+    /**
+     * Returns the interner that policies loaded on the current thread are interned with
+     *
+     * @return the interner, or null if policies are not interned
+     */
+    public static PolicyInterner getCurrent() {
+        return current.get();
+    }
+
+    /**
+     * Sets the interner that policies loaded on the current thread are interned with
+     *
+     * @param interner the interner, or null to not intern policies
+     */
+    public static void setCurrent(PolicyInterner interner) {
+        nodeShapes.remove();
+        if (interner == null) {
+            current.remove();
+        } else {
+            current.set(interner);
+        }
+    }
+
+    /**
+     * Returns the key that identifies the part of a policy built from the given node
+     *
+     * @param root the DOM root of the part
+     * @param metaData the meta-data of the policy
+     * @return the key, or null if the part must not be shared
+     */
+    public String getKey(Node root, PolicyMetaData metaData) {
+        Shape shape = getShape(root);
+        if (shape == null) {
+            return null;
+        }
+        // the size is made from the shape, so it does not tell keys apart, but is at hand when
+        // the part is interned
+        return metaData.getXACMLVersion() + "\u0001" + metaData.getXPathIdentifier() +
+                "\u0001" + shape.id + "\u0001" + shape.size;
+    }
+
+    /**
+     * Returns the shared instance for the given key
+     *
+     * @param key a key from <code>getKey</code>
+     * @return the shared instance, or null if there is none yet
+     */
+    public Object get(String key) {
+        Shared shared = instances.get(key);
+        if (shared == null) {
+            return null;
+        }
+        hits.incrementAndGet();
+        bytesSaved.addAndGet(shared.size);
+        return shared.instance;
+    }
+
+    /**
+     * Makes the given instance the shared instance for the key, unless there already is one
+     *
+     * @param key a key from <code>getKey</code>
+     * @param instance a part of a policy, built from the DOM the key was made from
+     * @param <T> the type of the part
+     * @return the shared instance
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T intern(String key, T instance) {
+        Shared shared = instances.putIfAbsent(key, new Shared(instance, getSize(key)));
+        if (shared == null) {
+            instanceCount.incrementAndGet();
+            return instance;
+        }
+        hits.incrementAndGet();
+        bytesSaved.addAndGet(shared.size);
+        return (T) shared.instance;
+    }
+
+    /**
+     * Forgets the shapes and the shared instances, which are freed with the policies that use
+     * them. Parts of policies that are loaded later are not shared with the ones loaded before.
+     * The counts are kept.
+     */
+    public void clear() {
+        shapes.clear();
+        instances.clear();
+    }
+
+    /**
+     * Returns the number of distinct parts that were shared
+     *
+     * @return number of shared instances
+     */
+    public int getInstanceCount() {
+        return instanceCount.get();
+    }
+
+    /**
+     * Returns how many times a shared instance was used instead of a new one
+     *
+     * @return number of hits
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Returns an estimate of the memory saved by using shared instances, from the number of
+     * elements and attributes and the length of the text in their DOM
+     *
+     * @return estimated bytes saved
+     */
+    public long getEstimatedBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    /**
+     * Private helper that returns the shape of a node, which is only made once for every node
+     * of the document that is loaded
+     *
+     * @param node the node
+     * @return the shape, or null if the part built from this node must not be shared
+     */
+    private Shape getShape(Node node) {
+        Map<Node, Object> cache = nodeShapes.get();
+        if (cache == null) {
+            cache = new IdentityHashMap<Node, Object>();
+            nodeShapes.set(cache);
+        }
+        Object cached = cache.get(node);
+        if (cached == null) {
+            Shape shape = makeShape(node);
+            cached = shape == null ? NOT_SHARED : shape;
+            cache.put(node, cached);
+        }
+        return cached == NOT_SHARED ? null : (Shape) cached;
+    }
+
+    /**
+     * Private helper that makes the shape of a node from its name, its attributes in name order,
+     * its text without the white space between elements, and the shapes of its children
+     *
+     * @param node the node
+     * @return the shape, or null if the part built from this node must not be shared
+     */
+    private Shape makeShape(Node node) {
+
+        String name = DOMHelper.getLocalName(node);
+        if (name.equals("VariableReference") || name.equals("AttributeSelector")) {
+            return null;
+        }
+
+        StringBuilder builder = new StringBuilder(64);
+        builder.append(node.getNamespaceURI()).append(' ').append(name);
+        int size = ELEMENT_SIZE;
+
+        NamedNodeMap attrs = node.getAttributes();
+        if (attrs != null && attrs.getLength() > 0) {
+            String[] attributes = new String[attrs.getLength()];
+            for (int i = 0; i < attributes.length; i++) {
+                Attr attr = (Attr) attrs.item(i);
+                if ("XPathCategory".equals(attr.getName()) ||
+                        attr.getValue().endsWith("#xpathExpression")) {
+                    return null;
+                }
+                attributes[i] = attr.getName() + '\u0003' + attr.getValue();
+            }
+            Arrays.sort(attributes);
+            for (String attribute : attributes) {
+                builder.append('\u0004').append(attribute);
+                size += ATTRIBUTE_SIZE;
+            }
+        }
+
+        NodeList children = node.getChildNodes();
+        boolean elements = false;
+        for (int i = 0; i < children.getLength(); i++) {
+            if (children.item(i).getNodeType() == Node.ELEMENT_NODE) {
+                elements = true;
+                break;
+            }
+        }
+
+        for (int i = 0; i < children.getLength(); i++) {
+            Node child = children.item(i);
+            short type = child.getNodeType();
+            if (type == Node.ELEMENT_NODE) {
+                Shape shape = getShape(child);
+                if (shape == null) {
+                    return null;
+                }
+                builder.append('\u0002').append(shape.id);
+                size += shape.size;
+            } else if (type == Node.TEXT_NODE || type == Node.CDATA_SECTION_NODE) {
+                String text = child.getNodeValue();
+                if (!elements || text.trim().length() > 0) {
+                    builder.append('\u0005').append(text);
+                    size += text.length() * CHAR_SIZE;
+                }
+            }
+        }
+
+        String form = builder.toString();
+        Shape shape = shapes.get(form);
+        if (shape == null) {
+            Shape created = new Shape(nextShape.getAndIncrement(), size);
+            shape = shapes.putIfAbsent(form, created);
+            if (shape == null) {
+                shape = created;
+            }
+        }
+        return shape;
+    }
+
+    /**
+     * Private helper that returns the estimated size of the part of a key
+     *
+     * @param key the key
+     * @return estimated size in bytes
+     */
+    private static int getSize(String key) {
+        return Integer.parseInt(key.substring(key.lastIndexOf('\u0001') + 1));
+    }
+
+    /**
+     * The number of a distinct element, and the estimated size of what is built from it
+     */
+    private static class Shape {
+
+        private final int id;
+
+        private final int size;
+
+        Shape(int id, int size) {
+            this.id = id;
+            this.size = size;
+        }
+    }
+
+    /**
+     * A shared instance with its estimated size
+     */
+    private static class Shared {
+
+        private Object instance;
+
+        private int size;
+
+        Shared(Object instance, int size) {
+            this.instance = instance;
+            this.size = size;
+        }
+    }
+}
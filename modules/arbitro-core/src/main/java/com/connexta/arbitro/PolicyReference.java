@@ -42,6 +42,7 @@ import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import com.connexta.arbitro.ctx.BasicEvaluationCtx;
 import com.connexta.arbitro.ctx.AbstractResult;
 import com.connexta.arbitro.ctx.ResultFactory;
 import com.connexta.arbitro.finder.PolicyFinder;
@@ -52,6 +53,7 @@ import com.connexta.arbitro.ctx.EvaluationCtx;
 import com.connexta.arbitro.ctx.Status;
 import com.connexta.arbitro.ctx.xacml2.Result;
 import com.connexta.arbitro.finder.PolicyFinderResult;
+import com.connexta.arbitro.metrics.MetricsCollector;
 
 /**
  * This class is used as a placeholder for the PolicyIdReference and PolicySetIdReference fields in
@@ -210,8 +212,13 @@ public class PolicyReference extends AbstractPolicy {
         if (lateNode != null)
             lateConstraint = lateNode.getNodeValue();
 
-        VersionConstraints constraints = new VersionConstraints(versionConstraint, earlyConstraint,
-                lateConstraint);
+        VersionConstraints constraints;
+        try {
+            constraints = new VersionConstraints(versionConstraint, earlyConstraint,
+                    lateConstraint);
+        } catch (IllegalArgumentException e) {
+            throw new ParsingException("Invalid version constraint in Reference", e);
+        }
 
         // finally, create the reference
         return new PolicyReference(reference, policyType, constraints, finder, metaData);
@@ -380,15 +387,22 @@ public class PolicyReference extends AbstractPolicy {
      * @return the result of trying to match the policy and the request
      */
     public MatchResult match(EvaluationCtx context) {
+        MatchResult result;
         try {
-            return getTarget().match(context);
+            result = getTarget().match(context);
         } catch (ProcessingException pe) {
             // this means that we couldn't resolve the policy
             ArrayList code = new ArrayList();
             code.add(Status.STATUS_PROCESSING_ERROR);
             Status status = new Status(code, "couldn't resolve policy ref");
-            return new MatchResult(MatchResult.INDETERMINATE, status);
+            result = new MatchResult(MatchResult.INDETERMINATE, status);
+        }
+
+        MetricsCollector metrics = BasicEvaluationCtx.getMetricsCollector(context);
+        if (metrics != null) {
+            metrics.policyMatched(this, result.getResult());
         }
+        return result;
     }
 
     /**
@@ -45,7 +45,9 @@ import java.util.Set;
 
 import com.connexta.arbitro.cond.Apply;
 import com.connexta.arbitro.cond.VariableManager;
+import com.connexta.arbitro.ctx.BasicEvaluationCtx;
 import com.connexta.arbitro.ctx.AbstractResult;
+import com.connexta.arbitro.ctx.Deadline;
 import com.connexta.arbitro.ctx.ResultFactory;
 import com.connexta.arbitro.xacml3.Advice;
 import com.connexta.arbitro.xacml3.AdviceExpression;
@@ -58,6 +60,7 @@ import com.connexta.arbitro.cond.EvaluationResult;
 import com.connexta.arbitro.ctx.EvaluationCtx;
 import com.connexta.arbitro.ctx.Status;
 import com.connexta.arbitro.ctx.xacml2.Result;
+import com.connexta.arbitro.metrics.MetricsCollector;
 
 /**
  * Represents the RuleType XACML type. This has a target for matching, and encapsulates the
@@ -352,6 +355,32 @@ public class Rule implements PolicyTreeElement {
      */
     public AbstractResult evaluate(EvaluationCtx context) {
 
+        Deadline deadline = BasicEvaluationCtx.getDeadline(context);
+        if (deadline != null && deadline.isExceeded()) {
+            return getIndeterminateResult(deadline.getStatus(), context);
+        }
+
+        MetricsCollector metrics = BasicEvaluationCtx.getMetricsCollector(context);
+        if (metrics == null) {
+            return evaluateRule(context);
+        }
+
+        metrics.ruleEvaluationStarted(this);
+        long start = System.nanoTime();
+        AbstractResult result = evaluateRule(context);
+        metrics.ruleEvaluated(this, System.nanoTime() - start, result.getDecision());
+        return result;
+    }
+
+    /**
+     * Private helper that evaluates the rule
+     *
+     * @param context the representation of the request we're evaluating
+     *
+     * @return the result of the evaluation
+     */
+    private AbstractResult evaluateRule(EvaluationCtx context) {
+
         // If the Target is null then it's supposed to inherit from the
         // parent policy, so we skip the matching step assuming we wouldn't
         // be here unless the parent matched
@@ -369,20 +398,7 @@ public class Rule implements PolicyTreeElement {
 
             // if the target was indeterminate, we can't go on
             if (result == MatchResult.INDETERMINATE){
-
-                // defines extended indeterminate results with XACML 3.0
-                if(xacmlVersion == XACMLConstants.XACML_VERSION_3_0){
-                    if(effectAttr == AbstractResult.DECISION_PERMIT){
-                        return ResultFactory.getFactory().getResult(Result.DECISION_INDETERMINATE_PERMIT,
-                                match.getStatus(), context);
-                    } else {
-                        return ResultFactory.getFactory().getResult(Result.DECISION_INDETERMINATE_DENY,
-                                match.getStatus(), context);
-                    }
-                }
-
-                return ResultFactory.getFactory().getResult(Result.DECISION_INDETERMINATE,
-                        match.getStatus(), context);
+                return getIndeterminateResult(match.getStatus(), context);
             }
         }
 
@@ -397,21 +413,8 @@ public class Rule implements PolicyTreeElement {
         EvaluationResult result = condition.evaluate(context);
 
         if (result.indeterminate()) {
-
-            // defines extended indeterminate results with XACML 3.0
-            if(xacmlVersion == XACMLConstants.XACML_VERSION_3_0){
-                if(effectAttr == AbstractResult.DECISION_PERMIT){
-                    return ResultFactory.getFactory().getResult(Result.DECISION_INDETERMINATE_PERMIT,
-                            result.getStatus(), context);
-                } else {
-                    return ResultFactory.getFactory().getResult(Result.DECISION_INDETERMINATE_DENY,
-                           result.getStatus(), context);
-                }
-            }
-
             // if it was INDETERMINATE, then that's what we return
-            return ResultFactory.getFactory().getResult(Result.DECISION_INDETERMINATE,
-                                                                       result.getStatus(), context);
+            return getIndeterminateResult(result.getStatus(), context);
         } else {
             // otherwise we return the effect on true, and NA on false
             BooleanAttribute bool = (BooleanAttribute) (result.getAttributeValue());
@@ -426,6 +429,30 @@ public class Rule implements PolicyTreeElement {
         }
     }
 
+    /**
+     * Private helper that returns an Indeterminate result for this rule, which is extended with
+     * the effect of the rule with XACML 3.0
+     *
+     * @param status the status of the result
+     * @param context the representation of the request we're evaluating
+     * @return the result
+     */
+    private AbstractResult getIndeterminateResult(Status status, EvaluationCtx context) {
+
+        // defines extended indeterminate results with XACML 3.0
+        if(xacmlVersion == XACMLConstants.XACML_VERSION_3_0){
+            if(effectAttr == AbstractResult.DECISION_PERMIT){
+                return ResultFactory.getFactory().getResult(Result.DECISION_INDETERMINATE_PERMIT,
+                        status, context);
+            } else {
+                return ResultFactory.getFactory().getResult(Result.DECISION_INDETERMINATE_DENY,
+                        status, context);
+            }
+        }
+
+        return ResultFactory.getFactory().getResult(Result.DECISION_INDETERMINATE, status, context);
+    }
+
     /**
      * helper method to evaluate the obligations expressions
      *
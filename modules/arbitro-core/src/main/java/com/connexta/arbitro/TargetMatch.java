@@ -54,6 +54,7 @@ import com.connexta.arbitro.attr.BooleanAttribute;
 import com.connexta.arbitro.attr.StringAttribute;
 import com.connexta.arbitro.cond.Evaluatable;
 import com.connexta.arbitro.cond.EvaluationResult;
+import com.connexta.arbitro.cond.ExpressionHandler;
 import com.connexta.arbitro.cond.FunctionTypeException;
 import com.connexta.arbitro.ctx.EvaluationCtx;
 import com.connexta.arbitro.ctx.Status;
@@ -206,12 +207,38 @@ public class TargetMatch {
     public static TargetMatch getInstance(Node root, int matchType, PolicyMetaData metaData)
             throws ParsingException {
 
+        // share the matches that are the same in all policies, if policies are interned
+        PolicyInterner interner = PolicyInterner.getCurrent();
+        String key = interner == null ? null : interner.getKey(root, metaData);
+        if (key == null) {
+            return parse(root, matchType, metaData);
+        }
+
+        key = matchType + key;
+        TargetMatch match = (TargetMatch) interner.get(key);
+        if (match == null) {
+            match = interner.intern(key, parse(root, matchType, metaData));
+        }
+        return match;
+    }
+
+    /**
+     * Private helper that parses a <code>TargetMatch</code>
+     *
+     * @param root the node to parse for the <code>TargetMatch</code>
+     * @param matchType the type of <code>TargetMatch</code> as specified by the SUBJECT, RESOURCE,
+     *            ACTION and ENVIRONMENT fields
+     * @param metaData the policy's meta-data
+     * @return a new <code>TargetMatch</code> constructed by parsing
+     * @throws ParsingException if there was an error during parsing
+     */
+    private static TargetMatch parse(Node root, int matchType, PolicyMetaData metaData)
+            throws ParsingException {
+
         Function function;
         Evaluatable eval = null;
         AttributeValue attrValue = null;
 
-        AttributeFactory attrFactory = Balana.getInstance().getAttributeFactory();
-
         // get the function type, making sure that it's really a correct
         // Target function
         String funcName = root.getAttributes().getNamedItem("MatchId").getNodeValue();
@@ -243,18 +270,14 @@ public class TargetMatch {
 
             if (XACMLConstants.XACML_VERSION_3_0 == metaData.getXACMLVersion()
                     && "AttributeDesignator".equals(name)){
-                eval = AttributeDesignatorFactory.getFactory().getAbstractDesignator(node, metaData);
+                eval = (Evaluatable) ExpressionHandler.parseExpression(node, metaData, null);
             } else if(!(XACMLConstants.XACML_VERSION_3_0 == metaData.getXACMLVersion())
                     && (NAMES[matchType] + "AttributeDesignator").equals(name)){
-                eval = AttributeDesignatorFactory.getFactory().getAbstractDesignator(node, metaData);
+                eval = (Evaluatable) ExpressionHandler.parseExpression(node, metaData, null);
             } else if (name.equals("AttributeSelector")) {
                 eval = AttributeSelectorFactory.getFactory().getAbstractSelector(node, metaData);
             } else if (name.equals("AttributeValue")) {
-                try {
-                    attrValue = attrFactory.createValue(node);
-                } catch (UnknownIdentifierException uie) {
-                    throw new ParsingException("Unknown Attribute Type", uie);
-                }
+                attrValue = parseValue(node, metaData);
             }
         }
 
@@ -271,6 +294,35 @@ public class TargetMatch {
         }
     }
 
+    /**
+     * Private helper that parses the attribute value of a <code>TargetMatch</code>, which is
+     * shared with the same values of other policies if policies are interned
+     *
+     * @param node the node of the attribute value
+     * @param metaData the policy's meta-data
+     * @return the attribute value
+     * @throws ParsingException if the data type is not known
+     */
+    private static AttributeValue parseValue(Node node, PolicyMetaData metaData)
+            throws ParsingException {
+
+        PolicyInterner interner = PolicyInterner.getCurrent();
+        String key = interner == null ? null : interner.getKey(node, metaData);
+        AttributeValue value = key == null ? null : (AttributeValue) interner.get(key);
+        if (value == null) {
+            AttributeFactory attrFactory = Balana.getInstance().getAttributeFactory();
+            try {
+                value = attrFactory.createValue(node);
+            } catch (UnknownIdentifierException uie) {
+                throw new ParsingException("Unknown Attribute Type", uie);
+            }
+            if (key != null) {
+                value = interner.intern(key, value);
+            }
+        }
+        return value;
+    }
+
     /**
      * Returns the type of this <code>TargetMatch</code>, either <code>SUBJECT</code>,
      * <code>RESOURCE</code>, <code>ACTION</code>, or <code>ENVIRONMENT</code>.
@@ -36,6 +36,7 @@
 package com.connexta.arbitro;
 
 import java.util.StringTokenizer;
+import java.util.regex.Pattern;
 
 /**
  * Supports the three version constraints that can be included with a policy reference. This class
@@ -53,6 +54,11 @@ public class VersionConstraints {
     private static final int COMPARE_LESS = 1;
     private static final int COMPARE_GREATER = 2;
 
+    // the VersionType and VersionMatchType types of the XACML schema
+    private static final Pattern VERSION = Pattern.compile("\\d+(\\.\\d+)*");
+    private static final Pattern VERSION_MATCH =
+            Pattern.compile("((\\d+|\\*)\\.)*(\\d+|\\*|\\+)");
+
     // the three constraint strings
     private String version;
     private String earliest;
@@ -66,8 +72,12 @@ public class VersionConstraints {
      * @param version a matching constraint on the version or null
      * @param earliest a lower-bound constraint on the version or null
      * @param latest an upper-bound constraint on the version or null
+     * @throws IllegalArgumentException if a constraint is not a VersionMatchType
      */
     public VersionConstraints(String version, String earliest, String latest) {
+        checkConstraint(version);
+        checkConstraint(earliest);
+        checkConstraint(latest);
         this.version = version;
         this.earliest = earliest;
         this.latest = latest;
@@ -151,6 +161,88 @@ public class VersionConstraints {
         return compareHelper(version, constraint, COMPARE_GREATER);
     }
 
+    /**
+     * Checks if the given string is formatted as a VersionType XACML type, i.e. whether it is a
+     * version rather than a pattern.
+     *
+     * @param version the string to check
+     *
+     * @return true if the string is a version
+     */
+    public static boolean isVersion(String version) {
+        return version != null && VERSION.matcher(version).matches();
+    }
+
+    /**
+     * Compares two versions, which are formatted as VersionType XACML types. The numbers of the
+     * versions are compared one by one, whatever their size, and a version that starts with all
+     * the numbers of another version is later than that version. Versions that only differ in
+     * leading zeros, such as 1.01 and 1.1, are different versions: the shorter one is earlier,
+     * and versions of the same length are compared as strings.
+     *
+     * @param version1 the first version
+     * @param version2 the second version
+     *
+     * @return a negative number, zero or a positive number as the first version is earlier than,
+     *         the same as, or later than the second version
+     * @throws IllegalArgumentException if one of the strings is not a version
+     */
+    public static int compare(String version1, String version2) {
+        if (!isVersion(version1) || !isVersion(version2)) {
+            throw new IllegalArgumentException("invalid version : "
+                    + (isVersion(version1) ? version2 : version1));
+        }
+        StringTokenizer tok1 = new StringTokenizer(version1, ".");
+        StringTokenizer tok2 = new StringTokenizer(version2, ".");
+
+        while (tok1.hasMoreTokens() && tok2.hasMoreTokens()) {
+            int result = compareNumbers(tok1.nextToken(), tok2.nextToken());
+            if (result != 0)
+                return result;
+        }
+
+        if (tok1.hasMoreTokens())
+            return 1;
+        if (tok2.hasMoreTokens())
+            return -1;
+        if (version1.length() != version2.length())
+            return version1.length() < version2.length() ? -1 : 1;
+        return version1.compareTo(version2);
+    }
+
+    /**
+     * Private helper that compares two strings of digits by the numbers they stand for, however
+     * large they are.
+     */
+    private static int compareNumbers(String number1, String number2) {
+        int start1 = 0;
+        while (start1 < number1.length() - 1 && number1.charAt(start1) == '0')
+            start1++;
+        int start2 = 0;
+        while (start2 < number2.length() - 1 && number2.charAt(start2) == '0')
+            start2++;
+
+        int length1 = number1.length() - start1;
+        int length2 = number2.length() - start2;
+        if (length1 != length2)
+            return length1 < length2 ? -1 : 1;
+        for (int i = 0; i < length1; i++) {
+            char c1 = number1.charAt(start1 + i);
+            char c2 = number2.charAt(start2 + i);
+            if (c1 != c2)
+                return c1 < c2 ? -1 : 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Private helper that rejects a constraint which is not formatted as a VersionMatchType.
+     */
+    private static void checkConstraint(String constraint) {
+        if (constraint != null && !VERSION_MATCH.matcher(constraint).matches())
+            throw new IllegalArgumentException("invalid version constraint : " + constraint);
+    }
+
     /**
      * Private helper that handles all three comparisons.
      */
@@ -196,15 +288,14 @@ public class VersionConstraints {
                     if (type == COMPARE_EQUAL)
                         return false;
 
-                    // convert both tokens to integers...
-                    int cint = Integer.valueOf(c).intValue();
-                    int vint = Integer.valueOf(v).intValue();
-
-                    // ...and do the right kind of comparison
+                    // compare both tokens as numbers, however large they are
+                    int result = compareNumbers(v, c);
+                    if (result == 0)
+                        continue;
                     if (type == COMPARE_LESS)
-                        return vint <= cint;
+                        return result < 0;
                     else
-                        return vint >= cint;
+                        return result > 0;
                 }
             }
         }
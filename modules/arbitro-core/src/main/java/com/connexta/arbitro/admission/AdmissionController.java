@@ -0,0 +1,474 @@
+/*
+*  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.admission;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.connexta.arbitro.PDP;
+import com.connexta.arbitro.XACMLConstants;
+import com.connexta.arbitro.ctx.AbstractRequestCtx;
+import com.connexta.arbitro.ctx.AbstractResult;
+import com.connexta.arbitro.ctx.ResponseCtx;
+import com.connexta.arbitro.ctx.ResultFactory;
+import com.connexta.arbitro.ctx.Status;
+import com.connexta.arbitro.ctx.json.JSONRequestParser;
+import com.connexta.arbitro.ctx.json.JSONResponseWriter;
+
+/**
+ * Admits requests to a <code>PDP</code>, so that under overload low priority traffic is shed
+ * and high priority traffic stays fast. Every request is evaluated in a <code>Lane</code>. A
+ * request is evaluated right away when both the controller and its lane are below their
+ * concurrency limits and no request of a lane with a higher priority is waiting; otherwise it
+ * waits in a bounded queue. Waiting requests are admitted by priority as evaluations finish.
+ * <p>
+ * A request is shed, and answered with Indeterminate, when it waits longer than the queue time
+ * of its lane, when the queue is full and no request of a lane with a lower priority can be
+ * shed in its place, or when its lane is replaced while it waits. The status of a shed request
+ * is a processing error with the nested <code>STATUS_OVERLOADED</code> code, so callers can tell
+ * it apart from other errors.
+ * </p>
+ * <p>
+ * The concurrency limit of the controller is fixed, unless an adaptive limit is set. An adaptive
+ * limit grows by one for every limit's worth of evaluations that finish within twice the fastest
+ * recent latency, and shrinks by a tenth, at most once per limit's worth of evaluations, when
+ * they take longer. The fastest latency is measured again over every window of evaluations, so
+ * that it follows changes in the policies and in the load. Evaluations are timed with
+ * <code>nanoTime()</code>.
+ * </p>
+ */
+public class AdmissionController {
+
+    /**
+     * the nested status code of requests that were shed
+     */
+    public static final String STATUS_OVERLOADED = "urn:connexta:arbitro:status:overloaded";
+
+    /**
+     * the number of requests that may wait, if no other limit is given
+     */
+    public static final int DEFAULT_MAX_QUEUE_SIZE = 1024;
+
+    private static final double LATENCY_TOLERANCE = 2.0;
+
+    private static final double DECREASE_FACTOR = 0.9;
+
+    private static final int BASELINE_WINDOW = 1000;
+
+    private PDP pdp;
+    private int maxQueueSize;
+
+    private ReentrantLock lock = new ReentrantLock();
+
+    // the following fields are guarded by the lock
+    private Map<String, Lane> lanes = new HashMap<String, Lane>();
+    private List<Lane> lanesByPriority = new ArrayList<Lane>();
+    private int inFlight;
+    private int queued;
+    private double limit;
+    private boolean adaptive;
+    private int minLimit;
+    private int maxLimit;
+    private long samples;
+    private long lastDecrease;
+    private long minLatency = Long.MAX_VALUE;
+    private long windowMinLatency = Long.MAX_VALUE;
+
+    /**
+     * Creates a controller with a fixed concurrency limit and a queue of the default size
+     *
+     * @param pdp the PDP that evaluates the admitted requests
+     * @param limit the number of requests that may be evaluated at the same time
+     */
+    public AdmissionController(PDP pdp, int limit) {
+        this(pdp, limit, DEFAULT_MAX_QUEUE_SIZE);
+    }
+
+    /**
+     * Creates a controller with a fixed concurrency limit
+     *
+     * @param pdp the PDP that evaluates the admitted requests
+     * @param limit the number of requests that may be evaluated at the same time
+     * @param maxQueueSize the number of requests that may wait to be admitted
+     */
+    public AdmissionController(PDP pdp, int limit, int maxQueueSize) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be positive : " + limit);
+        }
+        this.pdp = pdp;
+        this.limit = limit;
+        this.maxQueueSize = maxQueueSize;
+    }
+
+    /**
+     * Lets the concurrency limit follow the observed latency, starting from the current limit
+     *
+     * @param minLimit the lowest limit
+     * @param maxLimit the highest limit
+     */
+    public void setAdaptiveLimit(int minLimit, int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("invalid limits : " + minLimit + ", " + maxLimit);
+        }
+        lock.lock();
+        try {
+            this.adaptive = true;
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+            limit = Math.min(maxLimit, Math.max(minLimit, limit));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds a lane, replacing any lane with the same name. The requests waiting in a lane that is
+     * replaced are shed.
+     *
+     * @param lane the lane
+     */
+    public void addLane(Lane lane) {
+        lock.lock();
+        try {
+            Lane old = lanes.put(lane.getName(), lane);
+            if (old != null) {
+                lanesByPriority.remove(old);
+                Ticket ticket;
+                while ((ticket = old.queue.poll()) != null) {
+                    queued--;
+                    shedTicket(ticket, "lane " + old.getName() + " was replaced");
+                }
+            }
+            lanesByPriority.add(lane);
+            Collections.sort(lanesByPriority, new Comparator<Lane>() {
+                public int compare(Lane a, Lane b) {
+                    return b.getPriority() < a.getPriority() ? -1
+                            : (b.getPriority() == a.getPriority() ? 0 : 1);
+                }
+            });
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a lane
+     *
+     * @param name the name of the lane
+     * @return the lane, or null if there is no such lane
+     */
+    public Lane getLane(String name) {
+        lock.lock();
+        try {
+            return lanes.get(name);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of requests that may be evaluated at the same time
+     */
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of requests being evaluated
+     */
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of requests waiting to be admitted
+     */
+    public int getQueueSize() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Evaluates a request in a lane, once it has been admitted
+     *
+     * @param request the request to evaluate
+     * @param laneName the name of the lane
+     * @return the response of the PDP, or an Indeterminate response if the request was shed
+     * @throws IllegalArgumentException if there is no such lane
+     */
+    public ResponseCtx evaluate(AbstractRequestCtx request, String laneName) {
+        Lane lane = getLaneOrFail(laneName);
+        Status status = acquire(lane);
+        if (status != null) {
+            return new ResponseCtx(ResultFactory.getFactory().getResult(
+                    AbstractResult.DECISION_INDETERMINATE, status, request.getXacmlVersion()));
+        }
+        long start = nanoTime();
+        try {
+            return pdp.evaluate(request);
+        } finally {
+            release(lane, nanoTime() - start);
+        }
+    }
+
+    /**
+     * Evaluates a request in a lane, once it has been admitted
+     *
+     * @param request the XML or JSON request to evaluate
+     * @param laneName the name of the lane
+     * @return the response of the PDP in the format of the request, or an Indeterminate response
+     *         if the request was shed
+     * @throws IllegalArgumentException if there is no such lane
+     */
+    public String evaluate(String request, String laneName) {
+        Lane lane = getLaneOrFail(laneName);
+        Status status = acquire(lane);
+        if (status != null) {
+            // the request is not parsed, so the response uses XACML 3
+            ResponseCtx response = new ResponseCtx(ResultFactory.getFactory().getResult(
+                    AbstractResult.DECISION_INDETERMINATE, status,
+                    XACMLConstants.XACML_VERSION_3_0));
+            if (JSONRequestParser.isJSON(request)) {
+                return JSONResponseWriter.encode(response);
+            }
+            return response.encode();
+        }
+        long start = nanoTime();
+        try {
+            return pdp.evaluate(request);
+        } finally {
+            release(lane, nanoTime() - start);
+        }
+    }
+
+    /**
+     * Returns the current time of the clock that evaluations are timed with, which subclasses
+     * may replace
+     *
+     * @return the current time in nanoseconds, from an arbitrary origin
+     */
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Private helper that waits until a request is admitted
+     *
+     * @return null if the request was admitted, or the status of the request if it was shed
+     */
+    private Status acquire(Lane lane) {
+        lock.lock();
+        try {
+            if (lane.queue.isEmpty() && canAdmit(lane) && !isHigherPriorityWaiting(lane)) {
+                admit(lane);
+                return null;
+            }
+            if (lane.getMaxQueueNanos() <= 0) {
+                return shed(lane, "no capacity in lane " + lane.getName());
+            }
+            if (queued >= maxQueueSize && !shedLowerPriority(lane)) {
+                return shed(lane, "admission queue is full");
+            }
+
+            Ticket ticket = new Ticket(lock.newCondition());
+            lane.queue.add(ticket);
+            queued++;
+            long remaining = lane.getMaxQueueNanos();
+            try {
+                while (!ticket.admitted && !ticket.shed && remaining > 0) {
+                    remaining = ticket.condition.awaitNanos(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (ticket.admitted) {
+                return null;
+            }
+            if (!ticket.shed) {
+                lane.queue.remove(ticket);
+                queued--;
+                return shed(lane, "waited longer than " + lane.getMaxQueueMillis()
+                        + " ms in lane " + lane.getName());
+            }
+            return shed(lane, ticket.reason);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Private helper that ends the evaluation of an admitted request, admitting waiting
+     * requests in its place
+     */
+    private void release(Lane lane, long nanos) {
+        lock.lock();
+        try {
+            inFlight--;
+            lane.inFlight--;
+            if (adaptive) {
+                adapt(nanos);
+            }
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Private helper that admits waiting requests, by priority, while there is capacity
+     */
+    private void dispatch() {
+        while (inFlight < (int) limit) {
+            Lane next = null;
+            for (Lane lane : lanesByPriority) {
+                if (!lane.queue.isEmpty() && lane.inFlight < lane.getMaxConcurrency()) {
+                    next = lane;
+                    break;
+                }
+            }
+            if (next == null) {
+                return;
+            }
+            Ticket ticket = next.queue.poll();
+            queued--;
+            admit(next);
+            ticket.admitted = true;
+            ticket.condition.signal();
+        }
+    }
+
+    /**
+     * Private helper that moves the concurrency limit after an evaluation
+     */
+    private void adapt(long nanos) {
+        samples++;
+        minLatency = Math.min(minLatency, nanos);
+        windowMinLatency = Math.min(windowMinLatency, nanos);
+        if (nanos <= minLatency * LATENCY_TOLERANCE) {
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        } else if (samples - lastDecrease >= limit) {
+            limit = Math.max(minLimit, limit * DECREASE_FACTOR);
+            lastDecrease = samples;
+        }
+        if (samples % BASELINE_WINDOW == 0) {
+            minLatency = windowMinLatency;
+            windowMinLatency = Long.MAX_VALUE;
+        }
+    }
+
+    private boolean canAdmit(Lane lane) {
+        return inFlight < (int) limit && lane.inFlight < lane.getMaxConcurrency();
+    }
+
+    private boolean isHigherPriorityWaiting(Lane lane) {
+        for (Lane other : lanesByPriority) {
+            if (other.getPriority() <= lane.getPriority()) {
+                return false;
+            }
+            if (!other.queue.isEmpty() && other.inFlight < other.getMaxConcurrency()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Private helper that sheds the newest waiting request of the lane with the lowest priority,
+     * if that priority is lower than the one of the given lane
+     */
+    private boolean shedLowerPriority(Lane lane) {
+        for (int i = lanesByPriority.size() - 1; i >= 0; i--) {
+            Lane other = lanesByPriority.get(i);
+            if (other.getPriority() >= lane.getPriority()) {
+                return false;
+            }
+            Ticket ticket = other.queue.pollLast();
+            if (ticket != null) {
+                queued--;
+                shedTicket(ticket, "shed for requests of a higher priority");
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void shedTicket(Ticket ticket, String reason) {
+        ticket.shed = true;
+        ticket.reason = reason;
+        ticket.condition.signal();
+    }
+
+    private void admit(Lane lane) {
+        inFlight++;
+        lane.inFlight++;
+        lane.admitted();
+    }
+
+    private static Status shed(Lane lane, String message) {
+        lane.shed();
+        List<String> code = new ArrayList<String>();
+        code.add(Status.STATUS_PROCESSING_ERROR);
+        code.add(STATUS_OVERLOADED);
+        return new Status(code, "request shed: " + message);
+    }
+
+    private Lane getLaneOrFail(String name) {
+        Lane lane = getLane(name);
+        if (lane == null) {
+            throw new IllegalArgumentException("unknown lane : " + name);
+        }
+        return lane;
+    }
+
+    /**
+     * A request waiting to be admitted
+     */
+    static class Ticket {
+
+        private Condition condition;
+        private boolean admitted;
+        private boolean shed;
+        private String reason;
+
+        Ticket(Condition condition) {
+            this.condition = condition;
+        }
+    }
+}
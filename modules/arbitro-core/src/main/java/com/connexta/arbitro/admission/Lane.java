@@ -0,0 +1,118 @@
+/*
+*  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.admission;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A class of traffic of an <code>AdmissionController</code>, such as interactive checks or batch
+ * jobs. Waiting requests of the lane with the highest priority are admitted first, a lane never
+ * has more requests being evaluated than its concurrency limit, and a request that waited longer
+ * than the queue time of its lane is shed.
+ */
+public class Lane {
+
+    private String name;
+    private int priority;
+    private int maxConcurrency;
+    private long maxQueueNanos;
+
+    // the state of the lane, guarded by the lock of the controller
+    int inFlight;
+    ArrayDeque<AdmissionController.Ticket> queue = new ArrayDeque<AdmissionController.Ticket>();
+
+    private AtomicLong admitted = new AtomicLong();
+    private AtomicLong shed = new AtomicLong();
+
+    /**
+     * Creates a lane
+     *
+     * @param name the name of the lane
+     * @param priority the priority of the lane, where waiting requests of lanes with a higher
+     *                 priority are admitted first
+     * @param maxConcurrency the number of requests of the lane that may be evaluated at the same
+     *                       time
+     * @param maxQueueMillis the time in milliseconds a request of the lane may wait before it is
+     *                       shed, or 0 to shed requests that can not be admitted right away
+     */
+    public Lane(String name, int priority, int maxConcurrency, long maxQueueMillis) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be positive : " + maxConcurrency);
+        }
+        this.name = name;
+        this.priority = priority;
+        this.maxConcurrency = maxConcurrency;
+        this.maxQueueNanos = maxQueueMillis * 1000000L;
+    }
+
+    /**
+     * @return the name of the lane
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the priority of the lane
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return the number of requests of the lane that may be evaluated at the same time
+     */
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * @return the time in milliseconds a request of the lane may wait
+     */
+    public long getMaxQueueMillis() {
+        return maxQueueNanos / 1000000L;
+    }
+
+    /**
+     * @return the number of requests of the lane that were admitted
+     */
+    public long getAdmittedCount() {
+        return admitted.get();
+    }
+
+    /**
+     * @return the number of requests of the lane that were shed
+     */
+    public long getShedCount() {
+        return shed.get();
+    }
+
+    long getMaxQueueNanos() {
+        return maxQueueNanos;
+    }
+
+    void admitted() {
+        admitted.incrementAndGet();
+    }
+
+    void shed() {
+        shed.incrementAndGet();
+    }
+}
@@ -0,0 +1,378 @@
+/*
+*  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.audit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A <code>DecisionAuditor</code> that writes decision records to an append-only binary log on
+ * a background thread. The evaluating thread only puts the record in a lock-free ring buffer;
+ * the writer takes them out in batches, computes the request digests and appends them to a
+ * memory-mapped log file. The writer sleeps while the buffer is empty and is woken by the next
+ * record.
+ * <p>
+ * The log is a series of files named <code>prefix-000001.log</code>,
+ * <code>prefix-000002.log</code> and so on. Each file starts with the magic number and the
+ * version of the format, followed by the records, each prefixed by its length in bytes. A file
+ * is rotated when the next record does not fit, and the unused end of the file is cut off. A
+ * zero length marks the end of a file that was not closed. <code>AuditLogReader</code> reads
+ * these files.
+ * </p>
+ * <p>
+ * When the ring buffer is full, records are dropped and counted, or the evaluating thread waits
+ * until there is room, depending on the overflow policy.
+ * </p>
+ */
+public class AsyncAuditLog extends DecisionAuditor implements Closeable {
+
+    /**
+     * Drop records when the buffer is full
+     */
+    public static final int OVERFLOW_DROP = 0;
+
+    /**
+     * Make the evaluating thread wait when the buffer is full
+     */
+    public static final int OVERFLOW_BLOCK = 1;
+
+    /**
+     * The magic number at the start of every log file, "ARBA"
+     */
+    public static final int MAGIC = 0x41524241;
+
+    /**
+     * The version of the log format
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * The size of the header of a log file
+     */
+    static final int HEADER_SIZE = 8;
+
+    /**
+     * The default size of a log file, 64 MB
+     */
+    public static final int DEFAULT_FILE_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * The default number of records in the buffer
+     */
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    /**
+     * How long a blocked thread waits before it tries again
+     */
+    private static final long BLOCK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private static Log logger = LogFactory.getLog(AsyncAuditLog.class);
+
+    private File directory;
+
+    private String prefix;
+
+    private int fileSize;
+
+    private int overflowPolicy;
+
+    private int maxFiles;
+
+    private RingBuffer<DecisionRecord> buffer;
+
+    private AtomicLong written = new AtomicLong();
+
+    private AtomicLong dropped = new AtomicLong();
+
+    private volatile boolean running = true;
+
+    /**
+     * the number of threads that are handing off a record
+     */
+    private AtomicInteger producers = new AtomicInteger();
+
+    /**
+     * whether the writer is about to sleep or sleeping, and needs to be woken
+     */
+    private volatile boolean sleeping;
+
+    private Thread writer;
+
+    // only used by the writer thread
+    private int fileNumber;
+    private RandomAccessFile file;
+    private MappedByteBuffer mapped;
+    private ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+    private DataOutputStream output = new DataOutputStream(bytes);
+    private MessageDigest digest;
+
+    /**
+     * Creates a log with the default file size and buffer capacity, that drops records when the
+     * buffer is full, and starts its writer
+     *
+     * @param directory the directory of the log files, which is created if needed
+     * @param prefix the start of the names of the log files
+     * @throws IOException if the first log file can not be created
+     */
+    public AsyncAuditLog(File directory, String prefix) throws IOException {
+        this(directory, prefix, DEFAULT_FILE_SIZE, DEFAULT_CAPACITY, OVERFLOW_DROP);
+    }
+
+    /**
+     * Creates a log and starts its writer
+     *
+     * @param directory the directory of the log files, which is created if needed
+     * @param prefix the start of the names of the log files
+     * @param fileSize the size of a log file in bytes
+     * @param capacity the number of records in the buffer, rounded up to a power of two
+     * @param overflowPolicy <code>OVERFLOW_DROP</code> or <code>OVERFLOW_BLOCK</code>
+     * @throws IOException if the first log file can not be created
+     */
+    public AsyncAuditLog(File directory, String prefix, int fileSize, int capacity,
+                         int overflowPolicy) throws IOException {
+        if (fileSize <= HEADER_SIZE) {
+            throw new IllegalArgumentException("file size is too small: " + fileSize);
+        }
+        if (overflowPolicy != OVERFLOW_DROP && overflowPolicy != OVERFLOW_BLOCK) {
+            throw new IllegalArgumentException("unknown overflow policy: " + overflowPolicy);
+        }
+        this.directory = directory;
+        this.prefix = prefix;
+        this.fileSize = fileSize;
+        this.overflowPolicy = overflowPolicy;
+        this.buffer = new RingBuffer<DecisionRecord>(capacity);
+        try {
+            this.digest = MessageDigest.getInstance(DecisionRecord.DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create directory " + directory);
+        }
+        File[] files = getLogFiles(directory, prefix);
+        if (files.length > 0) {
+            fileNumber = getFileNumber(files[files.length - 1], prefix);
+        }
+        openFile(fileSize);
+
+        writer = new Thread(new Writer(), "audit-log-writer-" + prefix);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Sets the number of log files to keep. The oldest files are deleted when a file is rotated.
+     *
+     * @param maxFiles the number of files to keep, or 0 to keep all files
+     */
+    public void setMaxFiles(int maxFiles) {
+        this.maxFiles = maxFiles;
+    }
+
+    /**
+     * @return the number of records written so far
+     */
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    /**
+     * @return the number of records dropped because the buffer was full, the log was closed or
+     *          they could not be written
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Hands the record off to the writer
+     *
+     * @param record the record of the decision
+     */
+    public void audit(DecisionRecord record) {
+        // the writer does not stop while a record is being handed off
+        producers.incrementAndGet();
+        try {
+            if (!running) {
+                dropped.incrementAndGet();
+                return;
+            }
+            while (!buffer.offer(record)) {
+                if (overflowPolicy == OVERFLOW_DROP || !running) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                LockSupport.parkNanos(BLOCK_NANOS);
+            }
+        } finally {
+            producers.decrementAndGet();
+            if (sleeping || !running) {
+                LockSupport.unpark(writer);
+            }
+        }
+    }
+
+    /**
+     * Writes the records that are still in the buffer or being handed off, closes the log file
+     * and stops the writer. Records that are handed off afterwards are dropped.
+     *
+     * @throws IOException if the log file can not be closed
+     */
+    public void close() throws IOException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeFile();
+    }
+
+    /**
+     * Returns the log files with the given prefix, oldest first
+     *
+     * @param directory the directory of the log files
+     * @param prefix the start of the names of the log files
+     * @return the log files
+     */
+    public static File[] getLogFiles(File directory, final String prefix) {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(prefix + "-") && name.endsWith(".log") &&
+                        getFileNumber(new File(dir, name), prefix) > 0;
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        // the numbers have a fixed width, so the names sort in order
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static int getFileNumber(File file, String prefix) {
+        String name = file.getName();
+        try {
+            return Integer.parseInt(name.substring(prefix.length() + 1, name.length() - 4));
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    private void write(DecisionRecord record) throws IOException {
+        bytes.reset();
+        record.write(output, digest);
+        int length = bytes.size();
+        if (mapped.remaining() < 4 + length) {
+            closeFile();
+            openFile(Math.max(fileSize, HEADER_SIZE + 4 + length));
+        }
+        mapped.putInt(length);
+        mapped.put(bytes.toByteArray(), 0, length);
+    }
+
+    private void openFile(int size) throws IOException {
+        fileNumber++;
+        File path = new File(directory, String.format("%s-%06d.log", prefix, fileNumber));
+        file = new RandomAccessFile(path, "rw");
+        mapped = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        mapped.putInt(MAGIC);
+        mapped.putInt(VERSION);
+
+        if (maxFiles > 0) {
+            File[] files = getLogFiles(directory, prefix);
+            for (int i = 0; i < files.length - maxFiles; i++) {
+                if (!files[i].delete()) {
+                    logger.warn("Could not delete audit log file " + files[i]);
+                }
+            }
+        }
+    }
+
+    private void closeFile() throws IOException {
+        if (file == null) {
+            return;
+        }
+        mapped.force();
+        int position = mapped.position();
+        mapped = null;
+        try {
+            file.getChannel().truncate(position);
+        } catch (IOException e) {
+            // the file is still readable, as the rest of it is zeros
+            logger.warn("Could not cut off the end of the audit log file", e);
+        }
+        file.close();
+        file = null;
+    }
+
+    /**
+     * Takes records out of the buffer and writes them until the log is closed
+     */
+    private class Writer implements Runnable {
+
+        public void run() {
+            while (true) {
+                DecisionRecord record = buffer.poll();
+                if (record == null) {
+                    if (!running && producers.get() == 0 && buffer.isEmpty()) {
+                        return;
+                    }
+                    // a record that is handed off after the buffer was seen empty wakes the writer
+                    sleeping = true;
+                    if (buffer.isEmpty() && (running || producers.get() > 0)) {
+                        LockSupport.park(this);
+                    }
+                    sleeping = false;
+                    continue;
+                }
+                try {
+                    write(record);
+                    written.incrementAndGet();
+                } catch (Exception e) {
+                    dropped.incrementAndGet();
+                    logger.error("Could not write audit record", e);
+                }
+            }
+        }
+    }
+}
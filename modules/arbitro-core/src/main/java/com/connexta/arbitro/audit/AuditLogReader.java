@@ -0,0 +1,130 @@
+/*
+*  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.audit;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the records of a log file written by <code>AsyncAuditLog</code>. It can also be run to
+ * print the records of log files:
+ * <pre>
+ * java com.connexta.arbitro.audit.AuditLogReader &lt;file or directory&gt; [prefix]
+ * </pre>
+ */
+public class AuditLogReader implements Closeable {
+
+    private RandomAccessFile file;
+
+    private MappedByteBuffer mapped;
+
+    /**
+     * Opens a log file
+     *
+     * @param path the log file
+     * @throws IOException if the file can not be read or is not a log file
+     */
+    public AuditLogReader(File path) throws IOException {
+        file = new RandomAccessFile(path, "r");
+        try {
+            mapped = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            if (mapped.remaining() < AsyncAuditLog.HEADER_SIZE ||
+                    mapped.getInt() != AsyncAuditLog.MAGIC) {
+                throw new IOException(path + " is not an audit log file");
+            }
+            int version = mapped.getInt();
+            if (version != AsyncAuditLog.VERSION) {
+                throw new IOException("Unsupported audit log version " + version + " in " + path);
+            }
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the next record
+     *
+     * @return the record, or null at the end of the file
+     * @throws IOException if the record is corrupt
+     */
+    public DecisionRecord next() throws IOException {
+        if (mapped.remaining() < 4) {
+            return null;
+        }
+        int length = mapped.getInt();
+        if (length == 0) {
+            // the rest of a file that was not closed
+            return null;
+        }
+        if (length < 0 || length > mapped.remaining()) {
+            throw new IOException("Corrupt audit record at " + (mapped.position() - 4));
+        }
+        byte[] bytes = new byte[length];
+        mapped.get(bytes);
+        return DecisionRecord.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    /**
+     * Closes the log file
+     *
+     * @throws IOException if the file can not be closed
+     */
+    public void close() throws IOException {
+        mapped = null;
+        file.close();
+    }
+
+    /**
+     * Prints the records of a log file, or of all log files in a directory, one per line
+     *
+     * @param args the log file or directory, and for a directory the prefix of the log files
+     * @throws IOException if a log file can not be read
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: AuditLogReader <file or directory> [prefix]");
+            System.exit(1);
+        }
+        File path = new File(args[0]);
+        File[] files;
+        if (path.isDirectory()) {
+            files = AsyncAuditLog.getLogFiles(path, args.length > 1 ? args[1] : "audit");
+        } else {
+            files = new File[] {path};
+        }
+        for (File file : files) {
+            AuditLogReader reader = new AuditLogReader(file);
+            try {
+                DecisionRecord record;
+                while ((record = reader.next()) != null) {
+                    System.out.println(record);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+    }
+}
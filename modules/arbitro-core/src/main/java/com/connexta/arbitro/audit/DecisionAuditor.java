@@ -0,0 +1,37 @@
+/*
+*  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.audit;
+
+/**
+ * Receives a record of every decision a <code>PDP</code> makes for a request context. An auditor
+ * is set with <code>PDPConfig</code>.
+ * <p>
+ * It is called on the thread that evaluates the request, before the result is returned, so it
+ * should hand the record off rather than write it, as <code>AsyncAuditLog</code> does.
+ * </p>
+ */
+public abstract class DecisionAuditor {
+
+    /**
+     * Called when a decision has been made for a request context
+     *
+     * @param record the record of the decision
+     */
+    public abstract void audit(DecisionRecord record);
+}
@@ -0,0 +1,397 @@
+/*
+*  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.audit;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import com.connexta.arbitro.ctx.AbstractRequestCtx;
+import com.connexta.arbitro.ctx.AbstractResult;
+import com.connexta.arbitro.ctx.Attribute;
+import com.connexta.arbitro.xacml3.Attributes;
+
+/**
+ * The record of a decision: when it was made, a digest of the request, the decision, the ids of
+ * the policies that were evaluated and the ids of the obligations that were returned.
+ * <p>
+ * The digest is the SHA-256 hash of the attributes of the request, sorted so that the same
+ * request always has the same digest. When the record is created it only keeps references to
+ * the attributes, which are not changed, and the XML content of the request, if it has any, in
+ * its canonical form, so that the record does not keep the request and its DOM alive. The
+ * attributes are sorted, encoded and hashed when the digest is first asked for, so that the
+ * thread that writes the record does it rather than the thread that made the decision.
+ * </p>
+ */
+public class DecisionRecord {
+
+    /**
+     * The algorithm of the request digest
+     */
+    public static final String DIGEST_ALGORITHM = "SHA-256";
+
+    private long timestamp;
+    private int xacmlVersion;
+    private List<Category> request;
+    private byte[] requestDigest;
+    private int decision;
+    private List<String> policyIds;
+    private List<String> obligationIds;
+
+    /**
+     * Creates the record of a decision that was just made
+     *
+     * @param request the request, whose attributes are hashed when the digest is first asked for
+     * @param decision the decision, as defined in <code>AbstractResult</code>
+     * @param policyIds the ids of the policies that were evaluated
+     * @param obligationIds the ids of the obligations that were returned
+     */
+    public DecisionRecord(AbstractRequestCtx request, int decision, List<String> policyIds,
+                          List<String> obligationIds) {
+        this(System.currentTimeMillis(), null, decision, policyIds, obligationIds);
+        this.xacmlVersion = request.getXacmlVersion();
+        this.request = getCategories(request);
+    }
+
+    /**
+     * Creates a record with a known digest, for example one that was read from a log
+     *
+     * @param timestamp when the decision was made, in milliseconds since the epoch
+     * @param requestDigest the digest of the request, or null if unknown
+     * @param decision the decision, as defined in <code>AbstractResult</code>
+     * @param policyIds the ids of the policies that were evaluated
+     * @param obligationIds the ids of the obligations that were returned
+     */
+    public DecisionRecord(long timestamp, byte[] requestDigest, int decision,
+                          List<String> policyIds, List<String> obligationIds) {
+        this.timestamp = timestamp;
+        this.requestDigest = requestDigest;
+        this.decision = decision;
+        this.policyIds = Collections.unmodifiableList(policyIds);
+        this.obligationIds = Collections.unmodifiableList(obligationIds);
+    }
+
+    /**
+     * @return when the decision was made, in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return the decision, as defined in <code>AbstractResult</code>
+     */
+    public int getDecision() {
+        return decision;
+    }
+
+    /**
+     * @return the ids of the policies that were evaluated
+     */
+    public List<String> getPolicyIds() {
+        return policyIds;
+    }
+
+    /**
+     * @return the ids of the obligations that were returned
+     */
+    public List<String> getObligationIds() {
+        return obligationIds;
+    }
+
+    /**
+     * Returns the digest of the request, computing it if needed
+     *
+     * @return the digest, or null if it is unknown
+     */
+    public byte[] getRequestDigest() {
+        if (requestDigest == null && request != null) {
+            try {
+                return getRequestDigest(MessageDigest.getInstance(DIGEST_ALGORITHM));
+            } catch (NoSuchAlgorithmException e) {
+                // every Java platform supports SHA-256
+                throw new IllegalStateException(e);
+            }
+        }
+        return requestDigest;
+    }
+
+    /**
+     * Returns the digest of the request, computing it with the given digest if needed
+     */
+    byte[] getRequestDigest(MessageDigest digest) {
+        if (requestDigest == null && request != null) {
+            digest.reset();
+            try {
+                requestDigest = digest.digest(getCanonicalForm(xacmlVersion, request)
+                        .getBytes("UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                // every Java platform supports UTF-8
+                throw new IllegalStateException(e);
+            }
+            request = null;
+        }
+        return requestDigest;
+    }
+
+    /**
+     * Returns the attributes of a request in a form that does not depend on their order, as
+     * they are kept in sets and so are encoded in a different order every time
+     *
+     * @param request the request
+     * @return the canonical form of the request
+     */
+    public static String getCanonicalForm(AbstractRequestCtx request) {
+        return getCanonicalForm(request.getXacmlVersion(), getCategories(request));
+    }
+
+    /**
+     * Private helper that takes the parts of the categories of a request that are hashed, with
+     * the content in its canonical form
+     */
+    private static List<Category> getCategories(AbstractRequestCtx request) {
+        Set<Attributes> attributesSet = request.getAttributesSet();
+        List<Category> categories = new ArrayList<Category>(attributesSet.size());
+        for (Attributes attributes : attributesSet) {
+            String content = null;
+            if (attributes.getContent() != null) {
+                // the content is the only part that refers to the DOM of the request
+                StringBuilder builder = new StringBuilder();
+                appendCanonicalForm(attributes.getContent(), builder);
+                content = builder.toString();
+            }
+            categories.add(new Category(attributes.getCategory(), attributes.getId(), content,
+                    attributes.getAttributes()));
+        }
+        return categories;
+    }
+
+    /**
+     * Private helper that sorts and encodes the categories of a request
+     */
+    private static String getCanonicalForm(int xacmlVersion, List<Category> request) {
+        List<String> categories = new ArrayList<String>(request.size());
+        for (Category category : request) {
+            List<String> values = new ArrayList<String>();
+            for (Attribute attribute : category.attributes) {
+                values.add(attribute.encode());
+            }
+            Collections.sort(values);
+            StringBuilder builder = new StringBuilder();
+            builder.append(category.category).append(' ').append(category.id);
+            if (category.content != null) {
+                builder.append(' ').append(category.content);
+            }
+            builder.append(' ').append(values);
+            categories.add(builder.toString());
+        }
+        Collections.sort(categories);
+        return xacmlVersion + " " + categories;
+    }
+
+    /**
+     * Private helper that writes a node as XML with the namespaces of its elements and
+     * attributes, and its attributes in the order of their names, so that the same content
+     * always has the same form, and different elements or attributes never have the same form
+     */
+    private static void appendCanonicalForm(Node node, StringBuilder builder) {
+        short type = node.getNodeType();
+        if (type == Node.TEXT_NODE || type == Node.CDATA_SECTION_NODE) {
+            appendEscaped(node.getNodeValue(), builder);
+            return;
+        }
+        if (type != Node.ELEMENT_NODE && type != Node.DOCUMENT_NODE
+                && type != Node.DOCUMENT_FRAGMENT_NODE) {
+            // comments and processing instructions are not content
+            return;
+        }
+        String name = null;
+        if (type == Node.ELEMENT_NODE) {
+            name = "{" + (node.getNamespaceURI() == null ? "" : node.getNamespaceURI()) + "}"
+                    + (node.getLocalName() == null ? node.getNodeName() : node.getLocalName());
+            builder.append('<').append(name);
+            NamedNodeMap attrs = node.getAttributes();
+            String[] attributes = new String[attrs.getLength()];
+            for (int i = 0; i < attributes.length; i++) {
+                Attr attr = (Attr) attrs.item(i);
+                StringBuilder attribute = new StringBuilder();
+                attribute.append('{').append(attr.getNamespaceURI() == null ? ""
+                        : attr.getNamespaceURI()).append('}').append(attr.getLocalName() == null
+                        ? attr.getName() : attr.getLocalName()).append("=\"");
+                appendEscaped(attr.getValue(), attribute);
+                attributes[i] = attribute.append('"').toString();
+            }
+            Arrays.sort(attributes);
+            for (String attribute : attributes) {
+                builder.append(' ').append(attribute);
+            }
+            builder.append('>');
+        }
+        NodeList children = node.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++) {
+            appendCanonicalForm(children.item(i), builder);
+        }
+        if (name != null) {
+            builder.append("</").append(name).append('>');
+        }
+    }
+
+    private static void appendEscaped(String text, StringBuilder builder) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '<') {
+                builder.append("&lt;");
+            } else if (c == '>') {
+                builder.append("&gt;");
+            } else if (c == '&') {
+                builder.append("&amp;");
+            } else if (c == '"') {
+                builder.append("&quot;");
+            } else {
+                builder.append(c);
+            }
+        }
+    }
+
+    /**
+     * Writes the record in its binary form
+     *
+     * @param output where to write the record
+     * @param digest the digest used for the request, if it was not computed yet
+     * @throws IOException if the record can not be written
+     */
+    void write(DataOutput output, MessageDigest digest) throws IOException {
+        output.writeLong(timestamp);
+        output.writeByte(decision);
+        byte[] bytes = getRequestDigest(digest);
+        if (bytes == null) {
+            output.writeByte(0);
+        } else {
+            output.writeByte(bytes.length);
+            output.write(bytes);
+        }
+        writeStrings(output, policyIds);
+        writeStrings(output, obligationIds);
+    }
+
+    /**
+     * Reads a record in its binary form
+     *
+     * @param input where to read the record from
+     * @return the record
+     * @throws IOException if the record can not be read
+     */
+    static DecisionRecord read(DataInput input) throws IOException {
+        long timestamp = input.readLong();
+        int decision = input.readByte();
+        byte[] digest = null;
+        int length = input.readUnsignedByte();
+        if (length > 0) {
+            digest = new byte[length];
+            input.readFully(digest);
+        }
+        List<String> policyIds = readStrings(input);
+        List<String> obligationIds = readStrings(input);
+        return new DecisionRecord(timestamp, digest, decision, policyIds, obligationIds);
+    }
+
+    private static void writeStrings(DataOutput output, List<String> strings) throws IOException {
+        output.writeShort(strings.size());
+        for (String string : strings) {
+            output.writeUTF(string);
+        }
+    }
+
+    private static List<String> readStrings(DataInput input) throws IOException {
+        int size = input.readUnsignedShort();
+        List<String> strings = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++) {
+            strings.add(input.readUTF());
+        }
+        return strings;
+    }
+
+    /**
+     * Returns the record as a single line of text
+     *
+     * @return the record as text
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").format(new Date(timestamp)));
+        builder.append(' ');
+        if (decision >= AbstractResult.DECISION_INDETERMINATE_DENY) {
+            builder.append(AbstractResult.DECISIONS[AbstractResult.DECISION_INDETERMINATE]);
+        } else {
+            builder.append(AbstractResult.DECISIONS[decision]);
+        }
+        builder.append(' ');
+        byte[] digest = requestDigest;
+        if (digest == null) {
+            builder.append('-');
+        } else {
+            for (byte b : digest) {
+                builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+                builder.append(Character.forDigit(b & 0xF, 16));
+            }
+        }
+        builder.append(" policies=").append(policyIds);
+        builder.append(" obligations=").append(obligationIds);
+        return builder.toString();
+    }
+
+    /**
+     * The parts of a category of a request that are hashed
+     */
+    private static class Category {
+
+        private final URI category;
+
+        private final String id;
+
+        private final String content;
+
+        private final Collection<Attribute> attributes;
+
+        Category(URI category, String id, String content, Collection<Attribute> attributes) {
+            this.category = category;
+            this.id = id;
+            this.content = content;
+            this.attributes = attributes;
+        }
+    }
+}
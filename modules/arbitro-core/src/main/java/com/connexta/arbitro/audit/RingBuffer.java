@@ -0,0 +1,101 @@
+/*
+*  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.audit;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded lock-free queue for many producers and a single consumer. Producers claim a slot
+ * by advancing the tail, then fill it; the consumer empties slots in order and advances the
+ * head.
+ */
+class RingBuffer<E> {
+
+    private AtomicReferenceArray<E> slots;
+
+    private int mask;
+
+    private AtomicLong head = new AtomicLong();
+
+    private AtomicLong tail = new AtomicLong();
+
+    /**
+     * Creates a buffer
+     *
+     * @param capacity the number of elements, rounded up to a power of two
+     */
+    RingBuffer(int capacity) {
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        slots = new AtomicReferenceArray<E>(size);
+        mask = size - 1;
+    }
+
+    /**
+     * Adds an element, if there is room
+     *
+     * @param element the element
+     * @return false if the buffer is full
+     */
+    boolean offer(E element) {
+        while (true) {
+            long position = tail.get();
+            if (position - head.get() >= slots.length()) {
+                return false;
+            }
+            if (tail.compareAndSet(position, position + 1)) {
+                slots.set((int) (position & mask), element);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest element. Must only be called by the consumer.
+     *
+     * @return the element, or null if there is none or it is still being added
+     */
+    E poll() {
+        long position = head.get();
+        int index = (int) (position & mask);
+        E element = slots.get(index);
+        if (element != null) {
+            slots.lazySet(index, null);
+            head.lazySet(position + 1);
+        }
+        return element;
+    }
+
+    /**
+     * @return true if no element has been added that was not removed
+     */
+    boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    /**
+     * @return the number of elements the buffer can hold
+     */
+    int capacity() {
+        return slots.length();
+    }
+}
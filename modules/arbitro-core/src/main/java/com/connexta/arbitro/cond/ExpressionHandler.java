@@ -13,6 +13,7 @@ import org.w3c.dom.Node;
 import com.connexta.arbitro.Balana;
 import com.connexta.arbitro.DOMHelper;
 import com.connexta.arbitro.ParsingException;
+import com.connexta.arbitro.PolicyInterner;
 import com.connexta.arbitro.PolicyMetaData;
 import com.connexta.arbitro.UnknownIdentifierException;
 import com.connexta.arbitro.attr.AttributeDesignatorFactory;
@@ -46,7 +47,41 @@ public class ExpressionHandler {
      */
     public static Expression parseExpression(Node root, PolicyMetaData metaData,
             VariableManager manager) throws ParsingException {
+
+        // share the expressions that are the same in all policies, if policies are interned
+        PolicyInterner interner = PolicyInterner.getCurrent();
         String name = DOMHelper.getLocalName(root);
+        if (interner == null || !(name.equals("Apply") || name.equals("AttributeValue") ||
+                name.endsWith("AttributeDesignator"))) {
+            return parse(root, name, metaData, manager);
+        }
+
+        String key = interner.getKey(root, metaData);
+        if (key == null) {
+            return parse(root, name, metaData, manager);
+        }
+        Expression expression = (Expression) interner.get(key);
+        if (expression == null) {
+            Expression parsed = parse(root, name, metaData, manager);
+            expression = parsed == null ? null : interner.intern(key, parsed);
+        }
+        return expression;
+    }
+
+    /**
+     * Private helper that parses an expression
+     *
+     * @param root the DOM root of an ExpressionType XML type
+     * @param name local name of the root
+     * @param metaData the meta-data associated with the containing policy
+     * @param manager <code>VariableManager</code> used to connect references and definitions while
+     *            parsing
+     * @return an <code>Expression</code> or null if the root node cannot be parsed as a valid
+     *         Expression
+     * @throws ParsingException if the node cannot be parsed
+     */
+    private static Expression parse(Node root, String name, PolicyMetaData metaData,
+            VariableManager manager) throws ParsingException {
 
         if (name.equals("Apply")) {
             return Apply.getInstance(root, metaData, manager);
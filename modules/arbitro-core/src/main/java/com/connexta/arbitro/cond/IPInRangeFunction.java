@@ -66,20 +66,53 @@ public class IPInRangeFunction extends FunctionBase {
             return result;
 
         // get the three ip values
-        long ipAddressToTest = ipToLong(((IPAddressAttribute)argValues[0]).getAddress());
-        long ipAddressMin = ipToLong(((IPAddressAttribute)argValues[1]).getAddress());
-        long ipAddressMax = ipToLong(((IPAddressAttribute)argValues[2]).getAddress());
+        byte[] ipAddressToTest = ((IPAddressAttribute)argValues[0]).getAddress().getAddress();
+        byte[] ipAddressMin = ((IPAddressAttribute)argValues[1]).getAddress().getAddress();
+        byte[] ipAddressMax = ((IPAddressAttribute)argValues[2]).getAddress().getAddress();
+
+        if(ipAddressToTest.length != ipAddressMin.length ||
+                ipAddressToTest.length != ipAddressMax.length){
+            // IPv4 and IPv6 addresses are mixed, so compare them as numbers as before
+            long ipToTest = ipToLong(((IPAddressAttribute)argValues[0]).getAddress());
+            long ipMin = ipToLong(((IPAddressAttribute)argValues[1]).getAddress());
+            long ipMax = ipToLong(((IPAddressAttribute)argValues[2]).getAddress());
+            if(ipMin > ipMax){
+                long temp = ipMax;
+                ipMax = ipMin;
+                ipMin = temp;
+            }
+            return EvaluationResult.getInstance(ipToTest >= ipMin && ipToTest <= ipMax);
+        }
 
-        if(ipAddressMin > ipAddressMax){
-            long temp = ipAddressMax;
+        if(compareAddresses(ipAddressMin, ipAddressMax) > 0){
+            byte[] temp = ipAddressMax;
             ipAddressMax = ipAddressMin;
             ipAddressMin = temp;
         }
 
         // we're in the range if the middle is now between min and max ip address
-        return EvaluationResult.getInstance(ipAddressToTest >= ipAddressMin && ipAddressToTest <= ipAddressMax);
+        return EvaluationResult.getInstance(compareAddresses(ipAddressToTest, ipAddressMin) >= 0 &&
+                compareAddresses(ipAddressToTest, ipAddressMax) <= 0);
     }
 
+    /**
+     * Compares two addresses of the same length as unsigned numbers, so that all 128 bits of
+     * IPv6 addresses are compared
+     *
+     * @param address1 the bytes of the first address
+     * @param address2 the bytes of the second address
+     * @return a negative number, zero or a positive number if the first address is lower than,
+     *         equal to or higher than the second one
+     */
+    public static int compareAddresses(byte[] address1, byte[] address2) {
+        for (int i = 0; i < address1.length; i++) {
+            int difference = (address1[i] & 0xff) - (address2[i] & 0xff);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return 0;
+    }
 
     /**
      * Helper method
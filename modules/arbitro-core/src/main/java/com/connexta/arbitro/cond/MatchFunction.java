@@ -363,6 +363,18 @@ public class MatchFunction extends FunctionBase {
      *
      */
     private boolean regexpHelper(String xpr, String str) {
+        return Pattern.matches(getJavaRegexp(xpr), str);
+    }
+
+    /**
+     * Translates a regular expression in the syntax of XACML to the syntax of
+     * <code>java.util.regex.Pattern</code>, so that the whole of a string matches the translated
+     * expression if the string matches the XACML expression
+     *
+     * @param xpr a regular expression in the syntax of XACML
+     * @return the regular expression in the syntax of <code>Pattern</code>
+     */
+    public static String getJavaRegexp(String xpr) {
         // the regular expression syntax required by XACML differs
         // from the syntax supported by java.util.regex.Pattern
         // in several ways; the next several code blocks transform
@@ -411,7 +423,7 @@ public class MatchFunction extends FunctionBase {
             idx = buf.indexOf("-[", idx);
         }
 
-        return Pattern.matches(buf.toString(), str);
+        return buf.toString();
     }
 
 }
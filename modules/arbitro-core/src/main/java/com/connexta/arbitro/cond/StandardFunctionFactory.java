@@ -150,6 +150,9 @@ public class StandardFunctionFactory extends BaseFunctionFactory {
         targetFunctions.addAll((new ComparisonFunctionCluster()).getSupportedFunctions());
         // add MatchFunction
         targetFunctions.addAll((new MatchFunctionCluster()).getSupportedFunctions());
+        // add the XACML 3.0 start with, end with and contains functions, which XACML 3.0
+        // allows in targets like any other function with two arguments and a boolean result
+        targetFunctions.addAll((new StringComparingFunctionCluster()).getSupportedFunctions());
 
         targetAbstractFunctions = new HashMap();            // TODO ??
     }
@@ -223,8 +226,6 @@ public class StandardFunctionFactory extends BaseFunctionFactory {
         // add the XACML 2.0 string functions
         generalFunctions.addAll((new StringFunctionCluster()).getSupportedFunctions());
         // add the XACML 3.0 start with functions
-        generalFunctions.addAll((new StringComparingFunctionCluster()).getSupportedFunctions());
-        // add the XACML 3.0 start with functions
         generalFunctions.addAll((new StringConversionFunctionCluster()).getSupportedFunctions());
         // add the XACML 3.0 start with functions
         generalFunctions.addAll((new SubStringFunctionCluster()).getSupportedFunctions());
@@ -31,6 +31,7 @@ import com.connexta.arbitro.attr.TimeAttribute;
 import com.connexta.arbitro.cond.EvaluationResult;
 import org.w3c.dom.Node;
 import com.connexta.arbitro.attr.BagAttribute;
+import com.connexta.arbitro.metrics.MetricsCollector;
 
 /**
  * Implementation of <code>EvaluationCtx</code>.  This implements some generic methods that
@@ -66,6 +67,11 @@ public abstract class BasicEvaluationCtx implements EvaluationCtx {
      */
     protected PDPConfig pdpConfig;
 
+    /**
+     * the time by which the evaluation must be finished, or null if there is none
+     */
+    private Deadline deadline;
+
     /**
      * logger
      */
@@ -88,6 +94,74 @@ public abstract class BasicEvaluationCtx implements EvaluationCtx {
         return false;
     }
 
+    /**
+     * Returns the collector that receives the timings and counts of the evaluation
+     *
+     * @return <code>MetricsCollector</code> or null if no metrics are collected
+     */
+    public MetricsCollector getMetricsCollector() {
+        return pdpConfig == null ? null : pdpConfig.getMetricsCollector();
+    }
+
+    /**
+     * Returns the time by which the evaluation must be finished
+     *
+     * @return <code>Deadline</code> or null if there is none
+     */
+    public Deadline getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Sets the time by which the evaluation must be finished
+     *
+     * @param deadline <code>Deadline</code> or null if there is none
+     */
+    public void setDeadline(Deadline deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Returns the collector that receives the timings and counts of the evaluation of the given
+     * context. Only contexts that extend this class carry one.
+     *
+     * @param context the context of the evaluation
+     * @return <code>MetricsCollector</code> or null if no metrics are collected
+     */
+    public static MetricsCollector getMetricsCollector(EvaluationCtx context) {
+        if (context instanceof BasicEvaluationCtx) {
+            return ((BasicEvaluationCtx) context).getMetricsCollector();
+        }
+        return null;
+    }
+
+    /**
+     * Returns the time by which the evaluation of the given context must be finished. Only
+     * contexts that extend this class carry one.
+     *
+     * @param context the context of the evaluation
+     * @return <code>Deadline</code> or null if there is none
+     */
+    public static Deadline getDeadline(EvaluationCtx context) {
+        if (context instanceof BasicEvaluationCtx) {
+            return ((BasicEvaluationCtx) context).getDeadline();
+        }
+        return null;
+    }
+
+    /**
+     * Sets the time by which the evaluation of the given context must be finished. This has no
+     * effect on contexts that do not extend this class.
+     *
+     * @param context the context of the evaluation
+     * @param deadline <code>Deadline</code> or null if there is none
+     */
+    public static void setDeadline(EvaluationCtx context, Deadline deadline) {
+        if (context instanceof BasicEvaluationCtx) {
+            ((BasicEvaluationCtx) context).setDeadline(deadline);
+        }
+    }
+
 
     /**
      * Returns the value for the current time. The current time, current date, and current dateTime
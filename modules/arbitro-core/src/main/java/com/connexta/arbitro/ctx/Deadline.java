@@ -0,0 +1,83 @@
+/*
+*  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.ctx;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time by which the evaluation of a request must be finished. A deadline is set on the
+ * <code>EvaluationCtx</code> of a request, and is shared by the contexts of all individual
+ * requests of a multiple decision request.
+ * <p>
+ * The PDP checks it before every policy, rule and attribute finder module is evaluated, and
+ * returns an Indeterminate result with a processing error once it has passed. Finder modules
+ * that call slow sources should use <code>getRemainingMillis</code> to bound their calls.
+ * </p>
+ */
+public class Deadline {
+
+    private long timeoutMillis;
+
+    private long deadline;
+
+    /**
+     * Creates a deadline that passes after the given time from now
+     *
+     * @param timeoutMillis the time in milliseconds
+     */
+    public Deadline(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+        this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /**
+     * @return the time in milliseconds this deadline was created with
+     */
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * @return true if the deadline has passed
+     */
+    public boolean isExceeded() {
+        return System.nanoTime() - deadline >= 0;
+    }
+
+    /**
+     * @return the time in milliseconds until the deadline passes, or 0 if it has passed
+     */
+    public long getRemainingMillis() {
+        long remaining = deadline - System.nanoTime();
+        return remaining <= 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(remaining);
+    }
+
+    /**
+     * Returns the status of a result for a request whose deadline has passed
+     *
+     * @return a processing error status
+     */
+    public Status getStatus() {
+        List<String> code = new ArrayList<String>();
+        code.add(Status.STATUS_PROCESSING_ERROR);
+        return new Status(code, "Request deadline exceeded after " + timeoutMillis + " ms");
+    }
+}
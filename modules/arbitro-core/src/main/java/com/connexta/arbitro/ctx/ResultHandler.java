@@ -0,0 +1,39 @@
+/*
+*  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.ctx;
+
+import java.io.IOException;
+
+/**
+ * Receives the <code>Result</code>s of an evaluation one at a time, as soon as each of them is
+ * available. This is used by the streaming <code>evaluate</code> methods of the <code>PDP</code>,
+ * so that a response with many results (multiple decision profile) does not have to be held in
+ * memory before the first of them can be written out.
+ */
+public interface ResultHandler {
+
+    /**
+     * Called once for every result produced by the evaluation, in evaluation order.
+     *
+     * @param result the result of a single (possibly individual) decision
+     * @throws IOException if the result can not be written out
+     */
+    public void handleResult(AbstractResult result) throws IOException;
+
+}
@@ -0,0 +1,165 @@
+/*
+*  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.ctx;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+import com.connexta.arbitro.XACMLConstants;
+
+/**
+ * A <code>ResultHandler</code> that writes the XML form of a <code>ResponseCtx</code> to an
+ * output stream while the results are being produced. The <code>Response</code> start tag and the
+ * first <code>Result</code> are flushed straight away so the caller sees the first byte early;
+ * afterwards the output is buffered and only flushed when the buffer fills up or the writer is
+ * closed. Only one result is held in memory at any time.
+ * <p>
+ * The output is identical to <code>ResponseCtx.encode()</code> for the same results. Closing this
+ * writer finishes the response and flushes it, but does not close the underlying stream.
+ * </p>
+ */
+public class StreamingResponseWriter implements ResultHandler {
+
+    /**
+     * the charset used for the encoded response
+     */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * size of the write buffer in chars
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * where the response goes
+     */
+    private Writer writer;
+
+    /**
+     * reused for encoding every result
+     */
+    private StringBuilder builder = new StringBuilder(512);
+
+    /**
+     * XACML version of the response, or zero if it is taken from the first result
+     */
+    private int version;
+
+    /**
+     * number of results written so far
+     */
+    private int count;
+
+    /**
+     * whether the Response start tag has been written
+     */
+    private boolean started;
+
+    /**
+     * whether the Response end tag has been written
+     */
+    private boolean closed;
+
+    /**
+     * Creates a writer for a response whose XACML version is the version of its first result
+     *
+     * @param output the stream the encoded response is written to
+     */
+    public StreamingResponseWriter(OutputStream output) {
+        this(output, 0);
+    }
+
+    /**
+     * Creates a writer for a response of the given XACML version
+     *
+     * @param output the stream the encoded response is written to
+     * @param version XACML version of the response
+     */
+    public StreamingResponseWriter(OutputStream output, int version) {
+        this.writer = new BufferedWriter(new OutputStreamWriter(output, UTF_8), BUFFER_SIZE);
+        this.version = version;
+    }
+
+    /**
+     * Writes the <code>Response</code> start tag, if it has not been written yet. This is done
+     * implicitly with the first result, but callers that know the version of the response may use
+     * it to push out the first bytes before evaluation starts.
+     *
+     * @throws IOException if the tag can not be written
+     */
+    public void start() throws IOException {
+        if (started) {
+            return;
+        }
+        started = true;
+        if (version == XACMLConstants.XACML_VERSION_3_0) {
+            writer.write("<Response xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\">");
+        } else {
+            writer.write("<Response>");
+        }
+    }
+
+    public void handleResult(AbstractResult result) throws IOException {
+        if (closed) {
+            throw new IOException("Response has already been closed");
+        }
+        if (!started && version == 0) {
+            version = result.getVersion();
+        }
+        start();
+
+        builder.setLength(0);
+        result.encode(builder);
+        writer.append(builder);
+
+        // get the first result out as soon as possible, and then let the buffer do its job
+        if (count++ == 0) {
+            writer.flush();
+        }
+    }
+
+    /**
+     * Returns the number of results written so far
+     *
+     * @return number of results
+     */
+    public int getResultCount() {
+        return count;
+    }
+
+    /**
+     * Writes the <code>Response</code> end tag and flushes everything to the underlying stream.
+     * Calling this more than once has no effect.
+     *
+     * @throws IOException if the response can not be finished
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        start();
+        closed = true;
+        writer.write("</Response>");
+        writer.flush();
+    }
+}
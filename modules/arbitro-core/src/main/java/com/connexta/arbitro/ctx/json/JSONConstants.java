@@ -0,0 +1,186 @@
+/*
+*  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.ctx.json;
+
+import com.connexta.arbitro.XACMLConstants;
+import com.connexta.arbitro.attr.AnyURIAttribute;
+import com.connexta.arbitro.attr.Base64BinaryAttribute;
+import com.connexta.arbitro.attr.BooleanAttribute;
+import com.connexta.arbitro.attr.DNSNameAttribute;
+import com.connexta.arbitro.attr.DateAttribute;
+import com.connexta.arbitro.attr.DateTimeAttribute;
+import com.connexta.arbitro.attr.DayTimeDurationAttribute;
+import com.connexta.arbitro.attr.DoubleAttribute;
+import com.connexta.arbitro.attr.HexBinaryAttribute;
+import com.connexta.arbitro.attr.IPAddressAttribute;
+import com.connexta.arbitro.attr.IntegerAttribute;
+import com.connexta.arbitro.attr.RFC822NameAttribute;
+import com.connexta.arbitro.attr.StringAttribute;
+import com.connexta.arbitro.attr.TimeAttribute;
+import com.connexta.arbitro.attr.X500NameAttribute;
+import com.connexta.arbitro.attr.YearMonthDurationAttribute;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Names and shorthand identifiers defined by the JSON Profile of XACML 3.0
+ */
+public class JSONConstants {
+
+    public static final String REQUEST = "Request";
+
+    public static final String RESPONSE = "Response";
+
+    public static final String RETURN_POLICY_ID_LIST = "ReturnPolicyIdList";
+
+    public static final String COMBINED_DECISION = "CombinedDecision";
+
+    public static final String XPATH_VERSION = "XPathVersion";
+
+    public static final String CATEGORY = "Category";
+
+    public static final String CATEGORY_ID = "CategoryId";
+
+    public static final String ID = "Id";
+
+    public static final String CONTENT = "Content";
+
+    public static final String ATTRIBUTE = "Attribute";
+
+    public static final String ATTRIBUTE_ID = "AttributeId";
+
+    public static final String VALUE = "Value";
+
+    public static final String ISSUER = "Issuer";
+
+    public static final String DATA_TYPE = "DataType";
+
+    public static final String INCLUDE_IN_RESULT = "IncludeInResult";
+
+    public static final String MULTI_REQUESTS = "MultiRequests";
+
+    public static final String REQUEST_REFERENCE = "RequestReference";
+
+    public static final String REFERENCE_ID = "ReferenceId";
+
+    public static final String DECISION = "Decision";
+
+    public static final String STATUS = "Status";
+
+    public static final String STATUS_CODE = "StatusCode";
+
+    public static final String STATUS_MESSAGE = "StatusMessage";
+
+    public static final String STATUS_DETAIL = "StatusDetail";
+
+    public static final String OBLIGATIONS = "Obligations";
+
+    public static final String ASSOCIATED_ADVICE = "AssociatedAdvice";
+
+    public static final String ATTRIBUTE_ASSIGNMENT = "AttributeAssignment";
+
+    public static final String POLICY_IDENTIFIER_LIST = "PolicyIdentifierList";
+
+    public static final String POLICY_ID_REFERENCE = "PolicyIdReference";
+
+    public static final String POLICY_SET_ID_REFERENCE = "PolicySetIdReference";
+
+    public static final String VERSION = "Version";
+
+    /**
+     * shorthand names of the default categories, that can be used as members of the request
+     * object instead of the generic <code>Category</code> member
+     */
+    public static final Map<String, String> CATEGORY_SHORTHANDS;
+
+    /**
+     * shorthand names of the standard data types
+     */
+    public static final Map<String, String> DATA_TYPE_SHORTHANDS;
+
+    /**
+     * the standard data types mapped back to their shorthand names
+     */
+    public static final Map<String, String> DATA_TYPE_NAMES;
+
+    static {
+        Map<String, String> categories = new HashMap<String, String>();
+        categories.put("AccessSubject", XACMLConstants.SUBJECT_CATEGORY);
+        categories.put("Action", XACMLConstants.ACTION_CATEGORY);
+        categories.put("Resource", XACMLConstants.RESOURCE_CATEGORY);
+        categories.put("Environment", XACMLConstants.ENT_CATEGORY);
+        categories.put("RecipientSubject",
+                "urn:oasis:names:tc:xacml:1.0:subject-category:recipient-subject");
+        categories.put("IntermediarySubject",
+                "urn:oasis:names:tc:xacml:1.0:subject-category:intermediary-subject");
+        categories.put("Codebase", "urn:oasis:names:tc:xacml:1.0:subject-category:codebase");
+        categories.put("RequestingMachine",
+                "urn:oasis:names:tc:xacml:1.0:subject-category:requesting-machine");
+        CATEGORY_SHORTHANDS = Collections.unmodifiableMap(categories);
+
+        Map<String, String> types = new HashMap<String, String>();
+        types.put("string", StringAttribute.identifier);
+        types.put("boolean", BooleanAttribute.identifier);
+        types.put("integer", IntegerAttribute.identifier);
+        types.put("double", DoubleAttribute.identifier);
+        types.put("time", TimeAttribute.identifier);
+        types.put("date", DateAttribute.identifier);
+        types.put("dateTime", DateTimeAttribute.identifier);
+        types.put("dayTimeDuration", DayTimeDurationAttribute.identifier);
+        types.put("yearMonthDuration", YearMonthDurationAttribute.identifier);
+        types.put("anyURI", AnyURIAttribute.identifier);
+        types.put("hexBinary", HexBinaryAttribute.identifier);
+        types.put("base64Binary", Base64BinaryAttribute.identifier);
+        types.put("rfc822Name", RFC822NameAttribute.identifier);
+        types.put("x500Name", X500NameAttribute.identifier);
+        types.put("ipAddress", IPAddressAttribute.identifier);
+        types.put("dnsName", DNSNameAttribute.identifier);
+        DATA_TYPE_SHORTHANDS = Collections.unmodifiableMap(types);
+
+        Map<String, String> names = new HashMap<String, String>();
+        for (Map.Entry<String, String> entry : types.entrySet()) {
+            names.put(entry.getValue(), entry.getKey());
+        }
+        DATA_TYPE_NAMES = Collections.unmodifiableMap(names);
+    }
+
+    /**
+     * Returns the full identifier of a category, resolving shorthand names
+     *
+     * @param category category identifier or shorthand name
+     * @return the category identifier
+     */
+    public static String getCategory(String category) {
+        String identifier = CATEGORY_SHORTHANDS.get(category);
+        return identifier != null ? identifier : category;
+    }
+
+    /**
+     * Returns the full identifier of a data type, resolving shorthand names
+     *
+     * @param dataType data type identifier or shorthand name
+     * @return the data type identifier
+     */
+    public static String getDataType(String dataType) {
+        String identifier = DATA_TYPE_SHORTHANDS.get(dataType);
+        return identifier != null ? identifier : dataType;
+    }
+}
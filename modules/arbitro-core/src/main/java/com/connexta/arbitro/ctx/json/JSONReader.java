@@ -0,0 +1,521 @@
+/*
+*  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.ctx.json;
+
+import com.connexta.arbitro.ParsingException;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * A small pull parser for JSON text. Tokens are read straight from the underlying
+ * <code>Reader</code> through a fixed size buffer, so the document is never held in memory as a
+ * whole and no tree is built. Names and string values are decoded into a single reused
+ * <code>StringBuilder</code>, which keeps the number of allocations per token to the returned
+ * <code>String</code>.
+ * <p>
+ * This is only meant to be used by the JSON Profile codec and supports what it needs: peeking at
+ * the next token, reading names and scalar values, and skipping whole values that are not of
+ * interest.
+ * </p>
+ */
+public class JSONReader {
+
+    /**
+     * token types returned by <code>peek</code>
+     */
+    public static final int BEGIN_OBJECT = 0;
+    public static final int END_OBJECT = 1;
+    public static final int BEGIN_ARRAY = 2;
+    public static final int END_ARRAY = 3;
+    public static final int NAME = 4;
+    public static final int STRING = 5;
+    public static final int NUMBER = 6;
+    public static final int BOOLEAN = 7;
+    public static final int NULL = 8;
+    public static final int END_DOCUMENT = 9;
+
+    /**
+     * nothing has been peeked yet
+     */
+    private static final int NONE = -1;
+
+    /**
+     * containers on the stack
+     */
+    private static final int IN_OBJECT = 1;
+    private static final int IN_ARRAY = 2;
+
+    private Reader reader;
+
+    private char[] buffer = new char[4096];
+
+    private int pos;
+
+    private int limit;
+
+    /**
+     * the peeked token, or <code>NONE</code>
+     */
+    private int peeked = NONE;
+
+    /**
+     * stack of open containers, together with whether a value has been read in each of them
+     */
+    private int[] stack = new int[32];
+
+    private boolean[] hasElement = new boolean[32];
+
+    private int depth;
+
+    /**
+     * whether the next token in an object must be a name
+     */
+    private boolean expectName;
+
+    /**
+     * reused for decoding strings and numbers
+     */
+    private StringBuilder text = new StringBuilder(64);
+
+    /**
+     * whether the last number read had a fraction or an exponent
+     */
+    private boolean decimal;
+
+    /**
+     * Creates a reader for the given character stream
+     *
+     * @param reader source of the JSON text
+     */
+    public JSONReader(Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Returns the type of the next token without consuming it
+     *
+     * @return one of the token type constants
+     * @throws ParsingException if the text is not valid JSON
+     */
+    public int peek() throws ParsingException {
+        if (peeked != NONE) {
+            return peeked;
+        }
+
+        int c = nextNonWhitespace();
+
+        if (depth > 0) {
+            int container = stack[depth - 1];
+            if ((container == IN_OBJECT && c == '}') || (container == IN_ARRAY && c == ']')) {
+                peeked = container == IN_OBJECT ? END_OBJECT : END_ARRAY;
+                return peeked;
+            }
+            if (hasElement[depth - 1] && (container == IN_ARRAY || expectName)) {
+                if (c != ',') {
+                    throw syntaxError("Expected ',' but found '" + (char) c + "'");
+                }
+                c = nextNonWhitespace();
+            }
+            if (container == IN_OBJECT && expectName) {
+                if (c != '"') {
+                    throw syntaxError("Expected a name");
+                }
+                readString();
+                if (nextNonWhitespace() != ':') {
+                    throw syntaxError("Expected ':'");
+                }
+                expectName = false;
+                peeked = NAME;
+                return peeked;
+            }
+        } else if (c == -1) {
+            peeked = END_DOCUMENT;
+            return peeked;
+        }
+
+        switch (c) {
+            case '{':
+                peeked = BEGIN_OBJECT;
+                break;
+            case '[':
+                peeked = BEGIN_ARRAY;
+                break;
+            case '"':
+                readString();
+                peeked = STRING;
+                break;
+            case 't':
+                readKeyword("true");
+                peeked = BOOLEAN;
+                break;
+            case 'f':
+                readKeyword("false");
+                peeked = BOOLEAN;
+                break;
+            case 'n':
+                readKeyword("null");
+                peeked = NULL;
+                break;
+            case -1:
+                throw syntaxError("Unexpected end of JSON text");
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    readNumber(c);
+                    peeked = NUMBER;
+                } else {
+                    throw syntaxError("Unexpected character '" + (char) c + "'");
+                }
+        }
+        return peeked;
+    }
+
+    /**
+     * Consumes the start of an object
+     *
+     * @throws ParsingException if the next token is not the start of an object
+     */
+    public void beginObject() throws ParsingException {
+        expect(BEGIN_OBJECT, "an object");
+        push(IN_OBJECT);
+        expectName = true;
+    }
+
+    /**
+     * Consumes the end of an object
+     *
+     * @throws ParsingException if the next token is not the end of an object
+     */
+    public void endObject() throws ParsingException {
+        expect(END_OBJECT, "the end of an object");
+        pop();
+    }
+
+    /**
+     * Consumes the start of an array
+     *
+     * @throws ParsingException if the next token is not the start of an array
+     */
+    public void beginArray() throws ParsingException {
+        expect(BEGIN_ARRAY, "an array");
+        push(IN_ARRAY);
+        expectName = false;
+    }
+
+    /**
+     * Consumes the end of an array
+     *
+     * @throws ParsingException if the next token is not the end of an array
+     */
+    public void endArray() throws ParsingException {
+        expect(END_ARRAY, "the end of an array");
+        pop();
+    }
+
+    /**
+     * Returns whether the current object or array has more elements
+     *
+     * @return true if there is another element
+     * @throws ParsingException if the text is not valid JSON
+     */
+    public boolean hasNext() throws ParsingException {
+        int token = peek();
+        return token != END_OBJECT && token != END_ARRAY && token != END_DOCUMENT;
+    }
+
+    /**
+     * Consumes the next name of the current object
+     *
+     * @return the name
+     * @throws ParsingException if the next token is not a name
+     */
+    public String nextName() throws ParsingException {
+        expect(NAME, "a name");
+        return text.toString();
+    }
+
+    /**
+     * Consumes the next scalar value and returns its text. Numbers and booleans are returned in
+     * their literal form.
+     *
+     * @return the text of the value
+     * @throws ParsingException if the next token is not a string, number or boolean
+     */
+    public String nextString() throws ParsingException {
+        int token = peek();
+        if (token != STRING && token != NUMBER && token != BOOLEAN) {
+            throw syntaxError("Expected a string, number or boolean");
+        }
+        consumed();
+        return text.toString();
+    }
+
+    /**
+     * Consumes the next boolean value
+     *
+     * @return the value
+     * @throws ParsingException if the next token is not a boolean
+     */
+    public boolean nextBoolean() throws ParsingException {
+        expect(BOOLEAN, "a boolean");
+        return text.charAt(0) == 't';
+    }
+
+    /**
+     * Consumes a null value
+     *
+     * @throws ParsingException if the next token is not null
+     */
+    public void nextNull() throws ParsingException {
+        expect(NULL, "null");
+    }
+
+    /**
+     * Returns whether the number that was just read with <code>nextString</code> had a fraction
+     * or an exponent
+     *
+     * @return true if the number was not an integral literal
+     */
+    public boolean isDecimal() {
+        return decimal;
+    }
+
+    /**
+     * Skips the next value, including everything that is nested in it
+     *
+     * @throws ParsingException if the text is not valid JSON
+     */
+    public void skipValue() throws ParsingException {
+        int count = 0;
+        do {
+            switch (peek()) {
+                case BEGIN_OBJECT:
+                    beginObject();
+                    count++;
+                    break;
+                case BEGIN_ARRAY:
+                    beginArray();
+                    count++;
+                    break;
+                case END_OBJECT:
+                    endObject();
+                    count--;
+                    break;
+                case END_ARRAY:
+                    endArray();
+                    count--;
+                    break;
+                case END_DOCUMENT:
+                    throw syntaxError("Unexpected end of JSON text");
+                default:
+                    consumed();
+            }
+        } while (count > 0);
+    }
+
+    /**
+     * Closes the underlying reader
+     *
+     * @throws IOException if the reader can not be closed
+     */
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private void expect(int token, String description) throws ParsingException {
+        if (peek() != token) {
+            throw syntaxError("Expected " + description);
+        }
+        consumed();
+    }
+
+    /**
+     * Marks the peeked token as consumed, and records that a value was read in the enclosing
+     * container
+     */
+    private void consumed() {
+        int token = peeked;
+        peeked = NONE;
+        if (token == NAME || token == BEGIN_OBJECT || token == BEGIN_ARRAY) {
+            return;
+        }
+        valueRead();
+    }
+
+    private void valueRead() {
+        if (depth > 0) {
+            hasElement[depth - 1] = true;
+            if (stack[depth - 1] == IN_OBJECT) {
+                expectName = true;
+            }
+        }
+    }
+
+    private void push(int container) {
+        if (depth == stack.length) {
+            int[] newStack = new int[depth * 2];
+            System.arraycopy(stack, 0, newStack, 0, depth);
+            stack = newStack;
+            boolean[] newHasElement = new boolean[depth * 2];
+            System.arraycopy(hasElement, 0, newHasElement, 0, depth);
+            hasElement = newHasElement;
+        }
+        stack[depth] = container;
+        hasElement[depth] = false;
+        depth++;
+    }
+
+    private void pop() {
+        depth--;
+        expectName = false;
+        valueRead();
+    }
+
+    private int read() throws ParsingException {
+        if (pos == limit) {
+            try {
+                limit = reader.read(buffer, 0, buffer.length);
+            } catch (IOException e) {
+                throw new ParsingException("Error reading JSON text", e);
+            }
+            pos = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[pos++];
+    }
+
+    private int nextNonWhitespace() throws ParsingException {
+        int c = read();
+        while (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+            c = read();
+        }
+        return c;
+    }
+
+    private void readString() throws ParsingException {
+        text.setLength(0);
+        while (true) {
+            // copy runs of plain characters straight out of the buffer
+            int start = pos;
+            while (pos < limit) {
+                char c = buffer[pos];
+                if (c == '"' || c == '\\' || c < 0x20) {
+                    break;
+                }
+                pos++;
+            }
+            text.append(buffer, start, pos - start);
+
+            int c = read();
+            if (c == '"') {
+                return;
+            } else if (c == '\\') {
+                readEscape();
+            } else if (c == -1) {
+                throw syntaxError("Unterminated string");
+            } else if (c < 0x20) {
+                throw syntaxError("Unescaped control character in string");
+            } else {
+                // the buffer had run out, keep the character and go round again
+                text.append((char) c);
+            }
+        }
+    }
+
+    private void readEscape() throws ParsingException {
+        int c = read();
+        switch (c) {
+            case '"':
+            case '\\':
+            case '/':
+                text.append((char) c);
+                break;
+            case 'b':
+                text.append('\b');
+                break;
+            case 'f':
+                text.append('\f');
+                break;
+            case 'n':
+                text.append('\n');
+                break;
+            case 'r':
+                text.append('\r');
+                break;
+            case 't':
+                text.append('\t');
+                break;
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(read(), 16);
+                    if (digit < 0) {
+                        throw syntaxError("Invalid unicode escape");
+                    }
+                    value = (value << 4) | digit;
+                }
+                text.append((char) value);
+                break;
+            default:
+                throw syntaxError("Invalid escape sequence");
+        }
+    }
+
+    private void readKeyword(String keyword) throws ParsingException {
+        for (int i = 1; i < keyword.length(); i++) {
+            if (read() != keyword.charAt(i)) {
+                throw syntaxError("Expected '" + keyword + "'");
+            }
+        }
+        text.setLength(0);
+        text.append(keyword);
+    }
+
+    private void readNumber(int first) throws ParsingException {
+        text.setLength(0);
+        text.append((char) first);
+        decimal = false;
+        while (true) {
+            if (pos == limit && read() != -1) {
+                // refill and step back, so the character is looked at below
+                pos--;
+            }
+            if (pos == limit) {
+                return;
+            }
+            char c = buffer[pos];
+            if (c >= '0' && c <= '9') {
+                text.append(c);
+            } else if (c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-') {
+                decimal = true;
+                text.append(c);
+            } else {
+                return;
+            }
+            pos++;
+        }
+    }
+
+    private ParsingException syntaxError(String message) {
+        return new ParsingException("Invalid JSON text : " + message);
+    }
+}
@@ -0,0 +1,500 @@
+/*
+*  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.ctx.json;
+
+import com.connexta.arbitro.Balana;
+import com.connexta.arbitro.ParsingException;
+import com.connexta.arbitro.UnknownIdentifierException;
+import com.connexta.arbitro.XACMLConstants;
+import com.connexta.arbitro.attr.AttributeFactory;
+import com.connexta.arbitro.attr.AttributeValue;
+import com.connexta.arbitro.attr.BooleanAttribute;
+import com.connexta.arbitro.attr.DoubleAttribute;
+import com.connexta.arbitro.attr.IntegerAttribute;
+import com.connexta.arbitro.attr.StringAttribute;
+import com.connexta.arbitro.ctx.Attribute;
+import com.connexta.arbitro.ctx.xacml3.RequestCtx;
+import com.connexta.arbitro.xacml3.Attributes;
+import com.connexta.arbitro.xacml3.AttributesReference;
+import com.connexta.arbitro.xacml3.MultiRequests;
+import com.connexta.arbitro.xacml3.RequestDefaults;
+import com.connexta.arbitro.xacml3.RequestReference;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reads a request in the JSON Profile of XACML 3.0 straight into a <code>RequestCtx</code>. The
+ * JSON text is read token by token, and the <code>Attributes</code>, <code>Attribute</code> and
+ * <code>AttributeValue</code> objects are created while reading; no intermediate tree is built.
+ * <p>
+ * Both the shorthand category members (<code>AccessSubject</code>, <code>Resource</code>, ...)
+ * and the generic <code>Category</code> member are supported, as are shorthand data type names.
+ * If an attribute has no <code>DataType</code>, it is inferred from the JSON values: strings are
+ * strings, booleans are booleans, integral numbers are integers and any other numbers are
+ * doubles. An array of numbers that mixes the two is taken as doubles.
+ * </p>
+ * XPath expression values are not supported.
+ */
+public class JSONRequestParser {
+
+    /**
+     * the charset used when reading from a byte stream
+     */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * kinds of JSON values, used to infer the data type of an attribute
+     */
+    private static final int KIND_STRING = 0;
+    private static final int KIND_BOOLEAN = 1;
+    private static final int KIND_INTEGER = 2;
+    private static final int KIND_DOUBLE = 3;
+
+    /**
+     * upper bound of the number of identifiers kept in the URI cache
+     */
+    private static final int MAX_CACHED_URIS = 4096;
+
+    /**
+     * how many bytes of a request stream are looked at to detect its format
+     */
+    private static final int DETECTION_LIMIT = 1024;
+
+    /**
+     * identifiers (categories, attribute ids, data types) are the same for almost every request,
+     * so their <code>URI</code>s are only parsed once
+     */
+    private static final ConcurrentHashMap<String, URI> uriCache =
+            new ConcurrentHashMap<String, URI>();
+
+    private JSONReader reader;
+
+    private AttributeFactory attributeFactory;
+
+    /**
+     * values of the attribute being read, reused from one attribute to the next
+     */
+    private List<String> values = new ArrayList<String>();
+
+    private List<Integer> kinds = new ArrayList<Integer>();
+
+    private JSONRequestParser(Reader reader) {
+        this.reader = new JSONReader(reader);
+        this.attributeFactory = Balana.getInstance().getAttributeFactory();
+    }
+
+    /**
+     * Checks whether the given request is JSON, i.e. whether its first non-whitespace character is
+     * an opening brace
+     *
+     * @param request the request
+     * @return true if the request is JSON
+     */
+    public static boolean isJSON(String request) {
+        for(int i = 0; i < request.length(); i++){
+            char c = request.charAt(i);
+            if(c != ' ' && c != '\t' && c != '\r' && c != '\n'){
+                return c == '{';
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether the given stream contains a JSON request, i.e. whether its first
+     * non-whitespace character is an opening brace. The stream is reset afterwards.
+     *
+     * @param input a stream that supports mark and reset
+     * @return true if the stream contains JSON
+     * @throws IOException if the stream can not be read
+     */
+    public static boolean isJSON(InputStream input) throws IOException {
+        input.mark(DETECTION_LIMIT);
+        try {
+            for(int i = 0; i < DETECTION_LIMIT; i++){
+                int c = input.read();
+                if(c != ' ' && c != '\t' && c != '\r' && c != '\n'){
+                    return c == '{';
+                }
+            }
+            return false;
+        } finally {
+            input.reset();
+        }
+    }
+
+    /**
+     * Reads a request from the given JSON text
+     *
+     * @param request the JSON text of the request
+     * @return the request
+     * @throws ParsingException if the request is invalid
+     */
+    public static RequestCtx getRequestCtx(String request) throws ParsingException {
+        return getRequestCtx(new StringReader(request));
+    }
+
+    /**
+     * Reads a request from the given stream of UTF-8 encoded JSON text
+     *
+     * @param input the stream to read the request from
+     * @return the request
+     * @throws ParsingException if the request is invalid
+     */
+    public static RequestCtx getRequestCtx(InputStream input) throws ParsingException {
+        return getRequestCtx(new InputStreamReader(input, UTF_8));
+    }
+
+    /**
+     * Reads a request from the given stream of JSON text
+     *
+     * @param input the stream to read the request from
+     * @return the request
+     * @throws ParsingException if the request is invalid
+     */
+    public static RequestCtx getRequestCtx(Reader input) throws ParsingException {
+        return new JSONRequestParser(input).parse();
+    }
+
+    private RequestCtx parse() throws ParsingException {
+
+        RequestCtx requestCtx = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (JSONConstants.REQUEST.equals(name)) {
+                if (requestCtx != null) {
+                    throw new ParsingException("Too many Request objects are defined.");
+                }
+                requestCtx = parseRequest();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (requestCtx == null) {
+            throw new ParsingException("JSON text must contain a Request object");
+        }
+        return requestCtx;
+    }
+
+    private RequestCtx parseRequest() throws ParsingException {
+
+        boolean returnPolicyIdList = false;
+        boolean combinedDecision = false;
+        MultiRequests multiRequests = null;
+        RequestDefaults defaults = null;
+        Set<Attributes> attributesSet = new HashSet<Attributes>();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (JSONConstants.RETURN_POLICY_ID_LIST.equals(name)) {
+                returnPolicyIdList = reader.nextBoolean();
+            } else if (JSONConstants.COMBINED_DECISION.equals(name)) {
+                combinedDecision = reader.nextBoolean();
+            } else if (JSONConstants.XPATH_VERSION.equals(name)) {
+                defaults = new RequestDefaults(reader.nextString());
+            } else if (JSONConstants.MULTI_REQUESTS.equals(name)) {
+                multiRequests = parseMultiRequests();
+            } else if (JSONConstants.CATEGORY.equals(name)) {
+                parseCategories(null, attributesSet);
+            } else if (JSONConstants.CATEGORY_SHORTHANDS.containsKey(name)) {
+                parseCategories(JSONConstants.CATEGORY_SHORTHANDS.get(name), attributesSet);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (attributesSet.isEmpty()) {
+            throw new ParsingException("Request must contain at least one Category object");
+        }
+
+        return new RequestCtx(null, attributesSet, returnPolicyIdList, combinedDecision,
+                multiRequests, defaults);
+    }
+
+    /**
+     * Reads a single category object or an array of them
+     */
+    private void parseCategories(String category, Set<Attributes> attributesSet)
+            throws ParsingException {
+
+        if (reader.peek() == JSONReader.BEGIN_ARRAY) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                attributesSet.add(parseAttributes(category));
+            }
+            reader.endArray();
+        } else {
+            attributesSet.add(parseAttributes(category));
+        }
+    }
+
+    private Attributes parseAttributes(String category) throws ParsingException {
+
+        String id = null;
+        Node content = null;
+        Set<Attribute> attributes = new HashSet<Attribute>();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (JSONConstants.CATEGORY_ID.equals(name)) {
+                category = JSONConstants.getCategory(reader.nextString());
+            } else if (JSONConstants.ID.equals(name)) {
+                id = reader.nextString();
+            } else if (JSONConstants.CONTENT.equals(name)) {
+                content = parseContent(reader.nextString());
+            } else if (JSONConstants.ATTRIBUTE.equals(name)) {
+                if (reader.peek() == JSONReader.BEGIN_ARRAY) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        attributes.add(parseAttribute());
+                    }
+                    reader.endArray();
+                } else {
+                    attributes.add(parseAttribute());
+                }
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (category == null) {
+            throw new ParsingException("Category object must contain a CategoryId");
+        }
+
+        return new Attributes(getURI(category), content, attributes, id);
+    }
+
+    private Attribute parseAttribute() throws ParsingException {
+
+        String id = null;
+        String issuer = null;
+        String dataType = null;
+        boolean includeInResult = false;
+        values.clear();
+        kinds.clear();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (JSONConstants.ATTRIBUTE_ID.equals(name)) {
+                id = reader.nextString();
+            } else if (JSONConstants.VALUE.equals(name)) {
+                if (reader.peek() == JSONReader.BEGIN_ARRAY) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        readValue();
+                    }
+                    reader.endArray();
+                } else {
+                    readValue();
+                }
+            } else if (JSONConstants.ISSUER.equals(name)) {
+                issuer = reader.nextString();
+            } else if (JSONConstants.DATA_TYPE.equals(name)) {
+                dataType = JSONConstants.getDataType(reader.nextString());
+            } else if (JSONConstants.INCLUDE_IN_RESULT.equals(name)) {
+                includeInResult = reader.nextBoolean();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (id == null) {
+            throw new ParsingException("Attribute object must contain an AttributeId");
+        }
+        if (values.isEmpty()) {
+            throw new ParsingException("Attribute must contain a value");
+        }
+        if (dataType == null) {
+            dataType = inferDataType();
+        }
+
+        URI type = getURI(dataType);
+        List<AttributeValue> attributeValues = new ArrayList<AttributeValue>(values.size());
+        for (String value : values) {
+            try {
+                attributeValues.add(attributeFactory.createValue(type, value));
+            } catch (UnknownIdentifierException e) {
+                throw new ParsingException(e.getMessage(), e);
+            }
+        }
+
+        return new Attribute(getURI(id), type, issuer, null, attributeValues, includeInResult,
+                XACMLConstants.XACML_VERSION_3_0);
+    }
+
+    /**
+     * Reads a single scalar value of an attribute, remembering its kind
+     */
+    private void readValue() throws ParsingException {
+        int token = reader.peek();
+        if (token == JSONReader.BEGIN_OBJECT) {
+            throw new ParsingException("XPath expression values are not supported");
+        }
+        String value = reader.nextString();
+        values.add(value);
+        if (token == JSONReader.BOOLEAN) {
+            kinds.add(KIND_BOOLEAN);
+        } else if (token == JSONReader.NUMBER) {
+            kinds.add(reader.isDecimal() ? KIND_DOUBLE : KIND_INTEGER);
+        } else {
+            kinds.add(KIND_STRING);
+        }
+    }
+
+    /**
+     * Infers the data type of an attribute from the kinds of its values
+     */
+    private String inferDataType() throws ParsingException {
+        int kind = kinds.get(0);
+        for (int i = 1; i < kinds.size(); i++) {
+            int next = kinds.get(i);
+            if (next == kind) {
+                continue;
+            }
+            if ((kind == KIND_INTEGER || kind == KIND_DOUBLE) &&
+                    (next == KIND_INTEGER || next == KIND_DOUBLE)) {
+                kind = KIND_DOUBLE;
+            } else {
+                throw new ParsingException("Data type of the attribute can not be inferred " +
+                        "from values of different types");
+            }
+        }
+
+        switch (kind) {
+            case KIND_BOOLEAN:
+                return BooleanAttribute.identifier;
+            case KIND_INTEGER:
+                return IntegerAttribute.identifier;
+            case KIND_DOUBLE:
+                return DoubleAttribute.identifier;
+            default:
+                return StringAttribute.identifier;
+        }
+    }
+
+    private MultiRequests parseMultiRequests() throws ParsingException {
+
+        Set<RequestReference> requestReferences = new HashSet<RequestReference>();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (JSONConstants.REQUEST_REFERENCE.equals(name)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    requestReferences.add(parseRequestReference());
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (requestReferences.isEmpty()) {
+            throw new ParsingException("MultiRequests must contain at least one RequestReference");
+        }
+        return new MultiRequests(requestReferences);
+    }
+
+    private RequestReference parseRequestReference() throws ParsingException {
+
+        Set<AttributesReference> references = new HashSet<AttributesReference>();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (JSONConstants.REFERENCE_ID.equals(name)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    AttributesReference reference = new AttributesReference();
+                    reference.setId(reader.nextString());
+                    references.add(reference);
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (references.isEmpty()) {
+            throw new ParsingException("RequestReference must contain at least one ReferenceId");
+        }
+        RequestReference requestReference = new RequestReference();
+        requestReference.setReferences(references);
+        return requestReference;
+    }
+
+    /**
+     * Parses the XML content of a category, which is given as a string
+     */
+    private Node parseContent(String content) throws ParsingException {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            Document document = factory.newDocumentBuilder().
+                    parse(new InputSource(new StringReader(content)));
+            return document.getDocumentElement();
+        } catch (Exception e) {
+            throw new ParsingException("Error parsing the Content of a Category", e);
+        }
+    }
+
+    private static URI getURI(String value) throws ParsingException {
+        URI uri = uriCache.get(value);
+        if (uri == null) {
+            try {
+                uri = new URI(value);
+            } catch (URISyntaxException e) {
+                throw new ParsingException("Invalid identifier : " + value, e);
+            }
+            if (uriCache.size() < MAX_CACHED_URIS) {
+                uriCache.put(value, uri);
+            }
+        }
+        return uri;
+    }
+}
@@ -0,0 +1,512 @@
+/*
+*  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.ctx.json;
+
+import com.connexta.arbitro.ObligationResult;
+import com.connexta.arbitro.PolicyReference;
+import com.connexta.arbitro.attr.AttributeValue;
+import com.connexta.arbitro.attr.BooleanAttribute;
+import com.connexta.arbitro.attr.DoubleAttribute;
+import com.connexta.arbitro.attr.IntegerAttribute;
+import com.connexta.arbitro.attr.StringAttribute;
+import com.connexta.arbitro.ctx.AbstractResult;
+import com.connexta.arbitro.ctx.Attribute;
+import com.connexta.arbitro.ctx.AttributeAssignment;
+import com.connexta.arbitro.ctx.ResponseCtx;
+import com.connexta.arbitro.ctx.ResultHandler;
+import com.connexta.arbitro.ctx.Status;
+import com.connexta.arbitro.ctx.xacml3.Result;
+import com.connexta.arbitro.xacml3.Advice;
+import com.connexta.arbitro.xacml3.Attributes;
+import com.connexta.arbitro.xacml3.Obligation;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Writes responses in the JSON Profile of XACML 3.0. Like the <code>StreamingResponseWriter</code>,
+ * this is a <code>ResultHandler</code> that writes every <code>Result</code> as soon as it has been
+ * evaluated, so a response with many results is never built in memory. Closing the writer finishes
+ * the response and flushes it, but does not close the underlying stream.
+ * <p>
+ * Values of the string, boolean, integer and double data types are written as native JSON values
+ * without a <code>DataType</code>, as their data type is inferred by the reader. Values of any other
+ * data type are written as strings, together with the shorthand name of their data type.
+ * </p>
+ */
+public class JSONResponseWriter implements ResultHandler {
+
+    /**
+     * the charset used for the encoded response
+     */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * size of the write buffer in chars
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * where the response goes
+     */
+    private Writer writer;
+
+    /**
+     * reused for encoding every result
+     */
+    private StringBuilder builder = new StringBuilder(512);
+
+    /**
+     * number of results written so far
+     */
+    private int count;
+
+    /**
+     * whether the end of the response has been written
+     */
+    private boolean closed;
+
+    /**
+     * Creates a writer that writes UTF-8 encoded JSON text to the given stream
+     *
+     * @param output the stream the encoded response is written to
+     */
+    public JSONResponseWriter(OutputStream output) {
+        this(new OutputStreamWriter(output, UTF_8));
+    }
+
+    /**
+     * Creates a writer that writes JSON text to the given writer
+     *
+     * @param writer the writer the encoded response is written to
+     */
+    public JSONResponseWriter(Writer writer) {
+        this.writer = new BufferedWriter(writer, BUFFER_SIZE);
+    }
+
+    /**
+     * Encodes the given response into its JSON form
+     *
+     * @param response the response
+     * @return the JSON text of the response
+     */
+    public static String encode(ResponseCtx response) {
+        StringBuilder builder = new StringBuilder(256);
+        builder.append("{\"").append(JSONConstants.RESPONSE).append("\":[");
+        boolean first = true;
+        for (AbstractResult result : response.getResults()) {
+            if (!first) {
+                builder.append(',');
+            }
+            first = false;
+            encode(result, builder);
+        }
+        builder.append("]}");
+        return builder.toString();
+    }
+
+    public void handleResult(AbstractResult result) throws IOException {
+        if (closed) {
+            throw new IOException("Response has already been closed");
+        }
+
+        builder.setLength(0);
+        if (count == 0) {
+            builder.append("{\"").append(JSONConstants.RESPONSE).append("\":[");
+        } else {
+            builder.append(',');
+        }
+        encode(result, builder);
+        writer.append(builder);
+
+        // get the first result out as soon as possible, and then let the buffer do its job
+        if (count++ == 0) {
+            writer.flush();
+        }
+    }
+
+    /**
+     * Returns the number of results written so far
+     *
+     * @return number of results
+     */
+    public int getResultCount() {
+        return count;
+    }
+
+    /**
+     * Writes the end of the response and flushes everything to the underlying stream. Calling this
+     * more than once has no effect.
+     *
+     * @throws IOException if the response can not be finished
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (count == 0) {
+            writer.write("{\"" + JSONConstants.RESPONSE + "\":[");
+        }
+        writer.write("]}");
+        writer.flush();
+    }
+
+    /**
+     * Encodes a single result into its JSON form
+     *
+     * @param result the result
+     * @param builder string stream into which the JSON text is written
+     */
+    public static void encode(AbstractResult result, StringBuilder builder) {
+
+        int decision = result.getDecision();
+        if (decision == AbstractResult.DECISION_INDETERMINATE_DENY ||
+                decision == AbstractResult.DECISION_INDETERMINATE_PERMIT ||
+                decision == AbstractResult.DECISION_INDETERMINATE_DENY_OR_PERMIT) {
+            decision = AbstractResult.DECISION_INDETERMINATE;
+        }
+
+        builder.append('{');
+        name(JSONConstants.DECISION, builder);
+        string(AbstractResult.DECISIONS[decision], builder);
+
+        if (result.getStatus() != null) {
+            builder.append(',');
+            name(JSONConstants.STATUS, builder);
+            encodeStatus(result.getStatus(), builder);
+        }
+
+        List<ObligationResult> obligations = result.getObligations();
+        if (obligations != null && !obligations.isEmpty()) {
+            builder.append(',');
+            name(JSONConstants.OBLIGATIONS, builder);
+            builder.append('[');
+            boolean first = true;
+            for (ObligationResult obligationResult : obligations) {
+                if (!(obligationResult instanceof Obligation)) {
+                    continue;
+                }
+                Obligation obligation = (Obligation) obligationResult;
+                if (!first) {
+                    builder.append(',');
+                }
+                first = false;
+                encodeAssignments(obligation.getObligationId().toString(),
+                        obligation.getAssignments(), builder);
+            }
+            builder.append(']');
+        }
+
+        List<Advice> advices = result.getAdvices();
+        if (advices != null && !advices.isEmpty()) {
+            builder.append(',');
+            name(JSONConstants.ASSOCIATED_ADVICE, builder);
+            builder.append('[');
+            boolean first = true;
+            for (Advice advice : advices) {
+                if (!first) {
+                    builder.append(',');
+                }
+                first = false;
+                encodeAssignments(advice.getAdviceId().toString(), advice.getAssignments(), builder);
+            }
+            builder.append(']');
+        }
+
+        if (result instanceof Result) {
+            Result xacml3Result = (Result) result;
+
+            Set<Attributes> attributesSet = xacml3Result.getAttributes();
+            if (attributesSet != null && !attributesSet.isEmpty()) {
+                builder.append(',');
+                name(JSONConstants.CATEGORY, builder);
+                builder.append('[');
+                boolean first = true;
+                for (Attributes attributes : attributesSet) {
+                    if (!first) {
+                        builder.append(',');
+                    }
+                    first = false;
+                    encodeAttributes(attributes, builder);
+                }
+                builder.append(']');
+            }
+
+            Set<PolicyReference> references = xacml3Result.getPolicyReferences();
+            if (references != null && !references.isEmpty()) {
+                builder.append(',');
+                name(JSONConstants.POLICY_IDENTIFIER_LIST, builder);
+                builder.append('{');
+                boolean policies = encodeReferences(references, PolicyReference.POLICY_REFERENCE,
+                        JSONConstants.POLICY_ID_REFERENCE, false, builder);
+                encodeReferences(references, PolicyReference.POLICYSET_REFERENCE,
+                        JSONConstants.POLICY_SET_ID_REFERENCE, policies, builder);
+                builder.append('}');
+            }
+        }
+
+        builder.append('}');
+    }
+
+    private static void encodeStatus(Status status, StringBuilder builder) {
+        builder.append('{');
+        name(JSONConstants.STATUS_CODE, builder);
+        encodeStatusCode(status.getCode(), 0, builder);
+        if (status.getMessage() != null) {
+            builder.append(',');
+            name(JSONConstants.STATUS_MESSAGE, builder);
+            string(status.getMessage(), builder);
+        }
+        if (status.getDetail() != null) {
+            builder.append(',');
+            name(JSONConstants.STATUS_DETAIL, builder);
+            string(status.getDetail().getEncoded(), builder);
+        }
+        builder.append('}');
+    }
+
+    private static void encodeStatusCode(List<String> codes, int index, StringBuilder builder) {
+        builder.append('{');
+        name(JSONConstants.VALUE, builder);
+        string(codes.get(index), builder);
+        if (index + 1 < codes.size()) {
+            builder.append(',');
+            name(JSONConstants.STATUS_CODE, builder);
+            encodeStatusCode(codes, index + 1, builder);
+        }
+        builder.append('}');
+    }
+
+    private static void encodeAssignments(String id, List<AttributeAssignment> assignments,
+                                          StringBuilder builder) {
+        builder.append('{');
+        name(JSONConstants.ID, builder);
+        string(id, builder);
+        if (assignments != null && !assignments.isEmpty()) {
+            builder.append(',');
+            name(JSONConstants.ATTRIBUTE_ASSIGNMENT, builder);
+            builder.append('[');
+            boolean first = true;
+            for (AttributeAssignment assignment : assignments) {
+                if (!first) {
+                    builder.append(',');
+                }
+                first = false;
+                builder.append('{');
+                name(JSONConstants.ATTRIBUTE_ID, builder);
+                string(assignment.getAttributeId().toString(), builder);
+                builder.append(',');
+                String type = assignment.getType().toString();
+                String content = assignment.getContent();
+                name(JSONConstants.VALUE, builder);
+                value(type, content != null ? content.trim() : "", builder);
+                dataType(type, builder);
+                if (assignment.getCategory() != null) {
+                    builder.append(',');
+                    name(JSONConstants.CATEGORY, builder);
+                    string(assignment.getCategory().toString(), builder);
+                }
+                if (assignment.getIssuer() != null) {
+                    builder.append(',');
+                    name(JSONConstants.ISSUER, builder);
+                    string(assignment.getIssuer(), builder);
+                }
+                builder.append('}');
+            }
+            builder.append(']');
+        }
+        builder.append('}');
+    }
+
+    private static void encodeAttributes(Attributes attributes, StringBuilder builder) {
+        builder.append('{');
+        name(JSONConstants.CATEGORY_ID, builder);
+        string(attributes.getCategory().toString(), builder);
+        builder.append(',');
+        name(JSONConstants.ATTRIBUTE, builder);
+        builder.append('[');
+        boolean first = true;
+        for (Attribute attribute : attributes.getAttributes()) {
+            if (!attribute.isIncludeInResult()) {
+                continue;
+            }
+            if (!first) {
+                builder.append(',');
+            }
+            first = false;
+            String type = attribute.getType().toString();
+            builder.append('{');
+            name(JSONConstants.ATTRIBUTE_ID, builder);
+            string(attribute.getId().toString(), builder);
+            builder.append(',');
+            name(JSONConstants.VALUE, builder);
+            List<AttributeValue> values = attribute.getValues();
+            if (values.size() == 1) {
+                value(type, values.get(0).encode(), builder);
+            } else {
+                builder.append('[');
+                for (int i = 0; i < values.size(); i++) {
+                    if (i > 0) {
+                        builder.append(',');
+                    }
+                    value(type, values.get(i).encode(), builder);
+                }
+                builder.append(']');
+            }
+            dataType(type, builder);
+            if (attribute.getIssuer() != null) {
+                builder.append(',');
+                name(JSONConstants.ISSUER, builder);
+                string(attribute.getIssuer(), builder);
+            }
+            builder.append(',');
+            name(JSONConstants.INCLUDE_IN_RESULT, builder);
+            builder.append("true}");
+        }
+        builder.append("]}");
+    }
+
+    private static boolean encodeReferences(Set<PolicyReference> references, int type, String name,
+                                            boolean separate, StringBuilder builder) {
+        boolean first = true;
+        for (PolicyReference reference : references) {
+            if (reference.getReferenceType() != type) {
+                continue;
+            }
+            if (first) {
+                if (separate) {
+                    builder.append(',');
+                }
+                name(name, builder);
+                builder.append('[');
+                first = false;
+            } else {
+                builder.append(',');
+            }
+            builder.append('{');
+            name(JSONConstants.ID, builder);
+            string(reference.getReference().toString(), builder);
+            String version = reference.getConstraints() != null ?
+                    reference.getConstraints().getVersionConstraint() : null;
+            if (version != null) {
+                builder.append(',');
+                name(JSONConstants.VERSION, builder);
+                string(version, builder);
+            }
+            builder.append('}');
+        }
+        if (!first) {
+            builder.append(']');
+        }
+        return separate || !first;
+    }
+
+    /**
+     * Writes a value, as a native JSON value if its data type can be inferred by the reader
+     */
+    private static void value(String type, String value, StringBuilder builder) {
+        if (BooleanAttribute.identifier.equals(type) || IntegerAttribute.identifier.equals(type)) {
+            builder.append(value);
+        } else if (DoubleAttribute.identifier.equals(type) && isNumber(value)) {
+            builder.append(value);
+        } else {
+            string(value, builder);
+        }
+    }
+
+    /**
+     * Writes the data type of a value, unless it can be inferred by the reader
+     */
+    private static void dataType(String type, StringBuilder builder) {
+        if (StringAttribute.identifier.equals(type) || BooleanAttribute.identifier.equals(type) ||
+                IntegerAttribute.identifier.equals(type) || DoubleAttribute.identifier.equals(type)) {
+            return;
+        }
+        String shorthand = JSONConstants.DATA_TYPE_NAMES.get(type);
+        builder.append(',');
+        name(JSONConstants.DATA_TYPE, builder);
+        string(shorthand != null ? shorthand : type, builder);
+    }
+
+    /**
+     * Checks whether an encoded double is a valid JSON number, which is not the case for
+     * infinity and NaN
+     */
+    private static boolean isNumber(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (!((c >= '0' && c <= '9') || c == '.' || c == '-' || c == '+' || c == 'E' ||
+                    c == 'e')) {
+                return false;
+            }
+        }
+        return value.length() > 0;
+    }
+
+    private static void name(String name, StringBuilder builder) {
+        builder.append('"').append(name).append("\":");
+    }
+
+    /**
+     * Writes a quoted and escaped JSON string
+     */
+    private static void string(String value, StringBuilder builder) {
+        builder.append('"');
+        int start = 0;
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\') {
+                continue;
+            }
+            builder.append(value, start, i);
+            start = i + 1;
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    builder.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xf]);
+            }
+        }
+        builder.append(value, start, length);
+        builder.append('"');
+    }
+}
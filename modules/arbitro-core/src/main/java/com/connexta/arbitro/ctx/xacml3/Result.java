@@ -245,6 +245,15 @@ public class Result extends AbstractResult {
         return attributes;
     }
 
+    /**
+     * Return set of applicable policy references that is sent to PEP
+     *
+     * @return set of policy references
+     */
+    public Set<PolicyReference> getPolicyReferences() {
+        return policyReferences;
+    }
+
     /**
      * Extract the attributes that must be included in the response
      *
@@ -37,8 +37,19 @@ package com.connexta.arbitro.finder;
 
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -46,7 +57,13 @@ import com.connexta.arbitro.attr.AttributeValue;
 import com.connexta.arbitro.cond.EvaluationResult;
 import org.w3c.dom.Node;
 import com.connexta.arbitro.attr.BagAttribute;
+import com.connexta.arbitro.ctx.Attribute;
+import com.connexta.arbitro.ctx.BasicEvaluationCtx;
 import com.connexta.arbitro.ctx.EvaluationCtx;
+import com.connexta.arbitro.ctx.Deadline;
+import com.connexta.arbitro.ctx.Status;
+import com.connexta.arbitro.metrics.MetricsCollector;
+import com.connexta.arbitro.xacml3.Attributes;
 
 /**
  * This class is used by the PDP to find attribute values that weren't originally supplied in the
@@ -66,14 +83,20 @@ import com.connexta.arbitro.ctx.EvaluationCtx;
  */
 public class AttributeFinder {
 
-    // the list of all modules
-    private List<AttributeFinderModule> allModules;
+    // the modules, and which of them may be asked for which attributes
+    private volatile RoutingTable routingTable;
+
+    // the guards isolating modules, by module
+    private volatile Map<AttributeFinderModule, ModuleGuard> guards;
 
-    //
-    private List<AttributeFinderModule> designatorModules;
+    // whether identical concurrent lookups are coalesced
+    private volatile boolean coalescing;
 
-    //
-    private List<AttributeFinderModule> selectorModules;
+    // the lookups in flight, when lookups are coalesced
+    private ConcurrentHashMap<Flight, Flight> flights = new ConcurrentHashMap<Flight, Flight>();
+
+    // the number of lookups that waited for another one
+    private AtomicLong coalescedLookups = new AtomicLong();
 
     // the logger we'll use for all messages
     private static Log logger = LogFactory.getLog(AttributeFinder.class);
@@ -82,9 +105,8 @@ public class AttributeFinder {
      * Default constructor.
      */
     public AttributeFinder() {
-        allModules = new ArrayList<AttributeFinderModule>();
-        designatorModules = new ArrayList<AttributeFinderModule>();
-        selectorModules = new ArrayList<AttributeFinderModule>();
+        routingTable = new RoutingTable(new ArrayList<AttributeFinderModule>());
+        guards = new HashMap<AttributeFinderModule, ModuleGuard>();
     }
 
     /**
@@ -94,33 +116,99 @@ public class AttributeFinder {
      * @return a <code>List</code> of <code>AttributeFinderModule</code>s
      */
     public List<AttributeFinderModule> getModules() {
-        return new ArrayList<AttributeFinderModule>(allModules);
+        return new ArrayList<AttributeFinderModule>(routingTable.allModules);
     }
 
     /**
      * Sets the ordered <code>List</code> of <code>AttributeFinderModule</code>s used by this class
-     * to find attribute values. The ordering will be maintained.
+     * to find attribute values. The ordering will be maintained. The categories and ids each
+     * module supports are read once here, so that every lookup only asks the modules that may
+     * resolve its attribute.
      * 
      * @param modules a <code>List</code> of <code>AttributeFinderModule</code>s
      */
     public void setModules(List<AttributeFinderModule> modules) {
-        Iterator it = modules.iterator();
-
-        allModules = new ArrayList<AttributeFinderModule>(modules);
-        designatorModules = new ArrayList<AttributeFinderModule>();
-        selectorModules = new ArrayList<AttributeFinderModule>();
+        routingTable = new RoutingTable(modules);
+    }
 
-        while (it.hasNext()) {
-            AttributeFinderModule module = (AttributeFinderModule) (it.next());
+    /**
+     * Isolates a module with a guard, which limits the number of calls made to the module at the
+     * same time, stops calling the module while it keeps failing and may serve its last known
+     * good values instead.
+     *
+     * @param module a module of this finder
+     * @param guard the guard of the module, or null to call the module directly
+     */
+    public void setModuleGuard(AttributeFinderModule module, ModuleGuard guard) {
+        Map<AttributeFinderModule, ModuleGuard> newGuards =
+                new HashMap<AttributeFinderModule, ModuleGuard>(guards);
+        if (guard == null) {
+            newGuards.remove(module);
+        } else {
+            newGuards.put(module, guard);
+        }
+        guards = newGuards;
+    }
 
-            if (module.isDesignatorSupported())
-                designatorModules.add(module);
+    /**
+     * Returns the guard that isolates a module
+     *
+     * @param module a module of this finder
+     * @return the guard, or null if the module is called directly
+     */
+    public ModuleGuard getModuleGuard(AttributeFinderModule module) {
+        return guards.get(module);
+    }
 
-            if (module.isSelectorSupported())
-                selectorModules.add(module);
+    /**
+     * Registers the guards of the modules with the platform MBean server, named after the
+     * identifier or the class of their module. Guards that are already registered are left as
+     * they are, and a guard that can not be registered is only logged. This is called when a PDP
+     * is created with this finder.
+     */
+    public void registerModuleGuards() {
+        for (Map.Entry<AttributeFinderModule, ModuleGuard> entry : guards.entrySet()) {
+            ModuleGuard guard = entry.getValue();
+            if (guard.isRegistered()) {
+                continue;
+            }
+            String name = getName(entry.getKey());
+            try {
+                guard.register(name);
+            } catch (JMException e) {
+                logger.warn("Could not register the guard of attribute finder module " + name, e);
+            }
         }
     }
 
+    /**
+     * Sets whether identical lookups made at the same time are coalesced. When they are, a
+     * lookup that is already being made by one request is not made again for another request
+     * with the same values for the attributes the module depends on; the second request waits
+     * for the result of the first instead. Only lookups of modules that declare what they depend
+     * on are coalesced, and nothing is cached beyond the lookup itself. Lookups are not coalesced
+     * by default.
+     *
+     * @param coalescing whether identical concurrent lookups are coalesced
+     */
+    public void setCoalescing(boolean coalescing) {
+        this.coalescing = coalescing;
+    }
+
+    /**
+     * @return whether identical concurrent lookups are coalesced
+     */
+    public boolean isCoalescing() {
+        return coalescing;
+    }
+
+    /**
+     * @return the number of lookups that waited for an identical lookup instead of being made
+     */
+    public long getCoalescedLookups() {
+        return coalescedLookups.get();
+    }
+
     /**
      * Tries to find attribute values based on the given designator data. The result, if successful,
      * will always contain a <code>BagAttribute</code>, even if only one value was found. If no
@@ -137,27 +225,26 @@ public class AttributeFinder {
      */
     public EvaluationResult findAttribute(URI attributeType, URI attributeId, String issuer,
             URI category, EvaluationCtx context) {
-        Iterator it = designatorModules.iterator();
+        Iterator it = routingTable.getDesignatorModules(category, attributeId).iterator();
 
         // start with empty list of Attribute ValuesS
         List<AttributeValue> attributeValues = new ArrayList<AttributeValue>();
 
+        MetricsCollector metrics = BasicEvaluationCtx.getMetricsCollector(context);
+        Deadline deadline = BasicEvaluationCtx.getDeadline(context);
+
         // go through each module in order
         while (it.hasNext()) {
             AttributeFinderModule module = (AttributeFinderModule) (it.next());
 
-            // see if the module supports this type, note: if supportedIds and supportedCategories are null
-            // it implies that the module will resolve any type attributes
-            if(module.getSupportedIds() != null && module.getSupportedCategories() != null){
-                if (!module.getSupportedCategories().contains(category.toString()) ||
-                        !module.getSupportedIds().contains(attributeId.toString())){
-                       continue;
-                }
+            // don't call any more modules once the request has run out of time
+            if (deadline != null && deadline.isExceeded()) {
+                return new EvaluationResult(deadline.getStatus());
             }
 
             // see if the module can find an attribute value
-            EvaluationResult result = module.findAttribute(attributeType, attributeId, issuer,
-                    category, context);
+            EvaluationResult result = callModule(module, attributeId.toString(), attributeType,
+                    attributeId, issuer, category, null, null, null, context, null, metrics);
 
             // if there was an error, we stop right away
             if (result.indeterminate()) {
@@ -205,18 +292,26 @@ public class AttributeFinder {
      */
     public EvaluationResult findAttribute(String contextPath, URI attributeType,
                                           EvaluationCtx context, String xpathVersion) {
-        Iterator it = selectorModules.iterator();
+        Iterator it = routingTable.selectorModules.iterator();
 
         // start with empty list of Attribute Values
         List<AttributeValue> attributeValues = new ArrayList<AttributeValue>();
 
+        MetricsCollector metrics = BasicEvaluationCtx.getMetricsCollector(context);
+        Deadline deadline = BasicEvaluationCtx.getDeadline(context);
+
         // go through each module in order
         while (it.hasNext()) {
             AttributeFinderModule module = (AttributeFinderModule) (it.next());
 
+            // don't call any more modules once the request has run out of time
+            if (deadline != null && deadline.isExceeded()) {
+                return new EvaluationResult(deadline.getStatus());
+            }
+
             // see if the module can find an attribute value
-            EvaluationResult result = module.findAttribute(contextPath,
-                    attributeType, null, null, context, xpathVersion);
+            EvaluationResult result = callModule(module, contextPath, attributeType, null, null,
+                    null, contextPath, null, null, context, xpathVersion, metrics);
 
             // if there was an error, we stop right away
             if (result.indeterminate()) {
@@ -265,18 +360,26 @@ public class AttributeFinder {
     public EvaluationResult findAttribute(String contextPath, String contextSelector, URI attributeType,
                         Node root, EvaluationCtx context, String xpathVersion) {
 
-        Iterator it = selectorModules.iterator();
+        Iterator it = routingTable.selectorModules.iterator();
 
         // start with empty list of Attribute Values
         List<AttributeValue> attributeValues = new ArrayList<AttributeValue>();
 
+        MetricsCollector metrics = BasicEvaluationCtx.getMetricsCollector(context);
+        Deadline deadline = BasicEvaluationCtx.getDeadline(context);
+
         // go through each module in order
         while (it.hasNext()) {
             AttributeFinderModule module = (AttributeFinderModule) (it.next());
 
+            // don't call any more modules once the request has run out of time
+            if (deadline != null && deadline.isExceeded()) {
+                return new EvaluationResult(deadline.getStatus());
+            }
+
             // see if the module can find an attribute value
-            EvaluationResult result = module.findAttribute(contextPath, 
-                    attributeType, contextSelector, root, context, xpathVersion);
+            EvaluationResult result = callModule(module, contextPath, attributeType, null, null,
+                    null, contextPath, contextSelector, root, context, xpathVersion, metrics);
 
             // if there was an error, we stop right away
             if (result.indeterminate()) {
@@ -308,4 +411,339 @@ public class AttributeFinder {
         return new EvaluationResult(new BagAttribute(attributeType,attributeValues));
     }
 
+    /**
+     * Private helper that asks a single module for attribute values. When lookups are coalesced,
+     * a lookup that is already being made for another request with the same request key is
+     * waited for instead of being made again, unless it is being made by this thread, in which
+     * case the module calls itself. Designator lookups are made when the context path is null,
+     * selector lookups otherwise.
+     */
+    private EvaluationResult callModule(AttributeFinderModule module, String attribute,
+                                        URI attributeType, URI attributeId, String issuer,
+                                        URI category, String contextPath, String contextSelector,
+                                        Node root, EvaluationCtx context, String xpathVersion,
+                                        MetricsCollector metrics) {
+        ModuleGuard guard = guards.get(module);
+        if (guard == null && !coalescing) {
+            return invokeModule(module, null, null, attribute, attributeType, attributeId, issuer,
+                    category, contextPath, contextSelector, root, context, xpathVersion, metrics);
+        }
+
+        String requestKey = getRequestKey(module, context);
+        String lookup = null;
+        if (requestKey != null) {
+            lookup = attributeType + " " + attribute + " " + issuer + " " + category + " "
+                    + contextSelector + " " + xpathVersion + " " + requestKey;
+        }
+        if (!coalescing || lookup == null) {
+            return invokeModule(module, guard, lookup, attribute, attributeType, attributeId,
+                    issuer, category, contextPath, contextSelector, root, context, xpathVersion,
+                    metrics);
+        }
+
+        // if the same lookup is in flight then wait for it, otherwise lead the flight
+        Flight flight = new Flight(module, lookup);
+        Flight leader = flights.putIfAbsent(flight, flight);
+        if (leader != null && leader.thread == Thread.currentThread()) {
+            // waiting for itself would never end
+            return invokeModule(module, guard, lookup, attribute, attributeType, attributeId,
+                    issuer, category, contextPath, contextSelector, root, context, xpathVersion,
+                    metrics);
+        }
+        if (leader != null) {
+            coalescedLookups.incrementAndGet();
+            return leader.await(BasicEvaluationCtx.getDeadline(context));
+        }
+        try {
+            flight.result = invokeModule(module, guard, lookup, attribute, attributeType,
+                    attributeId, issuer, category, contextPath, contextSelector, root, context,
+                    xpathVersion, metrics);
+            return flight.result;
+        } catch (RuntimeException e) {
+            flight.failure = e;
+            throw e;
+        } catch (Error e) {
+            flight.failure = e;
+            throw e;
+        } finally {
+            // the result is only shared with the lookups that are waiting for it
+            flights.remove(flight);
+            flight.latch.countDown();
+        }
+    }
+
+    /**
+     * Private helper that calls a module, through its guard if it has one
+     */
+    private EvaluationResult invokeModule(AttributeFinderModule module, ModuleGuard guard,
+                                          String lookup, String attribute, URI attributeType,
+                                          URI attributeId, String issuer, URI category,
+                                          String contextPath, String contextSelector, Node root,
+                                          EvaluationCtx context, String xpathVersion,
+                                          MetricsCollector metrics) {
+        long call = guard == null ? 0 : guard.tryAcquire();
+        if (call == ModuleGuard.REJECTED) {
+            EvaluationResult fallback = lookup == null ? null : guard.getFallback(lookup);
+            if (fallback != null) {
+                return fallback;
+            }
+            ArrayList<String> code = new ArrayList<String>();
+            code.add(Status.STATUS_PROCESSING_ERROR);
+            return new EvaluationResult(new Status(code, "attribute finder module "
+                    + getName(module) + " is not available"));
+        }
+
+        long start = 0;
+        if (metrics != null) {
+            metrics.attributeLookupStarted(module, attribute);
+        }
+        if (metrics != null || guard != null) {
+            start = System.nanoTime();
+        }
+        EvaluationResult result = null;
+        try {
+            if (contextPath == null) {
+                result = module.findAttribute(attributeType, attributeId, issuer, category,
+                        context);
+            } else {
+                result = module.findAttribute(contextPath, attributeType, contextSelector, root,
+                        context, xpathVersion);
+            }
+        } finally {
+            // a module that throws has failed, and the lookup is recorded as an error
+            boolean error = result == null || result.indeterminate();
+            if (guard != null) {
+                guard.release(call, System.nanoTime() - start, error);
+            }
+            if (metrics != null) {
+                metrics.attributeLookup(module, System.nanoTime() - start, error);
+            }
+        }
+
+        if (guard != null && lookup != null) {
+            if (!result.indeterminate()) {
+                guard.remember(lookup, result);
+            } else {
+                EvaluationResult fallback = guard.getFallback(lookup);
+                if (fallback != null) {
+                    return fallback;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Private helper that returns the values of the request attributes a module depends on, or
+     * null if the module does not say what it depends on
+     */
+    private static String getRequestKey(AttributeFinderModule module, EvaluationCtx context) {
+        Map<String, Set<String>> dependencies = module.getRequestDependencies();
+        if (dependencies == null) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder();
+        Set<Attributes> attributesSet = context.getRequestCtx().getAttributesSet();
+        for (Map.Entry<String, Set<String>> entry : dependencies.entrySet()) {
+            for (String attributeId : entry.getValue()) {
+                // values are kept in sets, so their order differs from request to request
+                List<String> values = new ArrayList<String>();
+                for (Attributes attributes : attributesSet) {
+                    if (!attributes.getCategory().toString().equals(entry.getKey())) {
+                        continue;
+                    }
+                    for (Attribute attribute : attributes.getAttributes()) {
+                        if (attribute.getId().toString().equals(attributeId)) {
+                            for (AttributeValue value : attribute.getValues()) {
+                                values.add(value.getType() + " " + value.encode());
+                            }
+                        }
+                    }
+                }
+                Collections.sort(values);
+                key.append(entry.getKey()).append(' ').append(attributeId).append(' ')
+                        .append(values).append(' ');
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Private helper that names a module in error messages
+     */
+    private static String getName(AttributeFinderModule module) {
+        String identifier = module.getIdentifier();
+        return identifier != null ? identifier : module.getClass().getName();
+    }
+
+    /**
+     * The modules of a finder, which is never changed once it is built so that it can be
+     * replaced as a whole when the modules are set
+     */
+    private static class RoutingTable {
+
+        // the list of all modules
+        private final List<AttributeFinderModule> allModules;
+
+        // the modules that support selectors
+        private final List<AttributeFinderModule> selectorModules;
+
+        // the designator modules that may resolve attributes of any category and id
+        private final List<AttributeFinderModule> wildcardModules;
+
+        // the designator modules that may resolve an attribute, by category and attribute id
+        private final Map<String, Map<String, List<AttributeFinderModule>>> designatorModules;
+
+        RoutingTable(List<AttributeFinderModule> modules) {
+            allModules = Collections.unmodifiableList(
+                    new ArrayList<AttributeFinderModule>(modules));
+            List<AttributeFinderModule> selectors = new ArrayList<AttributeFinderModule>();
+            List<AttributeFinderModule> wildcards = new ArrayList<AttributeFinderModule>();
+            List<AttributeFinderModule> designators = new ArrayList<AttributeFinderModule>();
+            List<Set<String>> designatorCategories = new ArrayList<Set<String>>();
+            List<Set<String>> designatorIds = new ArrayList<Set<String>>();
+
+            for (AttributeFinderModule module : allModules) {
+                if (module.isSelectorSupported()) {
+                    selectors.add(module);
+                }
+                if (!module.isDesignatorSupported()) {
+                    continue;
+                }
+
+                // if supportedIds or supportedCategories is null then the module will resolve
+                // attributes of any category and id
+                Set<String> categories = toStrings(module.getSupportedCategories());
+                Set<String> ids = toStrings(module.getSupportedIds());
+                if (categories == null || ids == null) {
+                    wildcards.add(module);
+                    categories = null;
+                    ids = null;
+                }
+                designators.add(module);
+                designatorCategories.add(categories);
+                designatorIds.add(ids);
+            }
+
+            // every attribute a module names gets the modules that may resolve it, in order
+            Map<String, Map<String, List<AttributeFinderModule>>> table =
+                    new HashMap<String, Map<String, List<AttributeFinderModule>>>();
+            for (int i = 0; i < designators.size(); i++) {
+                if (designatorCategories.get(i) == null) {
+                    continue;
+                }
+                for (String category : designatorCategories.get(i)) {
+                    Map<String, List<AttributeFinderModule>> byId = table.get(category);
+                    if (byId == null) {
+                        byId = new HashMap<String, List<AttributeFinderModule>>();
+                        table.put(category, byId);
+                    }
+                    for (String id : designatorIds.get(i)) {
+                        if (byId.containsKey(id)) {
+                            continue;
+                        }
+                        List<AttributeFinderModule> eligible =
+                                new ArrayList<AttributeFinderModule>();
+                        for (int j = 0; j < designators.size(); j++) {
+                            if (designatorCategories.get(j) == null
+                                    || (designatorCategories.get(j).contains(category)
+                                    && designatorIds.get(j).contains(id))) {
+                                eligible.add(designators.get(j));
+                            }
+                        }
+                        byId.put(id, Collections.unmodifiableList(eligible));
+                    }
+                }
+            }
+
+            selectorModules = Collections.unmodifiableList(selectors);
+            wildcardModules = Collections.unmodifiableList(wildcards);
+            designatorModules = table;
+        }
+
+        /**
+         * Returns the designator modules that may resolve an attribute, in order
+         */
+        List<AttributeFinderModule> getDesignatorModules(URI category, URI attributeId) {
+            Map<String, List<AttributeFinderModule>> byId =
+                    designatorModules.get(category.toString());
+            if (byId != null) {
+                List<AttributeFinderModule> eligible = byId.get(attributeId.toString());
+                if (eligible != null) {
+                    return eligible;
+                }
+            }
+            return wildcardModules;
+        }
+
+        private static Set<String> toStrings(Set values) {
+            if (values == null) {
+                return null;
+            }
+            Set<String> strings = new HashSet<String>();
+            for (Object value : values) {
+                strings.add(value.toString());
+            }
+            return strings;
+        }
+    }
+
+    /**
+     * A lookup that is being made by one request, which other requests making the same lookup
+     * wait for
+     */
+    private static class Flight {
+
+        private AttributeFinderModule module;
+        private String lookup;
+        private CountDownLatch latch = new CountDownLatch(1);
+        private EvaluationResult result;
+        private Throwable failure;
+        private Thread thread = Thread.currentThread();
+
+        Flight(AttributeFinderModule module, String lookup) {
+            this.module = module;
+            this.lookup = lookup;
+        }
+
+        /**
+         * Waits for the lookup to end, but not beyond the deadline of the waiting request
+         */
+        EvaluationResult await(Deadline deadline) {
+            try {
+                if (deadline == null) {
+                    latch.await();
+                } else if (!latch.await(deadline.getRemainingMillis(), TimeUnit.MILLISECONDS)) {
+                    return new EvaluationResult(deadline.getStatus());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                ArrayList<String> code = new ArrayList<String>();
+                code.add(Status.STATUS_PROCESSING_ERROR);
+                return new EvaluationResult(new Status(code, "interrupted while waiting for "
+                        + "attribute lookup"));
+            }
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            } else if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Flight)) {
+                return false;
+            }
+            Flight other = (Flight) o;
+            return module == other.module && lookup.equals(other.lookup);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(module) + lookup.hashCode();
+        }
+    }
+
 }
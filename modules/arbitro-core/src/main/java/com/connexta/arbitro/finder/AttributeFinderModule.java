@@ -43,6 +43,7 @@ import com.connexta.arbitro.cond.EvaluationResult;
 
 import java.net.URI;
 
+import java.util.Map;
 import java.util.Set;
 
 import org.w3c.dom.Node;
@@ -113,6 +114,23 @@ public abstract class AttributeFinderModule {
         return null;
     }
 
+    /**
+     * Returns the attributes of a request that the values found by this module depend on, as a
+     * <code>Map</code> from categories to the attribute ids in them. Two lookups of the same
+     * attribute made for requests that have the same values for these attributes are expected to
+     * find the same values, which lets the <code>AttributeFinder</code> share a single lookup
+     * between concurrent requests and keep last known good values. A module that, for example,
+     * only looks at the subject returns just the subject identifier; an empty map means that the
+     * values only depend on the attribute that is looked up. A return value of null means that
+     * the values may depend on anything in the request, so lookups of this module are never
+     * shared between requests.
+     *
+     * @return a <code>Map</code> of categories to <code>Set</code>s of attribute ids, or null
+     */
+    public Map<String, Set<String>> getRequestDependencies() {
+        return null;
+    }
+
     /**
      * This is an experimental method that asks the module to invalidate any cache values it may
      * contain. This is not used by any of the core processing code, but it may be used by
@@ -0,0 +1,431 @@
+/*
+*  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.finder;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.connexta.arbitro.cond.EvaluationResult;
+
+/**
+ * Isolates an <code>AttributeFinderModule</code> from the rest of the PDP, so that a degraded
+ * attribute source does not slow down every request. A guard combines three things:
+ * <ul>
+ * <li>a bulkhead, which limits the number of calls the module handles at the same time. Calls
+ * over the limit are rejected right away instead of waiting.</li>
+ * <li>a circuit breaker, which opens when too many of the recent calls failed or were slow. While
+ * it is open every call is rejected. After a while a single call is let through, and the circuit
+ * closes again if that call succeeds.</li>
+ * <li>optionally, the last known good values of the module, which are returned instead of an
+ * error when a call is rejected or fails. The values are kept per lookup and per values of the
+ * request attributes the module depends on, so they are only kept for modules that declare
+ * these attributes, and a value found for one request is never served for a request that
+ * differs in them.</li>
+ * </ul>
+ * Guards are given to the <code>AttributeFinder</code> per module, and are registered as MBeans
+ * to watch their state when a PDP is created with the finder.
+ */
+public class ModuleGuard implements ModuleGuardMBean {
+
+    /**
+     * the circuit is closed and calls are made
+     */
+    public static final int CLOSED = 0;
+
+    /**
+     * the circuit is open and calls are rejected
+     */
+    public static final int OPEN = 1;
+
+    /**
+     * a single call is made to find out whether the module has recovered
+     */
+    public static final int HALF_OPEN = 2;
+
+    /**
+     * the number of recent calls the failure rate is computed over, if none is given
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 20;
+
+    /**
+     * the share of failed calls that opens the circuit, if none is given
+     */
+    public static final double DEFAULT_FAILURE_RATE_THRESHOLD = 0.5;
+
+    /**
+     * the time in milliseconds the circuit stays open, if none is given
+     */
+    public static final long DEFAULT_OPEN_MILLIS = 30000;
+
+    /**
+     * the prefix of the object names guards are registered under by default
+     */
+    public static final String OBJECT_NAME_PREFIX = "com.connexta.arbitro:type=ModuleGuard,module=";
+
+    /**
+     * returned by <code>tryAcquire</code> when a call is rejected
+     */
+    static final long REJECTED = -1;
+
+    /**
+     * returned by <code>tryAcquire</code> for the single call made while the circuit is half open
+     */
+    static final long PROBE = -2;
+
+    private static final String[] STATE_NAMES = {"CLOSED", "OPEN", "HALF_OPEN"};
+
+    private int maxConcurrentCalls;
+    private double failureRateThreshold;
+    private long slowCallNanos;
+    private long openNanos;
+    private int fallbackSize;
+
+    private Semaphore bulkhead;
+    private AtomicInteger activeCalls = new AtomicInteger();
+    private AtomicLong calls = new AtomicLong();
+    private AtomicLong rejectedCalls = new AtomicLong();
+    private AtomicLong fallbacks = new AtomicLong();
+
+    // the state of the circuit, guarded by this
+    private int state = CLOSED;
+    private long generation;
+    private long openedAt;
+    private boolean probing;
+    private boolean[] window;
+    private int windowIndex;
+    private int windowCount;
+    private int windowFailures;
+
+    // the last known good values, guarded by itself
+    private Map<String, EvaluationResult> lastKnownGood;
+
+    private MBeanServer server;
+    private ObjectName name;
+
+    /**
+     * Creates a guard without fallback values, using the default window size
+     *
+     * @param maxConcurrentCalls the number of calls the module may handle at the same time, or 0
+     *                           for no limit
+     * @param failureRateThreshold the share of failed or slow calls that opens the circuit
+     * @param slowCallMillis the time in milliseconds after which a call counts as failed, or 0 if
+     *                       only errors count
+     * @param openMillis the time in milliseconds the circuit stays open
+     */
+    public ModuleGuard(int maxConcurrentCalls, double failureRateThreshold, long slowCallMillis,
+                       long openMillis) {
+        this(maxConcurrentCalls, failureRateThreshold, slowCallMillis, DEFAULT_WINDOW_SIZE,
+                openMillis, 0);
+    }
+
+    /**
+     * Creates a guard
+     *
+     * @param maxConcurrentCalls the number of calls the module may handle at the same time, or 0
+     *                           for no limit
+     * @param failureRateThreshold the share of failed or slow calls that opens the circuit
+     * @param slowCallMillis the time in milliseconds after which a call counts as failed, or 0 if
+     *                       only errors count
+     * @param windowSize the number of recent calls the failure rate is computed over
+     * @param openMillis the time in milliseconds the circuit stays open
+     * @param fallbackSize the number of last known good values to keep, or 0 to return errors
+     *                     when the module is not available
+     */
+    public ModuleGuard(int maxConcurrentCalls, double failureRateThreshold, long slowCallMillis,
+                       int windowSize, long openMillis, int fallbackSize) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("window size must be positive : " + windowSize);
+        }
+        if (!(failureRateThreshold > 0 && failureRateThreshold <= 1)) {
+            throw new IllegalArgumentException("failure rate threshold must be above 0 and at "
+                    + "most 1 : " + failureRateThreshold);
+        }
+        if (maxConcurrentCalls < 0 || slowCallMillis < 0 || openMillis < 0 || fallbackSize < 0) {
+            throw new IllegalArgumentException("limits and times must not be negative");
+        }
+        this.maxConcurrentCalls = maxConcurrentCalls;
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallNanos = slowCallMillis * 1000000L;
+        this.openNanos = openMillis * 1000000L;
+        this.fallbackSize = fallbackSize;
+        if (maxConcurrentCalls > 0) {
+            bulkhead = new Semaphore(maxConcurrentCalls);
+        }
+        window = new boolean[windowSize];
+        if (fallbackSize > 0) {
+            lastKnownGood = new LinkedHashMap<String, EvaluationResult>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<String, EvaluationResult> eldest) {
+                    return size() > ModuleGuard.this.fallbackSize;
+                }
+            };
+        }
+    }
+
+    /**
+     * Asks for permission to call the module. Every call that is permitted must be followed by
+     * a call to <code>release</code> with the value returned here, which tells which state of
+     * the circuit the call was made in.
+     *
+     * @return the call, or <code>REJECTED</code> if the module may not be called
+     */
+    long tryAcquire() {
+        if (bulkhead != null && !bulkhead.tryAcquire()) {
+            rejectedCalls.incrementAndGet();
+            return REJECTED;
+        }
+        long call = allowCall();
+        if (call == REJECTED) {
+            if (bulkhead != null) {
+                bulkhead.release();
+            }
+            rejectedCalls.incrementAndGet();
+            return REJECTED;
+        }
+        activeCalls.incrementAndGet();
+        calls.incrementAndGet();
+        return call;
+    }
+
+    /**
+     * Records the outcome of a call that was permitted
+     *
+     * @param call the value <code>tryAcquire</code> returned for the call
+     * @param nanos how long the call took
+     * @param failed whether the call failed
+     */
+    void release(long call, long nanos, boolean failed) {
+        activeCalls.decrementAndGet();
+        if (bulkhead != null) {
+            bulkhead.release();
+        }
+        record(call, failed || (slowCallNanos > 0 && nanos > slowCallNanos));
+    }
+
+    /**
+     * Returns the last known good value of a lookup
+     *
+     * @param lookup the lookup, including the request key of the module
+     * @return the value, or null if none is known
+     */
+    EvaluationResult getFallback(String lookup) {
+        if (lastKnownGood == null) {
+            return null;
+        }
+        EvaluationResult result;
+        synchronized (lastKnownGood) {
+            result = lastKnownGood.get(lookup);
+        }
+        if (result != null) {
+            fallbacks.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * Remembers a value the module found, if this guard keeps fallback values
+     *
+     * @param lookup the lookup, including the request key of the module
+     * @param result the value the module found
+     */
+    void remember(String lookup, EvaluationResult result) {
+        if (lastKnownGood != null) {
+            synchronized (lastKnownGood) {
+                lastKnownGood.put(lookup, result);
+            }
+        }
+    }
+
+    /**
+     * Registers the guard with the platform MBean server
+     *
+     * @param moduleName the name of the module, used in the object name
+     * @throws JMException if the guard can not be registered
+     */
+    public void register(String moduleName) throws JMException {
+        register(ManagementFactory.getPlatformMBeanServer(),
+                new ObjectName(OBJECT_NAME_PREFIX + ObjectName.quote(moduleName)));
+    }
+
+    /**
+     * Registers the guard
+     *
+     * @param server the MBean server
+     * @param name the object name
+     * @throws JMException if the guard can not be registered
+     */
+    public synchronized void register(MBeanServer server, ObjectName name) throws JMException {
+        server.registerMBean(this, name);
+        this.server = server;
+        this.name = name;
+    }
+
+    /**
+     * @return whether the guard is registered
+     */
+    public synchronized boolean isRegistered() {
+        return server != null;
+    }
+
+    /**
+     * Unregisters the guard, if it is registered
+     *
+     * @throws JMException if the guard can not be unregistered
+     */
+    public synchronized void unregister() throws JMException {
+        if (server != null) {
+            server.unregisterMBean(name);
+            server = null;
+            name = null;
+        }
+    }
+
+    /**
+     * @return the state of the circuit breaker, which is <code>CLOSED</code>, <code>OPEN</code>
+     *         or <code>HALF_OPEN</code>
+     */
+    public synchronized int getCircuitState() {
+        if (state == OPEN && System.nanoTime() - openedAt >= openNanos) {
+            return HALF_OPEN;
+        }
+        return state;
+    }
+
+    public String getState() {
+        return STATE_NAMES[getCircuitState()];
+    }
+
+    public int getMaxConcurrentCalls() {
+        return maxConcurrentCalls;
+    }
+
+    public int getActiveCalls() {
+        return activeCalls.get();
+    }
+
+    public synchronized double getFailureRate() {
+        return windowCount == 0 ? 0 : (double) windowFailures / windowCount;
+    }
+
+    public long getCalls() {
+        return calls.get();
+    }
+
+    public long getRejectedCalls() {
+        return rejectedCalls.get();
+    }
+
+    public long getFallbacks() {
+        return fallbacks.get();
+    }
+
+    public synchronized void reset() {
+        probing = false;
+        close();
+    }
+
+    /**
+     * Private helper that decides whether the circuit lets a call through. Calls made while the
+     * circuit is closed are told apart by the number of times the circuit has changed.
+     */
+    private synchronized long allowCall() {
+        if (state == CLOSED) {
+            return generation;
+        }
+        if (state == OPEN) {
+            if (System.nanoTime() - openedAt < openNanos) {
+                return REJECTED;
+            }
+            state = HALF_OPEN;
+        }
+        // only a single call finds out whether the module has recovered
+        if (probing) {
+            return REJECTED;
+        }
+        probing = true;
+        return PROBE;
+    }
+
+    /**
+     * Private helper that records the outcome of a call and moves the circuit to its next state
+     */
+    private synchronized void record(long call, boolean failed) {
+        if (call == PROBE) {
+            probing = false;
+            if (state != HALF_OPEN) {
+                // the circuit was reset while the probe was made
+                return;
+            }
+            if (failed) {
+                open();
+            } else {
+                close();
+            }
+            return;
+        }
+        if (state != CLOSED || call != generation) {
+            // a call that was let through before the circuit last changed
+            return;
+        }
+
+        if (windowCount == window.length) {
+            if (window[windowIndex]) {
+                windowFailures--;
+            }
+        } else {
+            windowCount++;
+        }
+        window[windowIndex] = failed;
+        if (failed) {
+            windowFailures++;
+        }
+        windowIndex = (windowIndex + 1) % window.length;
+
+        // only judge the module once the window is full
+        if (windowCount == window.length
+                && (double) windowFailures / windowCount >= failureRateThreshold) {
+            open();
+        }
+    }
+
+    private void open() {
+        state = OPEN;
+        generation++;
+        openedAt = System.nanoTime();
+    }
+
+    private void close() {
+        state = CLOSED;
+        generation++;
+        clearWindow();
+    }
+
+    private void clearWindow() {
+        windowIndex = 0;
+        windowCount = 0;
+        windowFailures = 0;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+*  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.finder;
+
+/**
+ * The management interface of a <code>ModuleGuard</code>, through which the state of the
+ * isolation of an attribute finder module can be watched and reset over JMX.
+ */
+public interface ModuleGuardMBean {
+
+    /**
+     * @return the name of the state of the circuit breaker
+     */
+    public String getState();
+
+    /**
+     * @return the number of calls the module may handle at the same time, or 0 if unlimited
+     */
+    public int getMaxConcurrentCalls();
+
+    /**
+     * @return the number of calls the module is handling right now
+     */
+    public int getActiveCalls();
+
+    /**
+     * @return the share of failed or slow calls among the recent calls
+     */
+    public double getFailureRate();
+
+    /**
+     * @return the number of calls made to the module
+     */
+    public long getCalls();
+
+    /**
+     * @return the number of calls that were not made because the module was isolated
+     */
+    public long getRejectedCalls();
+
+    /**
+     * @return the number of values that were served from the last known good values
+     */
+    public long getFallbacks();
+
+    /**
+     * Closes the circuit breaker and forgets the recent calls
+     */
+    public void reset();
+}
@@ -36,12 +36,15 @@
 package com.connexta.arbitro.finder;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import com.connexta.arbitro.attr.AttributeValue;
+import com.connexta.arbitro.ctx.BasicEvaluationCtx;
+import com.connexta.arbitro.ctx.Deadline;
 import com.connexta.arbitro.ctx.EvaluationCtx;
 
 /**
@@ -138,10 +141,16 @@ public class ResourceFinder {
     public ResourceFinderResult findChildResources(AttributeValue parentResourceId,
             EvaluationCtx context) {
         Iterator it = childModules.iterator();
+        Deadline deadline = BasicEvaluationCtx.getDeadline(context);
 
         while (it.hasNext()) {
             ResourceFinderModule module = (ResourceFinderModule) (it.next());
 
+            // don't call any more modules once the request has run out of time
+            if (deadline != null && deadline.isExceeded()) {
+                return getDeadlineResult(parentResourceId, deadline);
+            }
+
             // ask the module to find the resources
             ResourceFinderResult result = module.findChildResources(parentResourceId, context);
 
@@ -205,10 +214,16 @@ public class ResourceFinder {
     public ResourceFinderResult findDescendantResources(AttributeValue parentResourceId,
             EvaluationCtx context) {
         Iterator it = descendantModules.iterator();
+        Deadline deadline = BasicEvaluationCtx.getDeadline(context);
 
         while (it.hasNext()) {
             ResourceFinderModule module = (ResourceFinderModule) (it.next());
 
+            // don't call any more modules once the request has run out of time
+            if (deadline != null && deadline.isExceeded()) {
+                return getDeadlineResult(parentResourceId, deadline);
+            }
+
             // ask the module to find the resources
             ResourceFinderResult result = module.findDescendantResources(parentResourceId, context);
 
@@ -259,4 +274,14 @@ public class ResourceFinder {
         return new ResourceFinderResult();
     }
 
+    /**
+     * Private helper that returns the result for a resource that could not be looked up
+     * because the request has run out of time
+     */
+    private static ResourceFinderResult getDeadlineResult(AttributeValue parentResourceId,
+                                                          Deadline deadline) {
+        HashMap failures = new HashMap();
+        failures.put(parentResourceId, deadline.getStatus());
+        return new ResourceFinderResult(failures);
+    }
 }
@@ -0,0 +1,134 @@
+/*
+*  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.finder.impl;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.connexta.arbitro.AbstractPolicy;
+import com.connexta.arbitro.attr.xacml3.AttributeDesignator;
+import com.connexta.arbitro.ctx.AbstractRequestCtx;
+
+/**
+ * The base of the indexes of <code>PolicyRepository</code> that index the policies it can not
+ * index by their target keys, by the values of an attribute that their targets or conditions
+ * compare. An index gives a gate for every policy it indexes, which the policy is removed with.
+ *
+ * @param <G> the type of the gates of the index
+ */
+abstract class AttributeIndex<G extends AttributeIndex.Gate> {
+
+    /**
+     * characters that are escaped in regular expressions to be matched literally
+     */
+    static final String META_CHARACTERS = "\\|.-^?*+{}()[]$/";
+
+    /**
+     * the ids of the attributes that must not be indexed
+     */
+    final Set<URI> unindexedAttributes;
+
+    /**
+     * Creates an index
+     *
+     * @param unindexedAttributes ids of attributes that must not be indexed, such as the ones
+     *                            that are found by attribute finder modules, or null
+     */
+    AttributeIndex(Set<URI> unindexedAttributes) {
+        if (unindexedAttributes == null) {
+            this.unindexedAttributes = Collections.emptySet();
+        } else {
+            this.unindexedAttributes = new HashSet<URI>(unindexedAttributes);
+        }
+    }
+
+    /**
+     * Returns the ids of the indexed policies that may apply to a request
+     *
+     * @param request the request
+     * @return policy ids
+     */
+    public abstract Set<URI> getCandidates(AbstractRequestCtx request);
+
+    /**
+     * Indexes a policy, if it can be indexed
+     *
+     * @param policy the policy
+     * @return the gate of the policy, which it is removed with, or null if it can not be
+     *         indexed
+     */
+    abstract G add(AbstractPolicy policy);
+
+    /**
+     * Removes the gate of a policy
+     *
+     * @param gate the gate that <code>add</code> returned
+     */
+    abstract void remove(G gate);
+
+    /**
+     * Returns whether a designator is for an attribute that policies may be indexed by, which
+     * has a category, no issuer, and is not unindexed
+     *
+     * @param designator the designator
+     * @return whether the attribute may be indexed
+     */
+    boolean isIndexable(AttributeDesignator designator) {
+        return designator.getCategory() != null && designator.getIssuer() == null
+                && !unindexedAttributes.contains(designator.getId());
+    }
+
+    /**
+     * Returns the key that the values of an attribute are indexed with
+     *
+     * @param category the category of the attribute
+     * @param attributeId the id of the attribute
+     * @param type the data type of the values
+     * @return the key
+     */
+    static String getKey(String category, URI attributeId, URI type) {
+        return category + " " + attributeId + " " + type;
+    }
+
+    /**
+     * The entry of an indexed policy
+     */
+    static class Gate {
+
+        final URI id;
+
+        Gate(URI id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * A value of a policy that it is indexed by, and the attribute it is compared with
+     */
+    static class Entry {
+
+        final String attribute;
+
+        Entry(String attribute) {
+            this.attribute = attribute;
+        }
+    }
+}
@@ -53,6 +53,8 @@ import com.connexta.arbitro.finder.AttributeFinderModule;
 import java.net.URI;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -87,6 +89,15 @@ public class CurrentEnvModule extends AttributeFinderModule {
      */
     public static final String ENVIRONMENT_CURRENT_DATETIME = "urn:oasis:names:tc:xacml:1.0:environment:current-dateTime";
 
+    // the categories and ids of the attributes this module supports
+    private static final Set<String> SUPPORTED_CATEGORIES =
+            Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+                    XACMLConstants.ENT_CATEGORY)));
+    private static final Set<String> SUPPORTED_IDS =
+            Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+                    ENVIRONMENT_CURRENT_TIME, ENVIRONMENT_CURRENT_DATE,
+                    ENVIRONMENT_CURRENT_DATETIME)));
+
     /**
      * Returns true always because this module supports designators.
      * 
@@ -103,9 +114,17 @@ public class CurrentEnvModule extends AttributeFinderModule {
      * @return a <code>Set</code> with <code>AttributeDesignator</code> included
      */
     public Set<String> getSupportedCategories() {
-        HashSet<String> set = new HashSet<String>();
-        set.add(XACMLConstants.ENT_CATEGORY);
-        return set;
+        return SUPPORTED_CATEGORIES;
+    }
+
+    /**
+     * Returns a <code>Set</code> with the ids of the current time, date and dateTime attributes,
+     * which are the only ones this module resolves.
+     * 
+     * @return a <code>Set</code> with the three ENVIRONMENT_* fields
+     */
+    public Set getSupportedIds() {
+        return SUPPORTED_IDS;
     }
 
     /**
@@ -17,27 +17,26 @@
 package com.connexta.arbitro.finder.impl;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.URI;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import com.connexta.arbitro.AbstractPolicy;
-import com.connexta.arbitro.DOMHelper;
+import com.connexta.arbitro.LazyPolicy;
 import com.connexta.arbitro.MatchResult;
-import com.connexta.arbitro.Policy;
+import com.connexta.arbitro.ParsingException;
+import com.connexta.arbitro.PolicyInterner;
 import com.connexta.arbitro.PolicyMetaData;
-import com.connexta.arbitro.PolicyReference;
 import com.connexta.arbitro.PolicySet;
 import com.connexta.arbitro.VersionConstraints;
 import com.connexta.arbitro.combine.PolicyCombiningAlgorithm;
@@ -47,23 +46,56 @@ import com.connexta.arbitro.ctx.Status;
 import com.connexta.arbitro.finder.PolicyFinder;
 import com.connexta.arbitro.finder.PolicyFinderModule;
 import com.connexta.arbitro.finder.PolicyFinderResult;
-import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
 /**
  * This is file based policy repository.  Policies can be inside the directory in a file system.
  * Then you can set directory location using "org.wso2.balana.PolicyDirectory" JAVA property   
+ * <p>
+ * Optionally, a binary snapshot of the parsed policies can be kept to speed up loading them
+ * the next time (see <code>PolicySnapshot</code>). Its location can be set with the
+ * "org.wso2.balana.PolicySnapshot" JAVA property.
+ * <p>
+ * Policies can also be loaded lazily (see <code>LazyPolicy</code>), so that only their targets
+ * are built until they first match a request.
+ * <p>
+ * Single policies can be added, updated and removed by id without loading all policies again.
+ * If the policies are indexed by their targets (see <code>PolicyRepository</code>), only the
+ * policies that may match a request are matched against it. This can be turned on with the
+ * "org.wso2.balana.PolicyTargetIndex" JAVA property.
  */
 public class FileBasedPolicyFinderModule extends PolicyFinderModule{
 
     private PolicyFinder finder = null;
 
-    private Map<URI, AbstractPolicy> policies ;
+    private volatile PolicyRepository policies;
+
+    private PolicyLoader loader;
 
     private  Set<String> policyLocations;
 
     private PolicyCombiningAlgorithm combiningAlg;
 
+    private String snapshotLocation;
+
+    private int loaderThreads;
+
+    private boolean lazyLoading;
+
+    private long bodyIdleTimeout;
+
+    private volatile long lastEviction;
+
+    private boolean interning;
+
+    private boolean targetIndexing;
+
+    private Set<URI> unindexedAttributes;
+
+    private PolicyInterner interner;
+
+    private volatile Map<String, Throwable> loadErrors = new LinkedHashMap<String, Throwable>();
+
     /**
      * the logger we'll use for all messages
      */
@@ -71,37 +103,70 @@ public class FileBasedPolicyFinderModule extends PolicyFinderModule{
 
     public static final String POLICY_DIR_PROPERTY = "org.wso2.balana.PolicyDirectory";
 
+    public static final String POLICY_SNAPSHOT_PROPERTY = "org.wso2.balana.PolicySnapshot";
+
+    public static final String LOADER_THREADS_PROPERTY = "org.wso2.balana.PolicyLoaderThreads";
+
+    public static final String LAZY_LOADING_PROPERTY = "org.wso2.balana.PolicyLazyLoading";
+
+    public static final String INTERNING_PROPERTY = "org.wso2.balana.PolicyInterning";
+
+    public static final String TARGET_INDEX_PROPERTY = "org.wso2.balana.PolicyTargetIndex";
+
     public FileBasedPolicyFinderModule() {
-        policies = new HashMap<URI, AbstractPolicy>();
-        if(System.getProperty(POLICY_DIR_PROPERTY) != null){
-            policyLocations = new HashSet<String>();
-            policyLocations.add(System.getProperty(POLICY_DIR_PROPERTY));            
-        }
+        this(defaultPolicyLocations());
     }
 
     public FileBasedPolicyFinderModule(Set<String> policyLocations) {
-        policies = new HashMap<URI, AbstractPolicy>();
+        this(policyLocations, System.getProperty(POLICY_SNAPSHOT_PROPERTY));
+    }
+
+    /**
+     * Creates a module that loads the policies in the given locations, using a binary snapshot
+     * of the parsed policies to speed up loading them again
+     *
+     * @param policyLocations policy files and directories
+     * @param snapshotLocation path of the snapshot file
+     */
+    public FileBasedPolicyFinderModule(Set<String> policyLocations, String snapshotLocation) {
         this.policyLocations = policyLocations;
+        this.snapshotLocation = snapshotLocation;
+        loaderThreads = defaultLoaderThreads();
+        lazyLoading = Boolean.getBoolean(LAZY_LOADING_PROPERTY);
+        interning = Boolean.getBoolean(INTERNING_PROPERTY);
+        targetIndexing = Boolean.getBoolean(TARGET_INDEX_PROPERTY);
+        policies = newRepository();
     }
 
     @Override
     public void init(PolicyFinder finder) {
 
         this.finder = finder;
+        loader = null;
         loadPolicies();
         combiningAlg = new DenyOverridesPolicyAlg();
     }
 
     @Override
     public PolicyFinderResult findPolicy(EvaluationCtx context) {
-        
+
+        if(bodyIdleTimeout > 0 && System.currentTimeMillis() - lastEviction >= bodyIdleTimeout){
+            evictIdleBodies();
+        }
+
         ArrayList<AbstractPolicy> selectedPolicies = new ArrayList<AbstractPolicy>();
-        Set<Map.Entry<URI, AbstractPolicy>> entrySet = policies.entrySet();
 
-        // iterate through all the policies we currently have loaded
-        for (Map.Entry<URI, AbstractPolicy> entry : entrySet) {
-            
-            AbstractPolicy policy = entry.getValue();
+        // iterate through the latest version of all the policies we currently have loaded, or
+        // of the ones that may match the request if they are indexed. While searching, a match
+        // function may match any value, so every policy is matched then
+        Collection<AbstractPolicy> candidates;
+        if(policies.isIndexed() && context.getRequestCtx() != null && !context.isSearching()){
+            candidates = policies.getCandidates(context.getRequestCtx());
+        } else {
+            candidates = policies.getLatestPolicies();
+        }
+        for (AbstractPolicy policy : candidates) {
+
             MatchResult match = policy.match(context);
             int result = match.getResult();
 
@@ -145,17 +210,10 @@ public class FileBasedPolicyFinderModule extends PolicyFinderModule{
     public PolicyFinderResult findPolicy(URI idReference, int type, VersionConstraints constraints,
                                          PolicyMetaData parentMetaData) {
 
-        AbstractPolicy policy = policies.get(idReference);
+        // the latest version of the right type that meets the constraints
+        AbstractPolicy policy = policies.get(idReference, type, constraints);
         if(policy != null){
-            if (type == PolicyReference.POLICY_REFERENCE) {
-                if (policy instanceof Policy){
-                    return new PolicyFinderResult(policy);
-                }
-            } else {
-                if (policy instanceof PolicySet){
-                    return new PolicyFinderResult(policy);
-                }
-            }
+            return new PolicyFinderResult(policy);
         }
 
         // if there was an error loading the policy, return the error
@@ -178,14 +236,374 @@ public class FileBasedPolicyFinderModule extends PolicyFinderModule{
 
     /**
      * Re-sets the policies known to this module to those contained in the
-     * given files.
-     *
+     * given files. If a snapshot location is set and the snapshot is current,
+     * the policies are read from the snapshot; otherwise they are parsed from
+     * the files, and a new snapshot is written if all of them could be loaded.
+     * <p>
+     * Policy documents are parsed and built on up to <code>loaderThreads</code>
+     * threads, and merged in the order of the files, so the loaded policies do
+     * not depend on the number of threads. Files that could not be loaded are
+     * available from <code>getLoadErrors</code>.
+     * <p>
+     * The policies are loaded into a new repository, which replaces the current
+     * one once it holds all of them, so requests find the previous policies
+     * until then.
      */
     public void loadPolicies() {
 
-        policies.clear();
+        long start = System.currentTimeMillis();
+        PolicyRepository repository = newRepository();
+        Map<String, Throwable> errors = new LinkedHashMap<String, Throwable>();
+
+        List<File> files = listPolicyFiles();
+        PolicyLoader loader = getLoader();
+        interner = interning ? new PolicyInterner() : null;
+        loader.setInterner(interner);
+
+        byte[] hash = null;
+        if(snapshotLocation != null){
+            File snapshot = new File(snapshotLocation);
+            try {
+                hash = PolicySnapshot.hash(files);
+                Map<String, Element> roots = PolicySnapshot.read(snapshot, hash);
+                if(roots != null){
+                    merge(loader.loadDocuments(roots), repository, errors);
+                    policies = repository;
+                    loadErrors = errors;
+                    log.info("Loaded " + repository.size() + " policies from snapshot " + snapshot +
+                            " in " + (System.currentTimeMillis() - start) + " ms");
+                    logInterning();
+                    return;
+                }
+                log.info("Policy snapshot " + snapshot + " is missing or stale, loading policies " +
+                        "from XML");
+            } catch (IOException e) {
+                log.warn("Can not read policy snapshot " + snapshot + ", loading policies " +
+                        "from XML", e);
+            }
+        }
+
+        List<PolicyLoader.Result> results = loader.loadFiles(files);
+        merge(results, repository, errors);
+        policies = repository;
+        loadErrors = errors;
+        log.info("Loaded " + repository.size() + " policies from " + files.size() + " files in " +
+                (System.currentTimeMillis() - start) + " ms using " + loaderThreads +
+                " threads, " + errors.size() + " files failed");
+        logInterning();
+
+        if(hash != null){
+            if(errors.isEmpty()){
+                Map<String, Element> roots = new LinkedHashMap<String, Element>();
+                for(PolicyLoader.Result result : results){
+                    roots.put(result.getPath(), result.getRoot());
+                }
+                try {
+                    PolicySnapshot.write(new File(snapshotLocation), hash, roots);
+                } catch (IOException e) {
+                    log.error("Fail to write policy snapshot : " + snapshotLocation, e);
+                }
+            } else {
+                log.warn("Policy snapshot is not written as some policies could not be loaded");
+            }
+        }
+    }
+
+    /**
+     * Adds the policy in the given file, or updates it if a policy with the same id and version
+     * is loaded, without loading the other policies again. The policy is loaded lazily if the
+     * loaded ones are, and the same parts within it are shared if interning is on.
+     *
+     * @param policyFile path of the policy file
+     * @return the policy
+     * @throws ParsingException if the file is not a valid policy
+     */
+    public AbstractPolicy addPolicy(String policyFile) throws ParsingException {
+        // a single file is loaded on the calling thread
+        PolicyLoader.Result result =
+                getLoader().loadFiles(Collections.singletonList(new File(policyFile))).get(0);
+        if(result.getPolicy() == null){
+            if(result.getError() instanceof ParsingException){
+                throw (ParsingException) result.getError();
+            }
+            throw new ParsingException("Fail to load policy : " + policyFile, result.getError());
+        }
+        if(interner != null){
+            interner.clear();
+        }
+        addPolicy(result.getPolicy());
+        return result.getPolicy();
+    }
+
+    /**
+     * Adds a policy, or updates it if a policy with the same id and version is loaded, without
+     * loading the other policies again. If it is the latest version of its id, requests are
+     * matched against it from now on.
+     *
+     * @param policy the policy or policy set
+     */
+    public void addPolicy(AbstractPolicy policy) {
+        policies.add(policy);
+    }
+
+    /**
+     * Removes every version of a policy, without loading the other policies again
+     *
+     * @param id the id of the policy
+     * @return true if the policy was removed, false if there is no such policy
+     */
+    public boolean removePolicy(URI id) {
+        return policies.remove(id) > 0;
+    }
+
+    /**
+     * Retires a version of a loaded policy, so that it is no longer found. If it was the latest
+     * version, the version before it is used for requests again.
+     *
+     * @param id the id of the policy
+     * @param version the version of the policy
+     * @return true if the version was retired, false if there is no such version
+     */
+    public boolean retirePolicy(URI id, String version) {
+        return policies.retire(id, version);
+    }
+
+    /**
+     * Retires all versions of a loaded policy that are earlier than the given version, such as
+     * once a rollout of that version is complete
+     *
+     * @param id the id of the policy
+     * @param version the earliest version to keep
+     * @return the number of retired versions
+     */
+    public int retirePoliciesBefore(URI id, String version) {
+        return policies.retireBefore(id, version);
+    }
+
+    /**
+     * Returns the loaded policies, with every version of each policy id
+     *
+     * @return the policy repository
+     */
+    public PolicyRepository getPolicyRepository() {
+        return policies;
+    }
+
+    /**
+     * Returns the files that could not be loaded by the last call to <code>loadPolicies</code>,
+     * with the reason, in the order of the files
+     *
+     * @return errors by policy file path
+     */
+    public Map<String, Throwable> getLoadErrors() {
+        return Collections.unmodifiableMap(loadErrors);
+    }
+
+    /**
+     * Sets the maximum number of threads that policies are loaded with. One loads them on the
+     * calling thread. The default is the number of processors, or the value of the
+     * "org.wso2.balana.PolicyLoaderThreads" JAVA property.
+     *
+     * @param loaderThreads number of threads
+     */
+    public void setLoaderThreads(int loaderThreads) {
+        this.loaderThreads = Math.max(1, loaderThreads);
+        loader = null;
+    }
+
+    /**
+     * Sets the location of the binary policy snapshot. If it is set, policies are read from the
+     * snapshot when it matches the current policy files, and the snapshot is written after the
+     * policies have been loaded from XML. This must be called before the module is initialized.
+     *
+     * @param snapshotLocation path of the snapshot file, or null to not use a snapshot
+     */
+    public void setSnapshotLocation(String snapshotLocation) {
+        this.snapshotLocation = snapshotLocation;
+    }
 
-        for(String policyLocation : policyLocations){
+    /**
+     * Sets whether only the target of each policy is built when it is loaded. The rest of the
+     * policy is then built from its file, or from the snapshot, the first time its target
+     * matches a request. The default is the value of the "org.wso2.balana.PolicyLazyLoading"
+     * JAVA property. This must be called before the module is initialized.
+     *
+     * @param lazyLoading true to load policies lazily
+     */
+    public void setLazyLoading(boolean lazyLoading) {
+        this.lazyLoading = lazyLoading;
+        loader = null;
+    }
+
+    /**
+     * Sets how long the body of a lazily loaded policy is kept after it was last used. Idle
+     * bodies are dropped while policies are being found, at most once per timeout, and are
+     * built again when they are next needed.
+     *
+     * @param bodyIdleTimeout timeout in milliseconds, or 0 to keep bodies once they are built
+     */
+    public void setBodyIdleTimeout(long bodyIdleTimeout) {
+        this.bodyIdleTimeout = bodyIdleTimeout;
+    }
+
+    /**
+     * Drops the bodies of lazily loaded policies that have not been used for the body idle
+     * timeout
+     *
+     * @return number of bodies dropped
+     */
+    public int evictIdleBodies() {
+        lastEviction = System.currentTimeMillis();
+        int evicted = 0;
+        for(AbstractPolicy policy : policies.getPolicies()){
+            if(policy instanceof LazyPolicy && ((LazyPolicy) policy).evict(bodyIdleTimeout)){
+                evicted++;
+            }
+        }
+        if(evicted > 0 && log.isDebugEnabled()){
+            log.debug("Dropped " + evicted + " idle policy bodies");
+        }
+        return evicted;
+    }
+
+    /**
+     * Sets whether parts that are the same in several policies, such as target matches,
+     * expressions and attribute values, are shared between them to save memory (see
+     * <code>PolicyInterner</code>). The default is the value of the
+     * "org.wso2.balana.PolicyInterning" JAVA property. This must be called before the module is
+     * initialized.
+     *
+     * @param interning true to share the same parts of policies
+     */
+    public void setInterning(boolean interning) {
+        this.interning = interning;
+    }
+
+    /**
+     * Returns the interner that the parts of the loaded policies are shared with, which tells
+     * how much was shared
+     *
+     * @return the interner, or null if parts of policies are not shared
+     */
+    public PolicyInterner getInterner() {
+        return interner;
+    }
+
+    /**
+     * Sets whether the latest policies are indexed by the keys of their target, so that only
+     * the policies that may match a request are matched against it (see
+     * <code>TargetKeyExtractor</code>). Policies without such keys are indexed by IP address
+     * ranges, paths or regular expressions where possible (see <code>IPRangeIndex</code>,
+     * <code>PathPrefixIndex</code> and <code>RegexpIndex</code>). Targets are only indexed on
+     * the attributes of the request, so the attributes that attribute finder modules find must
+     * be given as unindexed attributes. The default is the value of the
+     * "org.wso2.balana.PolicyTargetIndex" JAVA property. Policies that are already loaded are
+     * moved to a new repository, which requests use once it holds all of them.
+     *
+     * @param targetIndexing true to index the policies
+     * @param unindexedAttributes ids of attributes that must not be indexed, or null
+     */
+    public void setTargetIndexing(boolean targetIndexing, Set<URI> unindexedAttributes) {
+        this.targetIndexing = targetIndexing;
+        this.unindexedAttributes = unindexedAttributes;
+        PolicyRepository repository = newRepository();
+        for(AbstractPolicy policy : policies.getPolicies()){
+            repository.add(policy);
+        }
+        policies = repository;
+    }
+
+    /**
+     * Private helper that returns the loader of the policies, which is created again when the
+     * settings it uses change
+     *
+     * @return the loader
+     */
+    private PolicyLoader getLoader() {
+        if(loader == null){
+            loader = new PolicyLoader(finder, loaderThreads, lazyLoading);
+            loader.setInterner(interner);
+        }
+        return loader;
+    }
+
+    /**
+     * Private helper that creates the repository of the policies, which indexes them if target
+     * indexing is on
+     *
+     * @return an empty repository
+     */
+    private PolicyRepository newRepository() {
+        return new PolicyRepository(targetIndexing ?
+                new TargetKeyExtractor(unindexedAttributes) : null);
+    }
+
+    /**
+     * Private helper that logs how much the interner shared, and frees what it keeps now that
+     * the policies are loaded
+     */
+    private void logInterning() {
+        if(interner == null){
+            return;
+        }
+        interner.clear();
+        if(log.isInfoEnabled()){
+            log.info("Shared " + interner.getInstanceCount() + " policy parts " +
+                    interner.getHitCount() + " times, saving about " +
+                    interner.getEstimatedBytesSaved() / 1024 + " KB");
+        }
+    }
+
+    /**
+     * Private helper that reads the policy directory from the JAVA property
+     *
+     * @return policy locations, or null if the property is not set
+     */
+    private static Set<String> defaultPolicyLocations() {
+        if(System.getProperty(POLICY_DIR_PROPERTY) == null){
+            return null;
+        }
+        Set<String> policyLocations = new HashSet<String>();
+        policyLocations.add(System.getProperty(POLICY_DIR_PROPERTY));
+        return policyLocations;
+    }
+
+    /**
+     * Private helper that reads the number of loader threads from the JAVA property, falling
+     * back to the number of processors
+     *
+     * @return number of loader threads
+     */
+    private static int defaultLoaderThreads() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        String value = System.getProperty(LOADER_THREADS_PROPERTY);
+        if(value == null){
+            return processors;
+        }
+        try {
+            return Math.max(1, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException e) {
+            log.warn("Invalid value for " + LOADER_THREADS_PROPERTY + " : " + value);
+            return processors;
+        }
+    }
+
+    /**
+     * Private helper that lists the policy files in the policy locations, in a stable order
+     *
+     * @return policy files
+     */
+    private List<File> listPolicyFiles() {
+
+        List<File> files = new ArrayList<File>();
+        if(policyLocations == null){
+            return files;
+        }
+
+        List<String> locations = new ArrayList<String>(policyLocations);
+        Collections.sort(locations);
+
+        for(String policyLocation : locations){
 
             File file = new File(policyLocation);
             if(!file.exists()){
@@ -193,71 +611,45 @@ public class FileBasedPolicyFinderModule extends PolicyFinderModule{
             }
 
             if(file.isDirectory()){
-                String[] files = file.list();
-                for(String policyFile : files){
+                String[] names = file.list();
+                if(names == null){
+                    continue;
+                }
+                Arrays.sort(names);
+                for(String policyFile : names){
                     File fileLocation = new File(policyLocation + File.separator + policyFile);
                     if(!fileLocation.isDirectory()){
-                        loadPolicy(policyLocation + File.separator + policyFile, finder);
+                        files.add(fileLocation);
                     }
                 }
             } else {
-                loadPolicy(policyLocation, finder);    
+                files.add(file);
             }
         }
-    }    
+        return files;
+    }
 
     /**
-     * Private helper that tries to load the given file-based policy, and
-     * returns null if any error occurs.
+     * Private helper that adds the loaded policies in the order of the results, so a policy
+     * with the same id and version as an earlier one replaces it, and records the errors
      *
-     * @param policyFile file path to policy
-     * @param finder policy finder
-     * @return  <code>AbstractPolicy</code>
+     * @param results results of loading the policy documents
+     * @param repository the repository the policies are added to
+     * @param errors the errors by policy file path
      */
-    private AbstractPolicy loadPolicy(String policyFile, PolicyFinder finder) {
+    private static void merge(List<PolicyLoader.Result> results, PolicyRepository repository,
+                              Map<String, Throwable> errors) {
 
-        AbstractPolicy policy = null;
-        InputStream stream = null;
-
-        try {
-            // create the factory
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            factory.setIgnoringComments(true);
-            factory.setNamespaceAware(true);
-            factory.setValidating(false);
-
-            // create a builder based on the factory & try to load the policy
-            DocumentBuilder db = factory.newDocumentBuilder();
-            stream = new FileInputStream(policyFile);
-            Document doc = db.parse(stream);
-
-            // handle the policy, if it's a known type
-            Element root = doc.getDocumentElement();
-            String name = DOMHelper.getLocalName(root);
-
-            if (name.equals("Policy")) {
-                policy = Policy.getInstance(root);
-            } else if (name.equals("PolicySet")) {
-                policy = PolicySet.getInstance(root, finder);
-            }
-        } catch (Exception e) {
-            // just only logs
-            log.error("Fail to load policy : " + policyFile , e);
-        } finally {
-            if(stream != null){
-                try {
-                    stream.close();
-                } catch (IOException e) {
-                    log.error("Error while closing input stream");
-                }
+        for(PolicyLoader.Result result : results){
+            AbstractPolicy policy = result.getPolicy();
+            if(policy != null){
+                repository.add(policy);
+            } else {
+                // just only logs
+                log.error("Fail to load policy : " + result.getPath(), result.getError());
+                errors.put(result.getPath(), result.getError());
             }
         }
-
-        if(policy != null){
-            policies.put(policy.getId(), policy);
-        }
-
-        return policy;
     }
     
 }
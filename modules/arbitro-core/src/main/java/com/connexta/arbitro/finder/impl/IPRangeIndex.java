@@ -0,0 +1,693 @@
+/*
+*  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.finder.impl;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.connexta.arbitro.AbstractPolicy;
+import com.connexta.arbitro.AbstractTarget;
+import com.connexta.arbitro.Policy;
+import com.connexta.arbitro.Rule;
+import com.connexta.arbitro.TargetMatch;
+import com.connexta.arbitro.attr.AttributeValue;
+import com.connexta.arbitro.attr.IPAddressAttribute;
+import com.connexta.arbitro.attr.xacml3.AttributeDesignator;
+import com.connexta.arbitro.cond.Apply;
+import com.connexta.arbitro.cond.BagFunction;
+import com.connexta.arbitro.cond.Condition;
+import com.connexta.arbitro.cond.EqualFunction;
+import com.connexta.arbitro.cond.FunctionBase;
+import com.connexta.arbitro.cond.IPInRangeFunction;
+import com.connexta.arbitro.cond.LogicalFunction;
+import com.connexta.arbitro.ctx.AbstractRequestCtx;
+import com.connexta.arbitro.ctx.Attribute;
+import com.connexta.arbitro.xacml3.AllOfSelection;
+import com.connexta.arbitro.xacml3.AnyOfSelection;
+import com.connexta.arbitro.xacml3.Attributes;
+import com.connexta.arbitro.xacml3.Target;
+
+/**
+ * Indexes policies by the IP addresses that a request must have for them to apply, in a
+ * path-compressed binary trie of address bits for IPv4 and one for IPv6 per attribute. A range
+ * is stored as the few prefixes that cover it, and there are only nodes for those prefixes and
+ * for the bits where they part, so the policies of a request address are found by walking its
+ * bits from the root, which takes time in the length of the address only.
+ * <p>
+ * Two kinds of policies are indexed:
+ * </p>
+ * <ul>
+ * <li>policies with an <code>AnyOf</code> in their target of which every <code>AllOf</code>
+ * compares an address with an attribute using <code>ipAddress-equal</code>, which only apply if
+ * the request has one of those addresses, and</li>
+ * <li>policies of which every rule has a condition that starts with <code>ip-in-range</code> on
+ * the single value of the same attribute, which are not applicable if the request has a single
+ * value of that attribute outside all the ranges. As they may be indeterminate otherwise, they
+ * are candidates for requests without exactly one value of the attribute, and the targets of
+ * the policy and the rules must not be able to be indeterminate.</li>
+ * </ul>
+ * <p>
+ * Designators must not have an issuer, and must not be for an unindexed attribute, such as one
+ * that attribute finder modules find. Lazily loaded policies are only indexed by their target.
+ * </p>
+ * <p>
+ * Readers never block. Changes must not be made concurrently, and the addresses of a node are
+ * replaced rather than changed, so a change costs time in the number of prefixes of the
+ * policy times the address length. Nodes that no longer have addresses are removed, and so
+ * are the tries of an attribute once no policy is indexed by it.
+ * </p>
+ */
+public class IPRangeIndex extends AttributeIndex<IPRangeIndex.Gate> {
+
+    private static final String IP_ADDRESS_ONE_AND_ONLY = FunctionBase.FUNCTION_NS_2 +
+            "ipAddress" + BagFunction.NAME_BASE_ONE_AND_ONLY;
+
+    private static final String STANDARD_ALGORITHM_PREFIX = "urn:oasis:names:tc:xacml:";
+
+    private static final Gate[] NO_GATES = new Gate[0];
+
+    /**
+     * the tries by attribute, for the attributes that policies are indexed by
+     */
+    private ConcurrentHashMap<String, Tries> tries = new ConcurrentHashMap<String, Tries>();
+
+    /**
+     * Creates an index that may index any attribute
+     */
+    public IPRangeIndex() {
+        this(null);
+    }
+
+    /**
+     * Creates an index
+     *
+     * @param unindexedAttributes ids of attributes that must not be indexed, such as the ones
+     *                            that are found by attribute finder modules, or null
+     */
+    public IPRangeIndex(Set<URI> unindexedAttributes) {
+        super(unindexedAttributes);
+    }
+
+    @Override
+    public Set<URI> getCandidates(AbstractRequestCtx request) {
+        Set<URI> ids = new HashSet<URI>();
+        if (tries.isEmpty()) {
+            return ids;
+        }
+
+        // the addresses of the request by indexed attribute
+        Map<String, List<byte[]>> addresses = new HashMap<String, List<byte[]>>();
+        Set<Attributes> attributesSet = request.getAttributesSet();
+        if (attributesSet != null) {
+            for (Attributes attributes : attributesSet) {
+                String category = attributes.getCategory().toString();
+                for (Attribute attribute : attributes.getAttributes()) {
+                    for (AttributeValue value : attribute.getValues()) {
+                        if (!(value instanceof IPAddressAttribute)) {
+                            continue;
+                        }
+                        String key = getKey(category, attribute.getId(), value.getType());
+                        if (tries.containsKey(key)) {
+                            List<byte[]> list = addresses.get(key);
+                            if (list == null) {
+                                list = new ArrayList<byte[]>();
+                                addresses.put(key, list);
+                            }
+                            list.add(((IPAddressAttribute) value).getAddress().getAddress());
+                        }
+                    }
+                }
+            }
+        }
+
+        for (Map.Entry<String, Tries> entry : tries.entrySet()) {
+            Tries attributeTries = entry.getValue();
+            List<byte[]> values = addresses.get(entry.getKey());
+            if (values == null) {
+                values = Collections.emptyList();
+            }
+            for (byte[] address : values) {
+                attributeTries.collect(address, ids);
+            }
+            if (values.size() != 1) {
+                // ip-in-range is indeterminate without a single value
+                addIds(attributeTries.conditionsV4, ids);
+                addIds(attributeTries.conditionsV6, ids);
+            } else if (values.get(0).length == 4) {
+                // addresses and ranges of different versions are compared as numbers
+                addIds(attributeTries.conditionsV6, ids);
+            } else {
+                addIds(attributeTries.conditionsV4, ids);
+            }
+        }
+        return ids;
+    }
+
+    @Override
+    Gate add(AbstractPolicy policy) {
+        Gate gate = getTargetGate(policy);
+        if (gate == null) {
+            gate = getConditionGate(policy);
+        }
+        if (gate == null) {
+            return null;
+        }
+
+        Tries attributeTries = tries.get(gate.attribute);
+        if (attributeTries == null) {
+            attributeTries = new Tries();
+        }
+        for (byte[][] range : gate.ranges) {
+            Node root = range[0].length == 4 ? attributeTries.rootV4 : attributeTries.rootV6;
+            cover(root, new byte[range[0].length], 0, range[0], range[1], true, true, gate);
+        }
+        if (gate.condition) {
+            for (byte[][] range : gate.ranges) {
+                if (range[0].length == 4) {
+                    attributeTries.conditionsV4.add(gate);
+                } else {
+                    attributeTries.conditionsV6.add(gate);
+                }
+            }
+        }
+        tries.put(gate.attribute, attributeTries);
+        return gate;
+    }
+
+    @Override
+    void remove(Gate gate) {
+        for (Node node : gate.nodes) {
+            node.remove(gate);
+            prune(node);
+        }
+        gate.nodes.clear();
+        Tries attributeTries = tries.get(gate.attribute);
+        if (attributeTries != null) {
+            attributeTries.conditionsV4.remove(gate);
+            attributeTries.conditionsV6.remove(gate);
+            if (attributeTries.isEmpty()) {
+                tries.remove(gate.attribute);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of nodes of the tries, which tells how much memory the index takes
+     *
+     * @return the number of nodes, including the roots
+     */
+    public int getNodeCount() {
+        int count = 0;
+        for (Tries attributeTries : tries.values()) {
+            count += attributeTries.rootV4.count() + attributeTries.rootV6.count();
+        }
+        return count;
+    }
+
+    /**
+     * Private helper that adds a gate to the prefixes that cover a range. A prefix covers a
+     * part of the range if all addresses that start with it are in the range, and the walk
+     * only goes on along the bounds of the range.
+     *
+     * @param prefix the bits so far, which are followed by zeros
+     * @param onLow whether the bits so far are the ones of the low bound
+     * @param onHigh whether the bits so far are the ones of the high bound
+     */
+    private static void cover(Node root, byte[] prefix, int depth, byte[] low, byte[] high,
+                              boolean onLow, boolean onHigh, Gate gate) {
+        if ((!onLow || hasBits(low, depth, 0)) && (!onHigh || hasBits(high, depth, 1))) {
+            insert(root, prefix, depth, gate);
+            return;
+        }
+        int lowBit = getBit(low, depth);
+        int highBit = getBit(high, depth);
+        for (int bit = 0; bit <= 1; bit++) {
+            if ((onLow && bit < lowBit) || (onHigh && bit > highBit)) {
+                continue;
+            }
+            setBit(prefix, depth, bit);
+            cover(root, prefix, depth + 1, low, high, onLow && bit == lowBit,
+                    onHigh && bit == highBit, gate);
+            setBit(prefix, depth, 0);
+        }
+    }
+
+    /**
+     * Private helper that adds a gate to the node of a prefix. The node is created if there is
+     * none, and so is the node of the bits it has in common with a sibling, where they part.
+     * A node is fully built before it is linked, so readers see the trie before or after.
+     */
+    private static void insert(Node root, byte[] prefix, int length, Gate gate) {
+        Node node = root;
+        while (node.length < length) {
+            int bit = getBit(prefix, node.length);
+            Node child = node.getChild(bit);
+            if (child == null) {
+                child = new Node(prefix, length);
+                node.setChild(bit, child);
+            } else {
+                int common = node.length;
+                int end = Math.min(length, child.length);
+                while (common < end && getBit(prefix, common) == getBit(child.prefix, common)) {
+                    common++;
+                }
+                if (common < child.length) {
+                    Node split = new Node(prefix, common);
+                    split.setChild(getBit(child.prefix, common), child);
+                    node.setChild(bit, split);
+                    child = split;
+                }
+            }
+            node = child;
+        }
+        node.add(gate);
+        gate.nodes.add(node);
+    }
+
+    /**
+     * Private helper that removes a node without gates, unless it is a root or still parts two
+     * prefixes. A node with a single child is replaced by it, and a parent that is left with
+     * a single child and no gates is too.
+     */
+    private static void prune(Node node) {
+        while (node.parent != null && node.gates.length == 0) {
+            Node parent = node.parent;
+            Node zero = node.zero;
+            Node one = node.one;
+            if (zero != null && one != null) {
+                return;
+            }
+            Node child = zero != null ? zero : one;
+            parent.setChild(getBit(node.prefix, parent.length), child);
+            if (child != null) {
+                return;
+            }
+            node = parent;
+        }
+    }
+
+    private static int getBit(byte[] address, int index) {
+        return (address[index >> 3] >> (7 - (index & 7))) & 1;
+    }
+
+    private static void setBit(byte[] address, int index, int bit) {
+        if (bit == 0) {
+            address[index >> 3] &= ~(0x80 >> (index & 7));
+        } else {
+            address[index >> 3] |= 0x80 >> (index & 7);
+        }
+    }
+
+    /**
+     * Private helper that returns whether all bits of an address from the given one on are the
+     * given bit
+     */
+    private static boolean hasBits(byte[] address, int from, int bit) {
+        for (int i = from; i < address.length * 8; i++) {
+            if (getBit(address, i) != bit) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void addIds(Set<Gate> gates, Set<URI> ids) {
+        for (Gate gate : gates) {
+            ids.add(gate.id);
+        }
+    }
+
+    /**
+     * Private helper that returns the gate of a policy with an <code>AnyOf</code> in its target
+     * that only matches requests with one of its addresses
+     */
+    private Gate getTargetGate(AbstractPolicy policy) {
+        if (!(policy.getTarget() instanceof Target)) {
+            return null;
+        }
+        List<AnyOfSelection> anyOfSelections = ((Target) policy.getTarget()).getAnyOfSelections();
+        if (anyOfSelections == null) {
+            return null;
+        }
+        for (AnyOfSelection anyOf : anyOfSelections) {
+            String attribute = null;
+            List<byte[][]> ranges = new ArrayList<byte[][]>();
+            for (AllOfSelection allOf : anyOf.getAllOfSelections()) {
+                byte[] address = null;
+                if (allOf.getMatches() != null) {
+                    for (TargetMatch match : allOf.getMatches()) {
+                        String key = getAddressKey(match);
+                        if (key != null && (attribute == null || attribute.equals(key))) {
+                            attribute = key;
+                            address = ((IPAddressAttribute) match.getMatchValue()).getAddress()
+                                    .getAddress();
+                            break;
+                        }
+                    }
+                }
+                if (address == null) {
+                    attribute = null;
+                    break;
+                }
+                ranges.add(new byte[][] {address, address});
+            }
+            if (attribute != null) {
+                return new Gate(policy.getId(), attribute, false, ranges);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Private helper that returns the gate of a policy of which every rule has an
+     * <code>ip-in-range</code> condition on the same attribute
+     */
+    private Gate getConditionGate(AbstractPolicy policy) {
+        if (!(policy instanceof Policy) || policy.getCombiningAlg() == null) {
+            return null;
+        }
+        // with other algorithms, a policy of which no rule applies may still make a decision
+        String algorithm = policy.getCombiningAlg().getIdentifier().toString();
+        if (!algorithm.startsWith(STANDARD_ALGORITHM_PREFIX) || algorithm.contains("-unless-")
+                || !isDeterminate(policy.getTarget())) {
+            return null;
+        }
+
+        String attribute = null;
+        List<byte[][]> ranges = new ArrayList<byte[][]>();
+        for (Object child : policy.getChildren()) {
+            if (!(child instanceof Rule)) {
+                return null;
+            }
+            Rule rule = (Rule) child;
+            Condition condition = rule.getCondition();
+            if (condition == null || condition.getFunction() != null
+                    || !isDeterminate(rule.getTarget())) {
+                return null;
+            }
+            Apply range = getRange(condition.getChildren().get(0));
+            if (range == null) {
+                return null;
+            }
+            AttributeDesignator designator = (AttributeDesignator)
+                    ((Apply) range.getChildren().get(0)).getChildren().get(0);
+            String key = getKey(designator.getCategory().toString(), designator.getId(),
+                designator.getType());
+            if (attribute != null && !attribute.equals(key)) {
+                return null;
+            }
+            attribute = key;
+            byte[] low = ((IPAddressAttribute) range.getChildren().get(1)).getAddress()
+                    .getAddress();
+            byte[] high = ((IPAddressAttribute) range.getChildren().get(2)).getAddress()
+                    .getAddress();
+            if (low.length != high.length) {
+                return null;
+            }
+            if (IPInRangeFunction.compareAddresses(low, high) > 0) {
+                ranges.add(new byte[][] {high, low});
+            } else {
+                ranges.add(new byte[][] {low, high});
+            }
+        }
+        return attribute == null ? null : new Gate(policy.getId(), attribute, true, ranges);
+    }
+
+    /**
+     * Private helper that returns the <code>ip-in-range</code> that a condition starts with,
+     * if it compares the single value of an attribute with constant addresses
+     */
+    private Apply getRange(Object expression) {
+        if (!(expression instanceof Apply)) {
+            return null;
+        }
+        Apply apply = (Apply) expression;
+        String function = apply.getFunction().getIdentifier().toString();
+        List children = apply.getChildren();
+        if (function.equals(LogicalFunction.NAME_AND) && !children.isEmpty()) {
+            // "and" is not applicable as soon as its first argument is false
+            return getRange(children.get(0));
+        }
+        if (!function.equals(IPInRangeFunction.NAME) || children.size() != 3
+                || !(children.get(0) instanceof Apply)
+                || !(children.get(1) instanceof IPAddressAttribute)
+                || !(children.get(2) instanceof IPAddressAttribute)) {
+            return null;
+        }
+        Apply oneAndOnly = (Apply) children.get(0);
+        if (!oneAndOnly.getFunction().getIdentifier().toString().equals(IP_ADDRESS_ONE_AND_ONLY)
+                || oneAndOnly.getChildren().size() != 1
+                || !isAddressDesignator(oneAndOnly.getChildren().get(0))) {
+            return null;
+        }
+        return apply;
+    }
+
+    /**
+     * Private helper that returns the attribute of a match that compares an address with an
+     * attribute that need not be present
+     */
+    private String getAddressKey(TargetMatch match) {
+        if (!match.getMatchFunction().getIdentifier().toString()
+                .equals(EqualFunction.NAME_IPADDRESS_EQUAL)
+                || !(match.getMatchValue() instanceof IPAddressAttribute)
+                || !isAddressDesignator(match.getMatchEvaluatable())) {
+            return null;
+        }
+        AttributeDesignator designator = (AttributeDesignator) match.getMatchEvaluatable();
+        if (designator.mustBePresent()) {
+            return null;
+        }
+        return getKey(designator.getCategory().toString(), designator.getId(),
+                designator.getType());
+    }
+
+    private boolean isAddressDesignator(Object evaluatable) {
+        if (!(evaluatable instanceof AttributeDesignator)) {
+            return false;
+        }
+        AttributeDesignator designator = (AttributeDesignator) evaluatable;
+        return IPAddressAttribute.identifier.equals(designator.getType().toString())
+                && isIndexable(designator);
+    }
+
+    /**
+     * Private helper that returns whether a target can only match or not match, because it
+     * only compares values with attributes that need not be present using equality functions
+     */
+    private boolean isDeterminate(AbstractTarget target) {
+        if (target == null) {
+            return true;
+        }
+        if (!(target instanceof Target)) {
+            return false;
+        }
+        List<AnyOfSelection> anyOfSelections = ((Target) target).getAnyOfSelections();
+        if (anyOfSelections == null) {
+            return true;
+        }
+        for (AnyOfSelection anyOf : anyOfSelections) {
+            for (AllOfSelection allOf : anyOf.getAllOfSelections()) {
+                if (allOf.getMatches() == null) {
+                    continue;
+                }
+                for (TargetMatch match : allOf.getMatches()) {
+                    String function = match.getMatchFunction().getIdentifier().toString();
+                    if (!TargetKeyExtractor.isEqualityFunction(function)
+                            && !function.equals(EqualFunction.NAME_IPADDRESS_EQUAL)) {
+                        return false;
+                    }
+                    if (!(match.getMatchEvaluatable() instanceof AttributeDesignator)) {
+                        return false;
+                    }
+                    AttributeDesignator designator =
+                            (AttributeDesignator) match.getMatchEvaluatable();
+                    if (designator.mustBePresent()
+                            || unindexedAttributes.contains(designator.getId())) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The entry of a policy, with the attribute and the address ranges it is indexed by, and
+     * the nodes it was added to
+     */
+    static class Gate extends AttributeIndex.Gate {
+
+        private final String attribute;
+
+        /**
+         * whether the ranges are from conditions, rather than addresses from the target
+         */
+        private final boolean condition;
+
+        private final List<byte[][]> ranges;
+
+        private final List<Node> nodes = new ArrayList<Node>();
+
+        Gate(URI id, String attribute, boolean condition, List<byte[][]> ranges) {
+            super(id);
+            this.attribute = attribute;
+            this.condition = condition;
+            this.ranges = ranges;
+        }
+    }
+
+    /**
+     * The tries of an attribute, and the gates of policies with conditions on it by the
+     * version of their ranges
+     */
+    private static class Tries {
+
+        private final Node rootV4 = new Node(new byte[4], 0);
+
+        private final Node rootV6 = new Node(new byte[16], 0);
+
+        private final Set<Gate> conditionsV4 =
+                Collections.newSetFromMap(new ConcurrentHashMap<Gate, Boolean>());
+
+        private final Set<Gate> conditionsV6 =
+                Collections.newSetFromMap(new ConcurrentHashMap<Gate, Boolean>());
+
+        /**
+         * Adds the ids of the gates of every prefix of an address
+         */
+        void collect(byte[] address, Set<URI> ids) {
+            Node node = address.length == 4 ? rootV4 : rootV6;
+            int bits = address.length * 8;
+            int from = 0;
+            while (node != null && node.isPrefixOf(address, from)) {
+                for (Gate gate : node.gates) {
+                    ids.add(gate.id);
+                }
+                if (node.length == bits) {
+                    break;
+                }
+                from = node.length;
+                node = node.getChild(getBit(address, from));
+            }
+        }
+
+        boolean isEmpty() {
+            return rootV4.isEmpty() && rootV6.isEmpty() && conditionsV4.isEmpty()
+                    && conditionsV6.isEmpty();
+        }
+    }
+
+    /**
+     * A prefix of addresses, with the gates of the ranges that contain all its addresses. The
+     * children of a node are the longer prefixes that follow it with a zero and a one, which
+     * may skip the bits that no other prefix parts at.
+     */
+    private static class Node {
+
+        /**
+         * the bits of the prefix, which are followed by zeros
+         */
+        private final byte[] prefix;
+
+        private final int length;
+
+        /**
+         * the node this one is a child of, which only changes are made with
+         */
+        private Node parent;
+
+        private volatile Node zero;
+
+        private volatile Node one;
+
+        private volatile Gate[] gates = NO_GATES;
+
+        Node(byte[] bits, int length) {
+            this.prefix = new byte[bits.length];
+            this.length = length;
+            System.arraycopy(bits, 0, prefix, 0, length >> 3);
+            if ((length & 7) != 0) {
+                prefix[length >> 3] = (byte) (bits[length >> 3] & (0xff00 >> (length & 7)));
+            }
+        }
+
+        Node getChild(int bit) {
+            return bit == 0 ? zero : one;
+        }
+
+        void setChild(int bit, Node child) {
+            if (child != null) {
+                child.parent = this;
+            }
+            if (bit == 0) {
+                zero = child;
+            } else {
+                one = child;
+            }
+        }
+
+        /**
+         * Returns whether an address starts with the prefix, of which the bits before the
+         * given one are known to match
+         */
+        boolean isPrefixOf(byte[] address, int from) {
+            for (int i = from; i < length; i++) {
+                if (getBit(address, i) != getBit(prefix, i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean isEmpty() {
+            return zero == null && one == null && gates.length == 0;
+        }
+
+        int count() {
+            Node zero = this.zero;
+            Node one = this.one;
+            return 1 + (zero == null ? 0 : zero.count()) + (one == null ? 0 : one.count());
+        }
+
+        void add(Gate gate) {
+            Gate[] added = new Gate[gates.length + 1];
+            System.arraycopy(gates, 0, added, 0, gates.length);
+            added[gates.length] = gate;
+            gates = added;
+        }
+
+        void remove(Gate gate) {
+            List<Gate> remaining = new ArrayList<Gate>(gates.length);
+            for (Gate current : gates) {
+                if (current != gate) {
+                    remaining.add(current);
+                }
+            }
+            gates = remaining.toArray(new Gate[remaining.size()]);
+        }
+    }
+}
@@ -0,0 +1,737 @@
+/*
+*  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.finder.impl;
+
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import com.connexta.arbitro.AbstractPolicy;
+import com.connexta.arbitro.MatchResult;
+import com.connexta.arbitro.ParsingException;
+import com.connexta.arbitro.PolicyMetaData;
+import com.connexta.arbitro.PolicyReference;
+import com.connexta.arbitro.PolicySet;
+import com.connexta.arbitro.VersionConstraints;
+import com.connexta.arbitro.combine.PolicyCombiningAlgorithm;
+import com.connexta.arbitro.combine.xacml2.DenyOverridesPolicyAlg;
+import com.connexta.arbitro.ctx.EvaluationCtx;
+import com.connexta.arbitro.ctx.Status;
+import com.connexta.arbitro.finder.PolicyFinder;
+import com.connexta.arbitro.finder.PolicyFinderModule;
+import com.connexta.arbitro.finder.PolicyFinderResult;
+import org.w3c.dom.Element;
+
+/**
+ * This is a policy repository in a relational database. Every version of a policy is stored
+ * in the <code>ARBITRO_POLICY</code> table, together with the index keys of its target (see
+ * <code>TargetKeyExtractor</code>) in the <code>ARBITRO_POLICY_TARGET</code> table. The tables
+ * can be created with <code>createTables</code>, and policies are stored and removed with
+ * <code>addPolicy</code> and <code>removePolicy</code>.
+ * <p>
+ * To find the policies of a request, only the policies that share a key with the attributes of
+ * the request, and the ones that could not be indexed, are queried and matched. The keys are
+ * looked up by attribute, with at most <code>MAX_VALUES_PER_QUERY</code> values per query, and
+ * all active policies are matched if the keys can not be looked up. Values that are too long
+ * for their column are stored and looked up by their hash. Only the latest version of each
+ * policy is used for requests, while references may select any version with their version
+ * constraints.
+ * </p>
+ * <p>
+ * Policies that are stored and removed through the same module are written one at a time, so
+ * that only one version of an id is used for requests. Other processes that write to the same
+ * tables must be kept from doing so at the same time.
+ * </p>
+ * <p>
+ * Parsed policies are kept in a bounded cache by id and version. The content of a version is
+ * expected not to change; if it does, <code>invalidateCache</code> must be called.
+ * </p>
+ */
+public class JDBCPolicyFinderModule extends PolicyFinderModule {
+
+    /**
+     * the table of the policies
+     */
+    public static final String POLICY_TABLE = "ARBITRO_POLICY";
+
+    /**
+     * the table of the index keys of the policies
+     */
+    public static final String TARGET_TABLE = "ARBITRO_POLICY_TARGET";
+
+    /**
+     * the number of parsed policies that are kept, if no other size is given
+     */
+    public static final int DEFAULT_CACHE_SIZE = 1000;
+
+    /**
+     * the number of values of an attribute that are looked up in a single query
+     */
+    public static final int MAX_VALUES_PER_QUERY = 100;
+
+    /**
+     * the length of the longest value that is stored as it is, in bytes of its UTF-8 encoding
+     */
+    private static final int MAX_VALUE_LENGTH = 1024;
+
+    private static final String HASH_PREFIX = "#sha256:";
+
+    private static final int TYPE_POLICY = 0;
+
+    private static final int TYPE_POLICY_SET = 1;
+
+    private static final String[] TABLES = {
+            "CREATE TABLE " + POLICY_TABLE + " (POLICY_ID VARCHAR(255) NOT NULL, " +
+                    "POLICY_VERSION VARCHAR(64) NOT NULL, POLICY_TYPE SMALLINT NOT NULL, " +
+                    "ACTIVE SMALLINT NOT NULL, INDEXED SMALLINT NOT NULL, " +
+                    "CONTENT CLOB NOT NULL, PRIMARY KEY (POLICY_ID, POLICY_VERSION))",
+            "CREATE INDEX " + POLICY_TABLE + "_ACTIVE ON " + POLICY_TABLE +
+                    " (ACTIVE, INDEXED)",
+            "CREATE TABLE " + TARGET_TABLE + " (POLICY_ID VARCHAR(255) NOT NULL, " +
+                    "POLICY_VERSION VARCHAR(64) NOT NULL, CATEGORY VARCHAR(255) NOT NULL, " +
+                    "ATTRIBUTE_ID VARCHAR(255) NOT NULL, ATTRIBUTE_VALUE VARCHAR(" +
+                    MAX_VALUE_LENGTH + ") NOT NULL)",
+            "CREATE INDEX " + TARGET_TABLE + "_KEY ON " + TARGET_TABLE +
+                    " (ATTRIBUTE_VALUE, ATTRIBUTE_ID, CATEGORY)",
+            "CREATE INDEX " + TARGET_TABLE + "_POLICY ON " + TARGET_TABLE +
+                    " (POLICY_ID, POLICY_VERSION)"
+    };
+
+    private static final String SELECT_UNINDEXED = "SELECT POLICY_ID, POLICY_VERSION FROM " +
+            POLICY_TABLE + " WHERE ACTIVE = 1 AND INDEXED = 0";
+
+    private static final String SELECT_ACTIVE = "SELECT POLICY_ID, POLICY_VERSION FROM " +
+            POLICY_TABLE + " WHERE ACTIVE = 1";
+
+    private static final String SELECT_INDEXED = "SELECT p.POLICY_ID, p.POLICY_VERSION FROM " +
+            POLICY_TABLE + " p, " + TARGET_TABLE + " t WHERE p.POLICY_ID = t.POLICY_ID AND " +
+            "p.POLICY_VERSION = t.POLICY_VERSION AND p.ACTIVE = 1 AND t.CATEGORY = ? AND " +
+            "t.ATTRIBUTE_ID = ? AND t.ATTRIBUTE_VALUE IN (";
+
+    private static final String SELECT_CONTENT = "SELECT CONTENT FROM " + POLICY_TABLE +
+            " WHERE POLICY_ID = ? AND POLICY_VERSION = ?";
+
+    private static final String SELECT_VERSIONS = "SELECT POLICY_VERSION, POLICY_TYPE, ACTIVE " +
+            "FROM " + POLICY_TABLE + " WHERE POLICY_ID = ?";
+
+    private static final String INSERT_POLICY = "INSERT INTO " + POLICY_TABLE +
+            " (POLICY_ID, POLICY_VERSION, POLICY_TYPE, ACTIVE, INDEXED, CONTENT) " +
+            "VALUES (?, ?, ?, ?, ?, ?)";
+
+    private static final String INSERT_KEY = "INSERT INTO " + TARGET_TABLE +
+            " (POLICY_ID, POLICY_VERSION, CATEGORY, ATTRIBUTE_ID, ATTRIBUTE_VALUE) " +
+            "VALUES (?, ?, ?, ?, ?)";
+
+    private static final String DELETE_POLICY = "DELETE FROM " + POLICY_TABLE +
+            " WHERE POLICY_ID = ? AND POLICY_VERSION = ?";
+
+    private static final String DELETE_KEYS = "DELETE FROM " + TARGET_TABLE +
+            " WHERE POLICY_ID = ? AND POLICY_VERSION = ?";
+
+    private static final String SET_ACTIVE = "UPDATE " + POLICY_TABLE +
+            " SET ACTIVE = ? WHERE POLICY_ID = ? AND POLICY_VERSION = ?";
+
+    private static final String CLEAR_ACTIVE = "UPDATE " + POLICY_TABLE +
+            " SET ACTIVE = 0 WHERE POLICY_ID = ?";
+
+    /**
+     * the logger we'll use for all messages
+     */
+    private static Log log = LogFactory.getLog(JDBCPolicyFinderModule.class);
+
+    private DataSource dataSource;
+
+    private PolicyFinder finder;
+
+    private PolicyCombiningAlgorithm combiningAlg;
+
+    private TargetKeyExtractor extractor;
+
+    private Map<String, AbstractPolicy> cache;
+
+    private final Object writeLock = new Object();
+
+    /**
+     * Creates a module that uses the policies in the given database
+     *
+     * @param dataSource the database
+     */
+    public JDBCPolicyFinderModule(DataSource dataSource) {
+        this(dataSource, DEFAULT_CACHE_SIZE, null);
+    }
+
+    /**
+     * Creates a module that uses the policies in the given database
+     *
+     * @param dataSource the database
+     * @param cacheSize the number of parsed policies that are kept
+     * @param unindexedAttributes ids of attributes that the targets of policies are not indexed
+     *                            on, such as the ones that are found by attribute finder
+     *                            modules, or null
+     */
+    public JDBCPolicyFinderModule(DataSource dataSource, final int cacheSize,
+                                  Set<URI> unindexedAttributes) {
+        this.dataSource = dataSource;
+        this.extractor = new TargetKeyExtractor(unindexedAttributes);
+        this.cache = new LinkedHashMap<String, AbstractPolicy>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, AbstractPolicy> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    @Override
+    public void init(PolicyFinder finder) {
+        this.finder = finder;
+        combiningAlg = new DenyOverridesPolicyAlg();
+    }
+
+    @Override
+    public boolean isIdReferenceSupported() {
+        return true;
+    }
+
+    @Override
+    public boolean isRequestSupported() {
+        return true;
+    }
+
+    @Override
+    public void invalidateCache() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Creates the tables of the policies and their index keys. The statements use standard SQL
+     * types; databases that do not support them need the tables to be created by other means.
+     *
+     * @throws SQLException if the tables can not be created
+     */
+    public void createTables() throws SQLException {
+        Connection connection = dataSource.getConnection();
+        try {
+            Statement statement = connection.createStatement();
+            try {
+                for (String table : TABLES) {
+                    statement.executeUpdate(table);
+                }
+            } finally {
+                statement.close();
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Stores a policy or policy set, replacing any policy with the same id and version. If it is
+     * the latest version of its id, it replaces the earlier versions for requests.
+     *
+     * @param content the XML of the policy
+     * @return the policy
+     * @throws ParsingException if the content is not a valid policy
+     * @throws SQLException if the policy can not be stored
+     */
+    public AbstractPolicy addPolicy(String content) throws ParsingException, SQLException {
+
+        AbstractPolicy policy = build(content);
+        String id = policy.getId().toString();
+        String version = policy.getVersion();
+        Set<TargetKeyExtractor.Key> keys = extractor.getKeys(policy.getTarget());
+
+        synchronized (writeLock) {
+            store(id, version, policy instanceof PolicySet ? TYPE_POLICY_SET : TYPE_POLICY,
+                    content, keys);
+        }
+
+        synchronized (cache) {
+            cache.put(getCacheKey(id, version), policy);
+        }
+        return policy;
+    }
+
+    /**
+     * Private helper that stores a version of a policy and its keys in a single transaction
+     */
+    private void store(String id, String version, int type, String content,
+                       Set<TargetKeyExtractor.Key> keys) throws SQLException {
+
+        Connection connection = dataSource.getConnection();
+        boolean autoCommit = connection.getAutoCommit();
+        try {
+            connection.setAutoCommit(false);
+
+            boolean latest = true;
+            for (String[] row : getVersions(connection, id)) {
+                if (!row[0].equals(version) && VersionConstraints.compare(row[0], version) > 0) {
+                    latest = false;
+                }
+            }
+
+            execute(connection, DELETE_KEYS, id, version);
+            execute(connection, DELETE_POLICY, id, version);
+            if (latest) {
+                execute(connection, CLEAR_ACTIVE, id);
+            }
+
+            PreparedStatement statement = connection.prepareStatement(INSERT_POLICY);
+            try {
+                statement.setString(1, id);
+                statement.setString(2, version);
+                statement.setInt(3, type);
+                statement.setInt(4, latest ? 1 : 0);
+                statement.setInt(5, keys == null ? 0 : 1);
+                statement.setString(6, content);
+                statement.executeUpdate();
+            } finally {
+                statement.close();
+            }
+
+            if (keys != null) {
+                statement = connection.prepareStatement(INSERT_KEY);
+                try {
+                    for (TargetKeyExtractor.Key key : keys) {
+                        statement.setString(1, id);
+                        statement.setString(2, version);
+                        statement.setString(3, key.getCategory());
+                        statement.setString(4, key.getAttributeId());
+                        statement.setString(5, getStoredValue(key.getValue()));
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                } finally {
+                    statement.close();
+                }
+            }
+
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            // pooled connections are handed out again as they are returned
+            try {
+                connection.setAutoCommit(autoCommit);
+            } finally {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Removes a version of a policy or policy set. If it was used for requests, the latest
+     * remaining version of its id is used instead.
+     *
+     * @param id the id of the policy
+     * @param version the version of the policy
+     * @return true if the policy was removed, false if there is no such policy
+     * @throws SQLException if the policy can not be removed
+     */
+    public boolean removePolicy(URI id, String version) throws SQLException {
+
+        String policyId = id.toString();
+        synchronized (writeLock) {
+            if (!delete(policyId, version)) {
+                return false;
+            }
+        }
+
+        synchronized (cache) {
+            cache.remove(getCacheKey(policyId, version));
+        }
+        return true;
+    }
+
+    /**
+     * Private helper that deletes a version of a policy in a single transaction, and activates
+     * the latest remaining version if it was active
+     *
+     * @return false if there is no such version
+     */
+    private boolean delete(String policyId, String version) throws SQLException {
+
+        Connection connection = dataSource.getConnection();
+        boolean autoCommit = connection.getAutoCommit();
+        try {
+            connection.setAutoCommit(false);
+
+            boolean found = false;
+            boolean active = false;
+            String latest = null;
+            for (String[] row : getVersions(connection, policyId)) {
+                if (row[0].equals(version)) {
+                    found = true;
+                    active = "1".equals(row[2]);
+                } else if (latest == null || VersionConstraints.compare(row[0], latest) > 0) {
+                    latest = row[0];
+                }
+            }
+            if (!found) {
+                connection.rollback();
+                return false;
+            }
+
+            execute(connection, DELETE_KEYS, policyId, version);
+            execute(connection, DELETE_POLICY, policyId, version);
+            if (active && latest != null) {
+                execute(connection, SET_ACTIVE, 1, policyId, latest);
+            }
+            connection.commit();
+            return true;
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            // pooled connections are handed out again as they are returned
+            try {
+                connection.setAutoCommit(autoCommit);
+            } finally {
+                connection.close();
+            }
+        }
+    }
+
+    @Override
+    public PolicyFinderResult findPolicy(EvaluationCtx context) {
+
+        Map<String, String> candidates;
+        try {
+            candidates = getCandidates(TargetKeyExtractor.getKeys(context.getRequestCtx()));
+        } catch (SQLException e) {
+            log.error("Can not query the policy store", e);
+            return new PolicyFinderResult(getStatus("policy store is not available"));
+        }
+
+        ArrayList<AbstractPolicy> selectedPolicies = new ArrayList<AbstractPolicy>();
+        for (Map.Entry<String, String> candidate : candidates.entrySet()) {
+
+            AbstractPolicy policy = getPolicy(candidate.getKey(), candidate.getValue());
+            if (policy == null) {
+                // the policy may have applied, so the request is not answered without it
+                return new PolicyFinderResult(getStatus("couldn't load policy "
+                        + candidate.getKey()));
+            }
+            MatchResult match = policy.match(context);
+            int result = match.getResult();
+
+            // if target matching was indeterminate, then return the error
+            if (result == MatchResult.INDETERMINATE)
+                return new PolicyFinderResult(match.getStatus());
+
+            if (result == MatchResult.MATCH) {
+                if ((combiningAlg == null) && (selectedPolicies.size() > 0)) {
+                    return new PolicyFinderResult(getStatus("too many applicable "
+                            + "top-level policies"));
+                }
+                selectedPolicies.add(policy);
+            }
+        }
+
+        switch (selectedPolicies.size()) {
+        case 0:
+            if(log.isDebugEnabled()){
+                log.debug("No matching XACML policy found");
+            }
+            return new PolicyFinderResult();
+        case 1:
+            return new PolicyFinderResult((selectedPolicies.get(0)));
+        default:
+            return new PolicyFinderResult(new PolicySet(null, combiningAlg, null, selectedPolicies));
+        }
+    }
+
+    @Override
+    public PolicyFinderResult findPolicy(URI idReference, int type, VersionConstraints constraints,
+                                         PolicyMetaData parentMetaData) {
+
+        String id = idReference.toString();
+        int policyType = type == PolicyReference.POLICY_REFERENCE ? TYPE_POLICY : TYPE_POLICY_SET;
+        String best = null;
+        try {
+            Connection connection = dataSource.getConnection();
+            try {
+                for (String[] row : getVersions(connection, id)) {
+                    if (Integer.parseInt(row[1]) == policyType
+                            && (constraints == null || constraints.meetsConstraint(row[0]))
+                            && (best == null || VersionConstraints.compare(row[0], best) > 0)) {
+                        best = row[0];
+                    }
+                }
+            } finally {
+                connection.close();
+            }
+        } catch (SQLException e) {
+            log.error("Can not query the policy store", e);
+            return new PolicyFinderResult(getStatus("policy store is not available"));
+        }
+
+        AbstractPolicy policy = best == null ? null : getPolicy(id, best);
+        if (policy != null) {
+            return new PolicyFinderResult(policy);
+        }
+        return new PolicyFinderResult(getStatus("couldn't load referenced policy"));
+    }
+
+    /**
+     * Private helper that returns the id and version of the policies that may match a request,
+     * ordered by id
+     *
+     * @param keys the keys of the request, or null if they are not known
+     */
+    private Map<String, String> getCandidates(Set<TargetKeyExtractor.Key> keys)
+            throws SQLException {
+
+        Map<String, String> candidates = new TreeMap<String, String>();
+        List<String> none = Collections.emptyList();
+        Connection connection = dataSource.getConnection();
+        try {
+            if (keys == null) {
+                select(connection, SELECT_ACTIVE, none, candidates);
+                return candidates;
+            }
+            select(connection, SELECT_UNINDEXED, none, candidates);
+            try {
+                for (List<String> parameters : getKeyQueries(keys)) {
+                    StringBuilder query = new StringBuilder(SELECT_INDEXED);
+                    for (int i = 2; i < parameters.size(); i++) {
+                        query.append(i == 2 ? "?" : ", ?");
+                    }
+                    select(connection, query.append(")").toString(), parameters, candidates);
+                }
+            } catch (SQLException e) {
+                log.warn("Can not look up the keys of a request, matching all policies", e);
+                select(connection, SELECT_ACTIVE, none, candidates);
+            }
+        } finally {
+            connection.close();
+        }
+        return candidates;
+    }
+
+    /**
+     * Private helper that groups keys by category and attribute id, and returns the parameters
+     * of the queries that look them up: the category, the attribute id, and at most
+     * <code>MAX_VALUES_PER_QUERY</code> stored values
+     */
+    private static List<List<String>> getKeyQueries(Set<TargetKeyExtractor.Key> keys) {
+
+        Map<String, Map<String, List<String>>> values =
+                new HashMap<String, Map<String, List<String>>>();
+        for (TargetKeyExtractor.Key key : keys) {
+            Map<String, List<String>> attributes = values.get(key.getCategory());
+            if (attributes == null) {
+                attributes = new HashMap<String, List<String>>();
+                values.put(key.getCategory(), attributes);
+            }
+            List<String> attributeValues = attributes.get(key.getAttributeId());
+            if (attributeValues == null) {
+                attributeValues = new ArrayList<String>();
+                attributes.put(key.getAttributeId(), attributeValues);
+            }
+            attributeValues.add(getStoredValue(key.getValue()));
+        }
+
+        List<List<String>> queries = new ArrayList<List<String>>();
+        for (Map.Entry<String, Map<String, List<String>>> category : values.entrySet()) {
+            for (Map.Entry<String, List<String>> attribute : category.getValue().entrySet()) {
+                List<String> attributeValues = attribute.getValue();
+                for (int i = 0; i < attributeValues.size(); i += MAX_VALUES_PER_QUERY) {
+                    List<String> parameters = new ArrayList<String>();
+                    parameters.add(category.getKey());
+                    parameters.add(attribute.getKey());
+                    parameters.addAll(attributeValues.subList(i,
+                            Math.min(attributeValues.size(), i + MAX_VALUES_PER_QUERY)));
+                    queries.add(parameters);
+                }
+            }
+        }
+        return queries;
+    }
+
+    /**
+     * Private helper that adds the id and version of the policies a query selects
+     */
+    private static void select(Connection connection, String query, List<String> parameters,
+                               Map<String, String> candidates) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement(query);
+        try {
+            for (int i = 0; i < parameters.size(); i++) {
+                statement.setString(i + 1, parameters.get(i));
+            }
+            ResultSet results = statement.executeQuery();
+            while (results.next()) {
+                candidates.put(results.getString(1), results.getString(2));
+            }
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Private helper that returns the value that is stored for a key, which is the hash of the
+     * value if it is too long for its column
+     */
+    private static String getStoredValue(String value) {
+        // a char takes at most three bytes in UTF-8, so short values are never too long
+        if (value.length() * 3 <= MAX_VALUE_LENGTH) {
+            return value;
+        }
+        try {
+            byte[] bytes = value.getBytes("UTF-8");
+            if (bytes.length <= MAX_VALUE_LENGTH) {
+                return value;
+            }
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(bytes);
+            return HASH_PREFIX + new BigInteger(1, hash).toString(16);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not supported", e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Private helper that returns a policy from the cache, or loads it from the database
+     *
+     * @return the policy, or null if it is not stored or can not be built
+     */
+    private AbstractPolicy getPolicy(String id, String version) {
+
+        String cacheKey = getCacheKey(id, version);
+        synchronized (cache) {
+            AbstractPolicy policy = cache.get(cacheKey);
+            if (policy != null) {
+                return policy;
+            }
+        }
+
+        String content = null;
+        try {
+            Connection connection = dataSource.getConnection();
+            try {
+                PreparedStatement statement = connection.prepareStatement(SELECT_CONTENT);
+                try {
+                    statement.setString(1, id);
+                    statement.setString(2, version);
+                    ResultSet results = statement.executeQuery();
+                    if (results.next()) {
+                        content = results.getString(1);
+                    }
+                } finally {
+                    statement.close();
+                }
+            } finally {
+                connection.close();
+            }
+        } catch (SQLException e) {
+            log.error("Can not load policy " + id + " version " + version, e);
+            return null;
+        }
+        if (content == null) {
+            return null;
+        }
+
+        try {
+            AbstractPolicy policy = build(content);
+            synchronized (cache) {
+                cache.put(cacheKey, policy);
+            }
+            return policy;
+        } catch (ParsingException e) {
+            // just only logs
+            log.error("Fail to load policy " + id + " version " + version, e);
+            return null;
+        }
+    }
+
+    private AbstractPolicy build(String content) throws ParsingException {
+        Element root;
+        try {
+            root = PolicyLoader.parseContent(content);
+        } catch (Exception e) {
+            throw new ParsingException("Can not parse policy", e);
+        }
+        return PolicyLoader.build(root, finder);
+    }
+
+    /**
+     * Private helper that returns the version, type and active flag of every stored version of
+     * a policy
+     */
+    private static List<String[]> getVersions(Connection connection, String id)
+            throws SQLException {
+        List<String[]> versions = new ArrayList<String[]>();
+        PreparedStatement statement = connection.prepareStatement(SELECT_VERSIONS);
+        try {
+            statement.setString(1, id);
+            ResultSet results = statement.executeQuery();
+            while (results.next()) {
+                versions.add(new String[] {results.getString(1),
+                        String.valueOf(results.getInt(2)), String.valueOf(results.getInt(3))});
+            }
+        } finally {
+            statement.close();
+        }
+        return versions;
+    }
+
+    private static void execute(Connection connection, String sql, Object... parameters)
+            throws SQLException {
+        PreparedStatement statement = connection.prepareStatement(sql);
+        try {
+            for (int i = 0; i < parameters.length; i++) {
+                statement.setObject(i + 1, parameters[i]);
+            }
+            statement.executeUpdate();
+        } finally {
+            statement.close();
+        }
+    }
+
+    private static String getCacheKey(String id, String version) {
+        return id + " " + version;
+    }
+
+    private static Status getStatus(String message) {
+        ArrayList<String> code = new ArrayList<String>();
+        code.add(Status.STATUS_PROCESSING_ERROR);
+        return new Status(code, message);
+    }
+}
@@ -0,0 +1,283 @@
+/*
+*  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.finder.impl;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.connexta.arbitro.AbstractPolicy;
+import com.connexta.arbitro.TargetMatch;
+import com.connexta.arbitro.attr.AnyURIAttribute;
+import com.connexta.arbitro.attr.AttributeValue;
+import com.connexta.arbitro.attr.StringAttribute;
+import com.connexta.arbitro.attr.xacml3.AttributeDesignator;
+import com.connexta.arbitro.cond.EqualFunction;
+import com.connexta.arbitro.cond.MatchFunction;
+import com.connexta.arbitro.cond.xacml3.StringComparingFunction;
+import com.connexta.arbitro.ctx.AbstractRequestCtx;
+import com.connexta.arbitro.ctx.Attribute;
+import com.connexta.arbitro.xacml3.AllOfSelection;
+import com.connexta.arbitro.xacml3.AnyOfSelection;
+import com.connexta.arbitro.xacml3.Attributes;
+import com.connexta.arbitro.xacml3.Target;
+
+/**
+ * Indexes policies by the paths they apply to, such as the slash-delimited ids of hierarchical
+ * resources. A policy is indexed if its target has an <code>AnyOf</code> of which every
+ * <code>AllOf</code> compares an attribute, that need not be present, with a path using
+ * <code>string-equal</code>, with a prefix using <code>string-starts-with</code> or
+ * <code>anyURI-starts-with</code>, or with a regular expression that is anchored at the start
+ * and only has literal text, such as <code>^public/news/.*</code>. Such a policy only applies
+ * if one of those paths or prefixes matches a value of the request.
+ * <p>
+ * The paths and prefixes of every attribute are kept in a <code>PathTrie</code>, so that one
+ * walk along the segments of a value finds every policy of which a path equals the value or a
+ * prefix starts it.
+ * </p>
+ */
+public class PathPrefixIndex extends AttributeIndex<PathPrefixIndex.Gate> {
+
+    /**
+     * the paths and prefixes of the indexed policies by attribute
+     */
+    private Map<String, PathTrie<Gate>> tries = new ConcurrentHashMap<String, PathTrie<Gate>>();
+
+    /**
+     * Creates an index that may index any attribute
+     */
+    public PathPrefixIndex() {
+        this(null);
+    }
+
+    /**
+     * Creates an index
+     *
+     * @param unindexedAttributes ids of attributes that must not be indexed, such as the ones
+     *                            that are found by attribute finder modules, or null
+     */
+    public PathPrefixIndex(Set<URI> unindexedAttributes) {
+        super(unindexedAttributes);
+    }
+
+    @Override
+    public Set<URI> getCandidates(AbstractRequestCtx request) {
+        Set<URI> ids = new HashSet<URI>();
+        Set<Attributes> attributesSet = request.getAttributesSet();
+        if (tries.isEmpty() || attributesSet == null) {
+            return ids;
+        }
+
+        for (Attributes attributes : attributesSet) {
+            String category = attributes.getCategory().toString();
+            for (Attribute attribute : attributes.getAttributes()) {
+                for (AttributeValue value : attribute.getValues()) {
+                    if (!(value instanceof StringAttribute) && !(value instanceof AnyURIAttribute)) {
+                        continue;
+                    }
+                    PathTrie<Gate> trie = tries.get(getKey(category, attribute.getId(),
+                            value.getType()));
+                    if (trie != null) {
+                        for (Gate gate : trie.getMatches(value.encode())) {
+                            ids.add(gate.id);
+                        }
+                    }
+                }
+            }
+        }
+        return ids;
+    }
+
+    @Override
+    Gate add(AbstractPolicy policy) {
+        Gate gate = getGate(policy);
+        if (gate == null) {
+            return null;
+        }
+        for (Entry entry : gate.entries) {
+            PathTrie<Gate> trie = tries.get(entry.attribute);
+            if (trie == null) {
+                trie = new PathTrie<Gate>();
+                tries.put(entry.attribute, trie);
+            }
+            if (entry.prefix) {
+                trie.addPrefix(entry.path, gate);
+            } else {
+                trie.add(entry.path, gate);
+            }
+        }
+        return gate;
+    }
+
+    @Override
+    void remove(Gate gate) {
+        for (Entry entry : gate.entries) {
+            PathTrie<Gate> trie = tries.get(entry.attribute);
+            if (trie == null) {
+                continue;
+            }
+            if (entry.prefix) {
+                trie.removePrefix(entry.path, gate);
+            } else {
+                trie.remove(entry.path, gate);
+            }
+        }
+    }
+
+    /**
+     * Private helper that returns the gate of a policy with an <code>AnyOf</code> in its target
+     * that only matches requests with a value that one of its paths or prefixes matches
+     */
+    private Gate getGate(AbstractPolicy policy) {
+        if (!(policy.getTarget() instanceof Target)) {
+            return null;
+        }
+        List<AnyOfSelection> anyOfSelections = ((Target) policy.getTarget()).getAnyOfSelections();
+        if (anyOfSelections == null) {
+            return null;
+        }
+        for (AnyOfSelection anyOf : anyOfSelections) {
+            Gate gate = new Gate(policy.getId());
+            for (AllOfSelection allOf : anyOf.getAllOfSelections()) {
+                Entry entry = null;
+                if (allOf.getMatches() != null) {
+                    for (TargetMatch match : allOf.getMatches()) {
+                        entry = getEntry(match);
+                        if (entry != null) {
+                            break;
+                        }
+                    }
+                }
+                if (entry == null) {
+                    gate = null;
+                    break;
+                }
+                gate.entries.add(entry);
+            }
+            if (gate != null && !gate.entries.isEmpty()) {
+                return gate;
+            }
+        }
+        return null;
+    }
+
+    private Entry getEntry(TargetMatch match) {
+        if (!(match.getMatchEvaluatable() instanceof AttributeDesignator)) {
+            return null;
+        }
+        AttributeDesignator designator = (AttributeDesignator) match.getMatchEvaluatable();
+        if (designator.mustBePresent() || !isIndexable(designator)) {
+            return null;
+        }
+        String attribute = getKey(designator.getCategory().toString(), designator.getId(),
+                designator.getType());
+
+        String function = match.getMatchFunction().getIdentifier().toString();
+        AttributeValue value = match.getMatchValue();
+        if (function.equals(EqualFunction.NAME_STRING_EQUAL)
+                && value instanceof StringAttribute) {
+            return new Entry(attribute, value.encode(), false);
+        } else if (function.equals(StringComparingFunction.NAME_STRING_START_WITH)
+                && value instanceof StringAttribute
+                || function.equals(StringComparingFunction.NAME_ANY_URI_START_WITH)
+                && value instanceof AnyURIAttribute) {
+            return new Entry(attribute, value.encode(), true);
+        } else if ((function.equals(MatchFunction.NAME_STRING_REGEXP_MATCH)
+                || function.equals(MatchFunction.NAME_REGEXP_STRING_MATCH)
+                || function.equals(MatchFunction.NAME_ANYURI_REGEXP_MATCH))
+                && value instanceof StringAttribute) {
+            return getRegexpEntry(attribute, ((StringAttribute) value).getValue());
+        }
+        return null;
+    }
+
+    /**
+     * Returns the entry of a regular expression that is anchored at the start, has literal
+     * text, and then ends with an anchor, with <code>.*</code>, or with nothing
+     *
+     * @param attribute the attribute the expression is matched with
+     * @param xpr a regular expression in the syntax of XACML
+     * @return the entry, or null if the expression has another form
+     */
+    private static Entry getRegexpEntry(String attribute, String xpr) {
+        if (!xpr.startsWith("^")) {
+            return null;
+        }
+        StringBuilder path = new StringBuilder();
+        int i = 1;
+        while (i < xpr.length()) {
+            char c = xpr.charAt(i);
+            if (c == '\\') {
+                if (i + 1 < xpr.length() && META_CHARACTERS.indexOf(xpr.charAt(i + 1)) != -1) {
+                    path.append(xpr.charAt(i + 1));
+                    i += 2;
+                    continue;
+                }
+                return null;
+            } else if (c == '-' && (i + 1 == xpr.length() || xpr.charAt(i + 1) != '[')) {
+                path.append(c);
+                i++;
+            } else if (META_CHARACTERS.indexOf(c) != -1 && c != '/') {
+                break;
+            } else {
+                path.append(c);
+                i++;
+            }
+        }
+        String rest = xpr.substring(i);
+        if (rest.equals("$")) {
+            return new Entry(attribute, path.toString(), false);
+        } else if (rest.equals("") || rest.equals(".*") || rest.equals(".*$")) {
+            return new Entry(attribute, path.toString(), true);
+        }
+        return null;
+    }
+
+    /**
+     * The entry of a policy, with the paths and prefixes it is indexed by
+     */
+    static class Gate extends AttributeIndex.Gate {
+
+        private final List<Entry> entries = new ArrayList<Entry>();
+
+        Gate(URI id) {
+            super(id);
+        }
+    }
+
+    /**
+     * A path or prefix of a policy, and the attribute it is compared with
+     */
+    private static class Entry extends AttributeIndex.Entry {
+
+        private final String path;
+
+        private final boolean prefix;
+
+        Entry(String attribute, String path, boolean prefix) {
+            super(attribute);
+            this.path = path;
+            this.prefix = prefix;
+        }
+    }
+}
@@ -0,0 +1,356 @@
+/*
+*  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.finder.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A trie of paths, such as the slash-delimited ids of hierarchical resources, with a node for
+ * every segment. Values are kept for exact paths and for prefixes of paths, so that one walk
+ * along the segments of a path finds every value of the path and of the prefixes of it.
+ * <p>
+ * A prefix is kept at the node of its segments up to its last separator, in a trie of the
+ * characters after that separator, so that the prefixes that a path starts with are found by
+ * walking the characters of the next segment of the path rather than by comparing every
+ * prefix of the node.
+ * </p>
+ * <p>
+ * The paths that have values are also found below a path, so that resource finder modules can
+ * find the children and descendants of a resource without looking at every resource.
+ * </p>
+ * <p>
+ * Readers never block, and changes are made one at a time.
+ * </p>
+ *
+ * @param <T> the type of the values
+ */
+public class PathTrie<T> {
+
+    private final char separator;
+
+    private final Node<T> root = new Node<T>(null, null);
+
+    /**
+     * Creates a trie of paths with segments separated by slashes
+     */
+    public PathTrie() {
+        this('/');
+    }
+
+    /**
+     * Creates a trie of paths
+     *
+     * @param separator the character that separates the segments of a path
+     */
+    public PathTrie(char separator) {
+        this.separator = separator;
+    }
+
+    /**
+     * Adds a value for a path
+     *
+     * @param path the path
+     * @param value the value
+     */
+    public synchronized void add(String path, T value) {
+        Node<T> node = getNode(path, true);
+        node.values.add(value);
+    }
+
+    /**
+     * Adds a value for every path that starts with the given text
+     *
+     * @param prefix the text, which need not end at a separator
+     * @param value the value
+     */
+    public synchronized void addPrefix(String prefix, T value) {
+        Node<T> node = getPrefixNode(prefix, true);
+        if (node.prefixes == null) {
+            node.prefixes = new PrefixNode<T>(null, separator);
+        }
+        PrefixNode<T> prefixNode = node.prefixes;
+        for (int i = prefix.lastIndexOf(separator) + 1; i < prefix.length(); i++) {
+            PrefixNode<T> next = prefixNode.next.get(prefix.charAt(i));
+            if (next == null) {
+                next = new PrefixNode<T>(prefixNode, prefix.charAt(i));
+                prefixNode.next.put(prefix.charAt(i), next);
+            }
+            prefixNode = next;
+        }
+        prefixNode.values.add(value);
+    }
+
+    /**
+     * Removes a value of a path
+     *
+     * @param path the path
+     * @param value the value
+     * @return true if the path had the value
+     */
+    public synchronized boolean remove(String path, T value) {
+        Node<T> node = getNode(path, false);
+        if (node == null || !node.values.remove(value)) {
+            return false;
+        }
+        prune(node);
+        return true;
+    }
+
+    /**
+     * Removes a value of the paths that start with the given text
+     *
+     * @param prefix the text
+     * @param value the value
+     * @return true if the text had the value
+     */
+    public synchronized boolean removePrefix(String prefix, T value) {
+        Node<T> node = getPrefixNode(prefix, false);
+        PrefixNode<T> prefixNode = node == null ? null : node.prefixes;
+        for (int i = prefix.lastIndexOf(separator) + 1; prefixNode != null
+                && i < prefix.length(); i++) {
+            prefixNode = prefixNode.next.get(prefix.charAt(i));
+        }
+        if (prefixNode == null || !prefixNode.values.remove(value)) {
+            return false;
+        }
+        while (prefixNode.values.isEmpty() && prefixNode.next.isEmpty()) {
+            if (prefixNode.parent == null) {
+                node.prefixes = null;
+                break;
+            }
+            prefixNode.parent.next.remove(prefixNode.character);
+            prefixNode = prefixNode.parent;
+        }
+        prune(node);
+        return true;
+    }
+
+    /**
+     * Returns the values of a path, and of every prefix it starts with
+     *
+     * @param path the path
+     * @return the values
+     */
+    public Set<T> getMatches(String path) {
+        Set<T> matches = new HashSet<T>();
+        Node<T> node = root;
+        int start = 0;
+        while (true) {
+            if (start > path.length()) {
+                // the prefixes of the node go on after a separator, which the path does not
+                matches.addAll(node.values);
+                return matches;
+            }
+            int end = path.indexOf(separator, start);
+            if (end == -1) {
+                end = path.length();
+            }
+            addPrefixMatches(node, path, start, end, matches);
+            node = node.children.get(path.substring(start, end));
+            if (node == null) {
+                return matches;
+            }
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Returns the values of a path
+     *
+     * @param path the path
+     * @return the values
+     */
+    public Set<T> get(String path) {
+        Node<T> node = getNode(path, false);
+        if (node == null) {
+            return Collections.emptySet();
+        }
+        return new HashSet<T>(node.values);
+    }
+
+    /**
+     * Returns the paths with values that are one segment below a path
+     *
+     * @param path the path, or null for the paths with one segment
+     * @return the paths
+     */
+    public List<String> getChildren(String path) {
+        List<String> children = new ArrayList<String>();
+        Node<T> node = path == null ? root : getNode(path, false);
+        if (node != null) {
+            for (Node<T> child : node.children.values()) {
+                if (!child.values.isEmpty()) {
+                    children.add(child.path);
+                }
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Returns the paths with values that are below a path
+     *
+     * @param path the path, or null for all paths
+     * @return the paths
+     */
+    public List<String> getDescendants(String path) {
+        List<String> descendants = new ArrayList<String>();
+        Node<T> node = path == null ? root : getNode(path, false);
+        if (node != null) {
+            addDescendants(node, descendants);
+        }
+        return descendants;
+    }
+
+    private void addDescendants(Node<T> node, List<String> descendants) {
+        for (Node<T> child : node.children.values()) {
+            if (!child.values.isEmpty()) {
+                descendants.add(child.path);
+            }
+            addDescendants(child, descendants);
+        }
+    }
+
+    /**
+     * Private helper that adds the values of the prefixes of a node that the segment of a path
+     * between the given indexes starts with
+     */
+    private static <T> void addPrefixMatches(Node<T> node, String path, int start, int end,
+                                             Set<T> matches) {
+        PrefixNode<T> prefixNode = node.prefixes;
+        for (int i = start; prefixNode != null; i++) {
+            matches.addAll(prefixNode.values);
+            if (i == end) {
+                break;
+            }
+            prefixNode = prefixNode.next.get(path.charAt(i));
+        }
+    }
+
+    /**
+     * Private helper that returns the node of every segment of a path
+     */
+    private Node<T> getNode(String path, boolean create) {
+        return getNode(path, path.length(), create);
+    }
+
+    /**
+     * Private helper that returns the node of the segments of a prefix that end at a separator,
+     * which is where the paths that start with the prefix first differ
+     */
+    private Node<T> getPrefixNode(String prefix, boolean create) {
+        return getNode(prefix, prefix.lastIndexOf(separator), create);
+    }
+
+    /**
+     * Private helper that returns the node of the segments of a path up to the given index,
+     * or the root if the index is negative
+     */
+    private Node<T> getNode(String path, int length, boolean create) {
+        Node<T> node = root;
+        int start = 0;
+        while (length >= 0 && start <= length) {
+            int end = path.indexOf(separator, start);
+            if (end == -1 || end > length) {
+                end = length;
+            }
+            String segment = path.substring(start, end);
+            Node<T> child = node.children.get(segment);
+            if (child == null) {
+                if (!create) {
+                    return null;
+                }
+                child = new Node<T>(node, path.substring(0, end));
+                node.children.put(segment, child);
+            }
+            node = child;
+            start = end + 1;
+        }
+        return node;
+    }
+
+    /**
+     * Private helper that removes a node and the nodes above it that no longer have values
+     */
+    private void prune(Node<T> node) {
+        while (node.parent != null && node.values.isEmpty() && node.prefixes == null
+                && node.children.isEmpty()) {
+            String path = node.path;
+            int index = path.lastIndexOf(separator);
+            node.parent.children.remove(index == -1 ? path : path.substring(index + 1));
+            node = node.parent;
+        }
+    }
+
+    private static <T> Set<T> newConcurrentSet() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<T, Boolean>());
+    }
+
+    /**
+     * A segment of a path, with the values of the path that ends with it
+     */
+    private static class Node<T> {
+
+        private final Node<T> parent;
+
+        private final String path;
+
+        private final Map<String, Node<T>> children = new ConcurrentHashMap<String, Node<T>>();
+
+        private final Set<T> values = newConcurrentSet();
+
+        /**
+         * the prefixes that go on after the separator that ends the path, or null if there are
+         * none
+         */
+        private volatile PrefixNode<T> prefixes;
+
+        Node(Node<T> parent, String path) {
+            this.parent = parent;
+            this.path = path;
+        }
+    }
+
+    /**
+     * A character of the last segment of prefixes, with the values of the prefixes that end
+     * with it
+     */
+    private static class PrefixNode<T> {
+
+        private final PrefixNode<T> parent;
+
+        private final char character;
+
+        private final Map<Character, PrefixNode<T>> next =
+                new ConcurrentHashMap<Character, PrefixNode<T>>();
+
+        private final Set<T> values = newConcurrentSet();
+
+        PrefixNode(PrefixNode<T> parent, char character) {
+            this.parent = parent;
+            this.character = character;
+        }
+    }
+}
@@ -0,0 +1,426 @@
+/*
+ *  WSO2 Inc. licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except
+ *  in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.connexta.arbitro.finder.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import com.connexta.arbitro.AbstractPolicy;
+import com.connexta.arbitro.Balana;
+import com.connexta.arbitro.DOMHelper;
+import com.connexta.arbitro.LazyPolicy;
+import com.connexta.arbitro.ParsingException;
+import com.connexta.arbitro.Policy;
+import com.connexta.arbitro.PolicyInterner;
+import com.connexta.arbitro.PolicySet;
+import com.connexta.arbitro.finder.PolicyFinder;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+
+/**
+ * Loads policy documents on a bounded pool of threads. Every file is parsed and built in to a
+ * policy independently, with a <code>DocumentBuilder</code> per thread, and the results are
+ * returned in the order of the input. So callers that merge the results in that order get the
+ * same policies whatever the number of threads is.
+ * <p>
+ * Errors do not stop loading; they are returned with the result of the file that caused them.
+ * </p>
+ */
+public class PolicyLoader {
+
+    /**
+     * progress is reported when at least this many policies are loaded
+     */
+    private static final int PROGRESS_THRESHOLD = 1000;
+
+    /**
+     * the logger we'll use for all messages
+     */
+    private static Log log = LogFactory.getLog(PolicyLoader.class);
+
+    /**
+     * a namespace aware builder per thread, which does not keep comments
+     */
+    private static final ThreadLocal<DocumentBuilder> documentBuilder =
+            new ThreadLocal<DocumentBuilder>() {
+                @Override
+                protected DocumentBuilder initialValue() {
+                    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+                    factory.setIgnoringComments(true);
+                    factory.setNamespaceAware(true);
+                    factory.setValidating(false);
+                    try {
+                        return factory.newDocumentBuilder();
+                    } catch (ParserConfigurationException e) {
+                        throw new IllegalStateException("Can not create DOM builder", e);
+                    }
+                }
+            };
+
+    private PolicyFinder finder;
+
+    private int threads;
+
+    private boolean lazy;
+
+    private PolicyInterner interner;
+
+    /**
+     * Creates a loader
+     *
+     * @param finder the policy finder that policy sets use to resolve references
+     * @param threads maximum number of threads to load policies with. With one thread, policies
+     * are loaded on the calling thread
+     */
+    public PolicyLoader(PolicyFinder finder, int threads) {
+        this(finder, threads, false);
+    }
+
+    /**
+     * Creates a loader
+     *
+     * @param finder the policy finder that policy sets use to resolve references
+     * @param threads maximum number of threads to load policies with. With one thread, policies
+     * are loaded on the calling thread
+     * @param lazy true to build <code>LazyPolicy</code>s, of which the body is built from the
+     * policy file or document when it is first needed
+     */
+    public PolicyLoader(PolicyFinder finder, int threads, boolean lazy) {
+        this.finder = finder;
+        this.threads = Math.max(1, threads);
+        this.lazy = lazy;
+    }
+
+    /**
+     * Sets the interner that the parts of the loaded policies are shared with
+     *
+     * @param interner the interner, or null to not share parts of policies
+     */
+    public void setInterner(PolicyInterner interner) {
+        this.interner = interner;
+    }
+
+    /**
+     * Parses and builds the given policy files
+     *
+     * @param files policy files
+     * @return a result for every file, in the same order
+     */
+    public List<Result> loadFiles(List<File> files) {
+        List<Task> tasks = new ArrayList<Task>(files.size());
+        for (File file : files) {
+            tasks.add(new Task(file.getPath(), null, new FileSource(file.getPath())));
+        }
+        return run(tasks);
+    }
+
+    /**
+     * Builds policies from the given policy documents
+     *
+     * @param roots root element of every policy document, by policy file path
+     * @return a result for every document, in the same order
+     */
+    public List<Result> loadDocuments(Map<String, Element> roots) {
+        List<Task> tasks = new ArrayList<Task>(roots.size());
+        for (Map.Entry<String, Element> entry : roots.entrySet()) {
+            tasks.add(new Task(entry.getKey(), entry.getValue(),
+                    new DocumentSource(entry.getValue())));
+        }
+        return run(tasks);
+    }
+
+    /**
+     * Parses a policy file with the builder of the current thread
+     *
+     * @param policyFile file path to policy
+     * @return the root element of the policy document
+     * @throws Exception if the file can not be read or parsed
+     */
+    public static Element parse(String policyFile) throws Exception {
+        InputStream stream = new FileInputStream(policyFile);
+        try {
+            return documentBuilder.get().parse(stream).getDocumentElement();
+        } finally {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                log.error("Error while closing input stream");
+            }
+        }
+    }
+
+    /**
+     * Parses a policy document with the builder of the current thread
+     *
+     * @param content the XML of the policy document
+     * @return the root element of the policy document
+     * @throws Exception if the document can not be parsed
+     */
+    public static Element parseContent(String content) throws Exception {
+        return documentBuilder.get().parse(new InputSource(new StringReader(content)))
+                .getDocumentElement();
+    }
+
+    /**
+     * Builds a policy from its DOM
+     *
+     * @param root root element of the policy document
+     * @param finder the policy finder that policy sets use to resolve references
+     * @return the policy
+     * @throws ParsingException if the document is not a valid Policy or PolicySet
+     */
+    public static AbstractPolicy build(Element root, PolicyFinder finder) throws ParsingException {
+        String name = DOMHelper.getLocalName(root);
+        if (name.equals("Policy")) {
+            return Policy.getInstance(root);
+        } else if (name.equals("PolicySet")) {
+            return PolicySet.getInstance(root, finder);
+        }
+        throw new ParsingException("Unknown policy document type : " + name);
+    }
+
+    private List<Result> run(List<Task> tasks) {
+
+        List<Result> results = new ArrayList<Result>(tasks.size());
+        int poolSize = Math.min(threads, tasks.size());
+        Progress progress = new Progress(tasks.size());
+
+        if (poolSize <= 1) {
+            for (Task task : tasks) {
+                results.add(task.call());
+                progress.done();
+            }
+            return results;
+        }
+
+        // make sure the shared factories are set up before the workers use them
+        Balana.getInstance();
+
+        ExecutorService executor = Executors.newFixedThreadPool(poolSize, new LoaderThreadFactory());
+        try {
+            List<Future<Result>> futures = new ArrayList<Future<Result>>(tasks.size());
+            for (Task task : tasks) {
+                task.progress = progress;
+                futures.add(executor.submit(task));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    results.add(new Result(tasks.get(i).path, null, null, e.getCause()));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (int i = results.size(); i < tasks.size(); i++) {
+                results.add(new Result(tasks.get(i).path, null, null, e));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return results;
+    }
+
+    /**
+     * The outcome of loading a single policy document
+     */
+    public static class Result {
+
+        private String path;
+
+        private Element root;
+
+        private AbstractPolicy policy;
+
+        private Throwable error;
+
+        private Result(String path, Element root, AbstractPolicy policy, Throwable error) {
+            this.path = path;
+            this.root = root;
+            this.policy = policy;
+            this.error = error;
+        }
+
+        /**
+         * @return file path of the policy
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return root element of the policy document, or null if it could not be parsed
+         */
+        public Element getRoot() {
+            return root;
+        }
+
+        /**
+         * @return the policy, or null if it could not be loaded
+         */
+        public AbstractPolicy getPolicy() {
+            return policy;
+        }
+
+        /**
+         * @return why the policy could not be loaded, or null if it was loaded
+         */
+        public Throwable getError() {
+            return error;
+        }
+    }
+
+    /**
+     * Loads a single policy document
+     */
+    private class Task implements Callable<Result> {
+
+        private String path;
+
+        private Element root;
+
+        private LazyPolicy.Source source;
+
+        private Progress progress;
+
+        Task(String path, Element root, LazyPolicy.Source source) {
+            this.path = path;
+            this.root = root;
+            this.source = source;
+        }
+
+        public Result call() {
+            Element element = root;
+            PolicyInterner.setCurrent(interner);
+            try {
+                if (element == null) {
+                    element = parse(path);
+                }
+                AbstractPolicy policy;
+                if (lazy) {
+                    policy = LazyPolicy.getInstance(element, source, finder);
+                } else {
+                    policy = build(element, finder);
+                }
+                return new Result(path, element, policy, null);
+            } catch (Throwable e) {
+                return new Result(path, element, null, e);
+            } finally {
+                PolicyInterner.setCurrent(null);
+                if (progress != null) {
+                    progress.done();
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds the body of a lazy policy from its file, so the DOM is not kept in memory
+     */
+    private static class FileSource implements LazyPolicy.Source {
+
+        private String path;
+
+        FileSource(String path) {
+            this.path = path;
+        }
+
+        public Node load() throws Exception {
+            return parse(path);
+        }
+    }
+
+    /**
+     * Builds the body of a lazy policy from a policy document that is kept in memory
+     */
+    private static class DocumentSource implements LazyPolicy.Source {
+
+        private Element root;
+
+        DocumentSource(Element root) {
+            this.root = root;
+        }
+
+        public Node load() {
+            return root;
+        }
+    }
+
+    /**
+     * Logs how far loading has got, for every tenth of a large policy store
+     */
+    private static class Progress {
+
+        private int total;
+
+        private int step;
+
+        private AtomicInteger done = new AtomicInteger();
+
+        Progress(int total) {
+            this.total = total;
+            this.step = total >= PROGRESS_THRESHOLD ? total / 10 : 0;
+        }
+
+        void done() {
+            int count = done.incrementAndGet();
+            if (step > 0 && count % step == 0 && log.isInfoEnabled()) {
+                log.info("Loaded " + count + " of " + total + " policy documents");
+            }
+        }
+    }
+
+    /**
+     * Creates daemon threads, so loading never keeps the JVM alive
+     */
+    private static class LoaderThreadFactory implements ThreadFactory {
+
+        private static final AtomicInteger poolNumber = new AtomicInteger();
+
+        private final int pool = poolNumber.incrementAndGet();
+
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "policy-loader-" + pool + "-" +
+                    threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
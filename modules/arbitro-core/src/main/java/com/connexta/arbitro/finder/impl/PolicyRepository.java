@@ -0,0 +1,615 @@
+/*
+*  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.finder.impl;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.connexta.arbitro.AbstractPolicy;
+import com.connexta.arbitro.LazyPolicy;
+import com.connexta.arbitro.PolicyReference;
+import com.connexta.arbitro.PolicySet;
+import com.connexta.arbitro.VersionConstraints;
+import com.connexta.arbitro.ctx.AbstractRequestCtx;
+
+/**
+ * Keeps every version of each policy id, so that policies can be found by their id and the
+ * version constraints of a reference. The versions of an id are kept in order, so that the
+ * latest version that meets the constraints is found by a range lookup when the earliest and
+ * latest constraints are plain versions, and the result for every combination of constraints
+ * is kept until the versions of the id change.
+ * <p>
+ * Optionally, the latest version of every policy is indexed by the keys of its target (see
+ * <code>TargetKeyExtractor</code>), so that only the policies that share a key with a request,
+ * and the ones that can not be indexed, need to be matched against it. Policies of which the
+ * target can not be indexed by keys may be indexed by the IP addresses they apply to instead
+ * (see <code>IPRangeIndex</code>), by the paths and path prefixes they apply to (see
+ * <code>PathPrefixIndex</code>), or by the regular expressions they match attributes with (see
+ * <code>RegexpIndex</code>).
+ * </p>
+ * <p>
+ * Readers never block. Every change to an id replaces the versions of that id, and updates the
+ * latest version and the index entries of that id only, so a change costs time in the number
+ * of versions of that id and the size of the target of the policy. The index entries of a new
+ * latest version are added before it replaces the old one, and the entries of the old one are
+ * removed after, so that a reader always finds the latest version of a policy that matches.
+ * </p>
+ */
+public class PolicyRepository {
+
+    /**
+     * the number of resolved version constraints kept per id
+     */
+    private static final int MAX_CACHED_CONSTRAINTS = 64;
+
+    private static final Object NO_POLICY = new Object();
+
+    private static final Comparator<String> VERSION_ORDER = new Comparator<String>() {
+        public int compare(String version1, String version2) {
+            return VersionConstraints.compare(version1, version2);
+        }
+    };
+
+    private ConcurrentHashMap<URI, Versions> policies = new ConcurrentHashMap<URI, Versions>();
+
+    private final Object writeLock = new Object();
+
+    private volatile int size;
+
+    private ConcurrentHashMap<URI, AbstractPolicy> latestPolicies =
+            new ConcurrentHashMap<URI, AbstractPolicy>();
+
+    private TargetKeyExtractor extractor;
+
+    /**
+     * ids of the latest policies by the keys of their target
+     */
+    private ConcurrentHashMap<TargetKeyExtractor.Key, Set<URI>> index =
+            new ConcurrentHashMap<TargetKeyExtractor.Key, Set<URI>>();
+
+    /**
+     * ids of the latest policies of which the target can not be indexed
+     */
+    private Set<URI> unindexed = newConcurrentSet();
+
+    /**
+     * the keys that the latest policy of every id is indexed with
+     */
+    private Map<URI, Set<TargetKeyExtractor.Key>> indexedKeys =
+            new ConcurrentHashMap<URI, Set<TargetKeyExtractor.Key>>();
+
+    private volatile IPRangeIndex ipIndex;
+
+    /**
+     * the indexes by IP address, path and regular expression, in the order a policy without
+     * keys is tried with, and which it is indexed by one of at most
+     */
+    private volatile List<AttributeIndex<?>> indexes = Collections.emptyList();
+
+    /**
+     * the gates of the latest policies that are indexed by IP address, path or regular
+     * expression, which are replaced as a whole when the latest version changes
+     */
+    private Map<URI, IndexedGate<?>> gates = new ConcurrentHashMap<URI, IndexedGate<?>>();
+
+    /**
+     * Creates a repository that does not index policies
+     */
+    public PolicyRepository() {
+        this(null);
+    }
+
+    /**
+     * Creates a repository
+     *
+     * @param extractor the extractor of the keys the latest policies are indexed with, or null
+     *                  to not index them
+     */
+    public PolicyRepository(TargetKeyExtractor extractor) {
+        this.extractor = extractor;
+        if (extractor != null) {
+            createIndexes();
+        }
+    }
+
+    /**
+     * Private helper that creates empty indexes by IP address, path and regular expression
+     */
+    private void createIndexes() {
+        Set<URI> unindexedAttributes = extractor.getUnindexedAttributes();
+        ipIndex = new IPRangeIndex(unindexedAttributes);
+        indexes = Arrays.<AttributeIndex<?>>asList(ipIndex,
+                new PathPrefixIndex(unindexedAttributes), new RegexpIndex(unindexedAttributes));
+    }
+
+    /**
+     * Adds a policy, replacing any policy with the same id and version
+     *
+     * @param policy the policy or policy set
+     */
+    public void add(AbstractPolicy policy) {
+        synchronized (writeLock) {
+            Versions old = policies.get(policy.getId());
+            TreeMap<String, AbstractPolicy> versions = old == null
+                    ? new TreeMap<String, AbstractPolicy>(VERSION_ORDER)
+                    : new TreeMap<String, AbstractPolicy>(old.versions);
+            if (versions.put(policy.getVersion(), policy) == null) {
+                size++;
+            }
+            policies.put(policy.getId(), new Versions(versions));
+            setLatest(policy.getId(), versions.lastEntry().getValue());
+        }
+    }
+
+    /**
+     * Removes every version of a policy
+     *
+     * @param id the id of the policy
+     * @return the number of removed versions
+     */
+    public int remove(URI id) {
+        synchronized (writeLock) {
+            Versions old = policies.get(id);
+            if (old == null) {
+                return 0;
+            }
+            replace(id, new TreeMap<String, AbstractPolicy>(VERSION_ORDER),
+                    old.versions.size());
+            return old.versions.size();
+        }
+    }
+
+    /**
+     * Retires a version of a policy, so that it is no longer found
+     *
+     * @param id the id of the policy
+     * @param version the version of the policy
+     * @return true if the version was retired, false if there is no such version
+     */
+    public boolean retire(URI id, String version) {
+        synchronized (writeLock) {
+            Versions old = policies.get(id);
+            if (old == null || !old.versions.containsKey(version)) {
+                return false;
+            }
+            TreeMap<String, AbstractPolicy> versions =
+                    new TreeMap<String, AbstractPolicy>(old.versions);
+            versions.remove(version);
+            replace(id, versions, 1);
+            return true;
+        }
+    }
+
+    /**
+     * Retires all versions of a policy that are earlier than the given version
+     *
+     * @param id the id of the policy
+     * @param version the earliest version to keep
+     * @return the number of retired versions
+     * @throws IllegalArgumentException if the version is a pattern rather than a version
+     */
+    public int retireBefore(URI id, String version) {
+        if (!VersionConstraints.isVersion(version)) {
+            throw new IllegalArgumentException("invalid version : " + version);
+        }
+        synchronized (writeLock) {
+            Versions old = policies.get(id);
+            if (old == null) {
+                return 0;
+            }
+            TreeMap<String, AbstractPolicy> versions =
+                    new TreeMap<String, AbstractPolicy>(old.versions.tailMap(canonical(version), true));
+            int retired = old.versions.size() - versions.size();
+            if (retired > 0) {
+                replace(id, versions, retired);
+            }
+            return retired;
+        }
+    }
+
+    /**
+     * Removes all policies
+     */
+    public void clear() {
+        synchronized (writeLock) {
+            policies.clear();
+            latestPolicies.clear();
+            index.clear();
+            unindexed.clear();
+            indexedKeys.clear();
+            gates.clear();
+            if (extractor != null) {
+                createIndexes();
+            }
+            size = 0;
+        }
+    }
+
+    /**
+     * Returns the latest version of a policy that meets the given constraints
+     *
+     * @param id the id of the policy
+     * @param type <code>PolicyReference.POLICY_REFERENCE</code> or
+     *             <code>PolicyReference.POLICYSET_REFERENCE</code>
+     * @param constraints the version constraints, or null for any version
+     * @return the policy, or null if no version of the given type meets the constraints
+     */
+    public AbstractPolicy get(URI id, int type, VersionConstraints constraints) {
+        Versions versions = policies.get(id);
+        return versions == null ? null : versions.resolve(type, constraints);
+    }
+
+    /**
+     * Returns the latest version of a policy
+     *
+     * @param id the id of the policy
+     * @return the policy, or null if there is no such policy
+     */
+    public AbstractPolicy getLatest(URI id) {
+        return latestPolicies.get(id);
+    }
+
+    /**
+     * Returns the latest version of every policy, which is the one that requests are matched
+     * against
+     *
+     * @return an unmodifiable view of the policies, which reflects later changes
+     */
+    public Collection<AbstractPolicy> getLatestPolicies() {
+        return Collections.unmodifiableCollection(latestPolicies.values());
+    }
+
+    /**
+     * Returns the latest policies that may match a request with the given keys, which are the
+     * ones that share a key with the request, the ones that are indexed by IP address, path or
+     * regular expression, and the ones that are not indexed
+     *
+     * @param keys the keys of the request (see <code>TargetKeyExtractor.getKeys</code>), or
+     *             null if they are not known
+     * @return the policies, or all latest policies if the policies are not indexed or the keys
+     *         are not known
+     */
+    public Collection<AbstractPolicy> getCandidates(Set<TargetKeyExtractor.Key> keys) {
+        if (extractor == null || keys == null) {
+            return getLatestPolicies();
+        }
+        return getCandidates(keys, gates.keySet());
+    }
+
+    /**
+     * Returns the latest policies that may match a request, which are the ones that share a key
+     * with the request, the ones that are indexed by an IP address or range of the request, the
+     * ones with a path or prefix that matches a value of the request, the ones with a regular
+     * expression that matches a value of the request, and the ones that are not indexed
+     *
+     * @param request the request
+     * @return the policies, or all latest policies if the policies are not indexed or the
+     *         attributes of the request are not known
+     */
+    public Collection<AbstractPolicy> getCandidates(AbstractRequestCtx request) {
+        Set<TargetKeyExtractor.Key> keys = TargetKeyExtractor.getKeys(request);
+        if (extractor == null || keys == null) {
+            return getLatestPolicies();
+        }
+        Set<URI> gated = new HashSet<URI>();
+        for (AttributeIndex<?> attributeIndex : indexes) {
+            gated.addAll(attributeIndex.getCandidates(request));
+        }
+        return getCandidates(keys, gated);
+    }
+
+    private Collection<AbstractPolicy> getCandidates(Set<TargetKeyExtractor.Key> keys,
+                                                     Set<URI> gated) {
+        Set<URI> ids = new HashSet<URI>(unindexed);
+        ids.addAll(gated);
+        for (TargetKeyExtractor.Key key : keys) {
+            Set<URI> indexed = index.get(key);
+            if (indexed != null) {
+                ids.addAll(indexed);
+            }
+        }
+        List<AbstractPolicy> candidates = new ArrayList<AbstractPolicy>(ids.size());
+        for (URI id : ids) {
+            AbstractPolicy policy = latestPolicies.get(id);
+            if (policy != null) {
+                candidates.add(policy);
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Returns the index of the latest policies by the IP addresses they apply to
+     *
+     * @return the index, or null if the policies are not indexed
+     */
+    public IPRangeIndex getIPRangeIndex() {
+        return ipIndex;
+    }
+
+    /**
+     * @return whether the latest policies are indexed by the keys of their target
+     */
+    public boolean isIndexed() {
+        return extractor != null;
+    }
+
+    /**
+     * Returns every version of every policy
+     *
+     * @return a list of policies
+     */
+    public List<AbstractPolicy> getPolicies() {
+        List<AbstractPolicy> list = new ArrayList<AbstractPolicy>(size);
+        for (Versions versions : policies.values()) {
+            list.addAll(versions.versions.values());
+        }
+        return list;
+    }
+
+    /**
+     * Returns the versions of a policy
+     *
+     * @param id the id of the policy
+     * @return the versions, from the earliest to the latest
+     */
+    public List<String> getVersions(URI id) {
+        Versions versions = policies.get(id);
+        if (versions == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<String>(versions.versions.keySet());
+    }
+
+    /**
+     * @return the number of policy versions
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns whether a policy is a policy set, without building the body of a lazy policy
+     *
+     * @param policy the policy
+     * @return true if it is a policy set
+     */
+    public static boolean isPolicySet(AbstractPolicy policy) {
+        return policy instanceof PolicySet ||
+                (policy instanceof LazyPolicy && ((LazyPolicy) policy).isPolicySet());
+    }
+
+    private void replace(URI id, TreeMap<String, AbstractPolicy> versions, int removed) {
+        if (versions.isEmpty()) {
+            policies.remove(id);
+            setLatest(id, null);
+        } else {
+            policies.put(id, new Versions(versions));
+            setLatest(id, versions.lastEntry().getValue());
+        }
+        size -= removed;
+    }
+
+    /**
+     * Private helper that sets the latest version of a policy, and updates the index entries of
+     * its id
+     *
+     * @param id the id of the policy
+     * @param policy the latest version, or null if there is none
+     */
+    private void setLatest(URI id, AbstractPolicy policy) {
+        if (extractor == null) {
+            if (policy == null) {
+                latestPolicies.remove(id);
+            } else {
+                latestPolicies.put(id, policy);
+            }
+            return;
+        }
+
+        Set<TargetKeyExtractor.Key> oldKeys = indexedKeys.get(id);
+        IndexedGate<?> oldGate = gates.get(id);
+        boolean wasUnindexed = unindexed.contains(id);
+        boolean isUnindexed = false;
+        Set<TargetKeyExtractor.Key> keys = null;
+        if (policy != null) {
+            keys = extractor.getKeys(policy.getTarget());
+            IndexedGate<?> gate = null;
+            if (keys == null) {
+                keys = Collections.emptySet();
+                for (AttributeIndex<?> attributeIndex : indexes) {
+                    gate = IndexedGate.add(attributeIndex, policy);
+                    if (gate != null) {
+                        break;
+                    }
+                }
+                if (gate == null) {
+                    isUnindexed = true;
+                    unindexed.add(id);
+                }
+            }
+            for (TargetKeyExtractor.Key key : keys) {
+                Set<URI> ids = index.get(key);
+                if (ids == null) {
+                    ids = newConcurrentSet();
+                    index.put(key, ids);
+                }
+                ids.add(id);
+            }
+            latestPolicies.put(id, policy);
+            indexedKeys.put(id, keys);
+            if (gate != null) {
+                gates.put(id, gate);
+            } else {
+                gates.remove(id);
+            }
+        } else {
+            latestPolicies.remove(id);
+            indexedKeys.remove(id);
+            gates.remove(id);
+        }
+
+        if (wasUnindexed && !isUnindexed) {
+            unindexed.remove(id);
+        }
+        if (oldGate != null) {
+            oldGate.remove();
+        }
+        if (oldKeys != null) {
+            for (TargetKeyExtractor.Key key : oldKeys) {
+                if (keys != null && keys.contains(key)) {
+                    continue;
+                }
+                Set<URI> ids = index.get(key);
+                if (ids != null) {
+                    ids.remove(id);
+                    if (ids.isEmpty()) {
+                        index.remove(key);
+                    }
+                }
+            }
+        }
+    }
+
+    private static Set<URI> newConcurrentSet() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<URI, Boolean>());
+    }
+
+    /**
+     * Private helper that strips the leading zeros of the numbers of a version, which gives the
+     * earliest of the versions that stand for the same numbers
+     */
+    private static String canonical(String version) {
+        StringBuilder builder = new StringBuilder(version.length());
+        for (String number : version.split("\\.")) {
+            int start = 0;
+            while (start < number.length() - 1 && number.charAt(start) == '0') {
+                start++;
+            }
+            if (builder.length() > 0) {
+                builder.append('.');
+            }
+            builder.append(number, start, number.length());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * The gate of a policy, and the index by IP address, path or regular expression that it is
+     * removed from
+     */
+    private static class IndexedGate<G extends AttributeIndex.Gate> {
+
+        private final AttributeIndex<G> index;
+
+        private final G gate;
+
+        IndexedGate(AttributeIndex<G> index, G gate) {
+            this.index = index;
+            this.gate = gate;
+        }
+
+        /**
+         * Indexes a policy with an index, if it can be indexed
+         */
+        static <G extends AttributeIndex.Gate> IndexedGate<G> add(AttributeIndex<G> index,
+                                                                 AbstractPolicy policy) {
+            G gate = index.add(policy);
+            return gate == null ? null : new IndexedGate<G>(index, gate);
+        }
+
+        void remove() {
+            index.remove(gate);
+        }
+    }
+
+    /**
+     * The versions of a policy id, which are not changed once they are created, and the
+     * policies that were resolved for them
+     */
+    private static class Versions {
+
+        private final TreeMap<String, AbstractPolicy> versions;
+
+        private final Map<String, Object> resolved = new ConcurrentHashMap<String, Object>();
+
+        Versions(TreeMap<String, AbstractPolicy> versions) {
+            this.versions = versions;
+        }
+
+        AbstractPolicy resolve(int type, VersionConstraints constraints) {
+            if (constraints == null) {
+                constraints = new VersionConstraints(null, null, null);
+            }
+            String key = type + " " + constraints.getVersionConstraint() + " " +
+                    constraints.getEarliestConstraint() + " " + constraints.getLatestConstraint();
+            Object cached = resolved.get(key);
+            if (cached == null) {
+                AbstractPolicy policy = find(type, constraints);
+                cached = policy == null ? NO_POLICY : policy;
+                if (resolved.size() < MAX_CACHED_CONSTRAINTS) {
+                    resolved.put(key, cached);
+                }
+            }
+            return cached == NO_POLICY ? null : (AbstractPolicy) cached;
+        }
+
+        /**
+         * Private helper that looks for the latest version that meets the constraints, among
+         * the versions within plain earliest and latest constraints. A version that only adds
+         * numbers to the latest constraint is later than it, so the range ends before the
+         * latest constraint followed by a zero.
+         */
+        private AbstractPolicy find(int type, VersionConstraints constraints) {
+            String earliest = constraints.getEarliestConstraint();
+            String latest = constraints.getLatestConstraint();
+            NavigableMap<String, AbstractPolicy> range = versions;
+            if (VersionConstraints.isVersion(earliest) && VersionConstraints.isVersion(latest)
+                    && VersionConstraints.compare(canonical(earliest), canonical(latest)) > 0) {
+                return null;
+            }
+            if (VersionConstraints.isVersion(latest)) {
+                range = range.headMap(canonical(latest) + ".0", false);
+            }
+            if (VersionConstraints.isVersion(earliest)) {
+                range = range.tailMap(canonical(earliest), true);
+            }
+
+            boolean policySet = type == PolicyReference.POLICYSET_REFERENCE;
+            for (AbstractPolicy policy : range.descendingMap().values()) {
+                if (isPolicySet(policy) == policySet
+                        && constraints.meetsConstraint(policy.getVersion())) {
+                    return policy;
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ *  WSO2 Inc. licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except
+ *  in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.connexta.arbitro.finder.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * A binary snapshot of a set of parsed policy documents, used to skip XML parsing when a policy
+ * store is loaded again without having changed.
+ * <p>
+ * Policies are built from their DOM (selectors and functions keep parts of it, and none of the
+ * policy classes can be serialized), so the snapshot holds the parsed infoset of every policy
+ * document rather than the policy objects: elements, attributes (including namespace
+ * declarations) and text, with all names and values stored once in a string table and referred
+ * to by index. Reading it back only walks a memory-mapped buffer and creates the DOM nodes; no
+ * XML has to be tokenized, decoded or checked.
+ * </p>
+ * <p>
+ * The snapshot starts with a magic number, the format version and a SHA-256 hash of the policy
+ * files it was made from. A snapshot with another format version or hash is stale and is never
+ * used.
+ * </p>
+ */
+public class PolicySnapshot {
+
+    /**
+     * "ARBS"
+     */
+    private static final int MAGIC = 0x41524253;
+
+    /**
+     * version of the snapshot format, to be changed whenever the format changes
+     */
+    public static final int FORMAT_VERSION = 1;
+
+    /**
+     * node opcodes
+     */
+    private static final int END = 0;
+    private static final int ELEMENT = 1;
+    private static final int TEXT = 2;
+
+    /**
+     * length of the content hash
+     */
+    private static final int HASH_LENGTH = 32;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private PolicySnapshot() {
+    }
+
+    /**
+     * Computes the content hash of the given policy files. The hash covers the path, the length and
+     * the content of every file, in the given order.
+     *
+     * @param files policy files
+     * @return SHA-256 hash
+     * @throws IOException if a file can not be read
+     */
+    public static byte[] hash(List<File> files) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 is not available", e);
+        }
+
+        byte[] buffer = new byte[8192];
+        for (File file : files) {
+            digest.update(file.getPath().getBytes(UTF_8));
+            long length = file.length();
+            for (int i = 0; i < 8; i++) {
+                digest.update((byte) (length >>> (i * 8)));
+            }
+            InputStream stream = new FileInputStream(file);
+            try {
+                int read;
+                while ((read = stream.read(buffer)) > 0) {
+                    digest.update(buffer, 0, read);
+                }
+            } finally {
+                stream.close();
+            }
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Writes a snapshot of the given policy documents. The snapshot is first written to a temporary
+     * file next to the target, which then replaces the target, so that a reader never sees a
+     * partially written snapshot.
+     *
+     * @param snapshot the snapshot file
+     * @param hash content hash of the policy files
+     * @param roots root element of every policy document, by policy file path
+     * @throws IOException if the snapshot can not be written
+     */
+    public static void write(File snapshot, byte[] hash, Map<String, Element> roots)
+            throws IOException {
+
+        Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+        ByteArrayOutputStream body = new ByteArrayOutputStream(64 * 1024);
+        DataOutputStream bodyOut = new DataOutputStream(body);
+
+        writeVarInt(bodyOut, roots.size());
+        for (Map.Entry<String, Element> entry : roots.entrySet()) {
+            writeVarInt(bodyOut, index(strings, entry.getKey()));
+            writeNode(bodyOut, entry.getValue(), strings);
+        }
+        bodyOut.flush();
+
+        File temp = new File(snapshot.getPath() + ".tmp");
+        OutputStream stream = new FileOutputStream(temp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.write(hash);
+            writeVarInt(out, strings.size());
+            for (String string : strings.keySet()) {
+                byte[] bytes = string.getBytes(UTF_8);
+                writeVarInt(out, bytes.length);
+                out.write(bytes);
+            }
+            body.writeTo(out);
+            out.flush();
+        } finally {
+            stream.close();
+        }
+
+        if (snapshot.exists() && !snapshot.delete()) {
+            temp.delete();
+            throw new IOException("Can not replace policy snapshot " + snapshot);
+        }
+        if (!temp.renameTo(snapshot)) {
+            temp.delete();
+            throw new IOException("Can not create policy snapshot " + snapshot);
+        }
+    }
+
+    /**
+     * Reads a snapshot, if it is current. The snapshot file is memory-mapped and every policy
+     * document is rebuilt in to its own DOM <code>Document</code>.
+     *
+     * @param snapshot the snapshot file
+     * @param hash content hash of the current policy files
+     * @return root element of every policy document, by policy file path, in the order they were
+     * written, or null if there is no snapshot or it is stale
+     * @throws IOException if the snapshot can not be read or is corrupt
+     */
+    public static Map<String, Element> read(File snapshot, byte[] hash) throws IOException {
+
+        if (!snapshot.isFile()) {
+            return null;
+        }
+
+        RandomAccessFile file = new RandomAccessFile(snapshot, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.remaining() < 8 + HASH_LENGTH || buffer.getInt() != MAGIC ||
+                    buffer.getInt() != FORMAT_VERSION) {
+                return null;
+            }
+            byte[] storedHash = new byte[HASH_LENGTH];
+            buffer.get(storedHash);
+            if (!Arrays.equals(storedHash, hash)) {
+                return null;
+            }
+
+            String[] strings = new String[readVarInt(buffer)];
+            byte[] bytes = new byte[256];
+            for (int i = 0; i < strings.length; i++) {
+                int length = readVarInt(buffer);
+                if (bytes.length < length) {
+                    bytes = new byte[length];
+                }
+                buffer.get(bytes, 0, length);
+                strings[i] = new String(bytes, 0, length, UTF_8);
+            }
+
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            DocumentBuilder builder = factory.newDocumentBuilder();
+
+            int count = readVarInt(buffer);
+            Map<String, Element> roots = new LinkedHashMap<String, Element>();
+            for (int i = 0; i < count; i++) {
+                String path = string(strings, readVarInt(buffer));
+                Document document = builder.newDocument();
+                // names and values were checked when the policy was parsed
+                document.setStrictErrorChecking(false);
+                if (readVarInt(buffer) != ELEMENT) {
+                    throw new IOException("Corrupt policy snapshot " + snapshot);
+                }
+                Element root = readElement(buffer, document, strings);
+                document.appendChild(root);
+                roots.put(path, root);
+            }
+            return roots;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Corrupt policy snapshot " + snapshot, e);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Corrupt policy snapshot " + snapshot, e);
+        } catch (ParserConfigurationException e) {
+            throw new IOException("Can not create DOM builder", e);
+        } finally {
+            file.close();
+        }
+    }
+
+    private static void writeNode(DataOutputStream out, Node node, Map<String, Integer> strings)
+            throws IOException {
+
+        short type = node.getNodeType();
+        if (type == Node.ELEMENT_NODE) {
+            writeVarInt(out, ELEMENT);
+            writeVarInt(out, index(strings, node.getNamespaceURI()));
+            writeVarInt(out, index(strings, node.getNodeName()));
+
+            NamedNodeMap attributes = node.getAttributes();
+            writeVarInt(out, attributes.getLength());
+            for (int i = 0; i < attributes.getLength(); i++) {
+                Node attribute = attributes.item(i);
+                writeVarInt(out, index(strings, attribute.getNamespaceURI()));
+                writeVarInt(out, index(strings, attribute.getNodeName()));
+                writeVarInt(out, index(strings, attribute.getNodeValue()));
+            }
+
+            for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+                writeNode(out, child, strings);
+            }
+            writeVarInt(out, END);
+        } else if (type == Node.TEXT_NODE || type == Node.CDATA_SECTION_NODE) {
+            writeVarInt(out, TEXT);
+            writeVarInt(out, index(strings, node.getNodeValue()));
+        }
+        // comments and processing instructions are not used by policies
+    }
+
+    private static Element readElement(MappedByteBuffer buffer, Document document,
+                                       String[] strings) throws IOException {
+
+        String namespace = string(strings, readVarInt(buffer));
+        Element element = document.createElementNS(namespace, string(strings, readVarInt(buffer)));
+
+        int attributes = readVarInt(buffer);
+        for (int i = 0; i < attributes; i++) {
+            String attributeNamespace = string(strings, readVarInt(buffer));
+            String name = string(strings, readVarInt(buffer));
+            element.setAttributeNS(attributeNamespace, name, string(strings, readVarInt(buffer)));
+        }
+
+        while (true) {
+            int opcode = readVarInt(buffer);
+            if (opcode == END) {
+                return element;
+            } else if (opcode == ELEMENT) {
+                element.appendChild(readElement(buffer, document, strings));
+            } else if (opcode == TEXT) {
+                element.appendChild(document.createTextNode(string(strings, readVarInt(buffer))));
+            } else {
+                throw new IOException("Corrupt policy snapshot, unknown node type " + opcode);
+            }
+        }
+    }
+
+    /**
+     * Returns the index of a string in the string table, adding it if needed. Index 0 stands for
+     * null.
+     */
+    private static int index(Map<String, Integer> strings, String string) {
+        if (string == null) {
+            return 0;
+        }
+        Integer index = strings.get(string);
+        if (index == null) {
+            index = strings.size() + 1;
+            strings.put(string, index);
+        }
+        return index;
+    }
+
+    private static String string(String[] strings, int index) {
+        return index == 0 ? null : strings[index - 1];
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(MappedByteBuffer buffer) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupt policy snapshot, invalid number");
+    }
+}
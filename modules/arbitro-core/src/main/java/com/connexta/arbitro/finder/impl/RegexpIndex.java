@@ -0,0 +1,569 @@
+/*
+*  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.finder.impl;
+
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import com.connexta.arbitro.AbstractPolicy;
+import com.connexta.arbitro.TargetMatch;
+import com.connexta.arbitro.attr.AnyURIAttribute;
+import com.connexta.arbitro.attr.AttributeValue;
+import com.connexta.arbitro.attr.StringAttribute;
+import com.connexta.arbitro.attr.xacml3.AttributeDesignator;
+import com.connexta.arbitro.cond.MatchFunction;
+import com.connexta.arbitro.ctx.AbstractRequestCtx;
+import com.connexta.arbitro.ctx.Attribute;
+import com.connexta.arbitro.xacml3.AllOfSelection;
+import com.connexta.arbitro.xacml3.AnyOfSelection;
+import com.connexta.arbitro.xacml3.Attributes;
+import com.connexta.arbitro.xacml3.Target;
+
+/**
+ * Indexes policies by the regular expressions in their targets, so that the policies of which
+ * a pattern matches a value of a request are found with one pass over the value. A policy is
+ * indexed if its target has an <code>AnyOf</code> of which every <code>AllOf</code> matches a
+ * pattern with an attribute, that need not be present, using
+ * <code>string-regexp-match</code> or <code>anyURI-regexp-match</code>. Such a policy only
+ * applies if one of those patterns matches a value of the request.
+ * <p>
+ * Each pattern is reduced to the longest literal text that every matching value contains.
+ * The literals of the patterns of an attribute are combined in an Aho-Corasick automaton, so
+ * that one pass over a value finds the patterns of which the literal is in the value, and only
+ * these patterns are matched against the value. Patterns without such a literal are always
+ * matched.
+ * </p>
+ * <p>
+ * Readers never block. The automata are built again after a number of changes, and policies
+ * that were added since are matched one by one until then. Changes must not be made
+ * concurrently.
+ * </p>
+ */
+public class RegexpIndex extends AttributeIndex<RegexpIndex.Gate> {
+
+    /**
+     * the number of changes after which the automata are built again
+     */
+    private static final int REBUILD_THRESHOLD = 64;
+
+    private static final Set<String> REGEXP_FUNCTIONS = new HashSet<String>(Arrays.asList(
+            MatchFunction.NAME_STRING_REGEXP_MATCH, MatchFunction.NAME_REGEXP_STRING_MATCH,
+            MatchFunction.NAME_ANYURI_REGEXP_MATCH));
+
+    /**
+     * the gates of all indexed policies
+     */
+    private Set<Gate> gates = new LinkedHashSet<Gate>();
+
+    private volatile Snapshot snapshot = new Snapshot(
+            Collections.<String, Automaton>emptyMap(),
+            Collections.<String, List<Entry>>emptyMap(), new Entry[0],
+            Collections.<Gate>emptySet());
+
+    /**
+     * Creates an index that may index any attribute
+     */
+    public RegexpIndex() {
+        this(null);
+    }
+
+    /**
+     * Creates an index
+     *
+     * @param unindexedAttributes ids of attributes that must not be indexed, such as the ones
+     *                            that are found by attribute finder modules, or null
+     */
+    public RegexpIndex(Set<URI> unindexedAttributes) {
+        super(unindexedAttributes);
+    }
+
+    @Override
+    public Set<URI> getCandidates(AbstractRequestCtx request) {
+        Snapshot current = snapshot;
+        Set<URI> ids = new HashSet<URI>();
+        Set<Attributes> attributesSet = request.getAttributesSet();
+        if (current.automata.isEmpty() && current.unfiltered.isEmpty()
+                && current.pending.length == 0 || attributesSet == null) {
+            return ids;
+        }
+
+        for (Attributes attributes : attributesSet) {
+            String category = attributes.getCategory().toString();
+            for (Attribute attribute : attributes.getAttributes()) {
+                for (AttributeValue value : attribute.getValues()) {
+                    String text = getText(value);
+                    if (text != null) {
+                        String key = getKey(category, attribute.getId(), value.getType());
+                        collect(current, key, text, ids);
+                    }
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Private helper that adds the ids of the policies with a pattern that matches a value
+     */
+    private static void collect(Snapshot current, String key, String text, Set<URI> ids) {
+        Automaton automaton = current.automata.get(key);
+        if (automaton != null) {
+            for (Entry entry : automaton.search(text)) {
+                entry.verify(text, current, ids);
+            }
+        }
+        List<Entry> unfiltered = current.unfiltered.get(key);
+        if (unfiltered != null) {
+            for (Entry entry : unfiltered) {
+                entry.verify(text, current, ids);
+            }
+        }
+        for (Entry entry : current.pending) {
+            if (entry.attribute.equals(key)) {
+                entry.verify(text, current, ids);
+            }
+        }
+    }
+
+    @Override
+    Gate add(AbstractPolicy policy) {
+        Gate gate = getGate(policy);
+        if (gate == null) {
+            return null;
+        }
+        gates.add(gate);
+        Snapshot current = snapshot;
+        if (current.pending.length + gate.entries.size() > REBUILD_THRESHOLD) {
+            rebuild();
+        } else {
+            Entry[] pending = Arrays.copyOf(current.pending,
+                    current.pending.length + gate.entries.size());
+            for (int i = 0; i < gate.entries.size(); i++) {
+                pending[current.pending.length + i] = gate.entries.get(i);
+            }
+            snapshot = new Snapshot(current.automata, current.unfiltered, pending,
+                    current.removed);
+        }
+        return gate;
+    }
+
+    @Override
+    void remove(Gate gate) {
+        if (!gates.remove(gate)) {
+            return;
+        }
+        Snapshot current = snapshot;
+        if (current.removed.size() >= REBUILD_THRESHOLD) {
+            rebuild();
+        } else {
+            Set<Gate> removed = Collections.newSetFromMap(new IdentityHashMap<Gate, Boolean>());
+            removed.addAll(current.removed);
+            removed.add(gate);
+            snapshot = new Snapshot(current.automata, current.unfiltered, current.pending,
+                    removed);
+        }
+    }
+
+    /**
+     * Private helper that builds the automata of the patterns of all indexed policies
+     */
+    private void rebuild() {
+        Map<String, List<Entry>> filtered = new HashMap<String, List<Entry>>();
+        Map<String, List<Entry>> unfiltered = new HashMap<String, List<Entry>>();
+        for (Gate gate : gates) {
+            for (Entry entry : gate.entries) {
+                Map<String, List<Entry>> map = entry.literal == null ? unfiltered : filtered;
+                List<Entry> list = map.get(entry.attribute);
+                if (list == null) {
+                    list = new ArrayList<Entry>();
+                    map.put(entry.attribute, list);
+                }
+                list.add(entry);
+            }
+        }
+        Map<String, Automaton> automata = new HashMap<String, Automaton>();
+        for (Map.Entry<String, List<Entry>> entry : filtered.entrySet()) {
+            automata.put(entry.getKey(), new Automaton(entry.getValue()));
+        }
+        snapshot = new Snapshot(automata, unfiltered, new Entry[0],
+                Collections.<Gate>emptySet());
+    }
+
+    /**
+     * Private helper that returns the gate of a policy with an <code>AnyOf</code> in its target
+     * that only matches requests with a value that one of its patterns matches
+     */
+    private Gate getGate(AbstractPolicy policy) {
+        if (!(policy.getTarget() instanceof Target)) {
+            return null;
+        }
+        List<AnyOfSelection> anyOfSelections = ((Target) policy.getTarget()).getAnyOfSelections();
+        if (anyOfSelections == null) {
+            return null;
+        }
+        for (AnyOfSelection anyOf : anyOfSelections) {
+            Gate gate = new Gate(policy.getId());
+            for (AllOfSelection allOf : anyOf.getAllOfSelections()) {
+                Entry entry = null;
+                if (allOf.getMatches() != null) {
+                    for (TargetMatch match : allOf.getMatches()) {
+                        entry = getEntry(gate, match);
+                        if (entry != null) {
+                            break;
+                        }
+                    }
+                }
+                if (entry == null) {
+                    gate = null;
+                    break;
+                }
+                gate.entries.add(entry);
+            }
+            if (gate != null && !gate.entries.isEmpty()) {
+                return gate;
+            }
+        }
+        return null;
+    }
+
+    private Entry getEntry(Gate gate, TargetMatch match) {
+        if (!REGEXP_FUNCTIONS.contains(match.getMatchFunction().getIdentifier().toString())
+                || !(match.getMatchValue() instanceof StringAttribute)
+                || !(match.getMatchEvaluatable() instanceof AttributeDesignator)) {
+            return null;
+        }
+        AttributeDesignator designator = (AttributeDesignator) match.getMatchEvaluatable();
+        if (designator.mustBePresent() || !isIndexable(designator)) {
+            return null;
+        }
+        String xpr = ((StringAttribute) match.getMatchValue()).getValue();
+        Pattern pattern;
+        try {
+            pattern = Pattern.compile(MatchFunction.getJavaRegexp(xpr));
+        } catch (RuntimeException e) {
+            // the function fails on the pattern, so the policy is not indexed
+            return null;
+        }
+        return new Entry(gate, getKey(designator.getCategory().toString(), designator.getId(),
+                designator.getType()), getLiteral(xpr), pattern);
+    }
+
+    /**
+     * Returns the longest text that every value that a regular expression matches contains.
+     * Only text outside groups and character classes is used, and expressions with
+     * alternatives, flags or class subtraction have no such text.
+     *
+     * @param xpr a regular expression in the syntax of XACML
+     * @return the text, or null if there is none
+     */
+    static String getLiteral(String xpr) {
+        if (xpr.indexOf("(?") != -1 || xpr.indexOf("-[") != -1) {
+            return null;
+        }
+        String longest = null;
+        StringBuilder run = new StringBuilder();
+        int i = 0;
+        while (i < xpr.length()) {
+            char c = xpr.charAt(i);
+            if (c == '\\') {
+                if (i + 1 < xpr.length() && META_CHARACTERS.indexOf(xpr.charAt(i + 1)) != -1) {
+                    run.append(xpr.charAt(i + 1));
+                    i += 2;
+                    continue;
+                }
+                // a class such as \d or \p{L}, or an escape that is not known
+                longest = longer(longest, run);
+                if (i + 2 < xpr.length() && xpr.charAt(i + 2) == '{') {
+                    int end = xpr.indexOf('}', i);
+                    i = end == -1 ? xpr.length() : end + 1;
+                } else {
+                    i += 2;
+                }
+            } else if (c == '[' || c == '(') {
+                longest = longer(longest, run);
+                i = skipGroup(xpr, i);
+                if (i == -1) {
+                    return null;
+                }
+            } else if (c == '|') {
+                return null;
+            } else if (c == '?' || c == '*' || c == '{') {
+                // the character before is optional
+                if (run.length() > 0) {
+                    run.setLength(run.length() - 1);
+                }
+                longest = longer(longest, run);
+                if (c == '{') {
+                    int end = xpr.indexOf('}', i);
+                    i = end == -1 ? xpr.length() : end + 1;
+                } else {
+                    i++;
+                }
+            } else if (c == '+' || c == '.' || c == '^' || c == '$') {
+                longest = longer(longest, run);
+                i++;
+            } else {
+                run.append(c);
+                i++;
+            }
+        }
+        return longer(longest, run);
+    }
+
+    /**
+     * Private helper that returns the longer of a text and a run of text, and starts a new run
+     */
+    private static String longer(String longest, StringBuilder run) {
+        if (run.length() > 0 && (longest == null || run.length() > longest.length())) {
+            longest = run.toString();
+        }
+        run.setLength(0);
+        return longest;
+    }
+
+    /**
+     * Private helper that returns the index after the group or character class that starts at
+     * the given index, or -1 if it does not end
+     */
+    private static int skipGroup(String xpr, int start) {
+        int groups = 0;
+        int classes = 0;
+        for (int i = start; i < xpr.length(); i++) {
+            char c = xpr.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '[') {
+                classes++;
+            } else if (c == ']' && classes > 0) {
+                classes--;
+            } else if (c == '(' && classes == 0) {
+                groups++;
+            } else if (c == ')' && classes == 0) {
+                groups--;
+            } else {
+                continue;
+            }
+            if (groups == 0 && classes == 0) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private static String getText(AttributeValue value) {
+        if (value instanceof StringAttribute) {
+            return ((StringAttribute) value).getValue();
+        } else if (value instanceof AnyURIAttribute) {
+            return value.encode();
+        }
+        return null;
+    }
+
+    /**
+     * The entry of a policy, with the patterns it is indexed by
+     */
+    static class Gate extends AttributeIndex.Gate {
+
+        private final List<Entry> entries = new ArrayList<Entry>();
+
+        Gate(URI id) {
+            super(id);
+        }
+    }
+
+    /**
+     * A pattern of a policy, and the attribute it is matched with
+     */
+    private static class Entry extends AttributeIndex.Entry {
+
+        private final Gate gate;
+
+        private final String literal;
+
+        private final Pattern pattern;
+
+        Entry(Gate gate, String attribute, String literal, Pattern pattern) {
+            super(attribute);
+            this.gate = gate;
+            this.literal = literal;
+            this.pattern = pattern;
+        }
+
+        /**
+         * Adds the id of the policy if the pattern matches a value, and the policy was not
+         * removed or found already
+         */
+        void verify(String text, Snapshot current, Set<URI> ids) {
+            if (!ids.contains(gate.id) && !current.removed.contains(gate)
+                    && pattern.matcher(text).matches()) {
+                ids.add(gate.id);
+            }
+        }
+    }
+
+    /**
+     * The automata, and the changes since they were built, which are replaced together
+     */
+    private static class Snapshot {
+
+        private final Map<String, Automaton> automata;
+
+        private final Map<String, List<Entry>> unfiltered;
+
+        private final Entry[] pending;
+
+        private final Set<Gate> removed;
+
+        Snapshot(Map<String, Automaton> automata, Map<String, List<Entry>> unfiltered,
+                 Entry[] pending, Set<Gate> removed) {
+            this.automata = automata;
+            this.unfiltered = unfiltered;
+            this.pending = pending;
+            this.removed = removed;
+        }
+    }
+
+    /**
+     * An Aho-Corasick automaton of the literals of patterns, which is not changed once it is
+     * built
+     */
+    private static class Automaton {
+
+        private final State root = new State();
+
+        Automaton(List<Entry> entries) {
+            Map<State, TreeMap<Character, State>> edges =
+                    new IdentityHashMap<State, TreeMap<Character, State>>();
+            for (Entry entry : entries) {
+                State state = root;
+                for (int i = 0; i < entry.literal.length(); i++) {
+                    TreeMap<Character, State> next = edges.get(state);
+                    if (next == null) {
+                        next = new TreeMap<Character, State>();
+                        edges.put(state, next);
+                    }
+                    State child = next.get(entry.literal.charAt(i));
+                    if (child == null) {
+                        child = new State();
+                        next.put(entry.literal.charAt(i), child);
+                    }
+                    state = child;
+                }
+                state.addOutput(entry);
+            }
+            for (Map.Entry<State, TreeMap<Character, State>> entry : edges.entrySet()) {
+                entry.getKey().setEdges(entry.getValue());
+            }
+
+            // the failure link of a state is the longest proper suffix of its text in the trie,
+            // and the output link the nearest state on the failure links with outputs
+            Queue<State> queue = new ArrayDeque<State>();
+            for (State child : root.children) {
+                child.failure = root;
+                queue.add(child);
+            }
+            while (!queue.isEmpty()) {
+                State state = queue.remove();
+                for (int i = 0; i < state.labels.length; i++) {
+                    State child = state.children[i];
+                    State failure = state.failure;
+                    while (failure != root && failure.next(state.labels[i]) == null) {
+                        failure = failure.failure;
+                    }
+                    State next = failure.next(state.labels[i]);
+                    child.failure = next != null ? next : root;
+                    queue.add(child);
+                }
+                state.output = state.failure.outputs.length > 0 ?
+                        state.failure : state.failure.output;
+            }
+        }
+
+        /**
+         * Returns the entries of which the literal is in a text
+         */
+        Set<Entry> search(String text) {
+            Set<Entry> found = Collections.newSetFromMap(new IdentityHashMap<Entry, Boolean>());
+            State state = root;
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                State next = state.next(c);
+                while (next == null && state != root) {
+                    state = state.failure;
+                    next = state.next(c);
+                }
+                state = next == null ? root : next;
+                for (State output = state.outputs.length > 0 ? state : state.output;
+                     output != null; output = output.output) {
+                    found.addAll(Arrays.asList(output.outputs));
+                }
+            }
+            return found;
+        }
+    }
+
+    /**
+     * A state of an automaton, with its transitions sorted by character
+     */
+    private static class State {
+
+        private char[] labels = new char[0];
+
+        private State[] children = new State[0];
+
+        private State failure;
+
+        private State output;
+
+        private Entry[] outputs = new Entry[0];
+
+        void setEdges(TreeMap<Character, State> edges) {
+            labels = new char[edges.size()];
+            children = new State[edges.size()];
+            int i = 0;
+            for (Map.Entry<Character, State> edge : edges.entrySet()) {
+                labels[i] = edge.getKey();
+                children[i++] = edge.getValue();
+            }
+        }
+
+        void addOutput(Entry entry) {
+            outputs = Arrays.copyOf(outputs, outputs.length + 1);
+            outputs[outputs.length - 1] = entry;
+        }
+
+        State next(char c) {
+            int i = Arrays.binarySearch(labels, c);
+            return i < 0 ? null : children[i];
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+*  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.finder.impl;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.connexta.arbitro.AbstractTarget;
+import com.connexta.arbitro.TargetMatch;
+import com.connexta.arbitro.attr.AttributeValue;
+import com.connexta.arbitro.attr.xacml3.AttributeDesignator;
+import com.connexta.arbitro.ctx.AbstractRequestCtx;
+import com.connexta.arbitro.ctx.Attribute;
+import com.connexta.arbitro.xacml3.AllOfSelection;
+import com.connexta.arbitro.xacml3.AnyOfSelection;
+import com.connexta.arbitro.xacml3.Attributes;
+import com.connexta.arbitro.xacml3.Target;
+
+/**
+ * Extracts index keys from policy targets and from requests. A key is a category, an attribute
+ * id and a value. The keys of a target are such that a request can only match the target if it
+ * has an attribute with one of them, so only the policies that share a key with a request need
+ * to be matched against it.
+ * <p>
+ * A match is used for a key if it compares a literal value with an
+ * <code>AttributeDesignator</code>, that need not be present, using an equality function of
+ * which the encoding of the values is exact. Every <code>AllOf</code> of an <code>AnyOf</code>
+ * must have such a match for the <code>AnyOf</code> to be indexed, and the indexed
+ * <code>AnyOf</code> with the fewest keys is used for the target. Targets that can not be
+ * indexed, such as empty targets and XACML 2 targets, may match any request.
+ * </p>
+ * <p>
+ * The keys of a request are only taken from the attributes in the request. Attributes that are
+ * found by attribute finder modules must therefore not be indexed, and should be given as
+ * unindexed attributes.
+ * </p>
+ */
+public class TargetKeyExtractor {
+
+    private static final String FUNCTION_PREFIX = "urn:oasis:names:tc:xacml:1.0:function:";
+
+    /**
+     * equality functions for which equal values have equal encodings. anyURI-equal is not one of
+     * them, since URIs that differ in the case of their scheme or host are equal.
+     */
+    private static final Set<String> EQUALITY_FUNCTIONS = new HashSet<String>();
+
+    static {
+        EQUALITY_FUNCTIONS.add(FUNCTION_PREFIX + "string-equal");
+        EQUALITY_FUNCTIONS.add(FUNCTION_PREFIX + "boolean-equal");
+        EQUALITY_FUNCTIONS.add(FUNCTION_PREFIX + "integer-equal");
+        EQUALITY_FUNCTIONS.add(FUNCTION_PREFIX + "hexBinary-equal");
+        EQUALITY_FUNCTIONS.add(FUNCTION_PREFIX + "base64Binary-equal");
+    }
+
+    private Set<URI> unindexedAttributes;
+
+    /**
+     * Creates an extractor that may index any attribute
+     */
+    public TargetKeyExtractor() {
+        this(null);
+    }
+
+    /**
+     * Creates an extractor
+     *
+     * @param unindexedAttributes ids of attributes that must not be indexed, such as the ones
+     *                            that are found by attribute finder modules, or null
+     */
+    public TargetKeyExtractor(Set<URI> unindexedAttributes) {
+        if (unindexedAttributes == null) {
+            this.unindexedAttributes = Collections.emptySet();
+        } else {
+            this.unindexedAttributes = new HashSet<URI>(unindexedAttributes);
+        }
+    }
+
+    /**
+     * @return ids of the attributes that are not indexed
+     */
+    public Set<URI> getUnindexedAttributes() {
+        return Collections.unmodifiableSet(unindexedAttributes);
+    }
+
+    /**
+     * Returns whether a match function is an equality function of which the encoding of the
+     * values is exact
+     *
+     * @param functionId the id of the function
+     * @return true if it is
+     */
+    public static boolean isEqualityFunction(String functionId) {
+        return EQUALITY_FUNCTIONS.contains(functionId);
+    }
+
+    /**
+     * Returns the keys of a target
+     *
+     * @param target the target of a policy or policy set
+     * @return the keys, of which a matching request has at least one, or null if the target
+     *         can not be indexed
+     */
+    public Set<Key> getKeys(AbstractTarget target) {
+        if (!(target instanceof Target)) {
+            return null;
+        }
+        List<AnyOfSelection> anyOfSelections = ((Target) target).getAnyOfSelections();
+        if (anyOfSelections == null) {
+            return null;
+        }
+        Set<Key> best = null;
+        for (AnyOfSelection anyOf : anyOfSelections) {
+            Set<Key> keys = getKeys(anyOf);
+            if (keys != null && (best == null || keys.size() < best.size())) {
+                best = keys;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the keys of the attributes of a request
+     *
+     * @param request the request
+     * @return the keys, or null if the attributes of the request are not known
+     */
+    public static Set<Key> getKeys(AbstractRequestCtx request) {
+        Set<Attributes> attributesSet = request.getAttributesSet();
+        if (attributesSet == null) {
+            return null;
+        }
+        Set<Key> keys = new HashSet<Key>();
+        for (Attributes attributes : attributesSet) {
+            String category = attributes.getCategory().toString();
+            for (Attribute attribute : attributes.getAttributes()) {
+                String id = attribute.getId().toString();
+                for (AttributeValue value : attribute.getValues()) {
+                    keys.add(new Key(category, id, value.encode()));
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Private helper that returns the keys of an <code>AnyOf</code>, one for every
+     * <code>AllOf</code>, or null if one of them can not be indexed
+     */
+    private Set<Key> getKeys(AnyOfSelection anyOf) {
+        Set<Key> keys = new HashSet<Key>();
+        for (AllOfSelection allOf : anyOf.getAllOfSelections()) {
+            Key key = getKey(allOf);
+            if (key == null) {
+                return null;
+            }
+            keys.add(key);
+        }
+        return keys.isEmpty() ? null : keys;
+    }
+
+    private Key getKey(AllOfSelection allOf) {
+        if (allOf.getMatches() == null) {
+            return null;
+        }
+        for (TargetMatch match : allOf.getMatches()) {
+            Key key = getKey(match);
+            if (key != null) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    private Key getKey(TargetMatch match) {
+        if (!EQUALITY_FUNCTIONS.contains(match.getMatchFunction().getIdentifier().toString())
+                || !(match.getMatchEvaluatable() instanceof AttributeDesignator)) {
+            return null;
+        }
+        AttributeDesignator designator = (AttributeDesignator) match.getMatchEvaluatable();
+        if (designator.mustBePresent() || designator.getCategory() == null
+                || unindexedAttributes.contains(designator.getId())) {
+            return null;
+        }
+        return new Key(designator.getCategory().toString(), designator.getId().toString(),
+                match.getMatchValue().encode());
+    }
+
+    /**
+     * A category, attribute id and value
+     */
+    public static class Key {
+
+        private String category;
+        private String attributeId;
+        private String value;
+
+        /**
+         * Creates a key
+         *
+         * @param category the category of the attribute
+         * @param attributeId the id of the attribute
+         * @param value the encoded value of the attribute
+         */
+        public Key(String category, String attributeId, String value) {
+            this.category = category;
+            this.attributeId = attributeId;
+            this.value = value;
+        }
+
+        public String getCategory() {
+            return category;
+        }
+
+        public String getAttributeId() {
+            return attributeId;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return value.equals(other.value) && attributeId.equals(other.attributeId)
+                    && category.equals(other.category);
+        }
+
+        @Override
+        public int hashCode() {
+            return (category.hashCode() * 31 + attributeId.hashCode()) * 31 + value.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return category + " " + attributeId + " " + value;
+        }
+    }
+}
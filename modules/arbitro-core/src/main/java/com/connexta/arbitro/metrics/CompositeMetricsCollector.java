@@ -0,0 +1,158 @@
+/*
+*  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.metrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.connexta.arbitro.AbstractPolicy;
+import com.connexta.arbitro.Rule;
+import com.connexta.arbitro.finder.AttributeFinderModule;
+
+/**
+ * A <code>MetricsCollector</code> that passes everything on to several collectors, in order
+ */
+public class CompositeMetricsCollector extends MetricsCollector {
+
+    private MetricsCollector[] collectors;
+
+    /**
+     * Creates a collector that passes everything on to the given collectors
+     *
+     * @param collectors the collectors
+     */
+    public CompositeMetricsCollector(MetricsCollector... collectors) {
+        this(Arrays.asList(collectors));
+    }
+
+    /**
+     * Creates a collector that passes everything on to the given collectors
+     *
+     * @param collectors the collectors
+     */
+    public CompositeMetricsCollector(List<MetricsCollector> collectors) {
+        this.collectors = collectors.toArray(new MetricsCollector[collectors.size()]);
+    }
+
+    /**
+     * @return the collectors everything is passed on to
+     */
+    public List<MetricsCollector> getCollectors() {
+        return new ArrayList<MetricsCollector>(Arrays.asList(collectors));
+    }
+
+    @Override
+    public void requestParsed(long nanos) {
+        for (MetricsCollector collector : collectors) {
+            collector.requestParsed(nanos);
+        }
+    }
+
+    @Override
+    public void requestEvaluationStarted() {
+        for (MetricsCollector collector : collectors) {
+            collector.requestEvaluationStarted();
+        }
+    }
+
+    @Override
+    public void requestEvaluated(long nanos, int decision) {
+        for (MetricsCollector collector : collectors) {
+            collector.requestEvaluated(nanos, decision);
+        }
+    }
+
+    @Override
+    public void policyLookupStarted() {
+        for (MetricsCollector collector : collectors) {
+            collector.policyLookupStarted();
+        }
+    }
+
+    @Override
+    public void policiesFound(long nanos, int candidates) {
+        for (MetricsCollector collector : collectors) {
+            collector.policiesFound(nanos, candidates);
+        }
+    }
+
+    @Override
+    public void policyMatched(AbstractPolicy policy, int match) {
+        for (MetricsCollector collector : collectors) {
+            collector.policyMatched(policy, match);
+        }
+    }
+
+    @Override
+    public void policyEvaluationStarted(AbstractPolicy policy) {
+        for (MetricsCollector collector : collectors) {
+            collector.policyEvaluationStarted(policy);
+        }
+    }
+
+    @Override
+    public void policyEvaluated(AbstractPolicy policy, long nanos, int decision) {
+        for (MetricsCollector collector : collectors) {
+            collector.policyEvaluated(policy, nanos, decision);
+        }
+    }
+
+    @Override
+    public void ruleEvaluationStarted(Rule rule) {
+        for (MetricsCollector collector : collectors) {
+            collector.ruleEvaluationStarted(rule);
+        }
+    }
+
+    @Override
+    public void ruleEvaluated(Rule rule, long nanos, int decision) {
+        for (MetricsCollector collector : collectors) {
+            collector.ruleEvaluated(rule, nanos, decision);
+        }
+    }
+
+    @Override
+    public void attributeLookupStarted(AttributeFinderModule module, String attribute) {
+        for (MetricsCollector collector : collectors) {
+            collector.attributeLookupStarted(module, attribute);
+        }
+    }
+
+    @Override
+    public void attributeLookup(AttributeFinderModule module, long nanos, boolean error) {
+        for (MetricsCollector collector : collectors) {
+            collector.attributeLookup(module, nanos, error);
+        }
+    }
+
+    @Override
+    public void decisionMade(int decision) {
+        for (MetricsCollector collector : collectors) {
+            collector.decisionMade(decision);
+        }
+    }
+
+    @Override
+    public void responseEncoded(long nanos) {
+        for (MetricsCollector collector : collectors) {
+            collector.responseEncoded(nanos);
+        }
+    }
+}
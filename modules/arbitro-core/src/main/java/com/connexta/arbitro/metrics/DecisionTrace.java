@@ -0,0 +1,261 @@
+/*
+*  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.metrics;
+
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import com.connexta.arbitro.ctx.AbstractResult;
+
+/**
+ * The trace of the evaluation of a single request context, as recorded by
+ * <code>TracingCollector</code>. The entries are in the order in which the steps started, with
+ * the depth of each step, so they form the tree of the evaluation.
+ */
+public class DecisionTrace {
+
+    private long sequence;
+    private long timestamp;
+    private long nanos;
+    private int decision;
+    private List<Entry> entries;
+    private boolean truncated;
+
+    /**
+     * Creates a trace
+     *
+     * @param sequence the number of the trace in the collector
+     * @param timestamp the time at which the evaluation started, in milliseconds since the epoch
+     * @param nanos time taken by the evaluation
+     * @param decision the decision for the request context
+     * @param entries the steps of the evaluation
+     * @param truncated true if steps were left out because the trace was full
+     */
+    public DecisionTrace(long sequence, long timestamp, long nanos, int decision,
+                         List<Entry> entries, boolean truncated) {
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.nanos = nanos;
+        this.decision = decision;
+        this.entries = Collections.unmodifiableList(entries);
+        this.truncated = truncated;
+    }
+
+    /**
+     * @return the number of the trace in the collector, starting at 0
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return the time at which the evaluation started, in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return time taken by the evaluation, in nanoseconds
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * @return the decision for the request context, as defined in <code>AbstractResult</code>
+     */
+    public int getDecision() {
+        return decision;
+    }
+
+    /**
+     * @return the steps of the evaluation
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return true if steps were left out because the trace was full
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Returns the trace as indented text, one line per step
+     *
+     * @return the trace as text
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append('#').append(sequence).append(' ');
+        builder.append(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").format(new Date(timestamp)));
+        builder.append(' ').append(getDecisionName(decision));
+        appendNanos(builder, nanos);
+        builder.append('\n');
+        for (Entry entry : entries) {
+            for (int i = 0; i <= entry.depth; i++) {
+                builder.append("  ");
+            }
+            builder.append(entry).append('\n');
+        }
+        if (truncated) {
+            builder.append("  ...\n");
+        }
+        return builder.toString();
+    }
+
+    private static void appendNanos(StringBuilder builder, long nanos) {
+        builder.append(' ').append(nanos / 1000).append('.');
+        long fraction = nanos % 1000;
+        if (fraction < 100) {
+            builder.append('0');
+        }
+        if (fraction < 10) {
+            builder.append('0');
+        }
+        builder.append(fraction).append(" us");
+    }
+
+    private static String getDecisionName(int decision) {
+        if (decision >= AbstractResult.DECISION_INDETERMINATE_DENY) {
+            return AbstractResult.DECISIONS[AbstractResult.DECISION_INDETERMINATE];
+        }
+        return decision < 0 ? "?" : AbstractResult.DECISIONS[decision];
+    }
+
+    /**
+     * A single step of an evaluation
+     */
+    public static class Entry {
+
+        /**
+         * The lookup of the policies for the request. The result is the number of candidates.
+         */
+        public static final int LOOKUP = 0;
+
+        /**
+         * The match of the target of a policy. Only matches that did not fail are recorded. The
+         * result is a <code>MatchResult</code> value.
+         */
+        public static final int MATCH = 1;
+
+        /**
+         * The evaluation of a policy or policy set. The result is the combined decision.
+         */
+        public static final int POLICY = 2;
+
+        /**
+         * The evaluation of a rule. The result is the decision of the rule.
+         */
+        public static final int RULE = 3;
+
+        /**
+         * A call to an attribute finder module. The result is 1 if the module returned an error,
+         * otherwise 0.
+         */
+        public static final int ATTRIBUTE = 4;
+
+        private static final String[] TYPES = {"lookup", "match", "policy", "rule", "attribute"};
+
+        private static final String[] MATCHES = {"Match", "NoMatch", "Indeterminate"};
+
+        int type;
+        int depth;
+        String id;
+        int result = -1;
+        long nanos = -1;
+
+        Entry(int type, int depth, String id) {
+            this.type = type;
+            this.depth = depth;
+            this.id = id;
+        }
+
+        /**
+         * @return the type of the step, one of the constants of this class
+         */
+        public int getType() {
+            return type;
+        }
+
+        /**
+         * @return how deep the step is nested, starting at 0
+         */
+        public int getDepth() {
+            return depth;
+        }
+
+        /**
+         * @return the policy id, the rule id, or the module identifier and attribute id, or null
+         *          for a lookup
+         */
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * @return the result of the step, which depends on the type, or -1 if the step did not
+         *          finish
+         */
+        public int getResult() {
+            return result;
+        }
+
+        /**
+         * @return time taken by the step, in nanoseconds, or -1 if it was not timed
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder(TYPES[type]);
+            if (id != null) {
+                builder.append(' ').append(id);
+            }
+            if (result >= 0) {
+                builder.append(' ');
+                switch (type) {
+                    case LOOKUP:
+                        builder.append("candidates=").append(result);
+                        break;
+                    case MATCH:
+                        builder.append(MATCHES[result]);
+                        break;
+                    case ATTRIBUTE:
+                        builder.append(result == 0 ? "ok" : "error");
+                        break;
+                    default:
+                        builder.append(getDecisionName(result));
+                }
+            }
+            if (nanos >= 0) {
+                appendNanos(builder, nanos);
+            }
+            return builder.toString();
+        }
+    }
+}
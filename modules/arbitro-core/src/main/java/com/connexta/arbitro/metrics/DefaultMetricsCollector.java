@@ -0,0 +1,320 @@
+/*
+*  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.metrics;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.connexta.arbitro.AbstractPolicy;
+import com.connexta.arbitro.Rule;
+import com.connexta.arbitro.ctx.AbstractResult;
+import com.connexta.arbitro.finder.AttributeFinderModule;
+
+/**
+ * A <code>MetricsCollector</code> that keeps the timings in <code>LatencyHistogram</code>s and
+ * counts the decisions, in memory. Policies and rules are tracked by id, and attribute finder
+ * modules by identifier. To bound the memory used, at most <code>maxKeys</code> policies, rules
+ * and modules are tracked separately; any others are tracked together under
+ * <code>OTHER</code>.
+ */
+public class DefaultMetricsCollector extends MetricsCollector {
+
+    /**
+     * the key that policies, rules and modules are tracked under once there are too many
+     */
+    public static final String OTHER = "(other)";
+
+    /**
+     * the key of policies without id, such as the policy set that combines several top-level
+     * policies
+     */
+    public static final String ANONYMOUS = "(anonymous)";
+
+    private static final String[] STATISTICS = {"Count", "Mean", "P50", "P99", "Max"};
+
+    private static final int DEFAULT_MAX_KEYS = 10000;
+
+    private int maxKeys;
+
+    private LatencyHistogram requestParse = new LatencyHistogram();
+
+    private LatencyHistogram policyLookup = new LatencyHistogram();
+
+    private LatencyHistogram candidates = new LatencyHistogram();
+
+    private LatencyHistogram responseEncoding = new LatencyHistogram();
+
+    private ConcurrentMap<String, LatencyHistogram> policies =
+            new ConcurrentHashMap<String, LatencyHistogram>();
+
+    private ConcurrentMap<String, LatencyHistogram> rules =
+            new ConcurrentHashMap<String, LatencyHistogram>();
+
+    private ConcurrentMap<String, LatencyHistogram> modules =
+            new ConcurrentHashMap<String, LatencyHistogram>();
+
+    private ConcurrentMap<String, AtomicLong> moduleErrors =
+            new ConcurrentHashMap<String, AtomicLong>();
+
+    private AtomicLongArray decisions = new AtomicLongArray(7);
+
+    /**
+     * Creates a collector that tracks up to 10000 policies, rules and modules separately
+     */
+    public DefaultMetricsCollector() {
+        this(DEFAULT_MAX_KEYS);
+    }
+
+    /**
+     * Creates a collector
+     *
+     * @param maxKeys maximum number of policies, rules and modules that are tracked separately
+     */
+    public DefaultMetricsCollector(int maxKeys) {
+        this.maxKeys = maxKeys;
+    }
+
+    @Override
+    public void requestParsed(long nanos) {
+        requestParse.record(nanos);
+    }
+
+    @Override
+    public void policiesFound(long nanos, int candidates) {
+        policyLookup.record(nanos);
+        this.candidates.record(candidates);
+    }
+
+    @Override
+    public void policyEvaluated(AbstractPolicy policy, long nanos, int decision) {
+        String id = policy.getId() == null ? ANONYMOUS : policy.getId().toString();
+        getHistogram(policies, id).record(nanos);
+    }
+
+    @Override
+    public void ruleEvaluated(Rule rule, long nanos, int decision) {
+        String id = rule.getId() == null ? ANONYMOUS : rule.getId().toString();
+        getHistogram(rules, id).record(nanos);
+    }
+
+    @Override
+    public void attributeLookup(AttributeFinderModule module, long nanos, boolean error) {
+        String id = module.getIdentifier();
+        getHistogram(modules, id).record(nanos);
+        if (error) {
+            AtomicLong errors = moduleErrors.get(id);
+            if (errors == null) {
+                AtomicLong created = new AtomicLong();
+                errors = moduleErrors.putIfAbsent(id, created);
+                if (errors == null) {
+                    errors = created;
+                }
+            }
+            errors.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void decisionMade(int decision) {
+        if (decision >= 0 && decision < decisions.length()) {
+            decisions.incrementAndGet(decision);
+        }
+    }
+
+    @Override
+    public void responseEncoded(long nanos) {
+        responseEncoding.record(nanos);
+    }
+
+    /**
+     * @return time taken to parse requests
+     */
+    public LatencyHistogram getRequestParse() {
+        return requestParse;
+    }
+
+    /**
+     * @return time taken to find the policies that apply to requests
+     */
+    public LatencyHistogram getPolicyLookup() {
+        return policyLookup;
+    }
+
+    /**
+     * @return number of top-level policies found for requests
+     */
+    public LatencyHistogram getCandidates() {
+        return candidates;
+    }
+
+    /**
+     * @return time taken to encode responses
+     */
+    public LatencyHistogram getResponseEncoding() {
+        return responseEncoding;
+    }
+
+    /**
+     * @return time taken to evaluate policies, by policy id
+     */
+    public Map<String, LatencyHistogram> getPolicies() {
+        return Collections.unmodifiableMap(policies);
+    }
+
+    /**
+     * @return time taken to evaluate rules, by rule id
+     */
+    public Map<String, LatencyHistogram> getRules() {
+        return Collections.unmodifiableMap(rules);
+    }
+
+    /**
+     * @return time taken by attribute finder modules, by module identifier
+     */
+    public Map<String, LatencyHistogram> getModules() {
+        return Collections.unmodifiableMap(modules);
+    }
+
+    /**
+     * Returns the number of errors returned by an attribute finder module
+     *
+     * @param module the identifier of the module
+     * @return number of errors
+     */
+    public long getModuleErrors(String module) {
+        AtomicLong errors = moduleErrors.get(module);
+        return errors == null ? 0 : errors.get();
+    }
+
+    /**
+     * Returns the number of results with the given decision
+     *
+     * @param decision a decision, as defined in <code>AbstractResult</code>
+     * @return number of results
+     */
+    public long getDecisions(int decision) {
+        return decisions.get(decision);
+    }
+
+    /**
+     * Returns the number of results with each decision
+     *
+     * @return number of results, by the name of the decision
+     */
+    public Map<String, Long> getDecisions() {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        counts.put(AbstractResult.DECISIONS[AbstractResult.DECISION_PERMIT],
+                decisions.get(AbstractResult.DECISION_PERMIT));
+        counts.put(AbstractResult.DECISIONS[AbstractResult.DECISION_DENY],
+                decisions.get(AbstractResult.DECISION_DENY));
+        counts.put(AbstractResult.DECISIONS[AbstractResult.DECISION_NOT_APPLICABLE],
+                decisions.get(AbstractResult.DECISION_NOT_APPLICABLE));
+        counts.put(AbstractResult.DECISIONS[AbstractResult.DECISION_INDETERMINATE],
+                decisions.get(AbstractResult.DECISION_INDETERMINATE) +
+                decisions.get(AbstractResult.DECISION_INDETERMINATE_DENY) +
+                decisions.get(AbstractResult.DECISION_INDETERMINATE_PERMIT) +
+                decisions.get(AbstractResult.DECISION_INDETERMINATE_DENY_OR_PERMIT));
+        return counts;
+    }
+
+    /**
+     * Returns all metrics as flat values. Every histogram is given as <code>Count</code>,
+     * <code>Mean</code>, <code>P50</code>, <code>P99</code> and <code>Max</code> values, in
+     * nanoseconds, for example <code>PolicyLookup.P99</code> or
+     * <code>Policy[urn:example:policy].Mean</code>.
+     *
+     * @return values by name, in a stable order
+     */
+    public Map<String, Long> getValues() {
+        Map<String, Long> values = new LinkedHashMap<String, Long>();
+        addHistogram(values, "RequestParse", requestParse);
+        addHistogram(values, "PolicyLookup", policyLookup);
+        addHistogram(values, "Candidates", candidates);
+        addHistogram(values, "ResponseEncoding", responseEncoding);
+        for (Map.Entry<String, Long> entry : getDecisions().entrySet()) {
+            values.put("Decisions." + entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : getModules().entrySet()) {
+            String prefix = "AttributeFinder[" + entry.getKey() + "]";
+            addHistogram(values, prefix, entry.getValue());
+            values.put(prefix + ".Errors", getModuleErrors(entry.getKey()));
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : getPolicies().entrySet()) {
+            addHistogram(values, "Policy[" + entry.getKey() + "]", entry.getValue());
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : getRules().entrySet()) {
+            addHistogram(values, "Rule[" + entry.getKey() + "]", entry.getValue());
+        }
+        return values;
+    }
+
+    /**
+     * Clears all metrics
+     */
+    public void reset() {
+        requestParse.reset();
+        policyLookup.reset();
+        candidates.reset();
+        responseEncoding.reset();
+        policies.clear();
+        rules.clear();
+        modules.clear();
+        moduleErrors.clear();
+        for (int i = 0; i < decisions.length(); i++) {
+            decisions.set(i, 0);
+        }
+    }
+
+    private static void addHistogram(Map<String, Long> values, String prefix,
+                                     LatencyHistogram histogram) {
+        long[] statistics = {histogram.getCount(), histogram.getMean(),
+                histogram.getPercentile(50), histogram.getPercentile(99), histogram.getMax()};
+        for (int i = 0; i < STATISTICS.length; i++) {
+            values.put(prefix + "." + STATISTICS[i], statistics[i]);
+        }
+    }
+
+    /**
+     * Private helper that returns the histogram of a key, creating it if needed
+     *
+     * @param histograms histograms by key
+     * @param key the key
+     * @return the histogram
+     */
+    private LatencyHistogram getHistogram(ConcurrentMap<String, LatencyHistogram> histograms,
+                                          String key) {
+        LatencyHistogram histogram = histograms.get(key);
+        if (histogram == null) {
+            if (histograms.size() >= maxKeys) {
+                key = OTHER;
+            }
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = histograms.putIfAbsent(key, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+*  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Exports the metrics of a <code>DefaultMetricsCollector</code> as a JMX MBean. Every histogram
+ * is exported as <code>Count</code>, <code>Mean</code>, <code>P50</code>, <code>P99</code> and
+ * <code>Max</code> attributes, in nanoseconds, for example <code>PolicyLookup.P99</code> or
+ * <code>Policy[urn:example:policy].Mean</code>. The attributes are read from the collector when
+ * they are requested, so the exporter costs nothing while evaluating requests.
+ */
+public class JMXMetricsExporter implements DynamicMBean {
+
+    /**
+     * the object name used when none is given
+     */
+    public static final String DEFAULT_OBJECT_NAME = "com.connexta.arbitro:type=PDPMetrics";
+
+    private DefaultMetricsCollector collector;
+
+    private MBeanServer server;
+
+    private ObjectName name;
+
+    /**
+     * Creates an exporter
+     *
+     * @param collector the collector to export
+     */
+    public JMXMetricsExporter(DefaultMetricsCollector collector) {
+        this.collector = collector;
+    }
+
+    /**
+     * Registers the exporter with the platform MBean server under the default object name
+     *
+     * @throws JMException if the exporter can not be registered
+     */
+    public void register() throws JMException {
+        register(ManagementFactory.getPlatformMBeanServer(), new ObjectName(DEFAULT_OBJECT_NAME));
+    }
+
+    /**
+     * Registers the exporter
+     *
+     * @param server the MBean server
+     * @param name the object name
+     * @throws JMException if the exporter can not be registered
+     */
+    public void register(MBeanServer server, ObjectName name) throws JMException {
+        server.registerMBean(this, name);
+        this.server = server;
+        this.name = name;
+    }
+
+    /**
+     * Unregisters the exporter, if it is registered
+     *
+     * @throws JMException if the exporter can not be unregistered
+     */
+    public void unregister() throws JMException {
+        if (server != null) {
+            server.unregisterMBean(name);
+            server = null;
+            name = null;
+        }
+    }
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Long value = getValues().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read only : " + attribute.getName());
+    }
+
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Long> values = getValues();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Long value = values.get(attribute);
+            if (value != null) {
+                list.add(new Attribute(attribute, value));
+            }
+        }
+        return list;
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    public Object invoke(String actionName, Object[] params, String[] signature)
+            throws ReflectionException {
+        if ("reset".equals(actionName)) {
+            collector.reset();
+            return null;
+        }
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+        for (String attribute : getValues().keySet()) {
+            attributes.add(new MBeanAttributeInfo(attribute, Long.class.getName(), attribute,
+                    true, false, false));
+        }
+        MBeanOperationInfo reset = new MBeanOperationInfo("reset", "Clears all metrics",
+                new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION);
+        return new MBeanInfo(getClass().getName(), "Metrics of the XACML PDP",
+                attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null,
+                new MBeanOperationInfo[]{reset}, null);
+    }
+
+    /**
+     * Private helper that reads all attributes from the collector
+     *
+     * @return attribute values by name
+     */
+    private Map<String, Long> getValues() {
+        return collector.getValues();
+    }
+}
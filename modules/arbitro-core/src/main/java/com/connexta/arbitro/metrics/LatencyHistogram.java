@@ -0,0 +1,140 @@
+/*
+*  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies. Values are counted in buckets of powers of two, so
+ * recording is a few atomic operations, and percentiles are accurate to within a factor of two.
+ */
+public class LatencyHistogram {
+
+    /**
+     * bucket <code>i</code> holds values below <code>2^i</code> and at least
+     * <code>2^(i-1)</code>
+     */
+    private static final int BUCKETS = 64;
+
+    private AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    private AtomicLong total = new AtomicLong();
+
+    private AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value
+     *
+     * @param value the value, normally in nanoseconds. Negative values are recorded as 0
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value)));
+        total.addAndGet(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Returns the number of recorded values
+     *
+     * @return the count
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += buckets.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the sum of the recorded values
+     *
+     * @return the total
+     */
+    public long getTotal() {
+        return total.get();
+    }
+
+    /**
+     * Returns the largest recorded value
+     *
+     * @return the maximum, or 0 if nothing was recorded
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the mean of the recorded values
+     *
+     * @return the mean, or 0 if nothing was recorded
+     */
+    public long getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : total.get() / count;
+    }
+
+    /**
+     * Returns an upper bound of the given percentile of the recorded values, which is at most
+     * twice the real value
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the percentile, or 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            count += counts[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                long upper = i == 0 ? 0 : (i >= 63 ? Long.MAX_VALUE : (1L << i) - 1);
+                return Math.min(upper, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Clears the histogram. Values recorded concurrently may be partly lost.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        total.set(0);
+        max.set(0);
+    }
+}
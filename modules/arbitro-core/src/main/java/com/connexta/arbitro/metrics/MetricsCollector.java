@@ -0,0 +1,163 @@
+/*
+*  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.metrics;
+
+import com.connexta.arbitro.AbstractPolicy;
+import com.connexta.arbitro.Rule;
+import com.connexta.arbitro.finder.AttributeFinderModule;
+
+/**
+ * Receives timings and counts from the evaluation pipeline of a <code>PDP</code>. A collector is
+ * set with <code>PDPConfig</code>; when none is set, the pipeline only checks for null, so there
+ * is no cost.
+ * <p>
+ * All methods do nothing by default, so implementations override only what they need. They are
+ * called on the threads that evaluate requests, possibly concurrently, so they must be thread
+ * safe and fast. All times are in nanoseconds.
+ * </p>
+ * <p>
+ * The <code>...Started</code> methods are called on the same thread right before the step that
+ * is reported when it has finished, so a collector can keep its own per-thread state, for
+ * example to emit events that span the step. Steps nest: policies contain rules and rules look
+ * up attributes.
+ * </p>
+ */
+public abstract class MetricsCollector {
+
+    /**
+     * Called when a request has been parsed in to a request context
+     *
+     * @param nanos time taken to parse the request
+     */
+    public void requestParsed(long nanos) {
+    }
+
+    /**
+     * Called before a single request context is evaluated
+     */
+    public void requestEvaluationStarted() {
+    }
+
+    /**
+     * Called when a single request context has been evaluated. Unlike <code>decisionMade</code>
+     * this is called for each individual request of a multiple decision request, before the
+     * results are combined.
+     *
+     * @param nanos time taken to look up and evaluate the policies
+     * @param decision the decision for the request context
+     */
+    public void requestEvaluated(long nanos, int decision) {
+    }
+
+    /**
+     * Called before the policies that apply to a request are looked up
+     */
+    public void policyLookupStarted() {
+    }
+
+    /**
+     * Called when the policies that apply to a request have been looked up
+     *
+     * @param nanos time taken to find the policies
+     * @param candidates number of top-level policies found
+     */
+    public void policiesFound(long nanos, int candidates) {
+    }
+
+    /**
+     * Called when the target of a policy, policy set or policy reference has been matched
+     * against a request, while looking up policies or in a combining algorithm
+     *
+     * @param policy the policy
+     * @param match the result of the match, as defined in <code>MatchResult</code>
+     */
+    public void policyMatched(AbstractPolicy policy, int match) {
+    }
+
+    /**
+     * Called before a policy or policy set is evaluated
+     *
+     * @param policy the policy
+     */
+    public void policyEvaluationStarted(AbstractPolicy policy) {
+    }
+
+    /**
+     * Called when a policy or policy set has been evaluated
+     *
+     * @param policy the policy
+     * @param nanos time taken to evaluate the policy, including its children
+     * @param decision the decision of the policy
+     */
+    public void policyEvaluated(AbstractPolicy policy, long nanos, int decision) {
+    }
+
+    /**
+     * Called before a rule is evaluated
+     *
+     * @param rule the rule
+     */
+    public void ruleEvaluationStarted(Rule rule) {
+    }
+
+    /**
+     * Called when a rule has been evaluated
+     *
+     * @param rule the rule
+     * @param nanos time taken to evaluate the rule
+     * @param decision the decision of the rule
+     */
+    public void ruleEvaluated(Rule rule, long nanos, int decision) {
+    }
+
+    /**
+     * Called before an attribute finder module is asked for attribute values
+     *
+     * @param module the module
+     * @param attribute the attribute id, or the XPath expression for selectors
+     */
+    public void attributeLookupStarted(AttributeFinderModule module, String attribute) {
+    }
+
+    /**
+     * Called when an attribute finder module has been asked for attribute values
+     *
+     * @param module the module
+     * @param nanos time taken by the module
+     * @param error true if the module returned an error
+     */
+    public void attributeLookup(AttributeFinderModule module, long nanos, boolean error) {
+    }
+
+    /**
+     * Called for every result that is returned for a request
+     *
+     * @param decision the decision of the result
+     */
+    public void decisionMade(int decision) {
+    }
+
+    /**
+     * Called when a response, or a single result of a streamed response, has been encoded
+     *
+     * @param nanos time taken to encode
+     */
+    public void responseEncoded(long nanos) {
+    }
+}
@@ -0,0 +1,324 @@
+/*
+*  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.metrics;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.connexta.arbitro.AbstractPolicy;
+import com.connexta.arbitro.MatchResult;
+import com.connexta.arbitro.Rule;
+import com.connexta.arbitro.finder.AttributeFinderModule;
+
+/**
+ * A <code>MetricsCollector</code> that records a trace of the evaluation of some request
+ * contexts: the policies that were looked up and matched, the policies and rules that were
+ * evaluated with their decisions, and the attribute finder calls, all with their timings.
+ * <p>
+ * A request is traced if it is sampled, with the given sampling rate, or if its evaluation took
+ * at least the given threshold. The last traces are kept in a fixed-size ring buffer that is
+ * written without locks and can be read at any time with <code>getTraces</code> or
+ * <code>dump</code>.
+ * </p>
+ * <p>
+ * Only the sampling decision is made for a request that is not sampled, unless a threshold is
+ * set: then every request is recorded on its own thread, and the trace is kept only if the
+ * request was sampled or slow.
+ * </p>
+ */
+public class TracingCollector extends MetricsCollector {
+
+    /**
+     * The default maximum number of entries in a trace
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 512;
+
+    private double sampleRate;
+
+    private long thresholdNanos;
+
+    private int maxEntries = DEFAULT_MAX_ENTRIES;
+
+    private AtomicReferenceArray<DecisionTrace> traces;
+
+    private int mask;
+
+    private AtomicLong sequence = new AtomicLong();
+
+    private ThreadLocal<Recorder> recorders = new ThreadLocal<Recorder>() {
+        @Override
+        protected Recorder initialValue() {
+            return new Recorder();
+        }
+    };
+
+    /**
+     * Creates a collector
+     *
+     * @param capacity the number of traces to keep, rounded up to a power of two
+     * @param sampleRate the fraction of requests to trace, between 0 and 1
+     * @param thresholdNanos requests that take at least this long are traced, or 0 to trace
+     *                       sampled requests only
+     */
+    public TracingCollector(int capacity, double sampleRate, long thresholdNanos) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        if (sampleRate < 0 || sampleRate > 1) {
+            throw new IllegalArgumentException("sample rate must be between 0 and 1");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.traces = new AtomicReferenceArray<DecisionTrace>(size);
+        this.mask = size - 1;
+        this.sampleRate = sampleRate;
+        this.thresholdNanos = thresholdNanos;
+    }
+
+    /**
+     * Sets the maximum number of entries in a trace. Steps beyond it are left out.
+     *
+     * @param maxEntries the maximum number of entries
+     */
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return the number of traces that are kept
+     */
+    public int getCapacity() {
+        return traces.length();
+    }
+
+    /**
+     * @return the number of traces recorded so far, including the ones no longer kept
+     */
+    public long getTraceCount() {
+        return sequence.get();
+    }
+
+    /**
+     * Returns the traces that are kept, oldest first
+     *
+     * @return the traces
+     */
+    public List<DecisionTrace> getTraces() {
+        List<DecisionTrace> list = new ArrayList<DecisionTrace>(traces.length());
+        for (int i = 0; i < traces.length(); i++) {
+            DecisionTrace trace = traces.get(i);
+            if (trace != null) {
+                list.add(trace);
+            }
+        }
+        Collections.sort(list, new Comparator<DecisionTrace>() {
+            public int compare(DecisionTrace first, DecisionTrace second) {
+                return first.getSequence() < second.getSequence() ? -1 :
+                        first.getSequence() == second.getSequence() ? 0 : 1;
+            }
+        });
+        return list;
+    }
+
+    /**
+     * Writes the traces that are kept, oldest first
+     *
+     * @param writer where to write the traces
+     */
+    public void dump(PrintWriter writer) {
+        for (DecisionTrace trace : getTraces()) {
+            writer.print(trace);
+        }
+        writer.flush();
+    }
+
+    /**
+     * Removes all traces that are kept
+     */
+    public void clear() {
+        for (int i = 0; i < traces.length(); i++) {
+            traces.set(i, null);
+        }
+    }
+
+    @Override
+    public void requestEvaluationStarted() {
+        Recorder recorder = recorders.get();
+        recorder.sampled = sampleRate > 0 && (sampleRate >= 1 ||
+                ThreadLocalRandom.current().nextDouble() < sampleRate);
+        if (recorder.sampled || thresholdNanos > 0) {
+            recorder.start();
+        } else {
+            recorder.active = false;
+        }
+    }
+
+    @Override
+    public void requestEvaluated(long nanos, int decision) {
+        Recorder recorder = recorders.get();
+        if (!recorder.active) {
+            return;
+        }
+        recorder.active = false;
+        if (recorder.sampled || (thresholdNanos > 0 && nanos >= thresholdNanos)) {
+            long number = sequence.getAndIncrement();
+            traces.set((int) (number & mask), new DecisionTrace(number, recorder.timestamp,
+                    nanos, decision, new ArrayList<DecisionTrace.Entry>(recorder.entries),
+                    recorder.truncated));
+        }
+    }
+
+    @Override
+    public void policyLookupStarted() {
+        Recorder recorder = recorders.get();
+        if (recorder.active) {
+            recorder.begin(DecisionTrace.Entry.LOOKUP, null, null);
+        }
+    }
+
+    @Override
+    public void policiesFound(long nanos, int candidates) {
+        Recorder recorder = recorders.get();
+        if (recorder.active) {
+            recorder.end(null, candidates, nanos);
+        }
+    }
+
+    @Override
+    public void policyMatched(AbstractPolicy policy, int match) {
+        if (match == MatchResult.NO_MATCH) {
+            return;
+        }
+        Recorder recorder = recorders.get();
+        if (recorder.active) {
+            recorder.add(DecisionTrace.Entry.MATCH, String.valueOf(policy.getId()), match);
+        }
+    }
+
+    @Override
+    public void policyEvaluationStarted(AbstractPolicy policy) {
+        Recorder recorder = recorders.get();
+        if (recorder.active) {
+            recorder.begin(DecisionTrace.Entry.POLICY, policy, String.valueOf(policy.getId()));
+        }
+    }
+
+    @Override
+    public void policyEvaluated(AbstractPolicy policy, long nanos, int decision) {
+        Recorder recorder = recorders.get();
+        if (recorder.active) {
+            recorder.end(policy, decision, nanos);
+        }
+    }
+
+    @Override
+    public void ruleEvaluationStarted(Rule rule) {
+        Recorder recorder = recorders.get();
+        if (recorder.active) {
+            recorder.begin(DecisionTrace.Entry.RULE, rule, String.valueOf(rule.getId()));
+        }
+    }
+
+    @Override
+    public void ruleEvaluated(Rule rule, long nanos, int decision) {
+        Recorder recorder = recorders.get();
+        if (recorder.active) {
+            recorder.end(rule, decision, nanos);
+        }
+    }
+
+    @Override
+    public void attributeLookupStarted(AttributeFinderModule module, String attribute) {
+        Recorder recorder = recorders.get();
+        if (recorder.active) {
+            recorder.begin(DecisionTrace.Entry.ATTRIBUTE, module,
+                    module.getIdentifier() + " " + attribute);
+        }
+    }
+
+    @Override
+    public void attributeLookup(AttributeFinderModule module, long nanos, boolean error) {
+        Recorder recorder = recorders.get();
+        if (recorder.active) {
+            recorder.end(module, error ? 1 : 0, nanos);
+        }
+    }
+
+    /**
+     * Records the trace of the request that is evaluated on a thread
+     */
+    private class Recorder {
+
+        private boolean active;
+        private boolean sampled;
+        private long timestamp;
+        private boolean truncated;
+        private List<DecisionTrace.Entry> entries = new ArrayList<DecisionTrace.Entry>();
+
+        // the steps that have started but not finished, innermost last
+        private List<Object> subjects = new ArrayList<Object>();
+        private List<DecisionTrace.Entry> open = new ArrayList<DecisionTrace.Entry>();
+
+        private void start() {
+            active = true;
+            timestamp = System.currentTimeMillis();
+            truncated = false;
+            entries.clear();
+            subjects.clear();
+            open.clear();
+        }
+
+        private DecisionTrace.Entry add(int type, String id, int result) {
+            if (entries.size() >= maxEntries) {
+                truncated = true;
+                return null;
+            }
+            DecisionTrace.Entry entry = new DecisionTrace.Entry(type, open.size(), id);
+            entry.result = result;
+            entries.add(entry);
+            return entry;
+        }
+
+        private void begin(int type, Object subject, String id) {
+            subjects.add(subject);
+            open.add(add(type, id, -1));
+        }
+
+        private void end(Object subject, int result, long nanos) {
+            int last = subjects.size() - 1;
+            if (last < 0 || subjects.get(last) != subject) {
+                return;
+            }
+            subjects.remove(last);
+            DecisionTrace.Entry entry = open.remove(last);
+            if (entry != null) {
+                entry.result = result;
+                entry.nanos = nanos;
+            }
+        }
+    }
+}
@@ -118,6 +118,15 @@ public class AllOfSelection {
     }
 
 
+    /**
+     * Returns the <code>TargetMatch</code>es of this selection, which must all match
+     *
+     * @return a <code>List</code> of <code>TargetMatch</code> elements
+     */
+    public List<TargetMatch> getMatches() {
+        return matches;
+    }
+
     /**
      * Encodes this <code>AnyOfSelection</code> into its XML form and writes this out to the provided
      * <code>StringBuilder</code>
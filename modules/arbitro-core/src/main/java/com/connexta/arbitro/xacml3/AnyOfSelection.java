@@ -133,6 +133,15 @@ public class AnyOfSelection {
         }
     }
 
+    /**
+     * Returns the <code>AllOfSelection</code>s of this selection, of which one must match
+     *
+     * @return a <code>List</code> of <code>AllOfSelection</code> elements
+     */
+    public List<AllOfSelection> getAllOfSelections() {
+        return allOfSelections;
+    }
+
     /**
      * Encodes this <code>AnyOfSelection</code> into its XML form and writes this out to the provided
      * <code>StringBuilder</code>
@@ -41,7 +41,7 @@ public class MultiRequests {
      *
      * @param requestReferences <code>Set</code> of <code>RequestReference</code>
      */
-    private MultiRequests(Set<RequestReference> requestReferences) {
+    public MultiRequests(Set<RequestReference> requestReferences) {
         this.requestReferences = requestReferences;
     }
 
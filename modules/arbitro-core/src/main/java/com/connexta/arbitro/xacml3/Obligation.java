@@ -125,6 +125,15 @@ public class Obligation implements ObligationResult {
         return assignments;
     }
 
+    /**
+     * Returns the id of this obligation
+     *
+     * @return the obligation id
+     */
+    public URI getObligationId() {
+        return obligationId;
+    }
+
 
     /**
      * Encodes this <code>Obligation</code> into its XML form
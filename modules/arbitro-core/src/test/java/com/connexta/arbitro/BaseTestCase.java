@@ -21,9 +21,28 @@ import junit.framework.Test;
 import junit.framework.TestSuite;
 
 import com.connexta.arbitro.advance.AdvanceTestV3;
+import com.connexta.arbitro.basic.TestAdmissionV3;
+import com.connexta.arbitro.basic.TestAttributeRoutingV3;
+import com.connexta.arbitro.basic.TestAuditLogV3;
 import com.connexta.arbitro.basic.BasicTestV3;
+import com.connexta.arbitro.basic.TestCoalescingV3;
+import com.connexta.arbitro.basic.TestCombinedDecisionV3;
+import com.connexta.arbitro.basic.TestDeadlineV3;
 import com.connexta.arbitro.basic.TestFunctionV3;
+import com.connexta.arbitro.basic.TestIPRangeIndexV3;
+import com.connexta.arbitro.basic.TestIncrementalPoliciesV3;
+import com.connexta.arbitro.basic.TestJDBCPolicyV3;
+import com.connexta.arbitro.basic.TestJSONRequestV3;
+import com.connexta.arbitro.basic.TestLazyPolicyV3;
+import com.connexta.arbitro.basic.TestMetricsV3;
+import com.connexta.arbitro.basic.TestModuleGuardV3;
 import com.connexta.arbitro.basic.TestMultipleRequestV3;
+import com.connexta.arbitro.basic.TestParallelPolicyLoadingV3;
+import com.connexta.arbitro.basic.TestPathPrefixIndexV3;
+import com.connexta.arbitro.basic.TestPolicyInterningV3;
+import com.connexta.arbitro.basic.TestPolicySnapshotV3;
+import com.connexta.arbitro.basic.TestPolicyVersionsV3;
+import com.connexta.arbitro.basic.TestRegexpIndexV3;
 import com.connexta.arbitro.basic.TestXPathV3;
 import com.connexta.arbitro.conformance.ConformanceTestV2;
 import com.connexta.arbitro.conformance.ConformanceTestV3;
@@ -46,6 +65,44 @@ public class BaseTestCase extends TestSuite {
         testSuite.addTestSuite(TestFunctionV3.class);
         // multiple decision profile
         testSuite.addTestSuite(TestMultipleRequestV3.class);
+        // combined decisions of multiple requests
+        testSuite.addTestSuite(TestCombinedDecisionV3.class);
+        // JSON profile
+        testSuite.addTestSuite(TestJSONRequestV3.class);
+        // policy snapshot
+        testSuite.addTestSuite(TestPolicySnapshotV3.class);
+        // parallel policy loading
+        testSuite.addTestSuite(TestParallelPolicyLoadingV3.class);
+        // lazy policy loading
+        testSuite.addTestSuite(TestLazyPolicyV3.class);
+        // sharing the same parts of policies
+        testSuite.addTestSuite(TestPolicyInterningV3.class);
+        // metrics of the evaluation
+        testSuite.addTestSuite(TestMetricsV3.class);
+        // audit log of decisions
+        testSuite.addTestSuite(TestAuditLogV3.class);
+        // deadlines of requests
+        testSuite.addTestSuite(TestDeadlineV3.class);
+        // isolation of attribute finder modules
+        testSuite.addTestSuite(TestModuleGuardV3.class);
+        // coalescing of identical attribute lookups
+        testSuite.addTestSuite(TestCoalescingV3.class);
+        // routing of attribute lookups to modules
+        testSuite.addTestSuite(TestAttributeRoutingV3.class);
+        // admission of requests by priority
+        testSuite.addTestSuite(TestAdmissionV3.class);
+        // policies in a database
+        testSuite.addTestSuite(TestJDBCPolicyV3.class);
+        // versions of policies
+        testSuite.addTestSuite(TestPolicyVersionsV3.class);
+        // adding, updating and removing single policies
+        testSuite.addTestSuite(TestIncrementalPoliciesV3.class);
+        // policies indexed by IP address
+        testSuite.addTestSuite(TestIPRangeIndexV3.class);
+        // policies indexed by regular expressions
+        testSuite.addTestSuite(TestRegexpIndexV3.class);
+        // policies indexed by path prefixes
+        testSuite.addTestSuite(TestPathPrefixIndexV3.class);
         // XPath test
         testSuite.addTestSuite(TestXPathV3.class);
 
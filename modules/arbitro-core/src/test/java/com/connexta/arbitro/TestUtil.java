@@ -44,6 +44,11 @@ import com.connexta.arbitro.ctx.RequestCtxFactory;
 import com.connexta.arbitro.ctx.ResponseCtx;
 import com.connexta.arbitro.ctx.Status;
 import com.connexta.arbitro.ctx.xacml3.Result;
+import com.connexta.arbitro.finder.AttributeFinder;
+import com.connexta.arbitro.finder.PolicyFinder;
+import com.connexta.arbitro.finder.PolicyFinderModule;
+import com.connexta.arbitro.finder.impl.FileBasedPolicyFinderModule;
+import com.connexta.arbitro.finder.impl.PolicyRepository;
 import com.connexta.arbitro.xacml3.Advice;
 import com.connexta.arbitro.xacml3.Attributes;
 import org.w3c.dom.Document;
@@ -56,6 +61,9 @@ import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -349,6 +357,141 @@ public class TestUtil {
     }
 
 
+    /**
+     * Returns the path of a directory of test files
+     *
+     * @param rootDirectory   root directory of the test files
+     * @param versionDirectory   version directory of the test files
+     * @param directory  directory name, such as the policy or request directory
+     * @return the canonical path of the directory
+     * @throws IOException if the working directory can not be resolved
+     */
+    public static String getDirectory(String rootDirectory, String versionDirectory,
+                                      String directory) throws IOException {
+        return (new File(".")).getCanonicalPath() + File.separator + TestConstants.RESOURCE_PATH +
+                File.separator + rootDirectory + File.separator + versionDirectory +
+                File.separator + directory;
+    }
+
+    /**
+     * Creates an empty temporary directory, for policies that a test writes
+     *
+     * @return the directory
+     * @throws IOException if the directory can not be created
+     */
+    public static File createDirectory() throws IOException {
+        File directory = File.createTempFile("policies", "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Can not create directory : " + directory);
+        }
+        return directory;
+    }
+
+    /**
+     * Deletes a temporary directory and the files in it
+     *
+     * @param directory the directory
+     */
+    public static void deleteDirectory(File directory) {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    /**
+     * Writes a file, such as a policy, into a directory
+     *
+     * @param directory the directory
+     * @param name  file name
+     * @param content the content of the file
+     * @throws IOException if the file can not be written
+     */
+    public static void write(File directory, String name, String content) throws IOException {
+        FileWriter writer = new FileWriter(new File(directory, name));
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Returns a new PDP instance that finds policies with the given module, and has no
+     * attribute finder modules
+     *
+     * @param module  policy finder module
+     * @return a  PDP instance
+     */
+    public static PDP getPDPNewInstance(PolicyFinderModule module) {
+        PolicyFinder finder = new PolicyFinder();
+        Set<PolicyFinderModule> policyModules = new HashSet<PolicyFinderModule>();
+        policyModules.add(module);
+        finder.setModules(policyModules);
+        return new PDP(new PDPConfig(new AttributeFinder(), finder, null, false));
+    }
+
+    /**
+     * Returns a new PDP instance that loads all policies of a directory
+     *
+     * @param directory  directory of XACML policy files
+     * @param targetIndexing whether to index the policies by their targets
+     * @return a  PDP instance
+     */
+    public static PDP getPDPNewInstance(File directory, boolean targetIndexing) {
+        FileBasedPolicyFinderModule module = new FileBasedPolicyFinderModule(
+                new HashSet<String>(Arrays.asList(directory.getPath())), null);
+        module.setTargetIndexing(targetIndexing, null);
+        return getPDPNewInstance(module);
+    }
+
+    /**
+     * Returns the decision of the first result of a request
+     *
+     * @param pdp  PDP instance
+     * @param request XACML request
+     * @return the decision
+     */
+    public static int getDecision(PDP pdp, AbstractRequestCtx request) {
+        return pdp.evaluate(request).getResults().iterator().next().getDecision();
+    }
+
+    /**
+     * Returns the ids of the policies of a repository that may apply to a request
+     *
+     * @param repository policy repository
+     * @param request XACML request
+     * @return policy ids
+     */
+    public static Set<String> getCandidates(PolicyRepository repository,
+                                            AbstractRequestCtx request) {
+        Set<String> ids = new HashSet<String>();
+        for (AbstractPolicy policy : repository.getCandidates(request)) {
+            ids.add(policy.getId().toString());
+        }
+        return ids;
+    }
+
+    /**
+     * Returns a set of the given values
+     *
+     * @param values values
+     * @return a set
+     */
+    public static Set<String> set(String... values) {
+        return new HashSet<String>(Arrays.asList(values));
+    }
+
+    /**
+     * Returns a set of the given values
+     *
+     * @param values values
+     * @return a set
+     */
+    public static Set<String> set(Collection<String> values) {
+        return new HashSet<String>(values);
+    }
+
     /**
      * This would remove the StatusMessage from the response. Because StatusMessage depends
      * on the how you have defined it with the PDP, Therefore we can not compare it with
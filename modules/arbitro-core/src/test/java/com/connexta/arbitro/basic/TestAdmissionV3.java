@@ -0,0 +1,412 @@
+/*
+ *  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ *  WSO2 Inc. licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except
+ *  in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.connexta.arbitro.basic;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.connexta.arbitro.PDP;
+import com.connexta.arbitro.PDPConfig;
+import com.connexta.arbitro.admission.AdmissionController;
+import com.connexta.arbitro.admission.Lane;
+import com.connexta.arbitro.attr.AttributeValue;
+import com.connexta.arbitro.attr.BagAttribute;
+import com.connexta.arbitro.attr.StringAttribute;
+import com.connexta.arbitro.cond.EvaluationResult;
+import com.connexta.arbitro.ctx.AbstractResult;
+import com.connexta.arbitro.ctx.EvaluationCtx;
+import com.connexta.arbitro.ctx.RequestCtxFactory;
+import com.connexta.arbitro.ctx.ResponseCtx;
+import com.connexta.arbitro.ctx.Status;
+import com.connexta.arbitro.finder.AttributeFinder;
+import com.connexta.arbitro.finder.AttributeFinderModule;
+import com.connexta.arbitro.finder.PolicyFinder;
+import com.connexta.arbitro.finder.PolicyFinderModule;
+import com.connexta.arbitro.finder.impl.FileBasedPolicyFinderModule;
+
+import junit.framework.TestCase;
+
+/**
+ * This would test admitting requests to a PDP by the priority of their lanes
+ */
+public class TestAdmissionV3 extends TestCase {
+
+    private static final String POLICY =
+            "<Policy xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" " +
+            "PolicyId=\"urn:example:admission\" Version=\"1.0\" RuleCombiningAlgId=\"" +
+            "urn:oasis:names:tc:xacml:3.0:rule-combining-algorithm:deny-overrides\">" +
+            "<Target/><Rule RuleId=\"permit\" Effect=\"Permit\"><Condition>" +
+            "<Apply FunctionId=\"urn:oasis:names:tc:xacml:1.0:function:string-is-in\">" +
+            "<AttributeValue DataType=\"http://www.w3.org/2001/XMLSchema#string\">yes" +
+            "</AttributeValue><AttributeDesignator AttributeId=\"urn:example:gate\" " +
+            "Category=\"urn:oasis:names:tc:xacml:3.0:attribute-category:resource\" " +
+            "DataType=\"http://www.w3.org/2001/XMLSchema#string\" MustBePresent=\"false\"/>" +
+            "</Apply></Condition></Rule></Policy>";
+
+    private File directory;
+
+    private GateModule module;
+
+    private PDP pdp;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("policies", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+        FileWriter writer = new FileWriter(new File(directory, "policy.xml"));
+        writer.write(POLICY);
+        writer.close();
+        module = new GateModule();
+        pdp = getPDPNewInstance();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        module.gate.release(1000);
+        new File(directory, "policy.xml").delete();
+        directory.delete();
+    }
+
+    public void testAdmission() throws Exception {
+
+        AdmissionController controller = new AdmissionController(pdp, 2);
+        controller.addLane(new Lane("default", 0, 2, 1000));
+        module.gate.release(1);
+        AbstractResult result = getResult(controller.evaluate(
+                RequestCtxFactory.getFactory().getRequestCtx(getRequest("alice")), "default"));
+        assertEquals(AbstractResult.DECISION_PERMIT, result.getDecision());
+        assertEquals(1, controller.getLane("default").getAdmittedCount());
+        assertEquals(0, controller.getInFlight());
+
+        try {
+            controller.evaluate(getRequest("alice"), "unknown");
+            fail("an unknown lane must be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testShedding() throws Exception {
+
+        AdmissionController controller = new AdmissionController(pdp, 1);
+        controller.addLane(new Lane("interactive", 1, 1, 50));
+        controller.addLane(new Lane("batch", 0, 1, 0));
+
+        Evaluation holder = start(controller, "holder", "interactive");
+        waitFor(controller, 1, 0);
+
+        // a batch request may not wait at all
+        AbstractResult result = getResult(controller.evaluate(
+                RequestCtxFactory.getFactory().getRequestCtx(getRequest("bob")), "batch"));
+        assertOverloaded(result, "no capacity");
+        assertEquals(1, controller.getLane("batch").getShedCount());
+
+        // a shed JSON request is answered in JSON
+        String json = controller.evaluate(getJSONRequest("bob"), "batch");
+        assertTrue(json, json.startsWith("{"));
+        assertTrue(json, json.contains("Indeterminate"));
+        assertTrue(json, json.contains(AdmissionController.STATUS_OVERLOADED));
+
+        // an interactive request is shed once it waited too long
+        String response = controller.evaluate(getRequest("carol"), "interactive");
+        assertTrue(response.contains("Indeterminate"));
+        assertTrue(response.contains(AdmissionController.STATUS_OVERLOADED));
+        assertTrue(response.contains("waited longer than 50 ms"));
+        assertEquals(0, controller.getQueueSize());
+
+        module.gate.release(1);
+        holder.join();
+        assertTrue(holder.response.contains("Permit"));
+    }
+
+    public void testPriority() throws Exception {
+
+        AdmissionController controller = new AdmissionController(pdp, 1);
+        controller.addLane(new Lane("high", 1, 1, 60000));
+        controller.addLane(new Lane("low", 0, 1, 60000));
+
+        Evaluation first = start(controller, "first", "low");
+        waitFor(controller, 1, 0);
+        Evaluation low = start(controller, "low", "low");
+        waitFor(controller, 1, 1);
+        Evaluation high = start(controller, "high", "high");
+        waitFor(controller, 1, 2);
+
+        module.gate.release(3);
+        first.join();
+        low.join();
+        high.join();
+
+        // the request of the high lane overtook the waiting request of the low lane
+        List<String> expected = new ArrayList<String>();
+        expected.add("first");
+        expected.add("high");
+        expected.add("low");
+        assertEquals(expected, module.subjects);
+        assertTrue(low.response.contains("Permit"));
+    }
+
+    public void testLaneConcurrency() throws Exception {
+
+        AdmissionController controller = new AdmissionController(pdp, 2);
+        controller.addLane(new Lane("high", 1, 1, 60000));
+        controller.addLane(new Lane("low", 0, 1, 60000));
+
+        Evaluation first = start(controller, "first", "high");
+        waitFor(controller, 1, 0);
+        Evaluation second = start(controller, "second", "high");
+        waitFor(controller, 1, 1);
+
+        // the high lane is at its limit, so the waiting request does not hold back the low lane
+        Evaluation third = start(controller, "third", "low");
+        waitFor(controller, 2, 1);
+
+        module.gate.release(3);
+        first.join();
+        second.join();
+        third.join();
+        assertEquals(2, controller.getLane("high").getAdmittedCount());
+        assertEquals(1, controller.getLane("low").getAdmittedCount());
+    }
+
+    public void testFullQueue() throws Exception {
+
+        AdmissionController controller = new AdmissionController(pdp, 1, 1);
+        controller.addLane(new Lane("high", 1, 1, 60000));
+        controller.addLane(new Lane("low", 0, 1, 60000));
+
+        Evaluation first = start(controller, "first", "low");
+        waitFor(controller, 1, 0);
+        Evaluation low = start(controller, "low", "low");
+        waitFor(controller, 1, 1);
+
+        // the waiting request of the low lane makes room for the one of the high lane
+        Evaluation high = start(controller, "high", "high");
+        low.join();
+        assertTrue(low.response.contains(AdmissionController.STATUS_OVERLOADED));
+        assertTrue(low.response.contains("higher priority"));
+        waitFor(controller, 1, 1);
+
+        // nothing has a lower priority than the waiting request of the high lane
+        String response = controller.evaluate(getRequest("other"), "low");
+        assertTrue(response.contains("admission queue is full"));
+
+        module.gate.release(2);
+        first.join();
+        high.join();
+        assertTrue(high.response.contains("Permit"));
+        assertEquals(2, controller.getLane("low").getShedCount());
+    }
+
+    public void testReplacedLane() throws Exception {
+
+        AdmissionController controller = new AdmissionController(pdp, 1);
+        controller.addLane(new Lane("default", 0, 1, 60000));
+
+        Evaluation holder = start(controller, "holder", "default");
+        waitFor(controller, 1, 0);
+        Evaluation waiting = start(controller, "waiting", "default");
+        waitFor(controller, 1, 1);
+
+        // the waiting request is not left behind in the old lane
+        controller.addLane(new Lane("default", 0, 1, 60000));
+        waiting.join();
+        assertTrue(waiting.response.contains(AdmissionController.STATUS_OVERLOADED));
+        assertTrue(waiting.response.contains("lane default was replaced"));
+        assertEquals(0, controller.getQueueSize());
+
+        module.gate.release(2);
+        holder.join();
+        assertTrue(holder.response.contains("Permit"));
+        assertTrue(controller.evaluate(getRequest("alice"), "default").contains("Permit"));
+        assertEquals(0, controller.getInFlight());
+    }
+
+    public void testAdaptiveLimit() throws Exception {
+
+        // evaluations are timed with the clock of the module, which only moves while it finds
+        // attributes
+        final AtomicLong clock = module.clock;
+        AdmissionController controller = new AdmissionController(pdp, 2) {
+            @Override
+            protected long nanoTime() {
+                return clock.get();
+            }
+        };
+        controller.addLane(new Lane("default", 0, 100, 1000));
+        controller.setAdaptiveLimit(1, 8);
+        module.gate.release(1000);
+
+        // fast evaluations raise the limit up to the highest limit
+        module.delay = 5;
+        for (int i = 0; i < 100; i++) {
+            controller.evaluate(getRequest("alice"), "default");
+        }
+        assertEquals(8, controller.getLimit());
+
+        // slow evaluations lower it again
+        module.delay = 50;
+        for (int i = 0; i < 20; i++) {
+            controller.evaluate(getRequest("alice"), "default");
+        }
+        assertTrue(controller.getLimit() < 8);
+        assertTrue(controller.getLimit() >= 1);
+    }
+
+    private static void assertOverloaded(AbstractResult result, String message) {
+        assertEquals(AbstractResult.DECISION_INDETERMINATE, result.getDecision());
+        List<String> code = result.getStatus().getCode();
+        assertEquals(Status.STATUS_PROCESSING_ERROR, code.get(0));
+        assertEquals(AdmissionController.STATUS_OVERLOADED, code.get(1));
+        assertTrue(result.getStatus().getMessage().contains(message));
+    }
+
+    private static void waitFor(AdmissionController controller, int inFlight, int queued)
+            throws InterruptedException {
+        long end = System.currentTimeMillis() + 10000;
+        while (controller.getInFlight() != inFlight || controller.getQueueSize() != queued) {
+            assertTrue("admission state not reached", System.currentTimeMillis() < end);
+            Thread.sleep(5);
+        }
+    }
+
+    private Evaluation start(AdmissionController controller, String subject, String lane) {
+        Evaluation evaluation = new Evaluation(controller, subject, lane);
+        evaluation.start();
+        return evaluation;
+    }
+
+    private static AbstractResult getResult(ResponseCtx response) {
+        return response.getResults().iterator().next();
+    }
+
+    private static String getJSONRequest(String subject) {
+        return "{\"Request\":{\"AccessSubject\":{\"Attribute\":[" +
+            "{\"AttributeId\":\"urn:oasis:names:tc:xacml:1.0:subject:subject-id\"," +
+            "\"Value\":\"" + subject + "\"}]}}}";
+    }
+
+    private static String getRequest(String subject) {
+        return "<Request xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" " +
+            "CombinedDecision=\"false\" ReturnPolicyIdList=\"false\">" +
+            "<Attributes Category=\"urn:oasis:names:tc:xacml:1.0:subject-category:access-subject\">" +
+            "<Attribute AttributeId=\"urn:oasis:names:tc:xacml:1.0:subject:subject-id\" " +
+            "IncludeInResult=\"false\"><AttributeValue " +
+            "DataType=\"http://www.w3.org/2001/XMLSchema#string\">" + subject + "</AttributeValue>" +
+            "</Attribute></Attributes>" +
+            "<Attributes Category=\"urn:oasis:names:tc:xacml:3.0:attribute-category:resource\">" +
+            "<Attribute AttributeId=\"urn:oasis:names:tc:xacml:1.0:resource:resource-id\" " +
+            "IncludeInResult=\"false\"><AttributeValue " +
+            "DataType=\"http://www.w3.org/2001/XMLSchema#string\">report</AttributeValue>" +
+            "</Attribute></Attributes></Request>";
+    }
+
+    /**
+     * Returns a new PDP instance that loads the test policy and finds attributes through the gate
+     *
+     * @return a  PDP instance
+     */
+    private PDP getPDPNewInstance() {
+
+        PolicyFinder finder = new PolicyFinder();
+        Set<String> policyLocations = new HashSet<String>();
+        policyLocations.add(directory.getPath());
+        Set<PolicyFinderModule> policyModules = new HashSet<PolicyFinderModule>();
+        policyModules.add(new FileBasedPolicyFinderModule(policyLocations, null));
+        finder.setModules(policyModules);
+
+        AttributeFinder attributeFinder = new AttributeFinder();
+        List<AttributeFinderModule> modules = new ArrayList<AttributeFinderModule>();
+        modules.add(module);
+        attributeFinder.setModules(modules);
+
+        return new PDP(new PDPConfig(attributeFinder, finder, null, false));
+    }
+
+    /**
+     * A thread that evaluates a request of a subject in a lane
+     */
+    private static class Evaluation extends Thread {
+
+        private AdmissionController controller;
+        private String subject;
+        private String lane;
+        private volatile String response;
+
+        Evaluation(AdmissionController controller, String subject, String lane) {
+            this.controller = controller;
+            this.subject = subject;
+            this.lane = lane;
+        }
+
+        @Override
+        public void run() {
+            response = controller.evaluate(getRequest(subject), lane);
+        }
+    }
+
+    /**
+     * An attribute finder module that records the subject of every request and then waits for
+     * a permit of its gate, before it moves its clock on by its delay and finds the value "yes"
+     * for any attribute
+     */
+    public static class GateModule extends AttributeFinderModule {
+
+        private Semaphore gate = new Semaphore(0);
+
+        private volatile long delay;
+
+        private AtomicLong clock = new AtomicLong();
+
+        private List<String> subjects = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public boolean isDesignatorSupported() {
+            return true;
+        }
+
+        @Override
+        public EvaluationResult findAttribute(URI attributeType, URI attributeId, String issuer,
+                                              URI category, EvaluationCtx context) {
+            BagAttribute subject = (BagAttribute) context.getAttribute(
+                    URI.create("http://www.w3.org/2001/XMLSchema#string"),
+                    URI.create("urn:oasis:names:tc:xacml:1.0:subject:subject-id"), null,
+                    URI.create("urn:oasis:names:tc:xacml:1.0:subject-category:access-subject"))
+                    .getAttributeValue();
+            subjects.add(((AttributeValue) subject.iterator().next()).encode());
+            try {
+                gate.acquire();
+                clock.addAndGet(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            List<AttributeValue> values = new ArrayList<AttributeValue>();
+            values.add(new StringAttribute("yes"));
+            return new EvaluationResult(new BagAttribute(attributeType, values));
+        }
+    }
+}
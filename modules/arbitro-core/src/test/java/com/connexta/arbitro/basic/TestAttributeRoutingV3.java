@@ -0,0 +1,157 @@
+/*
+ *  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ *  WSO2 Inc. licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except
+ *  in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.connexta.arbitro.basic;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.connexta.arbitro.PDPConfig;
+import com.connexta.arbitro.attr.AttributeValue;
+import com.connexta.arbitro.attr.BagAttribute;
+import com.connexta.arbitro.attr.StringAttribute;
+import com.connexta.arbitro.cond.EvaluationResult;
+import com.connexta.arbitro.ctx.EvaluationCtx;
+import com.connexta.arbitro.ctx.EvaluationCtxFactory;
+import com.connexta.arbitro.ctx.RequestCtxFactory;
+import com.connexta.arbitro.finder.AttributeFinder;
+import com.connexta.arbitro.finder.AttributeFinderModule;
+import com.connexta.arbitro.finder.PolicyFinder;
+
+import junit.framework.TestCase;
+
+/**
+ * This would test that attribute lookups only ask the modules that may resolve the attribute
+ */
+public class TestAttributeRoutingV3 extends TestCase {
+
+    private static final String SUBJECT = "urn:oasis:names:tc:xacml:1.0:subject-category:access-subject";
+
+    private static final String RESOURCE = "urn:oasis:names:tc:xacml:3.0:attribute-category:resource";
+
+    // the names of the modules that were asked, in order
+    private List<String> calls = new ArrayList<String>();
+
+    public void testRouting() throws Exception {
+
+        RecordingModule roles = new RecordingModule("roles", SUBJECT, "urn:example:role");
+        RecordingModule any = new RecordingModule("any", null, (String[]) null);
+        RecordingModule groups = new RecordingModule("groups", SUBJECT, "urn:example:role",
+                "urn:example:group");
+        AttributeFinder attributeFinder = new AttributeFinder();
+        attributeFinder.setModules(Arrays.<AttributeFinderModule>asList(roles, any, groups));
+        EvaluationCtx context = getContext(attributeFinder);
+
+        // the values of every module that may resolve the attribute are combined
+        EvaluationResult result = findAttribute(attributeFinder, SUBJECT, "urn:example:role",
+                context);
+        assertEquals(Arrays.asList("roles", "any", "groups"), calls);
+        assertEquals(3, ((BagAttribute) result.getAttributeValue()).size());
+
+        calls.clear();
+        findAttribute(attributeFinder, SUBJECT, "urn:example:group", context);
+        assertEquals(Arrays.asList("any", "groups"), calls);
+
+        calls.clear();
+        findAttribute(attributeFinder, RESOURCE, "urn:example:role", context);
+        assertEquals(Arrays.asList("any"), calls);
+
+        // the supported categories and ids are only asked for when the modules are set
+        assertEquals(1, roles.supportedCalls.get());
+        assertEquals(1, groups.supportedCalls.get());
+
+        // the modules can be replaced
+        attributeFinder.setModules(Arrays.<AttributeFinderModule>asList(groups));
+        calls.clear();
+        findAttribute(attributeFinder, SUBJECT, "urn:example:role", context);
+        findAttribute(attributeFinder, RESOURCE, "urn:example:role", context);
+        assertEquals(Arrays.asList("groups"), calls);
+        assertEquals(1, attributeFinder.getModules().size());
+    }
+
+    private static EvaluationResult findAttribute(AttributeFinder attributeFinder,
+                                                  String category, String attributeId,
+                                                  EvaluationCtx context) throws Exception {
+        return attributeFinder.findAttribute(new URI(StringAttribute.identifier),
+                new URI(attributeId), null, new URI(category), context);
+    }
+
+    private static EvaluationCtx getContext(AttributeFinder attributeFinder) throws Exception {
+        String request = "<Request xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" " +
+                "CombinedDecision=\"false\" ReturnPolicyIdList=\"false\">" +
+                "<Attributes Category=\"" + SUBJECT + "\">" +
+                "<Attribute AttributeId=\"urn:oasis:names:tc:xacml:1.0:subject:subject-id\" " +
+                "IncludeInResult=\"false\"><AttributeValue " +
+                "DataType=\"http://www.w3.org/2001/XMLSchema#string\">alice" +
+                "</AttributeValue></Attribute></Attributes></Request>";
+        PDPConfig pdpConfig = new PDPConfig(attributeFinder, new PolicyFinder(), null, false);
+        return EvaluationCtxFactory.getFactory().getEvaluationCtx(
+                RequestCtxFactory.getFactory().getRequestCtx(request), pdpConfig);
+    }
+
+    /**
+     * An attribute finder module that records when it is asked for an attribute
+     */
+    private class RecordingModule extends AttributeFinderModule {
+
+        private String name;
+
+        private Set<String> categories;
+
+        private Set<String> ids;
+
+        private AtomicInteger supportedCalls = new AtomicInteger();
+
+        RecordingModule(String name, String category, String... ids) {
+            this.name = name;
+            if (category != null) {
+                this.categories = new HashSet<String>(Arrays.asList(category));
+                this.ids = new HashSet<String>(Arrays.asList(ids));
+            }
+        }
+
+        @Override
+        public boolean isDesignatorSupported() {
+            return true;
+        }
+
+        @Override
+        public Set<String> getSupportedCategories() {
+            return categories;
+        }
+
+        @Override
+        public Set<String> getSupportedIds() {
+            supportedCalls.incrementAndGet();
+            return ids;
+        }
+
+        @Override
+        public EvaluationResult findAttribute(URI attributeType, URI attributeId, String issuer,
+                                              URI category, EvaluationCtx context) {
+            calls.add(name);
+            List<AttributeValue> values = new ArrayList<AttributeValue>();
+            values.add(new StringAttribute(name));
+            return new EvaluationResult(new BagAttribute(attributeType, values));
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ *  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ *  WSO2 Inc. licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except
+ *  in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.connexta.arbitro.basic;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import com.connexta.arbitro.Balana;
+import com.connexta.arbitro.PDP;
+import com.connexta.arbitro.PDPConfig;
+import com.connexta.arbitro.TestConstants;
+import com.connexta.arbitro.TestUtil;
+import com.connexta.arbitro.audit.AsyncAuditLog;
+import com.connexta.arbitro.audit.AuditLogReader;
+import com.connexta.arbitro.audit.DecisionAuditor;
+import com.connexta.arbitro.audit.DecisionRecord;
+import com.connexta.arbitro.ctx.AbstractResult;
+import com.connexta.arbitro.ctx.RequestCtxFactory;
+import com.connexta.arbitro.finder.PolicyFinder;
+import com.connexta.arbitro.finder.PolicyFinderModule;
+import com.connexta.arbitro.finder.impl.FileBasedPolicyFinderModule;
+
+import junit.framework.TestCase;
+
+/**
+ * This would test the asynchronous audit log of decisions
+ */
+public class TestAuditLogV3 extends TestCase {
+
+    /**
+     * directory name that states the test type
+     */
+    private final static String ROOT_DIRECTORY = "conformance";
+
+    /**
+     * directory name that states XACML version
+     */
+    private final static String VERSION_DIRECTORY = "3";
+
+    public void testAuditLog() throws Exception {
+
+        File directory = createDirectory();
+        try {
+            // small files, so that the log is rotated
+            AsyncAuditLog log = new AsyncAuditLog(directory, "audit", 1024, 16,
+                    AsyncAuditLog.OVERFLOW_BLOCK);
+            PDP pdp = getPDPNewInstance(log);
+
+            String[] requests = new File(TestUtil.getDirectory(ROOT_DIRECTORY, VERSION_DIRECTORY,
+                    TestConstants.REQUEST_DIRECTORY)).list();
+            Arrays.sort(requests);
+            int count = 0;
+            String first = null;
+            for (String requestId : requests) {
+                String request = TestUtil.createRequest(ROOT_DIRECTORY, VERSION_DIRECTORY, requestId);
+                if (request != null) {
+                    pdp.evaluate(request);
+                    count++;
+                    if (first == null) {
+                        first = request;
+                    }
+                }
+            }
+            pdp.evaluate(first);
+            count++;
+            log.close();
+
+            assertEquals(count, log.getWrittenCount());
+            assertEquals(0, log.getDroppedCount());
+            File[] files = AsyncAuditLog.getLogFiles(directory, "audit");
+            assertTrue(files.length > 1);
+
+            List<DecisionRecord> records = read(files);
+            assertEquals(count, records.size());
+            for (DecisionRecord record : records) {
+                assertEquals(AbstractResult.DECISION_DENY, record.getDecision());
+                assertEquals(32, record.getRequestDigest().length);
+                assertFalse(record.getPolicyIds().isEmpty());
+            }
+            // the same request has the same digest
+            assertTrue(Arrays.equals(records.get(0).getRequestDigest(),
+                    records.get(count - 1).getRequestDigest()));
+            assertFalse(Arrays.equals(records.get(0).getRequestDigest(),
+                    records.get(1).getRequestDigest()));
+
+            // a new log continues after the existing files, and keeps only the newest ones
+            log = new AsyncAuditLog(directory, "audit", 1024, 16, AsyncAuditLog.OVERFLOW_BLOCK);
+            log.setMaxFiles(2);
+            for (int i = 0; i < 50; i++) {
+                log.audit(records.get(i % count));
+            }
+            log.close();
+            File[] newFiles = AsyncAuditLog.getLogFiles(directory, "audit");
+            assertEquals(2, newFiles.length);
+            assertTrue(newFiles[0].getName().compareTo(files[files.length - 1].getName()) > 0);
+        } finally {
+            delete(directory);
+        }
+    }
+
+    public void testOverflow() throws Exception {
+
+        File directory = createDirectory();
+        try {
+            DecisionRecord record = new DecisionRecord(System.currentTimeMillis(), new byte[32],
+                    AbstractResult.DECISION_PERMIT, Collections.singletonList("policy"),
+                    Collections.<String>emptyList());
+
+            // every record is either written or dropped
+            AsyncAuditLog log = new AsyncAuditLog(directory, "drop", 4096, 2,
+                    AsyncAuditLog.OVERFLOW_DROP);
+            for (int i = 0; i < 10000; i++) {
+                log.audit(record);
+            }
+            log.close();
+            assertEquals(10000, log.getWrittenCount() + log.getDroppedCount());
+            assertEquals(log.getWrittenCount(),
+                    read(AsyncAuditLog.getLogFiles(directory, "drop")).size());
+
+            // nothing is dropped when blocking
+            log = new AsyncAuditLog(directory, "block", 4096, 2, AsyncAuditLog.OVERFLOW_BLOCK);
+            for (int i = 0; i < 10000; i++) {
+                log.audit(record);
+            }
+            log.close();
+            assertEquals(10000, log.getWrittenCount());
+            List<DecisionRecord> records = read(AsyncAuditLog.getLogFiles(directory, "block"));
+            assertEquals(10000, records.size());
+            assertEquals(record.toString(), records.get(9999).toString());
+
+            // records handed off after closing are dropped
+            log.audit(record);
+            assertEquals(1, log.getDroppedCount());
+        } finally {
+            delete(directory);
+        }
+    }
+
+    public void testContentDigest() throws Exception {
+
+        // the names and attributes of the elements of the content are hashed, in any order
+        byte[] digest = getDigest("<a x=\"1\" y=\"2\"/>");
+        assertTrue(Arrays.equals(digest, getDigest("<a y=\"2\" x=\"1\"/>")));
+        assertFalse(Arrays.equals(digest, getDigest("<b/>")));
+        assertFalse(Arrays.equals(getDigest("<a x=\"1\"/>"), getDigest("<b/>")));
+        assertFalse(Arrays.equals(getDigest("<a>text</a>"), getDigest("<b>text</b>")));
+        assertFalse(Arrays.equals(getDigest("<a x=\"1\"/>"), getDigest("<a x=\"2\"/>")));
+    }
+
+    public void testCloseWhileAuditing() throws Exception {
+
+        File directory = createDirectory();
+        try {
+            final DecisionRecord record = new DecisionRecord(System.currentTimeMillis(),
+                    new byte[32], AbstractResult.DECISION_PERMIT,
+                    Collections.singletonList("policy"), Collections.<String>emptyList());
+            final AsyncAuditLog log = new AsyncAuditLog(directory, "close", 4096, 64,
+                    AsyncAuditLog.OVERFLOW_BLOCK);
+            final int perThread = 5000;
+            final CountDownLatch started = new CountDownLatch(4);
+            Thread[] threads = new Thread[4];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread() {
+                    public void run() {
+                        started.countDown();
+                        for (int j = 0; j < perThread; j++) {
+                            log.audit(record);
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            started.await();
+            log.close();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            // every record handed off while closing is either written or counted as dropped
+            assertEquals(threads.length * perThread, log.getWrittenCount() + log.getDroppedCount());
+            assertEquals(log.getWrittenCount(),
+                    read(AsyncAuditLog.getLogFiles(directory, "close")).size());
+        } finally {
+            delete(directory);
+        }
+    }
+
+    private static List<DecisionRecord> read(File[] files) throws Exception {
+        List<DecisionRecord> records = new ArrayList<DecisionRecord>();
+        for (File file : files) {
+            AuditLogReader reader = new AuditLogReader(file);
+            try {
+                DecisionRecord record;
+                while ((record = reader.next()) != null) {
+                    records.add(record);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return records;
+    }
+
+    private static File createDirectory() throws Exception {
+        File directory = File.createTempFile("audit", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+        return directory;
+    }
+
+    private static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * Returns the request digest of the record of a request with the given content
+     */
+    private static byte[] getDigest(String content) throws Exception {
+        String request = "<Request xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" " +
+                "CombinedDecision=\"false\" ReturnPolicyIdList=\"false\"><Attributes " +
+                "Category=\"urn:oasis:names:tc:xacml:3.0:attribute-category:resource\">" +
+                "<Content>" + content + "</Content></Attributes></Request>";
+        return new DecisionRecord(RequestCtxFactory.getFactory().getRequestCtx(request),
+                AbstractResult.DECISION_PERMIT, Collections.<String>emptyList(),
+                Collections.<String>emptyList()).getRequestDigest();
+    }
+
+    /**
+     * Returns a new PDP instance that loads all conformance policies and audits its decisions
+     *
+     * @param auditor the decision auditor
+     * @return a  PDP instance
+     * @throws Exception if the policy directory can not be found
+     */
+    private static PDP getPDPNewInstance(DecisionAuditor auditor) throws Exception {
+
+        PolicyFinder finder = new PolicyFinder();
+        Set<String> policyLocations = new HashSet<String>();
+        policyLocations.add(TestUtil.getDirectory(ROOT_DIRECTORY, VERSION_DIRECTORY,
+                TestConstants.POLICY_DIRECTORY));
+        FileBasedPolicyFinderModule testPolicyFinderModule =
+                new FileBasedPolicyFinderModule(policyLocations, null);
+        Set<PolicyFinderModule> policyModules = new HashSet<PolicyFinderModule>();
+        policyModules.add(testPolicyFinderModule);
+        finder.setModules(policyModules);
+
+        PDPConfig pdpConfig = Balana.getInstance().getPdpConfig();
+        pdpConfig = new PDPConfig(pdpConfig.getAttributeFinder(), finder,
+                pdpConfig.getResourceFinder(), false);
+        pdpConfig.setDecisionAuditor(auditor);
+        return new PDP(pdpConfig);
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ *  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ *  WSO2 Inc. licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except
+ *  in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.connexta.arbitro.basic;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.connexta.arbitro.PDPConfig;
+import com.connexta.arbitro.attr.AttributeValue;
+import com.connexta.arbitro.attr.BagAttribute;
+import com.connexta.arbitro.attr.StringAttribute;
+import com.connexta.arbitro.cond.EvaluationResult;
+import com.connexta.arbitro.ctx.EvaluationCtx;
+import com.connexta.arbitro.ctx.EvaluationCtxFactory;
+import com.connexta.arbitro.ctx.RequestCtxFactory;
+import com.connexta.arbitro.ctx.Status;
+import com.connexta.arbitro.finder.AttributeFinder;
+import com.connexta.arbitro.finder.AttributeFinderModule;
+import com.connexta.arbitro.finder.PolicyFinder;
+
+import junit.framework.TestCase;
+
+/**
+ * This would test the coalescing of identical attribute lookups made at the same time
+ */
+public class TestCoalescingV3 extends TestCase {
+
+    private static final String CATEGORY = "urn:oasis:names:tc:xacml:3.0:attribute-category:resource";
+
+    private static final Map<String, Set<String>> SUBJECT_ID = Collections.singletonMap(
+            "urn:oasis:names:tc:xacml:1.0:subject-category:access-subject",
+            Collections.singleton("urn:oasis:names:tc:xacml:1.0:subject:subject-id"));
+
+    private BlockingModule module;
+
+    private AttributeFinder attributeFinder;
+
+    @Override
+    protected void setUp() throws Exception {
+        module = new BlockingModule();
+        attributeFinder = new AttributeFinder();
+        List<AttributeFinderModule> modules = new ArrayList<AttributeFinderModule>();
+        modules.add(module);
+        attributeFinder.setModules(modules);
+        attributeFinder.setCoalescing(true);
+        module.finder = attributeFinder;
+    }
+
+    public void testCoalescing() throws Exception {
+
+        Lookup[] lookups = startLookups("alice", "alice", "alice", "alice");
+        awaitLookups(1, 3);
+        finishLookups(lookups);
+
+        assertEquals(1, module.calls.get());
+        for (Lookup lookup : lookups) {
+            assertFalse(lookup.result.indeterminate());
+            assertEquals(1, ((BagAttribute) lookup.result.getAttributeValue()).size());
+        }
+
+        // nothing is kept once the lookup is over
+        findAttribute(getContext("alice"));
+        assertEquals(2, module.calls.get());
+    }
+
+    public void testDifferentRequests() throws Exception {
+
+        Lookup[] lookups = startLookups("alice", "bob");
+        awaitLookups(2, 0);
+        finishLookups(lookups);
+        assertEquals(2, module.calls.get());
+
+        // unless the module only depends on what the requests have in common
+        module.dependencies = Collections.emptyMap();
+        module.blocked = new CountDownLatch(1);
+        lookups = startLookups("alice", "bob");
+        awaitLookups(3, 1);
+        finishLookups(lookups);
+        assertEquals(3, module.calls.get());
+
+        // other parts of the request do not matter
+        module.dependencies = SUBJECT_ID;
+        module.blocked = new CountDownLatch(1);
+        lookups = new Lookup[] {new Lookup(getContext("alice", "read")),
+                new Lookup(getContext("alice", "write"))};
+        for (Lookup lookup : lookups) {
+            lookup.start();
+        }
+        awaitLookups(4, 2);
+        finishLookups(lookups);
+    }
+
+    public void testUnknownDependencies() throws Exception {
+
+        // a module that does not say what it depends on is never coalesced
+        module.dependencies = null;
+        Lookup[] lookups = startLookups("alice", "alice");
+        awaitLookups(2, 0);
+        finishLookups(lookups);
+        assertEquals(2, module.calls.get());
+    }
+
+    public void testReentrantLookup() throws Exception {
+
+        // the module looks up the same attribute for the same request while it is looked up,
+        // which must not wait for itself
+        module.blocked = new CountDownLatch(0);
+        module.reentrant = true;
+        EvaluationResult result = findAttribute(getContext("alice"));
+        assertFalse(result.indeterminate());
+        assertEquals(2, module.calls.get());
+        assertEquals(0, attributeFinder.getCoalescedLookups());
+    }
+
+    public void testErrors() throws Exception {
+
+        module.failing = true;
+        Lookup[] lookups = startLookups("alice", "alice");
+        awaitLookups(1, 1);
+        finishLookups(lookups);
+        for (Lookup lookup : lookups) {
+            assertTrue(lookup.result.indeterminate());
+            assertEquals("the source is down", lookup.result.getStatus().getMessage());
+        }
+
+        module.failing = false;
+        module.throwing = true;
+        module.blocked = new CountDownLatch(1);
+        lookups = startLookups("alice", "alice");
+        awaitLookups(2, 2);
+        finishLookups(lookups);
+        for (Lookup lookup : lookups) {
+            assertNull(lookup.result);
+            assertEquals("the source is broken", lookup.failure.getMessage());
+        }
+    }
+
+    public void testNoCoalescing() throws Exception {
+
+        attributeFinder.setCoalescing(false);
+        Lookup[] lookups = startLookups("alice", "alice", "alice");
+        awaitLookups(3, 0);
+        finishLookups(lookups);
+        assertEquals(3, module.calls.get());
+    }
+
+    /**
+     * Waits until the module was called and lookups waited for others the given number of times
+     */
+    private void awaitLookups(int calls, long coalesced) throws InterruptedException {
+        while (module.calls.get() < calls || attributeFinder.getCoalescedLookups() < coalesced) {
+            Thread.sleep(1);
+        }
+        assertEquals(calls, module.calls.get());
+        assertEquals(coalesced, attributeFinder.getCoalescedLookups());
+    }
+
+    private Lookup[] startLookups(String... subjects) throws Exception {
+        Lookup[] lookups = new Lookup[subjects.length];
+        for (int i = 0; i < subjects.length; i++) {
+            lookups[i] = new Lookup(getContext(subjects[i]));
+            lookups[i].start();
+        }
+        return lookups;
+    }
+
+    private void finishLookups(Lookup[] lookups) throws InterruptedException {
+        module.blocked.countDown();
+        for (Lookup lookup : lookups) {
+            lookup.join();
+        }
+    }
+
+    private EvaluationResult findAttribute(EvaluationCtx context) throws Exception {
+        return attributeFinder.findAttribute(new URI(StringAttribute.identifier),
+                new URI("urn:example:blocking"), null, new URI(CATEGORY), context);
+    }
+
+    private EvaluationCtx getContext(String subject) throws Exception {
+        return getContext(subject, "read");
+    }
+
+    private EvaluationCtx getContext(String subject, String action) throws Exception {
+        String request = "<Request xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" " +
+                "CombinedDecision=\"false\" ReturnPolicyIdList=\"false\">" +
+                "<Attributes Category=\"urn:oasis:names:tc:xacml:1.0:subject-category:access-subject\">" +
+                "<Attribute AttributeId=\"urn:oasis:names:tc:xacml:1.0:subject:subject-id\" " +
+                "IncludeInResult=\"false\"><AttributeValue " +
+                "DataType=\"http://www.w3.org/2001/XMLSchema#string\">" + subject +
+                "</AttributeValue></Attribute></Attributes>" +
+                "<Attributes Category=\"urn:oasis:names:tc:xacml:3.0:attribute-category:action\">" +
+                "<Attribute AttributeId=\"urn:oasis:names:tc:xacml:1.0:action:action-id\" " +
+                "IncludeInResult=\"false\"><AttributeValue " +
+                "DataType=\"http://www.w3.org/2001/XMLSchema#string\">" + action +
+                "</AttributeValue></Attribute></Attributes></Request>";
+        PDPConfig pdpConfig = new PDPConfig(attributeFinder, new PolicyFinder(), null, false);
+        return EvaluationCtxFactory.getFactory().getEvaluationCtx(
+                RequestCtxFactory.getFactory().getRequestCtx(request), pdpConfig);
+    }
+
+    /**
+     * A lookup made in its own thread
+     */
+    private class Lookup extends Thread {
+
+        private EvaluationCtx context;
+
+        private EvaluationResult result;
+
+        private RuntimeException failure;
+
+        Lookup(EvaluationCtx context) {
+            this.context = context;
+        }
+
+        public void run() {
+            try {
+                result = findAttribute(context);
+            } catch (RuntimeException e) {
+                failure = e;
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * An attribute finder module that blocks until it is released
+     */
+    public static class BlockingModule extends AttributeFinderModule {
+
+        private volatile CountDownLatch blocked = new CountDownLatch(1);
+
+        private volatile boolean failing;
+
+        private volatile boolean throwing;
+
+        private volatile boolean reentrant;
+
+        private AttributeFinder finder;
+
+        private volatile Map<String, Set<String>> dependencies = SUBJECT_ID;
+
+        private AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public boolean isDesignatorSupported() {
+            return true;
+        }
+
+        @Override
+        public Map<String, Set<String>> getRequestDependencies() {
+            return dependencies;
+        }
+
+        @Override
+        public EvaluationResult findAttribute(URI attributeType, URI attributeId, String issuer,
+                                              URI category, EvaluationCtx context) {
+            if (calls.incrementAndGet() == 1 && reentrant) {
+                return finder.findAttribute(attributeType, attributeId, issuer, category, context);
+            }
+            try {
+                blocked.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (throwing) {
+                throw new IllegalStateException("the source is broken");
+            }
+            if (failing) {
+                ArrayList<String> code = new ArrayList<String>();
+                code.add(Status.STATUS_PROCESSING_ERROR);
+                return new EvaluationResult(new Status(code, "the source is down"));
+            }
+            List<AttributeValue> values = new ArrayList<AttributeValue>();
+            values.add(new StringAttribute("yes"));
+            return new EvaluationResult(new BagAttribute(attributeType, values));
+        }
+    }
+}
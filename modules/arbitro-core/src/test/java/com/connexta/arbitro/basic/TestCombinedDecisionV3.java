@@ -0,0 +1,242 @@
+/*
+ *  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ *  WSO2 Inc. licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except
+ *  in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.connexta.arbitro.basic;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.connexta.arbitro.PDP;
+import com.connexta.arbitro.PDPConfig;
+import com.connexta.arbitro.attr.AttributeValue;
+import com.connexta.arbitro.attr.BagAttribute;
+import com.connexta.arbitro.cond.EvaluationResult;
+import com.connexta.arbitro.ctx.AbstractResult;
+import com.connexta.arbitro.ctx.EvaluationCtx;
+import com.connexta.arbitro.ctx.RequestCtxFactory;
+import com.connexta.arbitro.ctx.ResponseCtx;
+import com.connexta.arbitro.ctx.Status;
+import com.connexta.arbitro.ctx.xacml3.RequestCtx;
+import com.connexta.arbitro.ctx.xacml3.XACML3EvaluationCtx;
+import com.connexta.arbitro.finder.AttributeFinder;
+import com.connexta.arbitro.finder.AttributeFinderModule;
+import com.connexta.arbitro.finder.PolicyFinder;
+import com.connexta.arbitro.finder.PolicyFinderModule;
+import com.connexta.arbitro.finder.impl.FileBasedPolicyFinderModule;
+import com.connexta.arbitro.xacml3.MultipleCtxResult;
+
+import junit.framework.TestCase;
+
+/**
+ * This would test combining the decisions of the individual requests of a multiple decision
+ * request in to a single decision
+ */
+public class TestCombinedDecisionV3 extends TestCase {
+
+    private static final String STRING = "http://www.w3.org/2001/XMLSchema#string";
+
+    private static final String ACTION = "urn:oasis:names:tc:xacml:3.0:attribute-category:action";
+
+    private static final String POLICY =
+            "<Policy xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" " +
+            "PolicyId=\"urn:example:combined\" Version=\"1.0\" RuleCombiningAlgId=\"" +
+            "urn:oasis:names:tc:xacml:3.0:rule-combining-algorithm:deny-overrides\">" +
+            "<Target/>" +
+            getRule("read", "Permit", "read", "") +
+            getRule("delete", "Deny", "delete", "") +
+            getRule("write", "Permit", "write", "<ObligationExpressions>" +
+                    "<ObligationExpression ObligationId=\"urn:example:log\" FulfillOn=\"Permit\"/>" +
+                    "</ObligationExpressions>") +
+            // the clearance is never found, so the rule is Indeterminate
+            "<Rule RuleId=\"approve\" Effect=\"Permit\">" + getTarget("approve") +
+            "<Condition><Apply FunctionId=\"urn:oasis:names:tc:xacml:1.0:function:" +
+            "string-is-in\"><AttributeValue DataType=\"" + STRING + "\">high</AttributeValue>" +
+            "<AttributeDesignator AttributeId=\"urn:example:clearance\" Category=\"" +
+            "urn:oasis:names:tc:xacml:1.0:subject-category:access-subject\" DataType=\"" +
+            STRING + "\" MustBePresent=\"true\"/></Apply></Condition></Rule>" +
+            "</Policy>";
+
+    private File directory;
+
+    private CountingModule module;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("policies", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+        FileWriter writer = new FileWriter(new File(directory, "policy.xml"));
+        writer.write(POLICY);
+        writer.close();
+        module = new CountingModule();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        new File(directory, "policy.xml").delete();
+        directory.delete();
+    }
+
+    public void testSameDecisions() throws Exception {
+
+        AbstractResult result = evaluate("read", "read");
+        assertEquals(AbstractResult.DECISION_PERMIT, result.getDecision());
+        assertEquals(Status.STATUS_OK, result.getStatus().getCode().get(0));
+        assertTrue(result.getObligations().isEmpty());
+
+        assertEquals(AbstractResult.DECISION_DENY, evaluate("delete", "delete").getDecision());
+        assertEquals(AbstractResult.DECISION_NOT_APPLICABLE,
+                evaluate("list", "list").getDecision());
+    }
+
+    public void testDifferentDecisions() throws Exception {
+
+        AbstractResult result = evaluate("read", "delete");
+        assertEquals(AbstractResult.DECISION_INDETERMINATE, result.getDecision());
+        assertEquals(Status.STATUS_PROCESSING_ERROR, result.getStatus().getCode().get(0));
+    }
+
+    public void testObligations() throws Exception {
+
+        // a combined decision never carries obligations, so decisions with obligations can not
+        // be combined even if they are the same
+        AbstractResult result = evaluate("write", "write");
+        assertEquals(AbstractResult.DECISION_INDETERMINATE, result.getDecision());
+        assertEquals(Status.STATUS_PROCESSING_ERROR, result.getStatus().getCode().get(0));
+        assertTrue(result.getObligations() == null || result.getObligations().isEmpty());
+
+        result = evaluate("read", "write", "read");
+        assertEquals(AbstractResult.DECISION_INDETERMINATE, result.getDecision());
+        assertTrue(result.getObligations() == null || result.getObligations().isEmpty());
+    }
+
+    public void testEarlyTermination() throws Exception {
+
+        // the first individual decision is Indeterminate, so no other request is evaluated and
+        // the clearance is looked up only once
+        AbstractResult result = evaluate("approve", "approve", "approve", "approve", "approve");
+        assertEquals(AbstractResult.DECISION_INDETERMINATE, result.getDecision());
+        assertEquals(1, module.calls.get());
+    }
+
+    public void testNoIndividualRequests() throws Exception {
+
+        PDP pdp = getPDPNewInstance();
+        RequestCtx request = (RequestCtx) RequestCtxFactory.getFactory().getRequestCtx(
+                "<Request xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" " +
+                "CombinedDecision=\"true\" ReturnPolicyIdList=\"false\"><Attributes " +
+                "Category=\"" + ACTION + "\"/></Request>");
+        // a context of which the multiple decision profile finds no individual requests
+        XACML3EvaluationCtx context = new XACML3EvaluationCtx(request, null) {
+            @Override
+            public MultipleCtxResult getMultipleEvaluationCtx() {
+                return new MultipleCtxResult(new HashSet<EvaluationCtx>());
+            }
+        };
+        ResponseCtx response = pdp.evaluate(context);
+        AbstractResult result = response.getResults().iterator().next();
+        assertEquals(AbstractResult.DECISION_INDETERMINATE, result.getDecision());
+        assertEquals(Status.STATUS_PROCESSING_ERROR, result.getStatus().getCode().get(0));
+        assertTrue(response.encode().contains("Indeterminate"));
+    }
+
+    private AbstractResult evaluate(String... actions) throws Exception {
+        StringBuilder request = new StringBuilder();
+        request.append("<Request xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" " +
+                "CombinedDecision=\"true\" ReturnPolicyIdList=\"false\">" +
+                "<Attributes Category=\"" +
+                "urn:oasis:names:tc:xacml:1.0:subject-category:access-subject\">" +
+                "<Attribute AttributeId=\"urn:oasis:names:tc:xacml:1.0:subject:subject-id\" " +
+                "IncludeInResult=\"false\"><AttributeValue DataType=\"" + STRING + "\">alice" +
+                "</AttributeValue></Attribute></Attributes>");
+        for (int i = 0; i < actions.length; i++) {
+            // the actions are told apart by their position, so that equal ones are not merged
+            request.append("<Attributes Category=\"").append(ACTION).append("\">" +
+                    "<Attribute AttributeId=\"urn:oasis:names:tc:xacml:1.0:action:action-id\" " +
+                    "IncludeInResult=\"false\"><AttributeValue DataType=\"").append(STRING)
+                    .append("\">").append(actions[i]).append("</AttributeValue></Attribute>" +
+                    "<Attribute AttributeId=\"urn:example:position\" IncludeInResult=\"false\">" +
+                    "<AttributeValue DataType=\"").append(STRING).append("\">").append(i)
+                    .append("</AttributeValue></Attribute></Attributes>");
+        }
+        request.append("</Request>");
+        ResponseCtx response = getPDPNewInstance().evaluate(
+                RequestCtxFactory.getFactory().getRequestCtx(request.toString()));
+        assertEquals(1, response.getResults().size());
+        return response.getResults().iterator().next();
+    }
+
+    private static String getRule(String id, String effect, String action, String obligations) {
+        return "<Rule RuleId=\"" + id + "\" Effect=\"" + effect + "\">" + getTarget(action) +
+                obligations + "</Rule>";
+    }
+
+    private static String getTarget(String action) {
+        return "<Target><AnyOf><AllOf><Match MatchId=\"" +
+                "urn:oasis:names:tc:xacml:1.0:function:string-equal\"><AttributeValue " +
+                "DataType=\"" + STRING + "\">" + action + "</AttributeValue>" +
+                "<AttributeDesignator AttributeId=\"urn:oasis:names:tc:xacml:1.0:action:" +
+                "action-id\" Category=\"" + ACTION + "\" DataType=\"" + STRING + "\" " +
+                "MustBePresent=\"false\"/></Match></AllOf></AnyOf></Target>";
+    }
+
+    private PDP getPDPNewInstance() {
+
+        PolicyFinder finder = new PolicyFinder();
+        Set<String> policyLocations = new HashSet<String>();
+        policyLocations.add(directory.getPath());
+        Set<PolicyFinderModule> policyModules = new HashSet<PolicyFinderModule>();
+        policyModules.add(new FileBasedPolicyFinderModule(policyLocations, null));
+        finder.setModules(policyModules);
+
+        AttributeFinder attributeFinder = new AttributeFinder();
+        List<AttributeFinderModule> modules = new ArrayList<AttributeFinderModule>();
+        modules.add(module);
+        attributeFinder.setModules(modules);
+
+        return new PDP(new PDPConfig(attributeFinder, finder, null, true));
+    }
+
+    /**
+     * An attribute finder module that counts the lookups of the clearance, and never finds it
+     */
+    public static class CountingModule extends AttributeFinderModule {
+
+        private AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public boolean isDesignatorSupported() {
+            return true;
+        }
+
+        @Override
+        public EvaluationResult findAttribute(URI attributeType, URI attributeId, String issuer,
+                                              URI category, EvaluationCtx context) {
+            if ("urn:example:clearance".equals(attributeId.toString())) {
+                calls.incrementAndGet();
+            }
+            return new EvaluationResult(new BagAttribute(attributeType,
+                    new ArrayList<AttributeValue>()));
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ *  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ *  WSO2 Inc. licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except
+ *  in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.connexta.arbitro.basic;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.connexta.arbitro.PDP;
+import com.connexta.arbitro.PDPConfig;
+import com.connexta.arbitro.attr.AttributeValue;
+import com.connexta.arbitro.attr.BagAttribute;
+import com.connexta.arbitro.attr.StringAttribute;
+import com.connexta.arbitro.cond.EvaluationResult;
+import com.connexta.arbitro.ctx.BasicEvaluationCtx;
+import com.connexta.arbitro.ctx.AbstractRequestCtx;
+import com.connexta.arbitro.ctx.AbstractResult;
+import com.connexta.arbitro.ctx.Deadline;
+import com.connexta.arbitro.ctx.EvaluationCtx;
+import com.connexta.arbitro.ctx.EvaluationCtxFactory;
+import com.connexta.arbitro.ctx.RequestCtxFactory;
+import com.connexta.arbitro.ctx.ResponseCtx;
+import com.connexta.arbitro.ctx.Status;
+import com.connexta.arbitro.finder.AttributeFinder;
+import com.connexta.arbitro.finder.AttributeFinderModule;
+import com.connexta.arbitro.finder.PolicyFinder;
+import com.connexta.arbitro.finder.PolicyFinderModule;
+import com.connexta.arbitro.finder.impl.FileBasedPolicyFinderModule;
+
+import junit.framework.TestCase;
+
+/**
+ * This would test limiting the time the evaluation of a request may take
+ */
+public class TestDeadlineV3 extends TestCase {
+
+    private static final String POLICY =
+            "<Policy xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" " +
+            "PolicyId=\"urn:example:deadline\" Version=\"1.0\" RuleCombiningAlgId=\"" +
+            "urn:oasis:names:tc:xacml:3.0:rule-combining-algorithm:deny-overrides\">" +
+            "<Target/>" + getRule("permit", "Permit", "urn:example:first") +
+            getRule("deny", "Deny", "urn:example:second") + "</Policy>";
+
+    private static final String REQUEST =
+            "<Request xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" " +
+            "CombinedDecision=\"false\" ReturnPolicyIdList=\"false\">" +
+            "<Attributes Category=\"urn:oasis:names:tc:xacml:1.0:subject-category:access-subject\">" +
+            "<Attribute AttributeId=\"urn:oasis:names:tc:xacml:1.0:subject:subject-id\" " +
+            "IncludeInResult=\"false\"><AttributeValue " +
+            "DataType=\"http://www.w3.org/2001/XMLSchema#string\">alice</AttributeValue>" +
+            "</Attribute></Attributes>" +
+            "<Attributes Category=\"urn:oasis:names:tc:xacml:3.0:attribute-category:resource\">" +
+            "<Attribute AttributeId=\"urn:oasis:names:tc:xacml:1.0:resource:resource-id\" " +
+            "IncludeInResult=\"false\"><AttributeValue " +
+            "DataType=\"http://www.w3.org/2001/XMLSchema#string\">report</AttributeValue>" +
+            "</Attribute></Attributes></Request>";
+
+    private File directory;
+
+    private SlowModule module;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("policies", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+        FileWriter writer = new FileWriter(new File(directory, "policy.xml"));
+        writer.write(POLICY);
+        writer.close();
+        module = new SlowModule(200);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        new File(directory, "policy.xml").delete();
+        directory.delete();
+    }
+
+    public void testNoDeadline() throws Exception {
+
+        PDP pdp = getPDPNewInstance(0);
+        AbstractResult result = getResult(pdp.evaluate(getRequest()));
+        assertEquals(AbstractResult.DECISION_DENY, result.getDecision());
+        assertEquals(2, module.calls.get());
+    }
+
+    public void testDeadline() throws Exception {
+
+        PDP pdp = getPDPNewInstance(0);
+        AbstractResult result = getResult(pdp.evaluate(getRequest(), 50));
+        // the Permit rule was evaluated before the deadline passed
+        assertIndeterminate(AbstractResult.DECISION_INDETERMINATE_DENY_OR_PERMIT, result);
+        // the second attribute is never looked up
+        assertEquals(1, module.calls.get());
+
+        // a deadline that is not reached changes nothing
+        result = getResult(pdp.evaluate(getRequest(), 60000));
+        assertEquals(AbstractResult.DECISION_DENY, result.getDecision());
+        assertEquals(3, module.calls.get());
+
+        // the deadline is also applied to string requests
+        String response = pdp.evaluate(REQUEST, 50);
+        assertTrue(response.contains("Indeterminate"));
+        assertTrue(response.contains("deadline exceeded"));
+    }
+
+    public void testRequestTimeout() throws Exception {
+
+        PDP pdp = getPDPNewInstance(50);
+        assertIndeterminate(AbstractResult.DECISION_INDETERMINATE_DENY_OR_PERMIT,
+                getResult(pdp.evaluate(getRequest())));
+        assertEquals(1, module.calls.get());
+    }
+
+    public void testDeadlineOnContext() throws Exception {
+
+        Deadline deadline = new Deadline(0);
+        assertTrue(deadline.isExceeded());
+        assertEquals(0, deadline.getRemainingMillis());
+        assertTrue(new Deadline(60000).getRemainingMillis() > 0);
+
+        // the context already ran out of time, so no policy is looked at
+        PDP pdp = getPDPNewInstance(0);
+        EvaluationCtx context = EvaluationCtxFactory.getFactory().getEvaluationCtx(getRequest(),
+                null);
+        BasicEvaluationCtx.setDeadline(context, deadline);
+        assertIndeterminate(AbstractResult.DECISION_INDETERMINATE,
+                getResult(pdp.evaluate(context)));
+        assertEquals(0, module.calls.get());
+    }
+
+    private static void assertIndeterminate(int decision, AbstractResult result) {
+        assertEquals(decision, result.getDecision());
+        assertEquals(Status.STATUS_PROCESSING_ERROR, result.getStatus().getCode().get(0));
+        assertTrue(result.getStatus().getMessage().contains("deadline exceeded"));
+    }
+
+    private static AbstractResult getResult(ResponseCtx response) {
+        return response.getResults().iterator().next();
+    }
+
+    private static AbstractRequestCtx getRequest() throws Exception {
+        return RequestCtxFactory.getFactory().getRequestCtx(REQUEST);
+    }
+
+    private static String getRule(String id, String effect, String attributeId) {
+        return "<Rule RuleId=\"" + id + "\" Effect=\"" + effect + "\"><Condition>" +
+                "<Apply FunctionId=\"urn:oasis:names:tc:xacml:1.0:function:string-is-in\">" +
+                "<AttributeValue DataType=\"http://www.w3.org/2001/XMLSchema#string\">yes" +
+                "</AttributeValue><AttributeDesignator AttributeId=\"" + attributeId + "\" " +
+                "Category=\"urn:oasis:names:tc:xacml:3.0:attribute-category:resource\" " +
+                "DataType=\"http://www.w3.org/2001/XMLSchema#string\" MustBePresent=\"false\"/>" +
+                "</Apply></Condition></Rule>";
+    }
+
+    /**
+     * Returns a new PDP instance that loads the test policy and finds attributes slowly
+     *
+     * @param requestTimeout the request timeout of the PDP
+     * @return a  PDP instance
+     */
+    private PDP getPDPNewInstance(long requestTimeout) {
+
+        PolicyFinder finder = new PolicyFinder();
+        Set<String> policyLocations = new HashSet<String>();
+        policyLocations.add(directory.getPath());
+        Set<PolicyFinderModule> policyModules = new HashSet<PolicyFinderModule>();
+        policyModules.add(new FileBasedPolicyFinderModule(policyLocations, null));
+        finder.setModules(policyModules);
+
+        AttributeFinder attributeFinder = new AttributeFinder();
+        List<AttributeFinderModule> modules = new ArrayList<AttributeFinderModule>();
+        modules.add(module);
+        attributeFinder.setModules(modules);
+
+        PDPConfig pdpConfig = new PDPConfig(attributeFinder, finder, null, false);
+        pdpConfig.setRequestTimeout(requestTimeout);
+        return new PDP(pdpConfig);
+    }
+
+    /**
+     * An attribute finder module that takes its time to find the value "yes" for any attribute
+     */
+    public static class SlowModule extends AttributeFinderModule {
+
+        private long delay;
+
+        private AtomicInteger calls = new AtomicInteger();
+
+        public SlowModule(long delay) {
+            this.delay = delay;
+        }
+
+        @Override
+        public boolean isDesignatorSupported() {
+            return true;
+        }
+
+        @Override
+        public EvaluationResult findAttribute(URI attributeType, URI attributeId, String issuer,
+                                              URI category, EvaluationCtx context) {
+            calls.incrementAndGet();
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            List<AttributeValue> values = new ArrayList<AttributeValue>();
+            values.add(new StringAttribute("yes"));
+            return new EvaluationResult(new BagAttribute(attributeType, values));
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ *  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ *  WSO2 Inc. licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except
+ *  in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.connexta.arbitro.basic;
+
+import java.io.File;
+import java.net.URI;
+import java.util.Set;
+
+import com.connexta.arbitro.PDP;
+import com.connexta.arbitro.TestUtil;
+import com.connexta.arbitro.ctx.AbstractRequestCtx;
+import com.connexta.arbitro.ctx.AbstractResult;
+import com.connexta.arbitro.ctx.RequestCtxFactory;
+import com.connexta.arbitro.finder.impl.IPRangeIndex;
+import com.connexta.arbitro.finder.impl.PolicyLoader;
+import com.connexta.arbitro.finder.impl.PolicyRepository;
+import com.connexta.arbitro.finder.impl.TargetKeyExtractor;
+
+import junit.framework.TestCase;
+
+/**
+ * This would test indexing policies by the IP addresses and ranges they apply to
+ */
+public class TestIPRangeIndexV3 extends TestCase {
+
+    private static final String IP_ADDRESS = "urn:oasis:names:tc:xacml:2.0:data-type:ipAddress";
+
+    private static final String RANGE_POLICY = "urn:example:range";
+
+    private static final String IPV6_POLICY = "urn:example:ipv6";
+
+    private static final String HOST_POLICY = "urn:example:host";
+
+    private static final String[] ADDRESSES = {"10.0.3.4", "10.1.0.7", "10.1.1.0", "192.168.1.1",
+            "192.168.1.2", "[2001:db8:1::1]", "[2001:db9::1]", null};
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = TestUtil.createDirectory();
+        TestUtil.write(directory, "range.xml", getPolicyContent(RANGE_POLICY,
+                "first-applicable", "<Target/>",
+                getRule("Permit", getRange("10.0.0.0", "10.0.255.255")) +
+                getRule("Deny", "<Apply FunctionId=\"" +
+                        "urn:oasis:names:tc:xacml:1.0:function:and\">" +
+                        getRange("10.1.0.255", "10.1.0.0") + "<AttributeValue DataType=\"" +
+                        "http://www.w3.org/2001/XMLSchema#boolean\">true</AttributeValue>" +
+                        "</Apply>")));
+        TestUtil.write(directory, "ipv6.xml", getPolicyContent(IPV6_POLICY,
+                "deny-overrides", "<Target/>",
+                getRule("Permit", getRange("[2001:db8::]",
+                        "[2001:db8:ffff:ffff:ffff:ffff:ffff:ffff]"))));
+        TestUtil.write(directory, "host.xml", getPolicyContent(HOST_POLICY,
+                "deny-overrides", "<Target><AnyOf>" +
+                "<AllOf><Match MatchId=\"urn:oasis:names:tc:xacml:2.0:function:ipAddress-equal\">" +
+                "<AttributeValue DataType=\"" + IP_ADDRESS + "\">192.168.1.1</AttributeValue>" +
+                getDesignator() + "</Match></AllOf></AnyOf></Target>",
+                "<Rule RuleId=\"rule\" Effect=\"Deny\"/>"));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestUtil.deleteDirectory(directory);
+    }
+
+    public void testCandidates() throws Exception {
+
+        PolicyRepository repository = new PolicyRepository(new TargetKeyExtractor());
+        for (File file : directory.listFiles()) {
+            repository.add(PolicyLoader.build(PolicyLoader.parse(file.getPath()), null));
+        }
+
+        assertEquals(TestUtil.set(RANGE_POLICY, IPV6_POLICY),
+                getCandidates(repository, "10.0.3.4"));
+        assertEquals(TestUtil.set(RANGE_POLICY, IPV6_POLICY),
+                getCandidates(repository, "10.1.0.7"));
+        assertEquals(TestUtil.set(IPV6_POLICY), getCandidates(repository, "10.1.1.0"));
+        assertEquals(TestUtil.set(HOST_POLICY, IPV6_POLICY),
+                getCandidates(repository, "192.168.1.1"));
+        assertEquals(TestUtil.set(RANGE_POLICY, IPV6_POLICY),
+                getCandidates(repository, "[2001:db8:1::1]"));
+        assertEquals(TestUtil.set(RANGE_POLICY), getCandidates(repository, "[2001:db9::1]"));
+        // without a single address the conditions are indeterminate
+        assertEquals(TestUtil.set(RANGE_POLICY, IPV6_POLICY),
+                getCandidates(repository, (String) null));
+        assertEquals(TestUtil.set(HOST_POLICY, RANGE_POLICY, IPV6_POLICY),
+                getCandidates(repository, "192.168.1.1", "10.0.0.1"));
+
+        // a policy that is updated is indexed by its new addresses only
+        repository.add(PolicyLoader.build(PolicyLoader.parseContent(getPolicyContent(
+                RANGE_POLICY, "first-applicable", "<Target/>",
+                getRule("Permit", getRange("10.1.1.0", "10.1.1.0")))), null));
+        assertEquals(TestUtil.set(IPV6_POLICY), getCandidates(repository, "10.0.3.4"));
+        assertEquals(TestUtil.set(RANGE_POLICY, IPV6_POLICY),
+                getCandidates(repository, "10.1.1.0"));
+
+        repository.remove(URI.create(RANGE_POLICY));
+        assertEquals(TestUtil.set(IPV6_POLICY), getCandidates(repository, "10.1.1.0"));
+    }
+
+    public void testTrieSize() throws Exception {
+
+        PolicyRepository repository = new PolicyRepository(new TargetKeyExtractor());
+        for (File file : directory.listFiles()) {
+            repository.add(PolicyLoader.build(PolicyLoader.parse(file.getPath()), null));
+        }
+        IPRangeIndex index = repository.getIPRangeIndex();
+        int nodes = index.getNodeCount();
+        // the roots, a node per prefix and a node where the prefixes of 10.1.0.0/24 part
+        assertEquals("nodes " + nodes, 7, nodes);
+
+        // ranges that are replaced leave no nodes behind
+        for (int i = 0; i < 50; i++) {
+            repository.add(PolicyLoader.build(PolicyLoader.parseContent(getPolicyContent(
+                    RANGE_POLICY, "first-applicable", "<Target/>",
+                    getRule("Permit", getRange("10.2." + i + ".3", "10.2." + i + ".200")))),
+                    null));
+        }
+        assertEquals(TestUtil.set(RANGE_POLICY, IPV6_POLICY),
+                getCandidates(repository, "10.2.49.7"));
+        assertEquals(TestUtil.set(IPV6_POLICY), getCandidates(repository, "10.2.48.7"));
+        repository.add(PolicyLoader.build(PolicyLoader.parse(
+                new File(directory, "range.xml").getPath()), null));
+        assertEquals(nodes, index.getNodeCount());
+        assertEquals(TestUtil.set(RANGE_POLICY, IPV6_POLICY),
+                getCandidates(repository, "10.0.3.4"));
+
+        for (String id : new String[] {RANGE_POLICY, IPV6_POLICY, HOST_POLICY}) {
+            repository.remove(URI.create(id));
+        }
+        assertEquals(0, index.getNodeCount());
+        assertEquals(TestUtil.set(), getCandidates(repository, "10.0.3.4"));
+    }
+
+    public void testDecisions() throws Exception {
+
+        PDP indexed = TestUtil.getPDPNewInstance(directory, true);
+        PDP scanned = TestUtil.getPDPNewInstance(directory, false);
+        for (String address : ADDRESSES) {
+            AbstractRequestCtx request = getRequest(address);
+            assertEquals("decision for " + address, TestUtil.getDecision(scanned, request),
+                    TestUtil.getDecision(indexed, request));
+        }
+
+        assertEquals(AbstractResult.DECISION_PERMIT,
+                TestUtil.getDecision(indexed, getRequest("10.0.3.4")));
+        assertEquals(AbstractResult.DECISION_DENY,
+                TestUtil.getDecision(indexed, getRequest("10.1.0.7")));
+        assertEquals(AbstractResult.DECISION_DENY,
+                TestUtil.getDecision(indexed, getRequest("192.168.1.1")));
+        // all 128 bits of IPv6 addresses are compared
+        assertEquals(AbstractResult.DECISION_PERMIT,
+                TestUtil.getDecision(indexed, getRequest("[2001:db8:1::1]")));
+        assertEquals(AbstractResult.DECISION_NOT_APPLICABLE,
+                TestUtil.getDecision(indexed, getRequest("[2001:db9::1]")));
+    }
+
+    private static Set<String> getCandidates(PolicyRepository repository, String... addresses)
+            throws Exception {
+        return TestUtil.getCandidates(repository, getRequest(addresses));
+    }
+
+    private static AbstractRequestCtx getRequest(String... addresses) throws Exception {
+        StringBuilder values = new StringBuilder();
+        for (String address : addresses) {
+            if (address != null) {
+                values.append("<AttributeValue DataType=\"").append(IP_ADDRESS).append("\">")
+                        .append(address).append("</AttributeValue>");
+            }
+        }
+        String request = "<Request xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" " +
+                "CombinedDecision=\"false\" ReturnPolicyIdList=\"false\">" +
+                "<Attributes Category=\"" +
+                "urn:oasis:names:tc:xacml:3.0:attribute-category:environment\">" +
+                (values.length() == 0 ? "" : "<Attribute AttributeId=\"urn:example:ip\" " +
+                        "IncludeInResult=\"false\">" + values + "</Attribute>") +
+                "</Attributes></Request>";
+        return RequestCtxFactory.getFactory().getRequestCtx(request);
+    }
+
+    private static String getPolicyContent(String id, String algorithm, String target,
+                                           String rules) {
+        return "<Policy xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" " +
+                "PolicyId=\"" + id + "\" Version=\"1.0\" RuleCombiningAlgId=\"" +
+                (algorithm.equals("first-applicable") ?
+                        "urn:oasis:names:tc:xacml:1.0:rule-combining-algorithm:" :
+                        "urn:oasis:names:tc:xacml:3.0:rule-combining-algorithm:") +
+                algorithm + "\">" + target + rules + "</Policy>";
+    }
+
+    private static String getRule(String effect, String condition) {
+        return "<Rule RuleId=\"" + effect + "\" Effect=\"" + effect + "\"><Condition>" +
+                condition + "</Condition></Rule>";
+    }
+
+    private static String getRange(String low, String high) {
+        return "<Apply FunctionId=\"urn:org.wso2.balana:function:ip-in-range\">" +
+                "<Apply FunctionId=\"urn:oasis:names:tc:xacml:2.0:function:" +
+                "ipAddress-one-and-only\">" + getDesignator() + "</Apply>" +
+                "<AttributeValue DataType=\"" + IP_ADDRESS + "\">" + low + "</AttributeValue>" +
+                "<AttributeValue DataType=\"" + IP_ADDRESS + "\">" + high + "</AttributeValue>" +
+                "</Apply>";
+    }
+
+    private static String getDesignator() {
+        return "<AttributeDesignator AttributeId=\"urn:example:ip\" Category=\"" +
+                "urn:oasis:names:tc:xacml:3.0:attribute-category:environment\" DataType=\"" +
+                IP_ADDRESS + "\" MustBePresent=\"false\"/>";
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ *  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ *  WSO2 Inc. licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except
+ *  in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.connexta.arbitro.basic;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+
+import com.connexta.arbitro.AbstractPolicy;
+import com.connexta.arbitro.PDP;
+import com.connexta.arbitro.ParsingException;
+import com.connexta.arbitro.TestUtil;
+import com.connexta.arbitro.ctx.AbstractRequestCtx;
+import com.connexta.arbitro.ctx.AbstractResult;
+import com.connexta.arbitro.ctx.RequestCtxFactory;
+import com.connexta.arbitro.finder.impl.FileBasedPolicyFinderModule;
+import com.connexta.arbitro.finder.impl.PolicyLoader;
+import com.connexta.arbitro.finder.impl.PolicyRepository;
+import com.connexta.arbitro.finder.impl.TargetKeyExtractor;
+
+import junit.framework.TestCase;
+
+/**
+ * This would test adding, updating and removing single policies, and the target index that is
+ * kept up to date with them
+ */
+public class TestIncrementalPoliciesV3 extends TestCase {
+
+    private static final URI REPORT = URI.create("urn:example:report");
+
+    private static final URI ANY = URI.create("urn:example:any");
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = TestUtil.createDirectory();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestUtil.deleteDirectory(directory);
+    }
+
+    public void testIncrementalChanges() throws Exception {
+
+        TestUtil.write(directory, "report.xml", getPolicyContent(REPORT, "report", "Deny"));
+        TestUtil.write(directory, "open.xml", getPolicyContent(URI.create("urn:example:open"),
+                "open", "Permit"));
+
+        FileBasedPolicyFinderModule module = new FileBasedPolicyFinderModule(
+                new HashSet<String>(Arrays.asList(directory.getPath())), null);
+        module.setTargetIndexing(true, null);
+        PDP pdp = TestUtil.getPDPNewInstance(module);
+        PolicyRepository repository = module.getPolicyRepository();
+        assertTrue(repository.isIndexed());
+
+        assertEquals(AbstractResult.DECISION_DENY, evaluate(pdp, "report"));
+        assertEquals(AbstractResult.DECISION_PERMIT, evaluate(pdp, "open"));
+        assertEquals(AbstractResult.DECISION_NOT_APPLICABLE, evaluate(pdp, "other"));
+        assertEquals(1, getCandidates(repository, "report").size());
+        assertEquals(0, getCandidates(repository, "other").size());
+
+        // a policy that can not be indexed is a candidate for every request
+        File any = new File(directory.getParentFile(), directory.getName() + "-any.xml");
+        FileWriter writer = new FileWriter(any);
+        writer.write(getPolicyContent(ANY, null, "Permit"));
+        writer.close();
+        try {
+            assertEquals(ANY, module.addPolicy(any.getPath()).getId());
+        } finally {
+            any.delete();
+        }
+        assertEquals(AbstractResult.DECISION_PERMIT, evaluate(pdp, "other"));
+        assertEquals(AbstractResult.DECISION_DENY, evaluate(pdp, "report"));
+        assertEquals(2, getCandidates(repository, "report").size());
+
+        // updating a policy moves it in the index
+        module.addPolicy(PolicyLoader.build(PolicyLoader.parseContent(
+                getPolicyContent(REPORT, "archive", "Deny")), null));
+        assertEquals(3, repository.size());
+        assertEquals(AbstractResult.DECISION_PERMIT, evaluate(pdp, "report"));
+        assertEquals(AbstractResult.DECISION_DENY, evaluate(pdp, "archive"));
+        for (AbstractPolicy policy : getCandidates(repository, "report")) {
+            assertEquals(ANY, policy.getId());
+        }
+
+        assertTrue(module.removePolicy(ANY));
+        assertFalse(module.removePolicy(ANY));
+        assertEquals(AbstractResult.DECISION_NOT_APPLICABLE, evaluate(pdp, "other"));
+        assertEquals(AbstractResult.DECISION_NOT_APPLICABLE, evaluate(pdp, "report"));
+        assertEquals(0, getCandidates(repository, "report").size());
+        assertEquals(2, repository.getLatestPolicies().size());
+    }
+
+    public void testIndexingAfterInit() throws Exception {
+
+        TestUtil.write(directory, "report.xml", getPolicyContent(REPORT, "report", "Deny"));
+        TestUtil.write(directory, "open.xml", getPolicyContent(URI.create("urn:example:open"),
+                "open", "Permit"));
+
+        FileBasedPolicyFinderModule module = new FileBasedPolicyFinderModule(
+                new HashSet<String>(Arrays.asList(directory.getPath())), null);
+        module.setLoaderThreads(4);
+        PDP pdp = TestUtil.getPDPNewInstance(module);
+        TestUtil.write(directory, "any.xml", getPolicyContent(ANY, null, "Permit"));
+        module.addPolicy(new File(directory, "any.xml").getPath());
+        assertFalse(module.getPolicyRepository().isIndexed());
+
+        // the loaded policies are indexed, rather than dropped
+        module.setTargetIndexing(true, null);
+        PolicyRepository repository = module.getPolicyRepository();
+        assertTrue(repository.isIndexed());
+        assertEquals(3, repository.size());
+        assertEquals(2, getCandidates(repository, "report").size());
+        assertEquals(AbstractResult.DECISION_DENY, evaluate(pdp, "report"));
+        assertEquals(AbstractResult.DECISION_PERMIT, evaluate(pdp, "other"));
+
+        assertTrue(module.removePolicy(ANY));
+        assertEquals(AbstractResult.DECISION_NOT_APPLICABLE, evaluate(pdp, "other"));
+        assertEquals(1, getCandidates(repository, "report").size());
+    }
+
+    public void testInvalidPolicy() throws Exception {
+
+        FileBasedPolicyFinderModule module = new FileBasedPolicyFinderModule(
+                new HashSet<String>(Arrays.asList(directory.getPath())), null);
+        TestUtil.getPDPNewInstance(module);
+        TestUtil.write(directory, "invalid.xml", "<Policy/>");
+        try {
+            module.addPolicy(new File(directory, "invalid.xml").getPath());
+            fail("an invalid policy must not be added");
+        } catch (ParsingException e) {
+            // expected
+        }
+        assertEquals(0, module.getPolicyRepository().size());
+    }
+
+    private static Collection<AbstractPolicy> getCandidates(PolicyRepository repository,
+                                                            String resource) throws Exception {
+        return repository.getCandidates(TargetKeyExtractor.getKeys(getRequest(resource)));
+    }
+
+    private static int evaluate(PDP pdp, String resource) throws Exception {
+        return pdp.evaluate(getRequest(resource)).getResults().iterator().next().getDecision();
+    }
+
+    private static AbstractRequestCtx getRequest(String resource) throws Exception {
+        String request = "<Request xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" " +
+                "CombinedDecision=\"false\" ReturnPolicyIdList=\"false\">" +
+                "<Attributes Category=\"urn:oasis:names:tc:xacml:3.0:attribute-category:resource\">" +
+                "<Attribute AttributeId=\"urn:oasis:names:tc:xacml:1.0:resource:resource-id\" " +
+                "IncludeInResult=\"false\"><AttributeValue " +
+                "DataType=\"http://www.w3.org/2001/XMLSchema#string\">" + resource +
+                "</AttributeValue></Attribute></Attributes></Request>";
+        return RequestCtxFactory.getFactory().getRequestCtx(request);
+    }
+
+    private static String getPolicyContent(URI id, String resource, String effect) {
+        String target = resource == null ? "<Target/>" : "<Target><AnyOf><AllOf><Match " +
+                "MatchId=\"urn:oasis:names:tc:xacml:1.0:function:string-equal\"><AttributeValue " +
+                "DataType=\"http://www.w3.org/2001/XMLSchema#string\">" + resource +
+                "</AttributeValue><AttributeDesignator AttributeId=\"" +
+                "urn:oasis:names:tc:xacml:1.0:resource:resource-id\" Category=\"" +
+                "urn:oasis:names:tc:xacml:3.0:attribute-category:resource\" " +
+                "DataType=\"http://www.w3.org/2001/XMLSchema#string\" MustBePresent=\"false\"/>" +
+                "</Match></AllOf></AnyOf></Target>";
+        return "<Policy xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" " +
+                "PolicyId=\"" + id + "\" Version=\"1.0\" RuleCombiningAlgId=\"" +
+                "urn:oasis:names:tc:xacml:3.0:rule-combining-algorithm:deny-overrides\">" +
+                target + "<Rule RuleId=\"rule\" Effect=\"" + effect + "\"/></Policy>";
+    }
+}
@@ -0,0 +1,407 @@
+/*
+ *  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ *  WSO2 Inc. licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except
+ *  in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.connexta.arbitro.basic;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+import javax.sql.DataSource;
+
+import com.connexta.arbitro.AbstractPolicy;
+import com.connexta.arbitro.PDP;
+import com.connexta.arbitro.PDPConfig;
+import com.connexta.arbitro.PolicyReference;
+import com.connexta.arbitro.VersionConstraints;
+import com.connexta.arbitro.ctx.AbstractResult;
+import com.connexta.arbitro.ctx.RequestCtxFactory;
+import com.connexta.arbitro.finder.AttributeFinder;
+import com.connexta.arbitro.finder.PolicyFinder;
+import com.connexta.arbitro.finder.PolicyFinderModule;
+import com.connexta.arbitro.finder.PolicyFinderResult;
+import com.connexta.arbitro.finder.impl.JDBCPolicyFinderModule;
+import com.connexta.arbitro.finder.impl.TargetKeyExtractor;
+
+import junit.framework.TestCase;
+
+/**
+ * This would test finding policies in an embedded database by the keys of their targets
+ */
+public class TestJDBCPolicyV3 extends TestCase {
+
+    private static final String RESOURCE_CATEGORY =
+            "urn:oasis:names:tc:xacml:3.0:attribute-category:resource";
+
+    private static final String RESOURCE_ID = "urn:oasis:names:tc:xacml:1.0:resource:resource-id";
+
+    private static int databases;
+
+    private EmbeddedDataSource dataSource;
+
+    private JDBCPolicyFinderModule module;
+
+    private PDP pdp;
+
+    @Override
+    protected void setUp() throws Exception {
+        dataSource = new EmbeddedDataSource(
+                "jdbc:h2:mem:policies" + (databases++) + ";DB_CLOSE_DELAY=-1");
+        module = new JDBCPolicyFinderModule(dataSource, 2, null);
+        module.createTables();
+
+        PolicyFinder finder = new PolicyFinder();
+        Set<PolicyFinderModule> policyModules = new HashSet<PolicyFinderModule>();
+        policyModules.add(module);
+        finder.setModules(policyModules);
+        pdp = new PDP(new PDPConfig(new AttributeFinder(), finder, null, false));
+    }
+
+    public void testTargetKeys() throws Exception {
+
+        TargetKeyExtractor extractor = new TargetKeyExtractor();
+        Set<TargetKeyExtractor.Key> keys = extractor.getKeys(module.addPolicy(
+                getPolicy("urn:example:both", "1.0", "Permit", "report", "invoice")).getTarget());
+        Set<TargetKeyExtractor.Key> expected = new HashSet<TargetKeyExtractor.Key>();
+        expected.add(new TargetKeyExtractor.Key(RESOURCE_CATEGORY, RESOURCE_ID, "report"));
+        expected.add(new TargetKeyExtractor.Key(RESOURCE_CATEGORY, RESOURCE_ID, "invoice"));
+        assertEquals(expected, keys);
+
+        // empty targets, and attributes that are not indexed, may match any request
+        AbstractPolicy policy = module.addPolicy(getPolicy("urn:example:any", "1.0", "Permit"));
+        assertNull(extractor.getKeys(policy.getTarget()));
+        policy = module.addPolicy(getPolicy("urn:example:report", "1.0", "Permit", "report"));
+        assertNull(new TargetKeyExtractor(Collections.singleton(URI.create(RESOURCE_ID)))
+                .getKeys(policy.getTarget()));
+
+        assertTrue(TargetKeyExtractor.getKeys(RequestCtxFactory.getFactory()
+                .getRequestCtx(getRequest("report"))).contains(
+                new TargetKeyExtractor.Key(RESOURCE_CATEGORY, RESOURCE_ID, "report")));
+    }
+
+    public void testFindByTarget() throws Exception {
+
+        module.addPolicy(getPolicy("urn:example:report", "1.0", "Permit", "report"));
+        module.addPolicy(getPolicy("urn:example:invoice", "1.0", "Deny", "invoice", "ledger"));
+
+        assertEquals(AbstractResult.DECISION_PERMIT, evaluate("report"));
+        assertEquals(AbstractResult.DECISION_DENY, evaluate("invoice"));
+        assertEquals(AbstractResult.DECISION_DENY, evaluate("ledger"));
+        assertEquals(AbstractResult.DECISION_NOT_APPLICABLE, evaluate("other"));
+
+        // a policy without a target applies to every request
+        module.addPolicy(getPolicy("urn:example:any", "1.0", "Deny"));
+        assertEquals(AbstractResult.DECISION_DENY, evaluate("report"));
+        assertEquals(AbstractResult.DECISION_DENY, evaluate("other"));
+
+        assertTrue(module.removePolicy(URI.create("urn:example:any"), "1.0"));
+        assertFalse(module.removePolicy(URI.create("urn:example:any"), "1.0"));
+        module.invalidateCache();
+        assertEquals(AbstractResult.DECISION_PERMIT, evaluate("report"));
+    }
+
+    public void testVersions() throws Exception {
+
+        module.addPolicy(getPolicy("urn:example:report", "1.0", "Permit", "report"));
+        module.addPolicy(getPolicy("urn:example:report", "2.0", "Deny", "report"));
+        assertEquals(AbstractResult.DECISION_DENY, evaluate("report"));
+
+        // an earlier version does not replace the latest one
+        module.addPolicy(getPolicy("urn:example:report", "1.5", "Permit", "summary"));
+        assertEquals(AbstractResult.DECISION_DENY, evaluate("report"));
+        assertEquals(AbstractResult.DECISION_NOT_APPLICABLE, evaluate("summary"));
+
+        // removing the latest version brings back the one before it
+        module.removePolicy(URI.create("urn:example:report"), "2.0");
+        assertEquals(AbstractResult.DECISION_NOT_APPLICABLE, evaluate("report"));
+        assertEquals(AbstractResult.DECISION_PERMIT, evaluate("summary"));
+    }
+
+    public void testReferences() throws Exception {
+
+        module.addPolicy(getPolicy("urn:example:shared", "1.0", "Permit", "report"));
+        module.addPolicy(getPolicy("urn:example:shared", "2.0", "Permit", "report"));
+        module.addPolicy(getPolicy("urn:example:shared", "1.5", "Permit", "report"));
+        URI id = URI.create("urn:example:shared");
+
+        assertEquals("2.0", findReference(id, new VersionConstraints(null, null, null)));
+        assertEquals("1.5", findReference(id, new VersionConstraints(null, null, "1.9")));
+        assertEquals("1.0", findReference(id, new VersionConstraints("1.0", null, null)));
+        assertEquals("1.5", findReference(id, new VersionConstraints("1.*", "1.1", null)));
+        assertNull(findReference(id, new VersionConstraints("3.0", null, null)));
+
+        // a policy is not found by a policy set reference
+        assertTrue(module.findPolicy(id, PolicyReference.POLICYSET_REFERENCE,
+                new VersionConstraints(null, null, null), null).indeterminate());
+    }
+
+    public void testURITargets() throws Exception {
+
+        // URIs that differ in the case of their host are equal, so they are not indexed
+        String policy = "<Policy xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" " +
+                "PolicyId=\"urn:example:uri\" Version=\"1.0\" RuleCombiningAlgId=\"" +
+                "urn:oasis:names:tc:xacml:3.0:rule-combining-algorithm:deny-overrides\">" +
+                "<Target><AnyOf><AllOf><Match MatchId=\"" +
+                "urn:oasis:names:tc:xacml:1.0:function:anyURI-equal\"><AttributeValue " +
+                "DataType=\"http://www.w3.org/2001/XMLSchema#anyURI\">http://example.com/a" +
+                "</AttributeValue><AttributeDesignator AttributeId=\"" + RESOURCE_ID + "\" " +
+                "Category=\"" + RESOURCE_CATEGORY + "\" " +
+                "DataType=\"http://www.w3.org/2001/XMLSchema#anyURI\" MustBePresent=\"false\"/>" +
+                "</Match></AllOf></AnyOf></Target><Rule RuleId=\"rule\" Effect=\"Permit\"/>" +
+                "</Policy>";
+        assertNull(new TargetKeyExtractor().getKeys(module.addPolicy(policy).getTarget()));
+
+        String request = getRequest("HTTP://EXAMPLE.com/a").replace("XMLSchema#string",
+                "XMLSchema#anyURI");
+        assertEquals(AbstractResult.DECISION_PERMIT, pdp.evaluate(RequestCtxFactory.getFactory()
+                .getRequestCtx(request)).getResults().iterator().next().getDecision());
+    }
+
+    public void testLongValues() throws Exception {
+
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            value.append((char) ('a' + i % 26));
+        }
+        String report = value.toString();
+        module.addPolicy(getPolicy("urn:example:long", "1.0", "Permit", report));
+
+        // the value is longer than its column, so it is looked up by its hash
+        assertEquals(AbstractResult.DECISION_PERMIT, evaluate(report));
+        assertEquals(AbstractResult.DECISION_NOT_APPLICABLE, evaluate(report + "x"));
+    }
+
+    public void testManyValues() throws Exception {
+
+        module.addPolicy(getPolicy("urn:example:report", "1.0", "Permit", "report"));
+
+        // the values of the request take more than one query to look up
+        List<String> resources = new ArrayList<String>();
+        for (int i = 0; i < JDBCPolicyFinderModule.MAX_VALUES_PER_QUERY * 2; i++) {
+            resources.add("resource" + i);
+        }
+        assertEquals(AbstractResult.DECISION_NOT_APPLICABLE, evaluate(resources));
+        resources.add("report");
+        assertEquals(AbstractResult.DECISION_PERMIT, evaluate(resources));
+    }
+
+    public void testConcurrentVersions() throws Exception {
+
+        final List<Exception> failures = Collections.synchronizedList(new ArrayList<Exception>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 1; i <= 8; i++) {
+            final String version = String.valueOf(i);
+            Thread thread = new Thread() {
+                public void run() {
+                    try {
+                        module.addPolicy(getPolicy("urn:example:report", version, "Permit",
+                                "report" + version));
+                    } catch (Exception e) {
+                        failures.add(e);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(failures.toString(), failures.isEmpty());
+
+        // only the latest version is used for requests, whatever the order of the adds
+        Connection connection = dataSource.getConnection();
+        try {
+            PreparedStatement statement = connection.prepareStatement("SELECT POLICY_VERSION " +
+                    "FROM " + JDBCPolicyFinderModule.POLICY_TABLE + " WHERE ACTIVE = 1");
+            ResultSet results = statement.executeQuery();
+            assertTrue(results.next());
+            assertEquals("8", results.getString(1));
+            assertFalse(results.next());
+            statement.close();
+        } finally {
+            connection.close();
+        }
+        assertEquals(AbstractResult.DECISION_PERMIT, evaluate("report8"));
+        assertEquals(AbstractResult.DECISION_NOT_APPLICABLE, evaluate("report1"));
+    }
+
+    public void testUnloadablePolicy() throws Exception {
+
+        module.addPolicy(getPolicy("urn:example:report", "1.0", "Permit", "report"));
+        module.addPolicy(getPolicy("urn:example:any", "1.0", "Deny"));
+        Connection connection = dataSource.getConnection();
+        try {
+            PreparedStatement statement = connection.prepareStatement("UPDATE " +
+                    JDBCPolicyFinderModule.POLICY_TABLE + " SET CONTENT = '<Policy' " +
+                    "WHERE POLICY_ID = 'urn:example:any'");
+            statement.executeUpdate();
+            statement.close();
+        } finally {
+            connection.close();
+        }
+        module.invalidateCache();
+
+        // a candidate that can not be loaded may have denied the request
+        assertEquals(AbstractResult.DECISION_INDETERMINATE, evaluate("report"));
+    }
+
+    public void testAutoCommit() throws Exception {
+
+        // a pool hands out the same connection again, which must be left in auto-commit mode
+        final Connection connection = dataSource.getConnection();
+        DataSource pool = new EmbeddedDataSource(null) {
+            public Connection getConnection() {
+                return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                        new Class<?>[]{Connection.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws Throwable {
+                        if ("close".equals(method.getName())) {
+                            return null;
+                        }
+                        try {
+                            return method.invoke(connection, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+            }
+        };
+        try {
+            JDBCPolicyFinderModule pooled = new JDBCPolicyFinderModule(pool, 2, null);
+            pooled.addPolicy(getPolicy("urn:example:report", "1.0", "Permit", "report"));
+            assertTrue(connection.getAutoCommit());
+            assertTrue(pooled.removePolicy(URI.create("urn:example:report"), "1.0"));
+            assertTrue(connection.getAutoCommit());
+        } finally {
+            connection.close();
+        }
+    }
+
+    private String findReference(URI id, VersionConstraints constraints) {
+        PolicyFinderResult result = module.findPolicy(id, PolicyReference.POLICY_REFERENCE,
+                constraints, null);
+        return result.indeterminate() ? null : result.getPolicy().getVersion();
+    }
+
+    private int evaluate(String resource) throws Exception {
+        return evaluate(Collections.singletonList(resource));
+    }
+
+    private int evaluate(List<String> resources) throws Exception {
+        return pdp.evaluate(RequestCtxFactory.getFactory().getRequestCtx(getRequest(
+                resources.toArray(new String[resources.size()])))).getResults().iterator().next()
+                .getDecision();
+    }
+
+    private static String getPolicy(String id, String version, String effect,
+                                    String... resources) {
+        StringBuilder target = new StringBuilder("<Target>");
+        if (resources.length > 0) {
+            target.append("<AnyOf>");
+            for (String resource : resources) {
+                target.append("<AllOf><Match MatchId=\"" +
+                        "urn:oasis:names:tc:xacml:1.0:function:string-equal\">" +
+                        "<AttributeValue DataType=\"http://www.w3.org/2001/XMLSchema#string\">" +
+                        resource + "</AttributeValue><AttributeDesignator AttributeId=\"" +
+                        RESOURCE_ID + "\" Category=\"" + RESOURCE_CATEGORY + "\" " +
+                        "DataType=\"http://www.w3.org/2001/XMLSchema#string\" " +
+                        "MustBePresent=\"false\"/></Match></AllOf>");
+            }
+            target.append("</AnyOf>");
+        }
+        target.append("</Target>");
+        return "<Policy xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" " +
+                "PolicyId=\"" + id + "\" Version=\"" + version + "\" RuleCombiningAlgId=\"" +
+                "urn:oasis:names:tc:xacml:3.0:rule-combining-algorithm:deny-overrides\">" +
+                target + "<Rule RuleId=\"rule\" Effect=\"" + effect + "\"/></Policy>";
+    }
+
+    private static String getRequest(String... resources) {
+        StringBuilder values = new StringBuilder();
+        for (String resource : resources) {
+            values.append("<AttributeValue DataType=\"http://www.w3.org/2001/XMLSchema#string\">")
+                    .append(resource).append("</AttributeValue>");
+        }
+        return "<Request xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" " +
+                "CombinedDecision=\"false\" ReturnPolicyIdList=\"false\">" +
+                "<Attributes Category=\"" + RESOURCE_CATEGORY + "\">" +
+                "<Attribute AttributeId=\"" + RESOURCE_ID + "\" IncludeInResult=\"false\">" +
+                values + "</Attribute></Attributes></Request>";
+    }
+
+    /**
+     * A data source that opens connections to an embedded database
+     */
+    private static class EmbeddedDataSource implements DataSource {
+
+        private String url;
+
+        EmbeddedDataSource(String url) {
+            this.url = url;
+        }
+
+        public Connection getConnection() throws SQLException {
+            return DriverManager.getConnection(url);
+        }
+
+        public Connection getConnection(String user, String password) throws SQLException {
+            return DriverManager.getConnection(url, user, password);
+        }
+
+        public PrintWriter getLogWriter() {
+            return null;
+        }
+
+        public void setLogWriter(PrintWriter out) {
+        }
+
+        public void setLoginTimeout(int seconds) {
+        }
+
+        public int getLoginTimeout() {
+            return 0;
+        }
+
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+
+        public <T> T unwrap(Class<T> type) throws SQLException {
+            throw new SQLException("not a wrapper");
+        }
+
+        public boolean isWrapperFor(Class<?> type) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ *  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ *  WSO2 Inc. licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except
+ *  in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.connexta.arbitro.basic;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import com.connexta.arbitro.Balana;
+import com.connexta.arbitro.PDP;
+import com.connexta.arbitro.PDPConfig;
+import com.connexta.arbitro.TestConstants;
+import com.connexta.arbitro.TestUtil;
+import com.connexta.arbitro.attr.BooleanAttribute;
+import com.connexta.arbitro.attr.DateAttribute;
+import com.connexta.arbitro.attr.DoubleAttribute;
+import com.connexta.arbitro.attr.IntegerAttribute;
+import com.connexta.arbitro.attr.StringAttribute;
+import com.connexta.arbitro.ctx.Attribute;
+import com.connexta.arbitro.ctx.ResponseCtx;
+import com.connexta.arbitro.ctx.json.JSONRequestParser;
+import com.connexta.arbitro.ctx.xacml3.RequestCtx;
+import com.connexta.arbitro.finder.PolicyFinder;
+import com.connexta.arbitro.finder.PolicyFinderModule;
+import com.connexta.arbitro.finder.impl.FileBasedPolicyFinderModule;
+import com.connexta.arbitro.xacml3.Attributes;
+
+import junit.framework.TestCase;
+
+/**
+ * This would test the JSON Profile of XACML 3.0
+ */
+public class TestJSONRequestV3 extends TestCase {
+
+    /**
+     * directory name that states the test type
+     */
+    private final static String ROOT_DIRECTORY = "basic";
+
+    /**
+     * directory name that states XACML version
+     */
+    private final static String VERSION_DIRECTORY = "3";
+
+    /**
+     * the logger we'll use for all messages
+     */
+    private static Log log = LogFactory.getLog(TestJSONRequestV3.class);
+
+    public void testMultipleRequest() throws Exception {
+
+        Set<String> policies = new HashSet<String>();
+        policies.add("TestPolicy_0014.xml");
+        log.info("JSON Test 0014 is started");
+
+        RequestCtx request = JSONRequestParser.getRequestCtx(getRequestStream("request_0014_01.json"));
+        assertTrue(request.isReturnPolicyIdList());
+        assertFalse(request.isCombinedDecision());
+        assertEquals(6, request.getAttributesSet().size());
+        assertEquals(4, request.getMultiRequests().getRequestReferences().size());
+
+        ResponseCtx response = getPDPNewInstance(policies).evaluate(request);
+        ResponseCtx expectedResponseCtx = TestUtil.createResponse(ROOT_DIRECTORY,
+                VERSION_DIRECTORY, "response_0014_01.xml");
+        assertNotNull("Response read from file is Null", expectedResponseCtx);
+        assertTrue(TestUtil.isMatching(response, expectedResponseCtx));
+
+        log.info("JSON Test 0014 is finished");
+    }
+
+    public void testStreamingResponse() throws Exception {
+
+        Set<String> policies = new HashSet<String>();
+        policies.add("TestPolicy_0014.xml");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        getPDPNewInstance(policies).evaluate(getRequestStream("request_0014_01.json"), out);
+        String response = out.toString("UTF-8");
+        log.info("Response that is streamed from the PDP :  " + response);
+
+        assertTrue(response.startsWith("{\"Response\":[{"));
+        assertTrue(response.endsWith("}]}"));
+        assertEquals(2, count(response, "\"Decision\":\"Permit\""));
+        assertEquals(2, count(response, "\"Decision\":\"Deny\""));
+        assertEquals(4, count(response, "\"Category\":[{"));
+        assertEquals(12, count(response, "\"IncludeInResult\":true"));
+    }
+
+    public void testCombinedDecision() throws Exception {
+
+        Set<String> policies = new HashSet<String>();
+        policies.add("TestPolicy_0014.xml");
+
+        String request = "{\"Request\":{\"CombinedDecision\":true," +
+                "\"AccessSubject\":{\"Id\":\"s\",\"Attribute\":{\"AttributeId\":" +
+                "\"urn:oasis:names:tc:xacml:1.0:subject:subject-id\",\"Value\":\"bob\"}}," +
+                "\"Resource\":{\"Id\":\"r\",\"Attribute\":{\"AttributeId\":" +
+                "\"urn:oasis:names:tc:xacml:1.0:resource:resource-id\",\"Value\":\"foo/foo1\"}}," +
+                "\"Action\":[{\"Id\":\"a1\",\"Attribute\":{\"AttributeId\":" +
+                "\"urn:oasis:names:tc:xacml:1.0:action:action-id\",\"Value\":\"bar1\"}}," +
+                "{\"Id\":\"a2\",\"Attribute\":{\"AttributeId\":" +
+                "\"urn:oasis:names:tc:xacml:1.0:action:action-id\",\"Value\":\"bar2\"}}]," +
+                "\"MultiRequests\":{\"RequestReference\":[{\"ReferenceId\":[\"s\",\"r\",\"a1\"]}," +
+                "{\"ReferenceId\":[\"s\",\"r\",\"a2\"]}]}}}";
+
+        String response = getPDPNewInstance(policies).evaluate(request);
+        log.info("Response that is received from the PDP :  " + response);
+        assertTrue(response.startsWith("{\"Response\":[{\"Decision\":\"Indeterminate\""));
+        assertTrue(response.contains("urn:oasis:names:tc:xacml:1.0:status:processing-error"));
+    }
+
+    public void testDataTypes() throws Exception {
+
+        String request = "{\"Request\":{\"Environment\":{\"Attribute\":[" +
+                "{\"AttributeId\":\"urn:test:string\",\"Value\":\"a \\\"quoted\\\" \\u0041\"}," +
+                "{\"AttributeId\":\"urn:test:boolean\",\"Value\":true}," +
+                "{\"AttributeId\":\"urn:test:integer\",\"Value\":[1, 2, -3]}," +
+                "{\"AttributeId\":\"urn:test:double\",\"Value\":[1, 2.5e1]}," +
+                "{\"AttributeId\":\"urn:test:date\",\"Value\":\"2002-03-22\",\"DataType\":\"date\"}" +
+                "]}}}";
+
+        RequestCtx requestCtx = JSONRequestParser.getRequestCtx(request);
+        Attributes attributes = requestCtx.getAttributesSet().iterator().next();
+        assertEquals("urn:oasis:names:tc:xacml:3.0:attribute-category:environment",
+                attributes.getCategory().toString());
+        assertEquals(5, attributes.getAttributes().size());
+
+        for (Attribute attribute : attributes.getAttributes()) {
+            String id = attribute.getId().toString();
+            String type = attribute.getType().toString();
+            if ("urn:test:string".equals(id)) {
+                assertEquals(StringAttribute.identifier, type);
+                assertEquals("a \"quoted\" A", attribute.getValue().encode());
+            } else if ("urn:test:boolean".equals(id)) {
+                assertEquals(BooleanAttribute.identifier, type);
+            } else if ("urn:test:integer".equals(id)) {
+                assertEquals(IntegerAttribute.identifier, type);
+                assertEquals(3, attribute.getValues().size());
+            } else if ("urn:test:double".equals(id)) {
+                assertEquals(DoubleAttribute.identifier, type);
+            } else {
+                assertEquals(DateAttribute.identifier, type);
+            }
+        }
+    }
+
+    public void testInvalidRequest() throws Exception {
+
+        Set<String> policies = new HashSet<String>();
+        policies.add("TestPolicy_0014.xml");
+
+        String response = getPDPNewInstance(policies).evaluate("{\"Request\":{\"Resource\":[}}");
+        assertTrue(response.startsWith("{\"Response\":[{\"Decision\":\"Indeterminate\""));
+        assertTrue(response.contains("urn:oasis:names:tc:xacml:1.0:status:syntax-error"));
+    }
+
+    public void testDetection() throws Exception {
+
+        // the stream is detected the same way as a string, and is not consumed
+        String[] requests = {" \t\r\n{\"Request\":{}}", "\f{\"Request\":{}}", "<Request/>", ""};
+        for (String request : requests) {
+            InputStream input = new BufferedInputStream(
+                    new ByteArrayInputStream(request.getBytes("UTF-8")));
+            assertEquals(request, JSONRequestParser.isJSON(request),
+                    JSONRequestParser.isJSON(input));
+            assertEquals(request.length(), input.available());
+        }
+        assertTrue(JSONRequestParser.isJSON(new BufferedInputStream(
+                new ByteArrayInputStream(" {".getBytes("UTF-8")))));
+    }
+
+    private static int count(String text, String token) {
+        int count = 0;
+        int index = text.indexOf(token);
+        while (index >= 0) {
+            count++;
+            index = text.indexOf(token, index + token.length());
+        }
+        return count;
+    }
+
+    private static InputStream getRequestStream(String requestId) throws IOException {
+        String filePath = (new File(".")).getCanonicalPath() + File.separator +
+                TestConstants.RESOURCE_PATH + File.separator + ROOT_DIRECTORY + File.separator +
+                VERSION_DIRECTORY + File.separator + TestConstants.REQUEST_DIRECTORY +
+                File.separator + requestId;
+        return new FileInputStream(filePath);
+    }
+
+    /**
+     * Returns a new PDP instance with new XACML policies
+     *
+     * @param policies Set of XACML policy file names
+     * @return a  PDP instance
+     */
+    private static PDP getPDPNewInstance(Set<String> policies) {
+
+        PolicyFinder finder = new PolicyFinder();
+        Set<String> policyLocations = new HashSet<String>();
+
+        for (String policy : policies) {
+            try {
+                String policyPath = (new File(".")).getCanonicalPath() + File.separator +
+                        TestConstants.RESOURCE_PATH + File.separator + ROOT_DIRECTORY + File.separator +
+                        VERSION_DIRECTORY + File.separator + TestConstants.POLICY_DIRECTORY +
+                        File.separator + policy;
+                policyLocations.add(policyPath);
+            } catch (IOException e) {
+                //ignore.
+            }
+        }
+
+        FileBasedPolicyFinderModule testPolicyFinderModule = new FileBasedPolicyFinderModule(policyLocations);
+        Set<PolicyFinderModule> policyModules = new HashSet<PolicyFinderModule>();
+        policyModules.add(testPolicyFinderModule);
+        finder.setModules(policyModules);
+
+        Balana balana = Balana.getInstance();
+        PDPConfig pdpConfig = balana.getPdpConfig();
+        pdpConfig = new PDPConfig(pdpConfig.getAttributeFinder(), finder,
+                pdpConfig.getResourceFinder(), true);
+        return new PDP(pdpConfig);
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ *  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ *  WSO2 Inc. licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except
+ *  in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.connexta.arbitro.basic;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import com.connexta.arbitro.AbstractPolicy;
+import com.connexta.arbitro.Balana;
+import com.connexta.arbitro.LazyPolicy;
+import com.connexta.arbitro.PDP;
+import com.connexta.arbitro.PDPConfig;
+import com.connexta.arbitro.TestConstants;
+import com.connexta.arbitro.TestUtil;
+import com.connexta.arbitro.ctx.ResponseCtx;
+import com.connexta.arbitro.finder.PolicyFinder;
+import com.connexta.arbitro.finder.PolicyFinderModule;
+import com.connexta.arbitro.finder.impl.FileBasedPolicyFinderModule;
+import com.connexta.arbitro.finder.impl.PolicyLoader;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import junit.framework.TestCase;
+
+/**
+ * This would test loading the bodies of policies lazily
+ */
+public class TestLazyPolicyV3 extends TestCase {
+
+    /**
+     * directory name that states the test type
+     */
+    private final static String ROOT_DIRECTORY = "conformance";
+
+    /**
+     * directory name that states XACML version
+     */
+    private final static String VERSION_DIRECTORY = "3";
+
+    /**
+     * the logger we'll use for all messages
+     */
+    private static Log log = LogFactory.getLog(TestLazyPolicyV3.class);
+
+    public void testLazyLoading() throws Exception {
+
+        File policyDirectory = new File(TestUtil.getDirectory(ROOT_DIRECTORY, VERSION_DIRECTORY,
+                TestConstants.POLICY_DIRECTORY));
+        String[] names = policyDirectory.list();
+        Arrays.sort(names);
+        List<File> files = new ArrayList<File>();
+        for (String name : names) {
+            files.add(new File(policyDirectory, name));
+        }
+
+        // only the targets are built when policies are loaded
+        List<PolicyLoader.Result> results = new PolicyLoader(new PolicyFinder(), 1, true).loadFiles(files);
+        for (PolicyLoader.Result result : results) {
+            assertNull(result.getError());
+            assertTrue(result.getPolicy() instanceof LazyPolicy);
+            LazyPolicy policy = (LazyPolicy) result.getPolicy();
+            assertFalse(policy.isMaterialized());
+            assertNotNull(policy.getTarget());
+        }
+
+        PDP eagerPDP = getPDPNewInstance(policyDirectory.getPath(), null);
+        FileBasedPolicyFinderModule module = new FileBasedPolicyFinderModule(
+                new HashSet<String>(Arrays.asList(policyDirectory.getPath())), null);
+        module.setLazyLoading(true);
+        module.setBodyIdleTimeout(1);
+        PDP lazyPDP = getPDPNewInstance(policyDirectory.getPath(), module);
+
+        String[] requests = new File(TestUtil.getDirectory(ROOT_DIRECTORY, VERSION_DIRECTORY,
+                TestConstants.REQUEST_DIRECTORY)).list();
+        Arrays.sort(requests);
+        for (int round = 0; round < 2; round++) {
+            for (String requestId : requests) {
+                String request = TestUtil.createRequest(ROOT_DIRECTORY, VERSION_DIRECTORY, requestId);
+                if (request == null) {
+                    continue;
+                }
+                log.info("Lazy loading test request " + requestId);
+                ResponseCtx expected = TestUtil.evaluate(eagerPDP, request);
+                ResponseCtx response = TestUtil.evaluate(lazyPDP, request);
+                assertTrue(requestId, TestUtil.isMatching(response, expected));
+                assertTrue(requestId, TestUtil.isMatching(expected, response));
+            }
+            // drop the bodies, so they are built again from the files in the next round
+            Thread.sleep(5);
+            assertTrue(module.evictIdleBodies() > 0);
+        }
+    }
+
+    public void testConcurrentMaterialization() throws Exception {
+
+        File policyDirectory = new File(TestUtil.getDirectory(ROOT_DIRECTORY, VERSION_DIRECTORY,
+                TestConstants.POLICY_DIRECTORY));
+        File policyFile = new File(policyDirectory, policyDirectory.list()[0]);
+        final Element root = PolicyLoader.parse(policyFile.getPath());
+        final AtomicInteger loads = new AtomicInteger();
+        final LazyPolicy policy = LazyPolicy.getInstance(root, new LazyPolicy.Source() {
+            public Node load() throws Exception {
+                loads.incrementAndGet();
+                Thread.sleep(20);
+                return root;
+            }
+        }, new PolicyFinder());
+
+        int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final List<AbstractPolicy> bodies = new ArrayList<AbstractPolicy>();
+        for (int i = 0; i < threads; i++) {
+            new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        AbstractPolicy body = policy.getPolicy();
+                        synchronized (bodies) {
+                            bodies.add(body);
+                        }
+                    } catch (InterruptedException e) {
+                        // ignore
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        done.await();
+
+        assertEquals(1, loads.get());
+        assertEquals(threads, bodies.size());
+        for (AbstractPolicy body : bodies) {
+            assertSame(bodies.get(0), body);
+        }
+        assertEquals(policy.getId(), bodies.get(0).getId());
+
+        assertTrue(policy.evict(0));
+        assertFalse(policy.isMaterialized());
+        assertNotNull(policy.getPolicy());
+        assertEquals(2, loads.get());
+    }
+
+    /**
+     * Returns a new PDP instance that loads all policies of a directory
+     *
+     * @param policyDirectory directory of XACML policy files
+     * @param module the policy finder module to use, or null to load policies eagerly
+     * @return a  PDP instance
+     */
+    private static PDP getPDPNewInstance(String policyDirectory, FileBasedPolicyFinderModule module) {
+
+        PolicyFinder finder = new PolicyFinder();
+        if (module == null) {
+            Set<String> policyLocations = new HashSet<String>();
+            policyLocations.add(policyDirectory);
+            module = new FileBasedPolicyFinderModule(policyLocations, null);
+        }
+        Set<PolicyFinderModule> policyModules = new HashSet<PolicyFinderModule>();
+        policyModules.add(module);
+        finder.setModules(policyModules);
+
+        Balana balana = Balana.getInstance();
+        PDPConfig pdpConfig = balana.getPdpConfig();
+        pdpConfig = new PDPConfig(pdpConfig.getAttributeFinder(), finder,
+                pdpConfig.getResourceFinder(), false);
+        return new PDP(pdpConfig);
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ *  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ *  WSO2 Inc. licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except
+ *  in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.connexta.arbitro.basic;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import com.connexta.arbitro.Balana;
+import com.connexta.arbitro.PDP;
+import com.connexta.arbitro.PDPConfig;
+import com.connexta.arbitro.TestConstants;
+import com.connexta.arbitro.TestUtil;
+import com.connexta.arbitro.attr.StringAttribute;
+import com.connexta.arbitro.cond.EvaluationResult;
+import com.connexta.arbitro.ctx.AbstractResult;
+import com.connexta.arbitro.ctx.EvaluationCtx;
+import com.connexta.arbitro.ctx.EvaluationCtxFactory;
+import com.connexta.arbitro.ctx.RequestCtxFactory;
+import com.connexta.arbitro.ctx.Status;
+import com.connexta.arbitro.finder.AttributeFinder;
+import com.connexta.arbitro.finder.AttributeFinderModule;
+import com.connexta.arbitro.finder.PolicyFinder;
+import com.connexta.arbitro.finder.PolicyFinderModule;
+import com.connexta.arbitro.finder.impl.FileBasedPolicyFinderModule;
+import com.connexta.arbitro.metrics.CompositeMetricsCollector;
+import com.connexta.arbitro.metrics.DecisionTrace;
+import com.connexta.arbitro.metrics.DefaultMetricsCollector;
+import com.connexta.arbitro.metrics.JMXMetricsExporter;
+import com.connexta.arbitro.metrics.LatencyHistogram;
+import com.connexta.arbitro.metrics.MetricsCollector;
+import com.connexta.arbitro.metrics.TracingCollector;
+
+import junit.framework.TestCase;
+
+/**
+ * This would test collecting metrics of the evaluation
+ */
+public class TestMetricsV3 extends TestCase {
+
+    /**
+     * directory name that states the test type
+     */
+    private final static String ROOT_DIRECTORY = "conformance";
+
+    /**
+     * directory name that states XACML version
+     */
+    private final static String VERSION_DIRECTORY = "3";
+
+    public void testCollector() throws Exception {
+
+        DefaultMetricsCollector metrics = new DefaultMetricsCollector();
+        PDP pdp = getPDPNewInstance(metrics, null);
+
+        String[] requests = new File(TestUtil.getDirectory(ROOT_DIRECTORY, VERSION_DIRECTORY,
+                TestConstants.REQUEST_DIRECTORY)).list();
+        Arrays.sort(requests);
+        int count = 0;
+        for (String requestId : requests) {
+            String request = TestUtil.createRequest(ROOT_DIRECTORY, VERSION_DIRECTORY, requestId);
+            if (request != null) {
+                pdp.evaluate(request);
+                count++;
+            }
+        }
+
+        assertEquals(count, metrics.getRequestParse().getCount());
+        assertEquals(count, metrics.getPolicyLookup().getCount());
+        assertEquals(count, metrics.getResponseEncoding().getCount());
+        long decisions = 0;
+        for (Long decision : metrics.getDecisions().values()) {
+            decisions += decision;
+        }
+        assertEquals(count, decisions);
+        assertFalse(metrics.getPolicies().isEmpty());
+        assertFalse(metrics.getRules().isEmpty());
+        assertTrue(metrics.getDecisions(AbstractResult.DECISION_DENY) > 0);
+
+        // the JMX exporter reads the same values
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        JMXMetricsExporter exporter = new JMXMetricsExporter(metrics);
+        ObjectName name = new ObjectName(JMXMetricsExporter.DEFAULT_OBJECT_NAME);
+        exporter.register(server, name);
+        try {
+            assertEquals(metrics.getDecisions(AbstractResult.DECISION_DENY),
+                    server.getAttribute(name, "Decisions.Deny"));
+            assertEquals(metrics.getRequestParse().getCount(),
+                    server.getAttribute(name, "RequestParse.Count"));
+            server.invoke(name, "reset", null, null);
+            assertEquals(0L, server.getAttribute(name, "PolicyLookup.Count"));
+        } finally {
+            exporter.unregister();
+        }
+        assertFalse(server.isRegistered(name));
+    }
+
+    public void testAttributeLookup() throws Exception {
+
+        DefaultMetricsCollector metrics = new DefaultMetricsCollector();
+        AttributeFinder attributeFinder = new AttributeFinder();
+        List<AttributeFinderModule> modules = new ArrayList<AttributeFinderModule>();
+        modules.add(new FailingModule());
+        attributeFinder.setModules(modules);
+        PDPConfig pdpConfig = new PDPConfig(attributeFinder, new PolicyFinder(), null, false);
+        pdpConfig.setMetricsCollector(metrics);
+
+        String request = TestUtil.createRequest(ROOT_DIRECTORY, VERSION_DIRECTORY,
+                new File(TestUtil.getDirectory(ROOT_DIRECTORY, VERSION_DIRECTORY,
+                        TestConstants.REQUEST_DIRECTORY)).list()[0]);
+        EvaluationCtx context = EvaluationCtxFactory.getFactory().getEvaluationCtx(
+                RequestCtxFactory.getFactory().getRequestCtx(request), pdpConfig);
+
+        EvaluationResult result = attributeFinder.findAttribute(new URI(StringAttribute.identifier),
+                new URI("urn:example:missing"), null,
+                new URI("urn:oasis:names:tc:xacml:3.0:attribute-category:resource"), context);
+        assertTrue(result.indeterminate());
+
+        String module = FailingModule.class.getName();
+        assertEquals(1, metrics.getModules().get(module).getCount());
+        assertEquals(1, metrics.getModuleErrors(module));
+
+        // a module that throws is counted as an error too
+        modules.set(0, new ThrowingModule());
+        attributeFinder.setModules(modules);
+        try {
+            attributeFinder.findAttribute(new URI(StringAttribute.identifier),
+                    new URI("urn:example:missing"), null,
+                    new URI("urn:oasis:names:tc:xacml:3.0:attribute-category:resource"), context);
+            fail("the exception of the module was not thrown");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        module = ThrowingModule.class.getName();
+        assertEquals(1, metrics.getModules().get(module).getCount());
+        assertEquals(1, metrics.getModuleErrors(module));
+    }
+
+    public void testTracing() throws Exception {
+
+        TracingCollector sampled = new TracingCollector(3, 1, 0);
+        TracingCollector unsampled = new TracingCollector(4, 0, Long.MAX_VALUE);
+        TracingCollector slow = new TracingCollector(4, 0, 1);
+        PDP pdp = getPDPNewInstance(new CompositeMetricsCollector(sampled, unsampled, slow), null);
+
+        String[] requests = new File(TestUtil.getDirectory(ROOT_DIRECTORY, VERSION_DIRECTORY,
+                TestConstants.REQUEST_DIRECTORY)).list();
+        Arrays.sort(requests);
+        int count = 0;
+        for (String requestId : requests) {
+            String request = TestUtil.createRequest(ROOT_DIRECTORY, VERSION_DIRECTORY, requestId);
+            if (request != null) {
+                pdp.evaluate(request);
+                count++;
+            }
+        }
+
+        assertEquals(4, sampled.getCapacity());
+        assertEquals(count, sampled.getTraceCount());
+        assertEquals(0, unsampled.getTraceCount());
+        assertEquals(count, slow.getTraceCount());
+
+        // only the last traces are kept, oldest first
+        List<DecisionTrace> traces = sampled.getTraces();
+        assertEquals(4, traces.size());
+        for (int i = 0; i < traces.size(); i++) {
+            DecisionTrace trace = traces.get(i);
+            assertEquals(count - 4 + i, trace.getSequence());
+            assertEquals(AbstractResult.DECISION_DENY, trace.getDecision());
+            List<DecisionTrace.Entry> entries = trace.getEntries();
+            assertEquals(DecisionTrace.Entry.LOOKUP, entries.get(0).getType());
+            assertEquals(0, entries.get(0).getDepth());
+            boolean rule = false;
+            for (DecisionTrace.Entry entry : entries) {
+                assertTrue(entry.getNanos() >= 0 || entry.getType() == DecisionTrace.Entry.MATCH);
+                if (entry.getType() == DecisionTrace.Entry.RULE) {
+                    rule = true;
+                    assertTrue(entry.getDepth() > 0);
+                }
+            }
+            assertTrue(rule);
+        }
+        assertTrue(traces.get(0).toString().contains("rule "));
+
+        sampled.clear();
+        assertTrue(sampled.getTraces().isEmpty());
+
+        // traces are cut off at the maximum number of entries
+        slow.setMaxEntries(2);
+        pdp.evaluate(TestUtil.createRequest(ROOT_DIRECTORY, VERSION_DIRECTORY, requests[0]));
+        traces = slow.getTraces();
+        DecisionTrace trace = traces.get(traces.size() - 1);
+        assertEquals(2, trace.getEntries().size());
+        assertTrue(trace.isTruncated());
+    }
+
+    public void testHistogram() throws Exception {
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(99));
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500, histogram.getMean());
+        long median = histogram.getPercentile(50);
+        assertTrue(median >= 500 && median < 1000);
+        assertEquals(1000, histogram.getPercentile(100));
+
+        // no value is lost when recording concurrently
+        final LatencyHistogram concurrent = new LatencyHistogram();
+        int threads = 4;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread() {
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        concurrent.record(i);
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+        assertEquals(threads * 10000, concurrent.getCount());
+        assertEquals(threads * (10000L * 9999 / 2), concurrent.getTotal());
+        assertEquals(9999, concurrent.getMax());
+    }
+
+    /**
+     * Returns a new PDP instance that loads all conformance policies and collects metrics
+     *
+     * @param metrics the metrics collector
+     * @param attributeFinder the attribute finder, or null to use the default one
+     * @return a  PDP instance
+     * @throws Exception if the policy directory can not be found
+     */
+    private static PDP getPDPNewInstance(MetricsCollector metrics,
+                                         AttributeFinder attributeFinder) throws Exception {
+
+        PolicyFinder finder = new PolicyFinder();
+        Set<String> policyLocations = new HashSet<String>();
+        policyLocations.add(TestUtil.getDirectory(ROOT_DIRECTORY, VERSION_DIRECTORY,
+                TestConstants.POLICY_DIRECTORY));
+        FileBasedPolicyFinderModule testPolicyFinderModule =
+                new FileBasedPolicyFinderModule(policyLocations, null);
+        Set<PolicyFinderModule> policyModules = new HashSet<PolicyFinderModule>();
+        policyModules.add(testPolicyFinderModule);
+        finder.setModules(policyModules);
+
+        Balana balana = Balana.getInstance();
+        PDPConfig pdpConfig = balana.getPdpConfig();
+        if (attributeFinder == null) {
+            attributeFinder = pdpConfig.getAttributeFinder();
+        }
+        pdpConfig = new PDPConfig(attributeFinder, finder, pdpConfig.getResourceFinder(), false);
+        pdpConfig.setMetricsCollector(metrics);
+        return new PDP(pdpConfig);
+    }
+
+    /**
+     * An attribute finder module that fails to find any attribute
+     */
+    public static class FailingModule extends AttributeFinderModule {
+
+        @Override
+        public boolean isDesignatorSupported() {
+            return true;
+        }
+
+        @Override
+        public EvaluationResult findAttribute(URI attributeType, URI attributeId, String issuer,
+                                              URI category, EvaluationCtx context) {
+            ArrayList<String> code = new ArrayList<String>();
+            code.add(Status.STATUS_PROCESSING_ERROR);
+            return new EvaluationResult(new Status(code, "attribute store is down"));
+        }
+    }
+
+    /**
+     * An attribute finder module that throws while finding any attribute
+     */
+    public static class ThrowingModule extends AttributeFinderModule {
+
+        @Override
+        public boolean isDesignatorSupported() {
+            return true;
+        }
+
+        @Override
+        public EvaluationResult findAttribute(URI attributeType, URI attributeId, String issuer,
+                                              URI category, EvaluationCtx context) {
+            throw new IllegalStateException("attribute store is broken");
+        }
+    }
+}
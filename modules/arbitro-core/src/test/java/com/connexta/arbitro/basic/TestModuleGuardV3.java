@@ -0,0 +1,385 @@
+/*
+ *  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ *  WSO2 Inc. licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except
+ *  in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.connexta.arbitro.basic;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.connexta.arbitro.ConfigurationStore;
+import com.connexta.arbitro.PDP;
+import com.connexta.arbitro.PDPConfig;
+import com.connexta.arbitro.ParsingException;
+import com.connexta.arbitro.attr.AttributeValue;
+import com.connexta.arbitro.attr.BagAttribute;
+import com.connexta.arbitro.attr.StringAttribute;
+import com.connexta.arbitro.cond.EvaluationResult;
+import com.connexta.arbitro.ctx.EvaluationCtx;
+import com.connexta.arbitro.ctx.EvaluationCtxFactory;
+import com.connexta.arbitro.ctx.RequestCtxFactory;
+import com.connexta.arbitro.ctx.Status;
+import com.connexta.arbitro.finder.AttributeFinder;
+import com.connexta.arbitro.finder.AttributeFinderModule;
+import com.connexta.arbitro.finder.ModuleGuard;
+import com.connexta.arbitro.finder.PolicyFinder;
+
+import junit.framework.TestCase;
+
+/**
+ * This would test the isolation of attribute finder modules with bulkheads, circuit breakers
+ * and last known good values
+ */
+public class TestModuleGuardV3 extends TestCase {
+
+    private static final Map<String, Set<String>> SUBJECT_ID = Collections.singletonMap(
+            "urn:oasis:names:tc:xacml:1.0:subject-category:access-subject",
+            Collections.singleton("urn:oasis:names:tc:xacml:1.0:subject:subject-id"));
+
+    private static final String CATEGORY = "urn:oasis:names:tc:xacml:3.0:attribute-category:resource";
+
+    private FlakyModule module;
+
+    private AttributeFinder attributeFinder;
+
+    @Override
+    protected void setUp() throws Exception {
+        module = new FlakyModule();
+        attributeFinder = new AttributeFinder();
+        List<AttributeFinderModule> modules = new ArrayList<AttributeFinderModule>();
+        modules.add(module);
+        attributeFinder.setModules(modules);
+    }
+
+    public void testCircuitBreaker() throws Exception {
+
+        ModuleGuard guard = new ModuleGuard(0, 0.5, 0, 4, 100, 0);
+        attributeFinder.setModuleGuard(module, guard);
+        assertSame(guard, attributeFinder.getModuleGuard(module));
+        EvaluationCtx context = getContext("alice");
+
+        module.failing = true;
+        for (int i = 0; i < 4; i++) {
+            assertTrue(findAttribute(context).indeterminate());
+        }
+        assertEquals(ModuleGuard.OPEN, guard.getCircuitState());
+        assertEquals(1.0, guard.getFailureRate());
+
+        // the module is not called while the circuit is open
+        EvaluationResult result = findAttribute(context);
+        assertTrue(result.indeterminate());
+        assertTrue(result.getStatus().getMessage().contains("not available"));
+        assertEquals(4, module.calls.get());
+        assertEquals(1, guard.getRejectedCalls());
+
+        // after a while a single call finds out that the module recovered
+        Thread.sleep(150);
+        assertEquals(ModuleGuard.HALF_OPEN, guard.getCircuitState());
+        module.failing = false;
+        assertFalse(findAttribute(context).indeterminate());
+        assertEquals(ModuleGuard.CLOSED, guard.getCircuitState());
+        assertEquals(5, module.calls.get());
+    }
+
+    public void testSlowCalls() throws Exception {
+
+        ModuleGuard guard = new ModuleGuard(0, 0.5, 10, 2, 60000, 0);
+        attributeFinder.setModuleGuard(module, guard);
+        EvaluationCtx context = getContext("alice");
+
+        module.delay = 30;
+        assertFalse(findAttribute(context).indeterminate());
+        assertFalse(findAttribute(context).indeterminate());
+        assertEquals("OPEN", guard.getState());
+
+        guard.reset();
+        assertEquals("CLOSED", guard.getState());
+        assertEquals(0.0, guard.getFailureRate());
+    }
+
+    public void testBulkhead() throws Exception {
+
+        ModuleGuard guard = new ModuleGuard(1, 0.5, 0, 60000);
+        attributeFinder.setModuleGuard(module, guard);
+        final EvaluationCtx context = getContext("alice");
+
+        module.blocked = new CountDownLatch(1);
+        Thread thread = new Thread() {
+            public void run() {
+                findAttribute(context);
+            }
+        };
+        thread.start();
+        while (guard.getActiveCalls() == 0) {
+            Thread.sleep(1);
+        }
+
+        // the second call does not wait for the first
+        EvaluationResult result = findAttribute(context);
+        assertTrue(result.indeterminate());
+        assertEquals(1, guard.getRejectedCalls());
+
+        module.blocked.countDown();
+        thread.join();
+        assertEquals(0, guard.getActiveCalls());
+        assertFalse(findAttribute(context).indeterminate());
+        assertEquals(2, guard.getCalls());
+    }
+
+    public void testFallback() throws Exception {
+
+        ModuleGuard guard = new ModuleGuard(0, 0.5, 0, 4, 60000, 10);
+        attributeFinder.setModuleGuard(module, guard);
+
+        assertFalse(findAttribute(getContext("alice")).indeterminate());
+
+        // the value found for the same request is served while the module fails
+        module.failing = true;
+        EvaluationResult result = findAttribute(getContext("alice"));
+        assertFalse(result.indeterminate());
+        BagAttribute bag = (BagAttribute) result.getAttributeValue();
+        assertEquals(1, bag.size());
+        assertEquals(1, guard.getFallbacks());
+
+        // but never for a different one
+        assertTrue(findAttribute(getContext("bob")).indeterminate());
+        assertEquals(1, guard.getFallbacks());
+
+        // nor when the module does not say what its values depend on
+        module.dependencies = null;
+        assertTrue(findAttribute(getContext("alice")).indeterminate());
+        assertEquals(1, guard.getFallbacks());
+        module.dependencies = SUBJECT_ID;
+
+        attributeFinder.setModuleGuard(module, null);
+        assertNull(attributeFinder.getModuleGuard(module));
+        assertTrue(findAttribute(getContext("alice")).indeterminate());
+    }
+
+    public void testJMX() throws Exception {
+
+        ModuleGuard guard = new ModuleGuard(3, 0.5, 0, 60000);
+        guard.register("flaky");
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(ModuleGuard.OBJECT_NAME_PREFIX
+                    + ObjectName.quote("flaky"));
+            assertEquals("CLOSED", server.getAttribute(name, "State"));
+            assertEquals(3, server.getAttribute(name, "MaxConcurrentCalls"));
+            server.invoke(name, "reset", null, null);
+        } finally {
+            guard.unregister();
+        }
+    }
+
+    public void testStaleCallWhileHalfOpen() throws Exception {
+
+        ModuleGuard guard = new ModuleGuard(0, 0.5, 0, 2, 200, 0);
+        attributeFinder.setModuleGuard(module, guard);
+        final EvaluationCtx context = getContext("alice");
+
+        // a call starts while the circuit is closed
+        CountDownLatch stale = new CountDownLatch(1);
+        module.blocked = stale;
+        Thread staleCall = new Thread() {
+            public void run() {
+                findAttribute(context);
+            }
+        };
+        staleCall.start();
+        while (module.calls.get() < 1) {
+            Thread.sleep(1);
+        }
+        module.blocked = null;
+
+        // the circuit opens, and soon after is half open
+        module.failing = true;
+        findAttribute(context);
+        findAttribute(context);
+        Thread.sleep(300);
+        assertEquals(ModuleGuard.HALF_OPEN, guard.getCircuitState());
+
+        // the probe is made while the circuit is half open
+        CountDownLatch probe = new CountDownLatch(1);
+        module.blocked = probe;
+        Thread probeCall = new Thread() {
+            public void run() {
+                findAttribute(context);
+            }
+        };
+        probeCall.start();
+        while (module.calls.get() < 4) {
+            Thread.sleep(1);
+        }
+
+        // the call that started earlier succeeds, but does not count as the probe
+        module.failing = false;
+        stale.countDown();
+        staleCall.join();
+        assertEquals(ModuleGuard.HALF_OPEN, guard.getCircuitState());
+
+        module.failing = true;
+        probe.countDown();
+        probeCall.join();
+        assertEquals(ModuleGuard.OPEN, guard.getCircuitState());
+    }
+
+    public void testConfiguration() throws Exception {
+
+        PDPConfig config = getConfig("requestTimeout=\"1500\"",
+                "maxConcurrentCalls=\"2\" fallbackSize=\"5\"");
+        assertEquals(1500, config.getRequestTimeout());
+        AttributeFinder finder = config.getAttributeFinder();
+        ModuleGuard guard = finder.getModuleGuard(finder.getModules().get(0));
+        assertNotNull(guard);
+        assertEquals(2, guard.getMaxConcurrentCalls());
+        assertFalse(guard.isRegistered());
+
+        // the guard is registered once a PDP is built
+        new PDP(config);
+        try {
+            assertTrue(guard.isRegistered());
+            ObjectName name = new ObjectName(ModuleGuard.OBJECT_NAME_PREFIX
+                    + ObjectName.quote(FlakyModule.class.getName()));
+            assertEquals(2, ManagementFactory.getPlatformMBeanServer().getAttribute(name,
+                    "MaxConcurrentCalls"));
+        } finally {
+            guard.unregister();
+        }
+
+        // whole numbers are not truncated, and out of range values are rejected
+        String[] invalid = {"maxConcurrentCalls=\"1.9\"", "windowSize=\"0\"",
+                "openMillis=\"-1\"", "failureRateThreshold=\"2\"",
+                "failureRateThreshold=\"NaN\"", "fallbackSize=\"3000000000\""};
+        for (String attributes : invalid) {
+            try {
+                getConfig("", attributes);
+                fail(attributes);
+            } catch (ParsingException e) {
+                // expected
+            }
+        }
+        try {
+            getConfig("requestTimeout=\"1.9\"", "");
+            fail("requestTimeout=\"1.9\"");
+        } catch (ParsingException e) {
+            // expected
+        }
+    }
+
+    private static PDPConfig getConfig(String pdpAttributes, String guardAttributes)
+            throws Exception {
+        File file = File.createTempFile("config", ".xml");
+        try {
+            FileWriter writer = new FileWriter(file);
+            writer.write("<config defaultPDP=\"pdp\" defaultAttributeFactory=\"attr\" " +
+                    "defaultCombiningAlgFactory=\"comb\" defaultFunctionFactory=\"func\">" +
+                    "<pdp name=\"pdp\" " + pdpAttributes + "><attributeFinderModule class=\"" +
+                    FlakyModule.class.getName() + "\" " + guardAttributes + "/></pdp>" +
+                    "<attributeFactory name=\"attr\" useStandardDatatypes=\"true\"/>" +
+                    "<combiningAlgFactory name=\"comb\" useStandardAlgorithms=\"true\"/>" +
+                    "<functionFactory name=\"func\" useStandardFunctions=\"true\"/></config>");
+            writer.close();
+            return new ConfigurationStore(file).getDefaultPDPConfig();
+        } finally {
+            file.delete();
+        }
+    }
+
+    private EvaluationResult findAttribute(EvaluationCtx context) {
+        try {
+            return attributeFinder.findAttribute(new URI(StringAttribute.identifier),
+                    new URI("urn:example:flaky"), null, new URI(CATEGORY), context);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private EvaluationCtx getContext(String subject) throws Exception {
+        String request = "<Request xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" " +
+                "CombinedDecision=\"false\" ReturnPolicyIdList=\"false\">" +
+                "<Attributes Category=\"urn:oasis:names:tc:xacml:1.0:subject-category:access-subject\">" +
+                "<Attribute AttributeId=\"urn:oasis:names:tc:xacml:1.0:subject:subject-id\" " +
+                "IncludeInResult=\"false\"><AttributeValue " +
+                "DataType=\"http://www.w3.org/2001/XMLSchema#string\">" + subject +
+                "</AttributeValue></Attribute></Attributes></Request>";
+        PDPConfig pdpConfig = new PDPConfig(attributeFinder, new PolicyFinder(), null, false);
+        return EvaluationCtxFactory.getFactory().getEvaluationCtx(
+                RequestCtxFactory.getFactory().getRequestCtx(request), pdpConfig);
+    }
+
+    /**
+     * An attribute finder module that can be made to fail, to be slow or to block
+     */
+    public static class FlakyModule extends AttributeFinderModule {
+
+        private volatile boolean failing;
+
+        private volatile long delay;
+
+        private volatile CountDownLatch blocked;
+
+        private volatile Map<String, Set<String>> dependencies = SUBJECT_ID;
+
+        private AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public boolean isDesignatorSupported() {
+            return true;
+        }
+
+        @Override
+        public Map<String, Set<String>> getRequestDependencies() {
+            return dependencies;
+        }
+
+        @Override
+        public EvaluationResult findAttribute(URI attributeType, URI attributeId, String issuer,
+                                              URI category, EvaluationCtx context) {
+            calls.incrementAndGet();
+            try {
+                if (blocked != null) {
+                    blocked.await();
+                }
+                if (delay > 0) {
+                    Thread.sleep(delay);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (failing) {
+                ArrayList<String> code = new ArrayList<String>();
+                code.add(Status.STATUS_PROCESSING_ERROR);
+                return new EvaluationResult(new Status(code, "the source is down"));
+            }
+            List<AttributeValue> values = new ArrayList<AttributeValue>();
+            values.add(new StringAttribute("yes"));
+            return new EvaluationResult(new BagAttribute(attributeType, values));
+        }
+    }
+}
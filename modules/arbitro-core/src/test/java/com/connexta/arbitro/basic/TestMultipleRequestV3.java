@@ -18,11 +18,15 @@
 
 package com.connexta.arbitro.basic;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.util.HashSet;
 import java.util.Set;
 
+import javax.xml.parsers.DocumentBuilderFactory;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import com.connexta.arbitro.Balana;
@@ -34,6 +38,7 @@ import com.connexta.arbitro.ctx.ResponseCtx;
 import com.connexta.arbitro.finder.PolicyFinder;
 import com.connexta.arbitro.finder.PolicyFinderModule;
 import com.connexta.arbitro.finder.impl.FileBasedPolicyFinderModule;
+import org.w3c.dom.Document;
 
 import junit.framework.TestCase;
 
@@ -66,7 +71,7 @@ public class TestMultipleRequestV3 extends TestCase {
         PDP pdp = getPDPNewInstance(policies);
         log.info("Basic Test 0014 is started");
 
-        for (int i = 1; i < 2; i++) {
+        for (int i = 1; i < 4; i++) {
 
             if (i < 10) {
                 reqResNo = "0" + i;
@@ -99,6 +104,35 @@ public class TestMultipleRequestV3 extends TestCase {
         }
     }
 
+    public void testStreamingResponse() throws Exception {
+
+        Set<String> policies = new HashSet<String>();
+        policies.add("TestPolicy_0014.xml");
+        log.info("Streaming Test 0014 is started");
+
+        String request = TestUtil.createRequest(ROOT_DIRECTORY, VERSION_DIRECTORY,
+                "request_0014_01.xml");
+        assertNotNull("Request read from file is Null", request);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        getPDPNewInstance(policies).evaluate(new ByteArrayInputStream(request.getBytes("UTF-8")), out);
+        log.info("Response that is streamed from the PDP :  " + out.toString("UTF-8"));
+
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        Document doc = factory.newDocumentBuilder().parse(new ByteArrayInputStream(out.toByteArray()));
+        ResponseCtx response = ResponseCtx.getInstance(doc.getDocumentElement());
+
+        ResponseCtx expectedResponseCtx = TestUtil.createResponse(ROOT_DIRECTORY,
+                VERSION_DIRECTORY, "response_0014_01.xml");
+        assertNotNull("Response read from file is Null", expectedResponseCtx);
+        assertTrue(TestUtil.isMatching(response, expectedResponseCtx));
+        // the streamed results must be the same as the collected ones
+        assertTrue(TestUtil.isMatching(response, TestUtil.evaluate(getPDPNewInstance(policies), request)));
+
+        log.info("Streaming Test 0014 is finished");
+    }
+
     /**
      * Returns a new PDP instance with new XACML policies
      *
@@ -0,0 +1,197 @@
+/*
+ *  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ *  WSO2 Inc. licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except
+ *  in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.connexta.arbitro.basic;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import com.connexta.arbitro.Balana;
+import com.connexta.arbitro.PDP;
+import com.connexta.arbitro.PDPConfig;
+import com.connexta.arbitro.TestConstants;
+import com.connexta.arbitro.TestUtil;
+import com.connexta.arbitro.ctx.ResponseCtx;
+import com.connexta.arbitro.finder.PolicyFinder;
+import com.connexta.arbitro.finder.PolicyFinderModule;
+import com.connexta.arbitro.finder.impl.FileBasedPolicyFinderModule;
+import com.connexta.arbitro.finder.impl.PolicyLoader;
+
+import junit.framework.TestCase;
+
+/**
+ * This would test loading policies on several threads
+ */
+public class TestParallelPolicyLoadingV3 extends TestCase {
+
+    /**
+     * directory name that states the test type
+     */
+    private final static String ROOT_DIRECTORY = "conformance";
+
+    /**
+     * directory name that states XACML version
+     */
+    private final static String VERSION_DIRECTORY = "3";
+
+    /**
+     * the logger we'll use for all messages
+     */
+    private static Log log = LogFactory.getLog(TestParallelPolicyLoadingV3.class);
+
+    public void testSameResultForAnyThreadCount() throws Exception {
+
+        File policyDirectory = new File(TestUtil.getDirectory(ROOT_DIRECTORY, VERSION_DIRECTORY,
+                TestConstants.POLICY_DIRECTORY));
+        String[] names = policyDirectory.list();
+        Arrays.sort(names);
+        List<File> files = new ArrayList<File>();
+        for (String name : names) {
+            files.add(new File(policyDirectory, name));
+        }
+
+        List<PolicyLoader.Result> sequential = new PolicyLoader(new PolicyFinder(), 1).loadFiles(files);
+        List<PolicyLoader.Result> parallel = new PolicyLoader(new PolicyFinder(), 4).loadFiles(files);
+        assertEquals(files.size(), sequential.size());
+        assertEquals(files.size(), parallel.size());
+        for (int i = 0; i < files.size(); i++) {
+            assertEquals(files.get(i).getPath(), parallel.get(i).getPath());
+            assertNull(parallel.get(i).getError());
+            assertEquals(sequential.get(i).getPolicy().getId(), parallel.get(i).getPolicy().getId());
+        }
+
+        PDP sequentialPDP = getPDPNewInstance(policyDirectory.getPath(), 1);
+        PDP parallelPDP = getPDPNewInstance(policyDirectory.getPath(), 4);
+
+        String[] requests = new File(TestUtil.getDirectory(ROOT_DIRECTORY, VERSION_DIRECTORY,
+                TestConstants.REQUEST_DIRECTORY)).list();
+        Arrays.sort(requests);
+        for (String requestId : requests) {
+            String request = TestUtil.createRequest(ROOT_DIRECTORY, VERSION_DIRECTORY, requestId);
+            if (request == null) {
+                continue;
+            }
+            log.info("Parallel loading test request " + requestId);
+            ResponseCtx expected = TestUtil.evaluate(sequentialPDP, request);
+            ResponseCtx response = TestUtil.evaluate(parallelPDP, request);
+            assertTrue(requestId, TestUtil.isMatching(response, expected));
+            assertTrue(requestId, TestUtil.isMatching(expected, response));
+        }
+    }
+
+    public void testLoadErrors() throws Exception {
+
+        File policyDirectory = new File(TestUtil.getDirectory(ROOT_DIRECTORY, VERSION_DIRECTORY,
+                TestConstants.POLICY_DIRECTORY));
+        File directory = File.createTempFile("policies", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+
+        File invalid = new File(directory, "invalid.xml");
+        File unknown = new File(directory, "unknown.xml");
+        try {
+            FileWriter writer = new FileWriter(invalid);
+            writer.write("<Policy");
+            writer.close();
+            writer = new FileWriter(unknown);
+            writer.write("<Unknown/>");
+            writer.close();
+
+            Set<String> policyLocations = new HashSet<String>();
+            policyLocations.add(policyDirectory.getPath());
+            policyLocations.add(directory.getPath());
+            FileBasedPolicyFinderModule module = new FileBasedPolicyFinderModule(policyLocations, null);
+            module.setLoaderThreads(4);
+            module.init(new PolicyFinder());
+
+            Map<String, Throwable> errors = module.getLoadErrors();
+            assertEquals(2, errors.size());
+            assertEquals(Arrays.asList(invalid.getPath(), unknown.getPath()),
+                    new ArrayList<String>(errors.keySet()));
+            assertNotNull(errors.get(invalid.getPath()));
+            assertNotNull(errors.get(unknown.getPath()));
+        } finally {
+            invalid.delete();
+            unknown.delete();
+            directory.delete();
+        }
+    }
+
+    public void testReload() throws Exception {
+
+        Set<String> policyLocations = new HashSet<String>();
+        policyLocations.add(TestUtil.getDirectory(ROOT_DIRECTORY, VERSION_DIRECTORY,
+                TestConstants.POLICY_DIRECTORY));
+        final FileBasedPolicyFinderModule module =
+                new FileBasedPolicyFinderModule(policyLocations, null);
+        module.setLoaderThreads(4);
+        module.init(new PolicyFinder());
+        int count = module.getPolicyRepository().getLatestPolicies().size();
+        assertTrue(count > 0);
+
+        // requests find every policy while the policies are loaded again
+        Thread reloader = new Thread() {
+            public void run() {
+                for (int i = 0; i < 20; i++) {
+                    module.loadPolicies();
+                }
+            }
+        };
+        reloader.start();
+        while (reloader.isAlive()) {
+            assertEquals(count, module.getPolicyRepository().getLatestPolicies().size());
+        }
+        reloader.join();
+        assertEquals(count, module.getPolicyRepository().getLatestPolicies().size());
+        assertTrue(module.getLoadErrors().isEmpty());
+    }
+
+    /**
+     * Returns a new PDP instance that loads all policies of a directory
+     *
+     * @param policyDirectory directory of XACML policy files
+     * @param threads number of threads to load the policies with
+     * @return a  PDP instance
+     */
+    private static PDP getPDPNewInstance(String policyDirectory, int threads) {
+
+        PolicyFinder finder = new PolicyFinder();
+        Set<String> policyLocations = new HashSet<String>();
+        policyLocations.add(policyDirectory);
+
+        FileBasedPolicyFinderModule testPolicyFinderModule =
+                new FileBasedPolicyFinderModule(policyLocations, null);
+        testPolicyFinderModule.setLoaderThreads(threads);
+        Set<PolicyFinderModule> policyModules = new HashSet<PolicyFinderModule>();
+        policyModules.add(testPolicyFinderModule);
+        finder.setModules(policyModules);
+
+        Balana balana = Balana.getInstance();
+        PDPConfig pdpConfig = balana.getPdpConfig();
+        pdpConfig = new PDPConfig(pdpConfig.getAttributeFinder(), finder,
+                pdpConfig.getResourceFinder(), false);
+        return new PDP(pdpConfig);
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ *  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ *  WSO2 Inc. licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except
+ *  in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.connexta.arbitro.basic;
+
+import java.io.File;
+import java.net.URI;
+import java.util.Set;
+
+import com.connexta.arbitro.PDP;
+import com.connexta.arbitro.TestUtil;
+import com.connexta.arbitro.ctx.AbstractRequestCtx;
+import com.connexta.arbitro.ctx.AbstractResult;
+import com.connexta.arbitro.ctx.RequestCtxFactory;
+import com.connexta.arbitro.finder.impl.PathTrie;
+import com.connexta.arbitro.finder.impl.PolicyLoader;
+import com.connexta.arbitro.finder.impl.PolicyRepository;
+import com.connexta.arbitro.finder.impl.TargetKeyExtractor;
+
+import junit.framework.TestCase;
+
+/**
+ * This would test indexing policies by the paths and path prefixes they apply to
+ */
+public class TestPathPrefixIndexV3 extends TestCase {
+
+    private static final String STRING = "http://www.w3.org/2001/XMLSchema#string";
+
+    private static final String PUBLIC_POLICY = "urn:example:public";
+
+    private static final String NEWS_POLICY = "urn:example:news";
+
+    private static final String TEAM_POLICY = "urn:example:team";
+
+    private static final String[] RESOURCES = {"public", "public/news", "public/news/today",
+            "publications", "private/team", "private/team/a", "private/teams", "private",
+            "", "/public", null};
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = TestUtil.createDirectory();
+        TestUtil.write(directory, "public.xml", getPolicyContent(PUBLIC_POLICY, "Permit",
+                getMatch("urn:oasis:names:tc:xacml:3.0:function:string-starts-with", "public")));
+        // the policy applies to the news and everything below it
+        TestUtil.write(directory, "news.xml", getPolicyContent(NEWS_POLICY, "Deny",
+                getMatch("urn:oasis:names:tc:xacml:1.0:function:string-equal", "public/news") +
+                getMatch("urn:oasis:names:tc:xacml:1.0:function:string-regexp-match",
+                        "^public/news/.*")));
+        TestUtil.write(directory, "team.xml", getPolicyContent(TEAM_POLICY, "Permit",
+                getMatch("urn:oasis:names:tc:xacml:1.0:function:string-regexp-match",
+                        "^private/team$") +
+                getMatch("urn:oasis:names:tc:xacml:3.0:function:string-starts-with",
+                        "private/team/")));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestUtil.deleteDirectory(directory);
+    }
+
+    public void testTrie() throws Exception {
+
+        PathTrie<String> trie = new PathTrie<String>();
+        trie.add("public", "a");
+        trie.add("public/news", "b");
+        trie.add("public/news/today", "c");
+        trie.add("private/team", "d");
+        trie.addPrefix("public/ne", "e");
+        trie.addPrefix("pub", "f");
+
+        assertEquals(TestUtil.set("a", "f"), trie.getMatches("public"));
+        assertEquals(TestUtil.set("b", "e", "f"), trie.getMatches("public/news"));
+        assertEquals(TestUtil.set("e", "f"), trie.getMatches("public/new"));
+        assertEquals(TestUtil.set(), trie.getMatches("private"));
+        assertEquals(TestUtil.set("d"), trie.get("private/team"));
+
+        // a path without values is not a child, but the paths below it are descendants
+        assertEquals(TestUtil.set("public"), TestUtil.set(trie.getChildren(null)));
+        assertEquals(TestUtil.set("public", "public/news", "public/news/today", "private/team"),
+                TestUtil.set(trie.getDescendants(null)));
+        assertEquals(TestUtil.set("public/news"), TestUtil.set(trie.getChildren("public")));
+        assertEquals(TestUtil.set("private/team"), TestUtil.set(trie.getChildren("private")));
+        assertEquals(TestUtil.set("public/news", "public/news/today"),
+                TestUtil.set(trie.getDescendants("public")));
+
+        assertTrue(trie.remove("public/news", "b"));
+        assertFalse(trie.remove("public/news", "b"));
+        assertTrue(trie.removePrefix("public/ne", "e"));
+        assertEquals(TestUtil.set("f"), trie.getMatches("public/news"));
+        assertEquals(TestUtil.set("public/news/today"),
+                TestUtil.set(trie.getDescendants("public")));
+
+        // prefixes that end at a separator, or share the characters of their last segment
+        trie.addPrefix("public/", "g");
+        trie.addPrefix("public/new", "h");
+        trie.addPrefix("public/newer", "i");
+        trie.addPrefix("", "j");
+        assertEquals(TestUtil.set("a", "f", "j"), trie.getMatches("public"));
+        assertEquals(TestUtil.set("f", "g", "j"), trie.getMatches("public/"));
+        assertEquals(TestUtil.set("f", "g", "h", "i", "j"), trie.getMatches("public/newer/x"));
+        assertEquals(TestUtil.set("f", "g", "h", "j"), trie.getMatches("public/new/er"));
+        assertEquals(TestUtil.set("j"), trie.getMatches("private/team/x"));
+        assertTrue(trie.removePrefix("public/newer", "i"));
+        assertFalse(trie.removePrefix("public/ne", "h"));
+        assertEquals(TestUtil.set("f", "g", "h", "j"), trie.getMatches("public/newer"));
+        assertTrue(trie.removePrefix("public/new", "h"));
+        assertTrue(trie.removePrefix("public/", "g"));
+        assertTrue(trie.removePrefix("", "j"));
+        assertEquals(TestUtil.set("f"), trie.getMatches("public/newer"));
+    }
+
+    public void testCandidates() throws Exception {
+
+        PolicyRepository repository = new PolicyRepository(new TargetKeyExtractor());
+        for (File file : directory.listFiles()) {
+            repository.add(PolicyLoader.build(PolicyLoader.parse(file.getPath()), null));
+        }
+
+        assertEquals(TestUtil.set(PUBLIC_POLICY), getCandidates(repository, "public"));
+        assertEquals(TestUtil.set(PUBLIC_POLICY, NEWS_POLICY),
+                getCandidates(repository, "public/news"));
+        assertEquals(TestUtil.set(PUBLIC_POLICY, NEWS_POLICY),
+                getCandidates(repository, "public/news/today"));
+        assertEquals(TestUtil.set(PUBLIC_POLICY), getCandidates(repository, "publications"));
+        assertEquals(TestUtil.set(TEAM_POLICY), getCandidates(repository, "private/team"));
+        assertEquals(TestUtil.set(TEAM_POLICY), getCandidates(repository, "private/team/a"));
+        assertEquals(TestUtil.set(), getCandidates(repository, "private/teams"));
+        assertEquals(TestUtil.set(), getCandidates(repository, (String) null));
+
+        // a policy that is updated is indexed by its new paths only
+        repository.add(PolicyLoader.build(PolicyLoader.parseContent(getPolicyContent(
+                TEAM_POLICY, "Permit", getMatch(
+                        "urn:oasis:names:tc:xacml:3.0:function:string-starts-with",
+                        "private/"))), null));
+        assertEquals(TestUtil.set(TEAM_POLICY), getCandidates(repository, "private/teams"));
+
+        repository.remove(URI.create(TEAM_POLICY));
+        assertEquals(TestUtil.set(), getCandidates(repository, "private/team"));
+    }
+
+    public void testDecisions() throws Exception {
+
+        PDP indexed = TestUtil.getPDPNewInstance(directory, true);
+        PDP scanned = TestUtil.getPDPNewInstance(directory, false);
+        for (String resource : RESOURCES) {
+            AbstractRequestCtx request = getRequest(resource);
+            assertEquals("decision for " + resource, TestUtil.getDecision(scanned, request),
+                    TestUtil.getDecision(indexed, request));
+        }
+
+        assertEquals(AbstractResult.DECISION_PERMIT,
+                TestUtil.getDecision(indexed, getRequest("public")));
+        assertEquals(AbstractResult.DECISION_DENY,
+                TestUtil.getDecision(indexed, getRequest("public/news/today")));
+        assertEquals(AbstractResult.DECISION_PERMIT,
+                TestUtil.getDecision(indexed, getRequest("private/team/a")));
+        assertEquals(AbstractResult.DECISION_NOT_APPLICABLE,
+                TestUtil.getDecision(indexed, getRequest("private/teams")));
+    }
+
+    private static Set<String> getCandidates(PolicyRepository repository, String... resources)
+            throws Exception {
+        return TestUtil.getCandidates(repository, getRequest(resources));
+    }
+
+    private static AbstractRequestCtx getRequest(String... resources) throws Exception {
+        StringBuilder values = new StringBuilder();
+        for (String resource : resources) {
+            if (resource != null) {
+                values.append("<AttributeValue DataType=\"").append(STRING).append("\">")
+                        .append(resource).append("</AttributeValue>");
+            }
+        }
+        String request = "<Request xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" " +
+                "CombinedDecision=\"false\" ReturnPolicyIdList=\"false\">" +
+                "<Attributes Category=\"" +
+                "urn:oasis:names:tc:xacml:3.0:attribute-category:resource\">" +
+                (values.length() == 0 ? "" : "<Attribute AttributeId=\"" +
+                        "urn:oasis:names:tc:xacml:1.0:resource:resource-id\" " +
+                        "IncludeInResult=\"false\">" + values + "</Attribute>") +
+                "</Attributes></Request>";
+        return RequestCtxFactory.getFactory().getRequestCtx(request);
+    }
+
+    private static String getPolicyContent(String id, String effect, String allOfs) {
+        return "<Policy xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" " +
+                "PolicyId=\"" + id + "\" Version=\"1.0\" RuleCombiningAlgId=\"" +
+                "urn:oasis:names:tc:xacml:3.0:rule-combining-algorithm:deny-overrides\">" +
+                "<Target><AnyOf>" + allOfs + "</AnyOf></Target>" +
+                "<Rule RuleId=\"rule\" Effect=\"" + effect + "\"/></Policy>";
+    }
+
+    private static String getMatch(String function, String value) {
+        return "<AllOf><Match MatchId=\"" + function + "\">" +
+                "<AttributeValue DataType=\"" + STRING + "\">" + value + "</AttributeValue>" +
+                "<AttributeDesignator AttributeId=\"" +
+                "urn:oasis:names:tc:xacml:1.0:resource:resource-id\" Category=\"" +
+                "urn:oasis:names:tc:xacml:3.0:attribute-category:resource\" DataType=\"" +
+                STRING + "\" MustBePresent=\"false\"/></Match></AllOf>";
+    }
+}
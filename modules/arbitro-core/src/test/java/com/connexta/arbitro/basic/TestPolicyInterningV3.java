@@ -0,0 +1,220 @@
+/*
+ *  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ *  WSO2 Inc. licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except
+ *  in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.connexta.arbitro.basic;
+
+import java.io.File;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import com.connexta.arbitro.Balana;
+import com.connexta.arbitro.PDP;
+import com.connexta.arbitro.PDPConfig;
+import com.connexta.arbitro.ParsingException;
+import com.connexta.arbitro.PolicyInterner;
+import com.connexta.arbitro.PolicyMetaData;
+import com.connexta.arbitro.TargetMatch;
+import com.connexta.arbitro.TestConstants;
+import com.connexta.arbitro.TestUtil;
+import com.connexta.arbitro.XACMLConstants;
+import com.connexta.arbitro.cond.Expression;
+import com.connexta.arbitro.cond.ExpressionHandler;
+import com.connexta.arbitro.ctx.ResponseCtx;
+import com.connexta.arbitro.finder.PolicyFinder;
+import com.connexta.arbitro.finder.PolicyFinderModule;
+import com.connexta.arbitro.finder.impl.FileBasedPolicyFinderModule;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+
+import junit.framework.TestCase;
+
+/**
+ * This would test sharing the same parts of policies between them
+ */
+public class TestPolicyInterningV3 extends TestCase {
+
+    /**
+     * directory name that states the test type
+     */
+    private final static String ROOT_DIRECTORY = "conformance";
+
+    /**
+     * directory name that states XACML version
+     */
+    private final static String VERSION_DIRECTORY = "3";
+
+    private final static String APPLY = "<Apply xmlns=\"" + XACMLConstants.XACML_3_0_IDENTIFIER +
+            "\" FunctionId=\"urn:oasis:names:tc:xacml:1.0:function:string-is-in\">" +
+            "<AttributeValue DataType=\"http://www.w3.org/2001/XMLSchema#string\">admin</AttributeValue>" +
+            "<AttributeDesignator MustBePresent=\"false\" " +
+            "Category=\"urn:oasis:names:tc:xacml:1.0:subject-category:access-subject\" " +
+            "AttributeId=\"urn:oasis:names:tc:xacml:2.0:subject:role\" " +
+            "DataType=\"http://www.w3.org/2001/XMLSchema#string\"/></Apply>";
+
+    private final static String MATCH = "<Match xmlns=\"" + XACMLConstants.XACML_3_0_IDENTIFIER +
+            "\" MatchId=\"urn:oasis:names:tc:xacml:1.0:function:string-equal\">" +
+            "<AttributeValue DataType=\"http://www.w3.org/2001/XMLSchema#string\">read</AttributeValue>" +
+            "<AttributeDesignator MustBePresent=\"false\" " +
+            "Category=\"urn:oasis:names:tc:xacml:3.0:attribute-category:action\" " +
+            "AttributeId=\"urn:oasis:names:tc:xacml:1.0:action:action-id\" " +
+            "DataType=\"http://www.w3.org/2001/XMLSchema#string\"/></Match>";
+
+    /**
+     * the logger we'll use for all messages
+     */
+    private static Log log = LogFactory.getLog(TestPolicyInterningV3.class);
+
+    public void testSharedParts() throws Exception {
+
+        PolicyMetaData metaData = new PolicyMetaData(XACMLConstants.XACML_3_0_IDENTIFIER, null);
+        PolicyInterner interner = new PolicyInterner();
+        Expression apply;
+
+        PolicyInterner.setCurrent(interner);
+        try {
+            apply = ExpressionHandler.parseExpression(getElement(APPLY), metaData, null);
+            // white space between elements does not matter
+            Expression indented = ExpressionHandler.parseExpression(
+                    getElement(APPLY.replace("><", ">\n    <")), metaData, null);
+            assertSame(apply, indented);
+
+            TargetMatch match = TargetMatch.getInstance(getElement(MATCH), metaData);
+            assertSame(match, TargetMatch.getInstance(getElement(MATCH), metaData));
+            assertNotSame(match, TargetMatch.getInstance(getElement(MATCH.replace(">read<",
+                    ">write<")), metaData));
+        } finally {
+            PolicyInterner.setCurrent(null);
+        }
+
+        assertTrue(interner.getHitCount() > 0);
+        assertTrue(interner.getEstimatedBytesSaved() > 0);
+
+        // the key of a part does not repeat the parts within it
+        String nested = APPLY;
+        for (int i = 0; i < 10; i++) {
+            nested = "<Apply xmlns=\"" + XACMLConstants.XACML_3_0_IDENTIFIER + "\" FunctionId=\"" +
+                    "urn:oasis:names:tc:xacml:1.0:function:not\">" +
+                    nested.replace(" xmlns=\"" + XACMLConstants.XACML_3_0_IDENTIFIER + "\"", "") +
+                    "</Apply>";
+        }
+        PolicyInterner.setCurrent(interner);
+        try {
+            assertTrue(interner.getKey(getElement(nested), metaData).length() < 64);
+        } finally {
+            PolicyInterner.setCurrent(null);
+        }
+
+        // parts are no longer shared once the interner is cleared, but the counts are kept
+        int instances = interner.getInstanceCount();
+        interner.clear();
+        assertEquals(instances, interner.getInstanceCount());
+        PolicyInterner.setCurrent(interner);
+        try {
+            assertNotSame(apply, ExpressionHandler.parseExpression(getElement(APPLY), metaData, null));
+        } finally {
+            PolicyInterner.setCurrent(null);
+        }
+
+        // nothing is shared when policies are not interned
+        assertNotSame(ExpressionHandler.parseExpression(getElement(APPLY), metaData, null),
+                ExpressionHandler.parseExpression(getElement(APPLY), metaData, null));
+
+        // variable references depend on the policy they are in
+        String reference = APPLY.replace("<AttributeValue", "<VariableReference VariableId=\"v\"/>" +
+                "<AttributeValue");
+        assertNull(interner.getKey(getElement(reference), metaData));
+    }
+
+    public void testUnknownDataType() throws Exception {
+
+        PolicyMetaData metaData = new PolicyMetaData(XACMLConstants.XACML_3_0_IDENTIFIER, null);
+        String match = MATCH.replaceFirst("XMLSchema#string", "XMLSchema#unknown");
+
+        // the error is the same whether policies are interned or not
+        for (PolicyInterner interner : new PolicyInterner[] {null, new PolicyInterner()}) {
+            PolicyInterner.setCurrent(interner);
+            try {
+                TargetMatch.getInstance(getElement(match), metaData);
+                fail("the data type is not known");
+            } catch (ParsingException e) {
+                assertEquals("Unknown Attribute Type", e.getMessage());
+            } finally {
+                PolicyInterner.setCurrent(null);
+            }
+        }
+    }
+
+    public void testSameDecisions() throws Exception {
+
+        File policyDirectory = new File(TestUtil.getDirectory(ROOT_DIRECTORY, VERSION_DIRECTORY,
+                TestConstants.POLICY_DIRECTORY));
+        PDP plainPDP = getPDPNewInstance(policyDirectory.getPath(), false);
+        PDP internedPDP = getPDPNewInstance(policyDirectory.getPath(), true);
+
+        String[] requests = new File(TestUtil.getDirectory(ROOT_DIRECTORY, VERSION_DIRECTORY,
+                TestConstants.REQUEST_DIRECTORY)).list();
+        Arrays.sort(requests);
+        for (String requestId : requests) {
+            String request = TestUtil.createRequest(ROOT_DIRECTORY, VERSION_DIRECTORY, requestId);
+            if (request == null) {
+                continue;
+            }
+            log.info("Interning test request " + requestId);
+            ResponseCtx expected = TestUtil.evaluate(plainPDP, request);
+            ResponseCtx response = TestUtil.evaluate(internedPDP, request);
+            assertTrue(requestId, TestUtil.isMatching(response, expected));
+            assertTrue(requestId, TestUtil.isMatching(expected, response));
+        }
+    }
+
+    private static Element getElement(String xml) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return factory.newDocumentBuilder().parse(new InputSource(new StringReader(xml))).
+                getDocumentElement();
+    }
+
+    /**
+     * Returns a new PDP instance that loads all policies of a directory
+     *
+     * @param policyDirectory directory of XACML policy files
+     * @param interning whether to share the same parts of policies
+     * @return a  PDP instance
+     */
+    private static PDP getPDPNewInstance(String policyDirectory, boolean interning) {
+
+        PolicyFinder finder = new PolicyFinder();
+        FileBasedPolicyFinderModule testPolicyFinderModule = new FileBasedPolicyFinderModule(
+                new HashSet<String>(Arrays.asList(policyDirectory)), null);
+        testPolicyFinderModule.setInterning(interning);
+        Set<PolicyFinderModule> policyModules = new HashSet<PolicyFinderModule>();
+        policyModules.add(testPolicyFinderModule);
+        finder.setModules(policyModules);
+
+        Balana balana = Balana.getInstance();
+        PDPConfig pdpConfig = balana.getPdpConfig();
+        pdpConfig = new PDPConfig(pdpConfig.getAttributeFinder(), finder,
+                pdpConfig.getResourceFinder(), false);
+        return new PDP(pdpConfig);
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ *  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ *  WSO2 Inc. licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except
+ *  in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.connexta.arbitro.basic;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import com.connexta.arbitro.Balana;
+import com.connexta.arbitro.PDP;
+import com.connexta.arbitro.PDPConfig;
+import com.connexta.arbitro.TestConstants;
+import com.connexta.arbitro.TestUtil;
+import com.connexta.arbitro.ctx.ResponseCtx;
+import com.connexta.arbitro.finder.PolicyFinder;
+import com.connexta.arbitro.finder.PolicyFinderModule;
+import com.connexta.arbitro.finder.impl.FileBasedPolicyFinderModule;
+import com.connexta.arbitro.finder.impl.PolicySnapshot;
+import org.w3c.dom.Element;
+
+import junit.framework.TestCase;
+
+/**
+ * This would test loading policies from a binary policy snapshot
+ */
+public class TestPolicySnapshotV3 extends TestCase {
+
+    /**
+     * directory name that states the test type
+     */
+    private final static String ROOT_DIRECTORY = "conformance";
+
+    /**
+     * directory name that states XACML version
+     */
+    private final static String VERSION_DIRECTORY = "3";
+
+    /**
+     * the logger we'll use for all messages
+     */
+    private static Log log = LogFactory.getLog(TestPolicySnapshotV3.class);
+
+    public void testSnapshot() throws Exception {
+
+        File policyDirectory = new File(TestUtil.getDirectory(ROOT_DIRECTORY, VERSION_DIRECTORY,
+                TestConstants.POLICY_DIRECTORY));
+        File snapshot = File.createTempFile("policies", ".snapshot");
+        assertTrue(snapshot.delete());
+
+        try {
+            // no snapshot yet, so policies are loaded from XML and the snapshot is written
+            PDP xmlPDP = getPDPNewInstance(policyDirectory.getPath(), snapshot.getPath());
+            assertTrue(snapshot.isFile());
+
+            String[] names = policyDirectory.list();
+            Arrays.sort(names);
+            List<File> files = new ArrayList<File>();
+            for (String name : names) {
+                files.add(new File(policyDirectory, name));
+            }
+            Map<String, Element> roots = PolicySnapshot.read(snapshot, PolicySnapshot.hash(files));
+            assertNotNull(roots);
+            assertEquals(files.size(), roots.size());
+
+            // a snapshot of other policy files is stale
+            assertNull(PolicySnapshot.read(snapshot, PolicySnapshot.hash(files.subList(1, files.size()))));
+
+            // the snapshot is current, so policies are loaded from it
+            long modified = snapshot.lastModified();
+            PDP snapshotPDP = getPDPNewInstance(policyDirectory.getPath(), snapshot.getPath());
+            assertEquals(modified, snapshot.lastModified());
+
+            String[] requests = new File(TestUtil.getDirectory(ROOT_DIRECTORY, VERSION_DIRECTORY,
+                    TestConstants.REQUEST_DIRECTORY)).list();
+            Arrays.sort(requests);
+            for (String requestId : requests) {
+                String request = TestUtil.createRequest(ROOT_DIRECTORY, VERSION_DIRECTORY, requestId);
+                if (request == null) {
+                    continue;
+                }
+                log.info("Snapshot test request " + requestId);
+                ResponseCtx expected = TestUtil.evaluate(xmlPDP, request);
+                ResponseCtx response = TestUtil.evaluate(snapshotPDP, request);
+                assertTrue(requestId, TestUtil.isMatching(response, expected));
+                assertTrue(requestId, TestUtil.isMatching(expected, response));
+            }
+        } finally {
+            snapshot.delete();
+        }
+    }
+
+    /**
+     * Returns a new PDP instance that loads all policies of a directory
+     *
+     * @param policyDirectory directory of XACML policy files
+     * @param snapshot path of the policy snapshot
+     * @return a  PDP instance
+     */
+    private static PDP getPDPNewInstance(String policyDirectory, String snapshot) {
+
+        PolicyFinder finder = new PolicyFinder();
+        Set<String> policyLocations = new HashSet<String>();
+        policyLocations.add(policyDirectory);
+
+        FileBasedPolicyFinderModule testPolicyFinderModule =
+                new FileBasedPolicyFinderModule(policyLocations, snapshot);
+        Set<PolicyFinderModule> policyModules = new HashSet<PolicyFinderModule>();
+        policyModules.add(testPolicyFinderModule);
+        finder.setModules(policyModules);
+
+        Balana balana = Balana.getInstance();
+        PDPConfig pdpConfig = balana.getPdpConfig();
+        pdpConfig = new PDPConfig(pdpConfig.getAttributeFinder(), finder,
+                pdpConfig.getResourceFinder(), false);
+        return new PDP(pdpConfig);
+    }
+}
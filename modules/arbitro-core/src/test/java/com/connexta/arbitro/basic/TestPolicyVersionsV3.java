@@ -0,0 +1,211 @@
+/*
+ *  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ *  WSO2 Inc. licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except
+ *  in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.connexta.arbitro.basic;
+
+import java.io.File;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import com.connexta.arbitro.AbstractPolicy;
+import com.connexta.arbitro.PDP;
+import com.connexta.arbitro.PolicyReference;
+import com.connexta.arbitro.TestUtil;
+import com.connexta.arbitro.VersionConstraints;
+import com.connexta.arbitro.ctx.AbstractResult;
+import com.connexta.arbitro.ctx.RequestCtxFactory;
+import com.connexta.arbitro.finder.impl.FileBasedPolicyFinderModule;
+import com.connexta.arbitro.finder.impl.PolicyLoader;
+import com.connexta.arbitro.finder.impl.PolicyRepository;
+
+import junit.framework.TestCase;
+
+/**
+ * This would test keeping several versions of a policy and finding them by version constraints
+ */
+public class TestPolicyVersionsV3 extends TestCase {
+
+    private static final URI SHARED = URI.create("urn:example:shared");
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = TestUtil.createDirectory();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestUtil.deleteDirectory(directory);
+    }
+
+    public void testRepository() throws Exception {
+
+        PolicyRepository repository = new PolicyRepository();
+        for (String version : new String[] {"2.0", "1.2", "1.10", "1.0"}) {
+            repository.add(getPolicy(version, "Permit"));
+        }
+        assertEquals(4, repository.size());
+        assertEquals(Arrays.asList("1.0", "1.2", "1.10", "2.0"), repository.getVersions(SHARED));
+        assertEquals("2.0", repository.getLatest(SHARED).getVersion());
+        assertEquals(1, repository.getLatestPolicies().size());
+
+        assertEquals("2.0", find(repository, null, null, null));
+        assertEquals("1.10", find(repository, "1.*", null, null));
+        assertEquals("1.2", find(repository, null, "1.1", "1.9"));
+        assertEquals("1.10", find(repository, null, null, "1.+"));
+        assertEquals("1.0", find(repository, "1.0", null, null));
+        assertNull(find(repository, null, "1.5", "1.1"));
+        assertNull(find(repository, "3.*", null, null));
+        assertNull(repository.get(SHARED, PolicyReference.POLICYSET_REFERENCE, null));
+
+        // the result for the same constraints is kept
+        VersionConstraints constraints = new VersionConstraints("1.*", null, null);
+        assertSame(repository.get(SHARED, PolicyReference.POLICY_REFERENCE, constraints),
+                repository.get(SHARED, PolicyReference.POLICY_REFERENCE,
+                        new VersionConstraints("1.*", null, null)));
+
+        // until the versions change
+        assertTrue(repository.retire(SHARED, "1.10"));
+        assertFalse(repository.retire(SHARED, "1.10"));
+        assertEquals("1.2", find(repository, "1.*", null, null));
+
+        assertEquals(2, repository.retireBefore(SHARED, "1.5"));
+        assertEquals(Arrays.asList("2.0"), repository.getVersions(SHARED));
+        assertEquals(1, repository.size());
+
+        repository.retire(SHARED, "2.0");
+        assertEquals(0, repository.size());
+        assertNull(repository.getLatest(SHARED));
+        assertTrue(repository.getLatestPolicies().isEmpty());
+    }
+
+    public void testVersionNumbers() throws Exception {
+
+        // numbers of any size are compared, and leading zeros make a different version
+        assertTrue(VersionConstraints.compare("1.99999999999", "1.2") > 0);
+        assertTrue(VersionConstraints.compare("1.1", "1.01") < 0);
+        assertTrue(VersionConstraints.compare("1.01", "1.2") < 0);
+        assertTrue(VersionConstraints.compare("1.01", "1.1.0") < 0);
+        assertEquals(0, VersionConstraints.compare("1.01", "1.01"));
+        try {
+            VersionConstraints.compare("1.*", "1.0");
+            fail("a pattern is not a version");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            new VersionConstraints("1.x", null, null);
+            fail("an invalid constraint was accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        PolicyRepository repository = new PolicyRepository();
+        for (String version : new String[] {"1.01", "1.1", "1.99999999999", "1.1.5"}) {
+            repository.add(getPolicy(version, "Permit"));
+        }
+        assertEquals(Arrays.asList("1.1", "1.01", "1.1.5", "1.99999999999"),
+                repository.getVersions(SHARED));
+        assertEquals("1.99999999999", find(repository, null, null, null));
+        assertEquals("1.01", find(repository, null, null, "1.1"));
+        assertEquals("1.1.5", find(repository, null, "1.01", "1.2"));
+        assertNull(find(repository, null, "1.100000000000", null));
+        assertEquals("1.99999999999", find(repository, null, "1.99999999998", null));
+        assertEquals("1.1", find(repository, "1.1", null, null));
+
+        try {
+            repository.retireBefore(SHARED, "1.*");
+            fail("a pattern is not a version");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(0, repository.retireBefore(SHARED, "1.001"));
+        assertEquals(2, repository.retireBefore(SHARED, "1.1.0"));
+        assertEquals(Arrays.asList("1.1.5", "1.99999999999"), repository.getVersions(SHARED));
+    }
+
+    public void testReferences() throws Exception {
+
+        TestUtil.write(directory, "shared-1.0.xml", getPolicyContent("1.0", "Permit"));
+        TestUtil.write(directory, "shared-1.5.xml", getPolicyContent("1.5", "Deny"));
+        TestUtil.write(directory, "shared-2.0.xml", getPolicyContent("2.0", "Permit"));
+        TestUtil.write(directory, "set.xml",
+                "<PolicySet xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" " +
+                "PolicySetId=\"urn:example:set\" Version=\"1.0\" PolicyCombiningAlgId=\"" +
+                "urn:oasis:names:tc:xacml:3.0:policy-combining-algorithm:deny-overrides\">" +
+                "<Target><AnyOf><AllOf><Match MatchId=\"" +
+                "urn:oasis:names:tc:xacml:1.0:function:string-equal\"><AttributeValue " +
+                "DataType=\"http://www.w3.org/2001/XMLSchema#string\">report</AttributeValue>" +
+                "<AttributeDesignator AttributeId=\"" +
+                "urn:oasis:names:tc:xacml:1.0:resource:resource-id\" Category=\"" +
+                "urn:oasis:names:tc:xacml:3.0:attribute-category:resource\" " +
+                "DataType=\"http://www.w3.org/2001/XMLSchema#string\" MustBePresent=\"false\"/>" +
+                "</Match></AllOf></AnyOf></Target>" +
+                "<PolicyIdReference LatestVersion=\"1.9\">" + SHARED + "</PolicyIdReference>" +
+                "</PolicySet>");
+
+        FileBasedPolicyFinderModule module = new FileBasedPolicyFinderModule(
+                new HashSet<String>(Arrays.asList(directory.getPath())), null);
+        PDP pdp = TestUtil.getPDPNewInstance(module);
+        assertEquals(4, module.getPolicyRepository().size());
+
+        // requests use the latest version, while the reference uses the latest one before 1.9
+        assertEquals(AbstractResult.DECISION_PERMIT, evaluate(pdp, "other"));
+        assertEquals(AbstractResult.DECISION_DENY, evaluate(pdp, "report"));
+
+        // retiring a version needs no reload
+        assertTrue(module.retirePolicy(SHARED, "1.5"));
+        assertEquals(AbstractResult.DECISION_PERMIT, evaluate(pdp, "report"));
+        assertEquals(1, module.retirePoliciesBefore(SHARED, "2.0"));
+        // the reference can no longer be resolved, which deny-overrides combines to Deny
+        assertEquals(AbstractResult.DECISION_DENY, evaluate(pdp, "report"));
+        assertEquals(AbstractResult.DECISION_PERMIT, evaluate(pdp, "other"));
+    }
+
+    private static String find(PolicyRepository repository, String version, String earliest,
+                               String latest) {
+        AbstractPolicy policy = repository.get(SHARED, PolicyReference.POLICY_REFERENCE,
+                new VersionConstraints(version, earliest, latest));
+        return policy == null ? null : policy.getVersion();
+    }
+
+    private static int evaluate(PDP pdp, String resource) throws Exception {
+        String request = "<Request xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" " +
+                "CombinedDecision=\"false\" ReturnPolicyIdList=\"false\">" +
+                "<Attributes Category=\"urn:oasis:names:tc:xacml:3.0:attribute-category:resource\">" +
+                "<Attribute AttributeId=\"urn:oasis:names:tc:xacml:1.0:resource:resource-id\" " +
+                "IncludeInResult=\"false\"><AttributeValue " +
+                "DataType=\"http://www.w3.org/2001/XMLSchema#string\">" + resource +
+                "</AttributeValue></Attribute></Attributes></Request>";
+        return pdp.evaluate(RequestCtxFactory.getFactory().getRequestCtx(request))
+                .getResults().iterator().next().getDecision();
+    }
+
+    private static AbstractPolicy getPolicy(String version, String effect) throws Exception {
+        return PolicyLoader.build(PolicyLoader.parseContent(getPolicyContent(version, effect)),
+                null);
+    }
+
+    private static String getPolicyContent(String version, String effect) {
+        return "<Policy xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" " +
+                "PolicyId=\"" + SHARED + "\" Version=\"" + version + "\" RuleCombiningAlgId=\"" +
+                "urn:oasis:names:tc:xacml:3.0:rule-combining-algorithm:deny-overrides\">" +
+                "<Target/><Rule RuleId=\"rule\" Effect=\"" + effect + "\"/></Policy>";
+    }
+}
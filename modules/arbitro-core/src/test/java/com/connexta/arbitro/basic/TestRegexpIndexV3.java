@@ -0,0 +1,179 @@
+/*
+ *  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ *  WSO2 Inc. licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except
+ *  in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.connexta.arbitro.basic;
+
+import java.io.File;
+import java.net.URI;
+import java.util.Set;
+
+import com.connexta.arbitro.PDP;
+import com.connexta.arbitro.TestUtil;
+import com.connexta.arbitro.ctx.AbstractRequestCtx;
+import com.connexta.arbitro.ctx.AbstractResult;
+import com.connexta.arbitro.ctx.RequestCtxFactory;
+import com.connexta.arbitro.finder.impl.PolicyLoader;
+import com.connexta.arbitro.finder.impl.PolicyRepository;
+import com.connexta.arbitro.finder.impl.TargetKeyExtractor;
+
+import junit.framework.TestCase;
+
+/**
+ * This would test indexing policies by the regular expressions in their targets
+ */
+public class TestRegexpIndexV3 extends TestCase {
+
+    private static final String STRING = "http://www.w3.org/2001/XMLSchema#string";
+
+    private static final String ADMIN_POLICY = "urn:example:admin";
+
+    private static final String FILES_POLICY = "urn:example:files";
+
+    private static final String NUMBER_POLICY = "urn:example:number";
+
+    private static final String[] PATHS = {"/admin/users", "/console/jobs", "/console/Jobs",
+            "/files/read/a.txt", "/files/delete/a.txt", "/public/admin/x", "12345", "12a45",
+            "/admin", null};
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = TestUtil.createDirectory();
+        TestUtil.write(directory, "admin.xml", getPolicyContent(ADMIN_POLICY, "Deny",
+                getMatch("^/admin/.*") + getMatch("^/console/[a-z]+$")));
+        TestUtil.write(directory, "files.xml", getPolicyContent(FILES_POLICY, "Permit",
+                getMatch("^/files/(read|write)/.+$")));
+        // a pattern without literal text is matched against every value
+        TestUtil.write(directory, "number.xml", getPolicyContent(NUMBER_POLICY,
+                "Permit", getMatch("^[0-9]+$")));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestUtil.deleteDirectory(directory);
+    }
+
+    public void testCandidates() throws Exception {
+
+        PolicyRepository repository = new PolicyRepository(new TargetKeyExtractor());
+        for (File file : directory.listFiles()) {
+            repository.add(PolicyLoader.build(PolicyLoader.parse(file.getPath()), null));
+        }
+
+        assertEquals(TestUtil.set(ADMIN_POLICY), getCandidates(repository, "/admin/users"));
+        assertEquals(TestUtil.set(ADMIN_POLICY), getCandidates(repository, "/console/jobs"));
+        assertEquals(TestUtil.set(), getCandidates(repository, "/console/Jobs"));
+        assertEquals(TestUtil.set(FILES_POLICY), getCandidates(repository, "/files/read/a.txt"));
+        assertEquals(TestUtil.set(), getCandidates(repository, "/files/delete/a.txt"));
+        assertEquals(TestUtil.set(NUMBER_POLICY), getCandidates(repository, "12345"));
+        assertEquals(TestUtil.set(), getCandidates(repository, (String) null));
+        assertEquals(TestUtil.set(ADMIN_POLICY, NUMBER_POLICY),
+                getCandidates(repository, "/admin/users", "12345"));
+
+        // a policy that is updated is indexed by its new patterns only
+        repository.add(PolicyLoader.build(PolicyLoader.parseContent(getPolicyContent(
+                ADMIN_POLICY, "Deny", getMatch("^/root/.*"))), null));
+        assertEquals(TestUtil.set(), getCandidates(repository, "/admin/users"));
+        assertEquals(TestUtil.set(ADMIN_POLICY), getCandidates(repository, "/root/users"));
+
+        repository.remove(URI.create(ADMIN_POLICY));
+        assertEquals(TestUtil.set(), getCandidates(repository, "/root/users"));
+    }
+
+    public void testManyPatterns() throws Exception {
+
+        // enough policies for the automata to be built again while they are added and removed
+        PolicyRepository repository = new PolicyRepository(new TargetKeyExtractor());
+        for (int i = 0; i < 200; i++) {
+            repository.add(PolicyLoader.build(PolicyLoader.parseContent(getPolicyContent(
+                    "urn:example:item" + i, "Permit", getMatch("^/items/" + i + "/[a-z]+$"))),
+                    null));
+        }
+        assertEquals(TestUtil.set("urn:example:item42"), getCandidates(repository, "/items/42/a"));
+        assertEquals(TestUtil.set("urn:example:item1", "urn:example:item142"),
+                getCandidates(repository, "/items/1/a", "/items/142/b"));
+        assertEquals(TestUtil.set(), getCandidates(repository, "/items/200/a"));
+
+        for (int i = 0; i < 100; i++) {
+            repository.remove(URI.create("urn:example:item" + i));
+        }
+        assertEquals(TestUtil.set(), getCandidates(repository, "/items/42/a"));
+        assertEquals(TestUtil.set("urn:example:item142"),
+                getCandidates(repository, "/items/142/a"));
+    }
+
+    public void testDecisions() throws Exception {
+
+        PDP indexed = TestUtil.getPDPNewInstance(directory, true);
+        PDP scanned = TestUtil.getPDPNewInstance(directory, false);
+        for (String path : PATHS) {
+            AbstractRequestCtx request = getRequest(path);
+            assertEquals("decision for " + path, TestUtil.getDecision(scanned, request),
+                    TestUtil.getDecision(indexed, request));
+        }
+
+        assertEquals(AbstractResult.DECISION_DENY,
+                TestUtil.getDecision(indexed, getRequest("/admin/users")));
+        assertEquals(AbstractResult.DECISION_PERMIT,
+                TestUtil.getDecision(indexed, getRequest("/files/write/b")));
+        assertEquals(AbstractResult.DECISION_PERMIT,
+                TestUtil.getDecision(indexed, getRequest("12345")));
+        assertEquals(AbstractResult.DECISION_NOT_APPLICABLE,
+                TestUtil.getDecision(indexed, getRequest("/public/admin/x")));
+    }
+
+    private static Set<String> getCandidates(PolicyRepository repository, String... paths)
+            throws Exception {
+        return TestUtil.getCandidates(repository, getRequest(paths));
+    }
+
+    private static AbstractRequestCtx getRequest(String... paths) throws Exception {
+        StringBuilder values = new StringBuilder();
+        for (String path : paths) {
+            if (path != null) {
+                values.append("<AttributeValue DataType=\"").append(STRING).append("\">")
+                        .append(path).append("</AttributeValue>");
+            }
+        }
+        String request = "<Request xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" " +
+                "CombinedDecision=\"false\" ReturnPolicyIdList=\"false\">" +
+                "<Attributes Category=\"" +
+                "urn:oasis:names:tc:xacml:3.0:attribute-category:resource\">" +
+                (values.length() == 0 ? "" : "<Attribute AttributeId=\"urn:example:path\" " +
+                        "IncludeInResult=\"false\">" + values + "</Attribute>") +
+                "</Attributes></Request>";
+        return RequestCtxFactory.getFactory().getRequestCtx(request);
+    }
+
+    private static String getPolicyContent(String id, String effect, String allOfs) {
+        return "<Policy xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" " +
+                "PolicyId=\"" + id + "\" Version=\"1.0\" RuleCombiningAlgId=\"" +
+                "urn:oasis:names:tc:xacml:3.0:rule-combining-algorithm:deny-overrides\">" +
+                "<Target><AnyOf>" + allOfs + "</AnyOf></Target>" +
+                "<Rule RuleId=\"rule\" Effect=\"" + effect + "\"/></Policy>";
+    }
+
+    private static String getMatch(String pattern) {
+        return "<AllOf><Match MatchId=\"" +
+                "urn:oasis:names:tc:xacml:1.0:function:string-regexp-match\">" +
+                "<AttributeValue DataType=\"" + STRING + "\">" + pattern + "</AttributeValue>" +
+                "<AttributeDesignator AttributeId=\"urn:example:path\" Category=\"" +
+                "urn:oasis:names:tc:xacml:3.0:attribute-category:resource\" DataType=\"" +
+                STRING + "\" MustBePresent=\"false\"/></Match></AllOf>";
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ *  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ *  WSO2 Inc. licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except
+ *  in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.connexta.arbitro.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.connexta.arbitro.Balana;
+import com.connexta.arbitro.PDP;
+import com.connexta.arbitro.PDPConfig;
+import com.connexta.arbitro.TestConstants;
+import com.connexta.arbitro.ctx.RequestCtxFactory;
+import com.connexta.arbitro.ctx.ResponseCtx;
+import com.connexta.arbitro.ctx.json.JSONRequestParser;
+import com.connexta.arbitro.ctx.json.JSONResponseWriter;
+import com.connexta.arbitro.finder.PolicyFinder;
+import com.connexta.arbitro.finder.PolicyFinderModule;
+import com.connexta.arbitro.finder.impl.FileBasedPolicyFinderModule;
+
+/**
+ * Compares the JSON codec with the XML path, for the request parsing, the response encoding and
+ * a whole stream to stream evaluation of the multiple decision request of basic test 0014. This is
+ * not part of the test suite; run it from the arbitro-core directory with
+ * <code>JSONCodecBenchmark [iterations]</code>.
+ */
+public class JSONCodecBenchmark {
+
+    private static final String BASE = "basic" + File.separator + "3" + File.separator;
+
+    public static void main(String[] args) throws Exception {
+
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+        final byte[] xml = read(BASE + TestConstants.REQUEST_DIRECTORY + File.separator +
+                "request_0014_01.xml");
+        final byte[] json = read(BASE + TestConstants.REQUEST_DIRECTORY + File.separator +
+                "request_0014_01.json");
+        final PDP pdp = getPDP();
+        final ResponseCtx response = pdp.evaluate(JSONRequestParser.
+                getRequestCtx(new ByteArrayInputStream(json)));
+
+        Task[] tasks = new Task[] {
+                new Task("parse request      XML ") {
+                    void run() throws Exception {
+                        RequestCtxFactory.getFactory().getRequestCtx(new ByteArrayInputStream(xml));
+                    }
+                },
+                new Task("parse request      JSON") {
+                    void run() throws Exception {
+                        JSONRequestParser.getRequestCtx(new ByteArrayInputStream(json));
+                    }
+                },
+                new Task("encode response    XML ") {
+                    void run() throws Exception {
+                        response.encode();
+                    }
+                },
+                new Task("encode response    JSON") {
+                    void run() throws Exception {
+                        JSONResponseWriter.encode(response);
+                    }
+                },
+                new Task("stream evaluation  XML ") {
+                    void run() throws Exception {
+                        pdp.evaluate(new ByteArrayInputStream(xml), new ByteArrayOutputStream());
+                    }
+                },
+                new Task("stream evaluation  JSON") {
+                    void run() throws Exception {
+                        pdp.evaluate(new ByteArrayInputStream(json), new ByteArrayOutputStream());
+                    }
+                }
+        };
+
+        // warm up first, then measure
+        for (Task task : tasks) {
+            task.measure(iterations);
+        }
+        for (Task task : tasks) {
+            long nanos = task.measure(iterations);
+            System.out.println(task.name + " : " + (nanos / iterations / 1000.0) + " us/op");
+        }
+    }
+
+    private static byte[] read(String path) throws Exception {
+        File file = new File(new File(".").getCanonicalPath() + File.separator +
+                TestConstants.RESOURCE_PATH + File.separator + path);
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static PDP getPDP() throws Exception {
+        Set<String> policyLocations = new HashSet<String>();
+        policyLocations.add(new File(".").getCanonicalPath() + File.separator +
+                TestConstants.RESOURCE_PATH + File.separator + BASE +
+                TestConstants.POLICY_DIRECTORY + File.separator + "TestPolicy_0014.xml");
+
+        PolicyFinder finder = new PolicyFinder();
+        Set<PolicyFinderModule> policyModules = new HashSet<PolicyFinderModule>();
+        policyModules.add(new FileBasedPolicyFinderModule(policyLocations));
+        finder.setModules(policyModules);
+
+        PDPConfig pdpConfig = Balana.getInstance().getPdpConfig();
+        return new PDP(new PDPConfig(pdpConfig.getAttributeFinder(), finder,
+                pdpConfig.getResourceFinder(), true));
+    }
+
+    private abstract static class Task {
+
+        private String name;
+
+        Task(String name) {
+            this.name = name;
+        }
+
+        abstract void run() throws Exception;
+
+        long measure(int iterations) throws Exception {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                run();
+            }
+            return System.nanoTime() - start;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+*  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Lookup and evaluation of the policies for a single request context
+ */
+@Name("com.connexta.arbitro.Decision")
+@Label("Decision")
+@Category({"Arbitro", "XACML"})
+@Description("Lookup and evaluation of the policies for a single request context")
+@Enabled(true)
+@Threshold("10 ms")
+@StackTrace(false)
+public class DecisionEvent extends Event {
+
+    @Label("Decision")
+    String decision;
+
+    @Label("Candidates")
+    @Description("Number of top-level policies found for the request")
+    int candidates;
+}
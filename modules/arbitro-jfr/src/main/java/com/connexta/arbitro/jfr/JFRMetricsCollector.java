@@ -0,0 +1,264 @@
+/*
+*  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.jfr;
+
+import java.util.ArrayDeque;
+
+import com.connexta.arbitro.AbstractPolicy;
+import com.connexta.arbitro.PolicySet;
+import com.connexta.arbitro.Rule;
+import com.connexta.arbitro.ctx.AbstractResult;
+import com.connexta.arbitro.finder.AttributeFinderModule;
+import com.connexta.arbitro.metrics.MetricsCollector;
+
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+
+/**
+ * A <code>MetricsCollector</code> that emits Java Flight Recorder events for decisions, policy
+ * lookups, policy and rule evaluations and attribute lookups. Set it with <code>PDPConfig</code>,
+ * on its own or with other collectors in a <code>CompositeMetricsCollector</code>.
+ * <p>
+ * An event is begun in the <code>...Started</code> method of a step and committed when the step
+ * has finished, so JFR measures its duration and applies the threshold of the event. All events
+ * have a threshold of 10 ms by default, which can be changed in the recording settings, for
+ * example <code>com.connexta.arbitro.RuleEvaluation#threshold=0 ms</code>. When no recording
+ * has the events enabled, each method only checks whether its event type is enabled.
+ * </p>
+ */
+public class JFRMetricsCollector extends MetricsCollector {
+
+    private static final EventType DECISION = EventType.getEventType(DecisionEvent.class);
+    private static final EventType POLICY_LOOKUP = EventType.getEventType(PolicyLookupEvent.class);
+    private static final EventType POLICY = EventType.getEventType(PolicyEvaluationEvent.class);
+    private static final EventType RULE = EventType.getEventType(RuleEvaluationEvent.class);
+    private static final EventType ATTRIBUTE = EventType.getEventType(AttributeLookupEvent.class);
+
+    /**
+     * Marks the frame of a request context, which never is a policy, rule or module
+     */
+    private static final Object REQUEST = new Object();
+
+    /**
+     * Marks the frame of a policy lookup
+     */
+    private static final Object LOOKUP = new Object();
+
+    /**
+     * Events that have been begun but not committed yet, on the current thread
+     */
+    private final ThreadLocal<ArrayDeque<Frame>> frames = new ThreadLocal<ArrayDeque<Frame>>() {
+        @Override
+        protected ArrayDeque<Frame> initialValue() {
+            return new ArrayDeque<Frame>();
+        }
+    };
+
+    @Override
+    public void requestEvaluationStarted() {
+        ArrayDeque<Frame> stack = frames.get();
+        // frames left over from a request that did not finish are dropped here
+        stack.clear();
+        if (DECISION.isEnabled()) {
+            push(stack, REQUEST, new DecisionEvent());
+        }
+    }
+
+    @Override
+    public void requestEvaluated(long nanos, int decision) {
+        if (DECISION.isEnabled()) {
+            DecisionEvent event = (DecisionEvent) pop(REQUEST);
+            if (event != null) {
+                event.decision = getDecisionName(decision);
+                commit(event);
+            }
+        }
+        // steps that never finished, for example because they failed, end with the request
+        frames.get().clear();
+    }
+
+    @Override
+    public void policyLookupStarted() {
+        if (POLICY_LOOKUP.isEnabled()) {
+            push(frames.get(), LOOKUP, new PolicyLookupEvent());
+        }
+    }
+
+    @Override
+    public void policiesFound(long nanos, int candidates) {
+        if (POLICY_LOOKUP.isEnabled()) {
+            PolicyLookupEvent event = (PolicyLookupEvent) pop(LOOKUP);
+            if (event != null) {
+                event.candidates = candidates;
+                commit(event);
+            }
+        }
+        if (DECISION.isEnabled()) {
+            Frame frame = frames.get().peek();
+            if (frame != null && frame.subject == REQUEST) {
+                ((DecisionEvent) frame.event).candidates = candidates;
+            }
+        }
+    }
+
+    @Override
+    public void policyEvaluationStarted(AbstractPolicy policy) {
+        if (POLICY.isEnabled()) {
+            push(frames.get(), policy, new PolicyEvaluationEvent());
+        }
+    }
+
+    @Override
+    public void policyEvaluated(AbstractPolicy policy, long nanos, int decision) {
+        if (POLICY.isEnabled()) {
+            PolicyEvaluationEvent event = (PolicyEvaluationEvent) pop(policy);
+            if (event != null) {
+                event.policyId = String.valueOf(policy.getId());
+                event.policySet = policy instanceof PolicySet;
+                event.decision = getDecisionName(decision);
+                commit(event);
+            }
+        }
+    }
+
+    @Override
+    public void ruleEvaluationStarted(Rule rule) {
+        if (RULE.isEnabled()) {
+            push(frames.get(), rule, new RuleEvaluationEvent());
+        }
+    }
+
+    @Override
+    public void ruleEvaluated(Rule rule, long nanos, int decision) {
+        if (RULE.isEnabled()) {
+            RuleEvaluationEvent event = (RuleEvaluationEvent) pop(rule);
+            if (event != null) {
+                event.ruleId = String.valueOf(rule.getId());
+                event.decision = getDecisionName(decision);
+                commit(event);
+            }
+        }
+    }
+
+    @Override
+    public void attributeLookupStarted(AttributeFinderModule module, String attribute) {
+        if (ATTRIBUTE.isEnabled()) {
+            AttributeLookupEvent event = new AttributeLookupEvent();
+            event.attribute = attribute;
+            push(frames.get(), module, event);
+        }
+    }
+
+    @Override
+    public void attributeLookup(AttributeFinderModule module, long nanos, boolean error) {
+        if (ATTRIBUTE.isEnabled()) {
+            AttributeLookupEvent event = (AttributeLookupEvent) pop(module);
+            if (event != null) {
+                event.module = module.getIdentifier();
+                event.error = error;
+                commit(event);
+            }
+        }
+    }
+
+    /**
+     * Returns the name of a decision, including the extended indeterminate decisions
+     *
+     * @param decision a decision, as defined in <code>AbstractResult</code>
+     * @return the name of the decision
+     */
+    static String getDecisionName(int decision) {
+        switch (decision) {
+            case AbstractResult.DECISION_INDETERMINATE_DENY:
+                return "Indeterminate{D}";
+            case AbstractResult.DECISION_INDETERMINATE_PERMIT:
+                return "Indeterminate{P}";
+            case AbstractResult.DECISION_INDETERMINATE_DENY_OR_PERMIT:
+                return "Indeterminate{DP}";
+            default:
+                return decision >= 0 && decision < AbstractResult.DECISIONS.length ?
+                        AbstractResult.DECISIONS[decision] : String.valueOf(decision);
+        }
+    }
+
+    /**
+     * Begins an event and keeps it until the step of the subject has finished
+     */
+    private static void push(ArrayDeque<Frame> stack, Object subject, Event event) {
+        event.begin();
+        stack.push(new Frame(subject, event));
+    }
+
+    /**
+     * Removes the innermost event of the given subject on the thread, together with the events
+     * within it whose steps never finished. An event is not found when its type was enabled
+     * after its step started, and then nothing is removed.
+     */
+    private Event pop(Object subject) {
+        ArrayDeque<Frame> stack = frames.get();
+        boolean found = false;
+        for (Frame frame : stack) {
+            if (frame.subject == subject) {
+                found = true;
+                break;
+            }
+        }
+        if (!found) {
+            return null;
+        }
+        Frame frame;
+        do {
+            frame = stack.pop();
+        } while (frame.subject != subject);
+        return frame.event;
+    }
+
+    /**
+     * Returns the number of events that have been begun but not committed on the current thread
+     *
+     * @return the number of events
+     */
+    int getOpenEvents() {
+        return frames.get().size();
+    }
+
+    /**
+     * Ends an event and commits it, if it lasted longer than its threshold
+     */
+    private static void commit(Event event) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.commit();
+        }
+    }
+
+    /**
+     * An event that has been begun, with the policy, rule or module whose step it spans
+     */
+    private static class Frame {
+
+        private final Object subject;
+        private final Event event;
+
+        private Frame(Object subject, Event event) {
+            this.subject = subject;
+            this.event = event;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+*  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Evaluation of a policy or policy set, including its children
+ */
+@Name("com.connexta.arbitro.PolicyEvaluation")
+@Label("Policy Evaluation")
+@Category({"Arbitro", "XACML"})
+@Description("Evaluation of a policy or policy set, including its children")
+@Enabled(true)
+@Threshold("10 ms")
+@StackTrace(false)
+public class PolicyEvaluationEvent extends Event {
+
+    @Label("Policy Id")
+    String policyId;
+
+    @Label("Policy Set")
+    boolean policySet;
+
+    @Label("Decision")
+    String decision;
+}
@@ -0,0 +1,202 @@
+/*
+ *  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ *  WSO2 Inc. licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except
+ *  in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.connexta.arbitro.jfr;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import com.connexta.arbitro.PDP;
+import com.connexta.arbitro.PDPConfig;
+import com.connexta.arbitro.Policy;
+import com.connexta.arbitro.Rule;
+import com.connexta.arbitro.ctx.AbstractResult;
+import com.connexta.arbitro.finder.AttributeFinder;
+import com.connexta.arbitro.finder.PolicyFinder;
+import com.connexta.arbitro.finder.PolicyFinderModule;
+import com.connexta.arbitro.finder.impl.FileBasedPolicyFinderModule;
+import org.xml.sax.InputSource;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import junit.framework.TestCase;
+
+/**
+ * This would test the Java Flight Recorder events of the evaluation
+ */
+public class TestJFRMetricsCollector extends TestCase {
+
+    private static final String POLICY = "<Policy xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" " +
+            "PolicyId=\"jfr-policy\" Version=\"1.0\" " +
+            "RuleCombiningAlgId=\"urn:oasis:names:tc:xacml:3.0:rule-combining-algorithm:deny-overrides\">" +
+            "<Target/><Rule RuleId=\"jfr-rule\" Effect=\"Permit\"><Target/></Rule></Policy>";
+
+    private static final String REQUEST = "<Request xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" " +
+            "CombinedDecision=\"false\" ReturnPolicyIdList=\"false\">" +
+            "<Attributes Category=\"urn:oasis:names:tc:xacml:3.0:attribute-category:action\">" +
+            "<Attribute AttributeId=\"urn:oasis:names:tc:xacml:1.0:action:action-id\" " +
+            "IncludeInResult=\"false\"><AttributeValue " +
+            "DataType=\"http://www.w3.org/2001/XMLSchema#string\">read</AttributeValue>" +
+            "</Attribute></Attributes></Request>";
+
+    private static final String[] EVENTS = {"com.connexta.arbitro.Decision",
+            "com.connexta.arbitro.PolicyLookup", "com.connexta.arbitro.PolicyEvaluation",
+            "com.connexta.arbitro.RuleEvaluation", "com.connexta.arbitro.AttributeLookup"};
+
+    public void testRecordedEvents() throws Exception {
+
+        File directory = Files.createTempDirectory("arbitro-jfr").toFile();
+        File policyFile = new File(directory, "policy.xml");
+        FileWriter writer = new FileWriter(policyFile);
+        try {
+            writer.write(POLICY);
+        } finally {
+            writer.close();
+        }
+        FileBasedPolicyFinderModule module = new FileBasedPolicyFinderModule(
+                Collections.singleton(directory.getPath()));
+        PolicyFinder finder = new PolicyFinder();
+        finder.setModules(Collections.<PolicyFinderModule>singleton(module));
+        PDPConfig pdpConfig = new PDPConfig(new AttributeFinder(), finder, null, false);
+        pdpConfig.setMetricsCollector(new JFRMetricsCollector());
+        PDP pdp = new PDP(pdpConfig);
+
+        List<RecordedEvent> events = record(new Runnable() {
+            public void run() {
+                pdp.evaluate(REQUEST);
+            }
+        });
+        policyFile.delete();
+        directory.delete();
+
+        RecordedEvent decision = getEvent(events, "com.connexta.arbitro.Decision");
+        assertEquals("Permit", decision.getString("decision"));
+        assertEquals(1, decision.getInt("candidates"));
+        assertEquals(1, getEvents(events, "com.connexta.arbitro.PolicyLookup").size());
+        RecordedEvent policy = getEvent(events, "com.connexta.arbitro.PolicyEvaluation");
+        assertEquals("jfr-policy", policy.getString("policyId"));
+        assertFalse(policy.getBoolean("policySet"));
+        assertEquals("Permit", policy.getString("decision"));
+        RecordedEvent rule = getEvent(events, "com.connexta.arbitro.RuleEvaluation");
+        assertEquals("jfr-rule", rule.getString("ruleId"));
+        assertEquals("Permit", rule.getString("decision"));
+    }
+
+    public void testUnfinishedSteps() throws Exception {
+
+        final Policy policy = Policy.getInstance(DocumentBuilderFactory.newInstance().
+                newDocumentBuilder().parse(new InputSource(new StringReader(POLICY))).
+                getDocumentElement());
+        final Rule rule = (Rule) policy.getChildren().get(0);
+        final JFRMetricsCollector collector = new JFRMetricsCollector();
+        final int[] open = new int[4];
+
+        List<RecordedEvent> events = record(new Runnable() {
+            public void run() {
+                collector.requestEvaluationStarted();
+                collector.policyEvaluationStarted(policy);
+                // the rule fails, so it never finishes
+                collector.ruleEvaluationStarted(rule);
+                collector.policyEvaluated(policy, 0, AbstractResult.DECISION_DENY);
+                open[0] = collector.getOpenEvents();
+                collector.requestEvaluated(0, AbstractResult.DECISION_DENY);
+                open[1] = collector.getOpenEvents();
+
+                // the request itself fails
+                collector.requestEvaluationStarted();
+                collector.policyEvaluationStarted(policy);
+                collector.ruleEvaluationStarted(rule);
+                open[2] = collector.getOpenEvents();
+                collector.requestEvaluationStarted();
+                collector.requestEvaluated(0, AbstractResult.DECISION_PERMIT);
+                open[3] = collector.getOpenEvents();
+            }
+        });
+
+        // only the request is left once the policy has finished, and nothing after a request
+        assertEquals(1, open[0]);
+        assertEquals(0, open[1]);
+        assertEquals(3, open[2]);
+        assertEquals(0, open[3]);
+
+        List<RecordedEvent> decisions = getEvents(events, "com.connexta.arbitro.Decision");
+        assertEquals(2, decisions.size());
+        assertEquals("Deny", decisions.get(0).getString("decision"));
+        assertEquals("Permit", decisions.get(1).getString("decision"));
+        List<RecordedEvent> policies = getEvents(events, "com.connexta.arbitro.PolicyEvaluation");
+        assertEquals(1, policies.size());
+        assertEquals("Deny", policies.get(0).getString("decision"));
+        assertTrue(getEvents(events, "com.connexta.arbitro.RuleEvaluation").isEmpty());
+    }
+
+    public void testDecisionNames() {
+        assertEquals("Permit", JFRMetricsCollector.getDecisionName(AbstractResult.DECISION_PERMIT));
+        assertEquals("Indeterminate{DP}", JFRMetricsCollector.getDecisionName(
+                AbstractResult.DECISION_INDETERMINATE_DENY_OR_PERMIT));
+        assertEquals("42", JFRMetricsCollector.getDecisionName(42));
+    }
+
+    /**
+     * Runs the task while all events are recorded, whatever their duration
+     */
+    private static List<RecordedEvent> record(Runnable task) throws Exception {
+
+        Path file = Files.createTempFile("arbitro", ".jfr");
+        Recording recording = new Recording();
+        try {
+            for (String event : EVENTS) {
+                recording.enable(event).withThreshold(Duration.ZERO);
+            }
+            recording.start();
+            task.run();
+            recording.stop();
+            recording.dump(file);
+            return RecordingFile.readAllEvents(file);
+        } finally {
+            recording.close();
+            Files.delete(file);
+        }
+    }
+
+    private static RecordedEvent getEvent(List<RecordedEvent> events, String name) {
+        List<RecordedEvent> found = getEvents(events, name);
+        assertEquals(name, 1, found.size());
+        return found.get(0);
+    }
+
+    private static List<RecordedEvent> getEvents(List<RecordedEvent> events, String name) {
+        List<RecordedEvent> found = new ArrayList<RecordedEvent>();
+        for (RecordedEvent event : events) {
+            if (event.getEventType().getName().equals(name)) {
+                found.add(event);
+            }
+        }
+        return found;
+    }
+}
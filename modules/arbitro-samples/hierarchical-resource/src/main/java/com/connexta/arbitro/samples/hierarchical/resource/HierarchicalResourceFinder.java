@@ -23,18 +23,36 @@ import com.connexta.arbitro.Balana;
 import com.connexta.arbitro.attr.AttributeValue;
 import com.connexta.arbitro.ctx.EvaluationCtx;
 import com.connexta.arbitro.finder.ResourceFinderModule;
+import com.connexta.arbitro.finder.impl.PathTrie;
 
 import java.net.URI;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
- * Sample resource finder for finding hierarchical resources under the root node
+ * Sample resource finder for finding hierarchical resources under the root node. The resources
+ * are kept in a trie of their paths, so that the children and descendants of any resource are
+ * found without looking at every resource.
  */
 public class HierarchicalResourceFinder extends ResourceFinderModule {
 
     private final static String DATA_TYPE = "http://www.w3.org/2001/XMLSchema#string" ;
 
+    private final static String ROOT = "root";
+
+    private final static String[] RESOURCES = {"private", "public", "public/developments",
+            "public/news", "private/leadership", "private/business", "private/support",
+            "private/team"};
+
+    private PathTrie<String> resources = new PathTrie<String>();
+
+    public HierarchicalResourceFinder() {
+        for (String resource : RESOURCES) {
+            resources.add(resource, resource);
+        }
+    }
+
     @Override
     public boolean isChildSupported() {
         return true;
@@ -48,52 +66,44 @@ public class HierarchicalResourceFinder extends ResourceFinderModule {
     @Override
     public ResourceFinderResult findChildResources(AttributeValue parentResourceId, EvaluationCtx context) {
 
-        ResourceFinderResult result = new ResourceFinderResult();
-
         if(!DATA_TYPE.equals(parentResourceId.getType().toString())){
-            return result;
-        }
-
-        if("root".equals(parentResourceId.encode())){
-            Set<AttributeValue> set = new HashSet<AttributeValue>();
-            try{
-                set.add(Balana.getInstance().getAttributeFactory().createValue(new URI(DATA_TYPE), "private"));
-                set.add(Balana.getInstance().getAttributeFactory().createValue(new URI(DATA_TYPE), "public"));
-            } catch (Exception e) {
-                // just ignore
-            }
-            result = new ResourceFinderResult(set);
+            return new ResourceFinderResult();
         }
 
-        return result;
+        return getResult(resources.getChildren(getPath(parentResourceId)));
     }
 
 
     @Override
     public ResourceFinderResult findDescendantResources(AttributeValue parentResourceId, EvaluationCtx context) {
 
-        ResourceFinderResult result = new ResourceFinderResult();
-
         if(!DATA_TYPE.equals(parentResourceId.getType().toString())){
-            return result;
+            return new ResourceFinderResult();
         }
 
-        if("root".equals(parentResourceId.encode())){
-            Set<AttributeValue> set = new HashSet<AttributeValue>();
-            try{
-                set.add(Balana.getInstance().getAttributeFactory().createValue(new URI(DATA_TYPE), "private"));
-                set.add(Balana.getInstance().getAttributeFactory().createValue(new URI(DATA_TYPE), "public"));
-                set.add(Balana.getInstance().getAttributeFactory().createValue(new URI(DATA_TYPE), "public/developments"));
-                set.add(Balana.getInstance().getAttributeFactory().createValue(new URI(DATA_TYPE), "public/news"));
-                set.add(Balana.getInstance().getAttributeFactory().createValue(new URI(DATA_TYPE), "private/leadership"));
-                set.add(Balana.getInstance().getAttributeFactory().createValue(new URI(DATA_TYPE), "private/business"));
-                set.add(Balana.getInstance().getAttributeFactory().createValue(new URI(DATA_TYPE), "private/support"));
-                set.add(Balana.getInstance().getAttributeFactory().createValue(new URI(DATA_TYPE), "private/team"));
-            } catch (Exception e) {
-                // just ignore
+        return getResult(resources.getDescendants(getPath(parentResourceId)));
+    }
+
+    /**
+     * Returns the path of a resource in the trie, which is null for the root node
+     */
+    private String getPath(AttributeValue resourceId) {
+        String path = resourceId.encode();
+        return ROOT.equals(path) ? null : path;
+    }
+
+    private ResourceFinderResult getResult(List<String> paths) {
+        if(paths.isEmpty()){
+            return new ResourceFinderResult();
+        }
+        Set<AttributeValue> set = new HashSet<AttributeValue>();
+        try{
+            for (String path : paths) {
+                set.add(Balana.getInstance().getAttributeFactory().createValue(new URI(DATA_TYPE), path));
             }
-            result = new ResourceFinderResult(set);
+        } catch (Exception e) {
+            // just ignore
         }
-        return result;
+        return new ResourceFinderResult(set);
     }
 }
@@ -28,7 +28,7 @@ import com.connexta.arbitro.ctx.EvaluationCtx;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 
@@ -39,6 +39,12 @@ import java.util.Set;
  */
 public class SampleAttributeFinderModule extends AttributeFinderModule {
 
+    private static final Set<String> SUPPORTED_CATEGORIES =
+            Collections.singleton("urn:oasis:names:tc:xacml:1.0:subject-category:access-subject");
+
+    private static final Set<String> SUPPORTED_IDS =
+            Collections.singleton("http://kmarket.com/id/role");
+
     private URI defaultSubjectId;
 
     public SampleAttributeFinderModule() {
@@ -53,16 +59,12 @@ public class SampleAttributeFinderModule extends AttributeFinderModule {
 
     @Override
     public Set<String> getSupportedCategories() {
-        Set<String> categories = new HashSet<String>();
-        categories.add("urn:oasis:names:tc:xacml:1.0:subject-category:access-subject");
-        return categories;
+        return SUPPORTED_CATEGORIES;
     }
 
     @Override
     public Set getSupportedIds() {
-        Set<String> ids = new HashSet<String>();
-        ids.add("http://kmarket.com/id/role");
-        return ids;   
+        return SUPPORTED_IDS;
     }
 
     @Override
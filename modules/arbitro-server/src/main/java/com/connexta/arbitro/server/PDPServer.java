@@ -0,0 +1,515 @@
+/*
+*  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.server;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.connexta.arbitro.Balana;
+import com.connexta.arbitro.PDP;
+import com.connexta.arbitro.PDPConfig;
+import com.connexta.arbitro.ctx.json.JSONRequestParser;
+import com.connexta.arbitro.finder.impl.FileBasedPolicyFinderModule;
+import com.connexta.arbitro.metrics.DefaultMetricsCollector;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Exposes a <code>PDP</code> over HTTP, using the HTTP server of the JDK. The server has three
+ * endpoints:
+ * <ul>
+ * <li><code>POST /evaluate</code> evaluates the XML or JSON request in the body. The body is
+ * parsed straight from the connection and the response is streamed back, chunked, in the format
+ * of the request as its results are written. A request that fails before its first result is
+ * answered with <code>500</code>; one that fails later has its connection closed, so that the
+ * client does not take the truncated response as complete.</li>
+ * <li><code>GET /health</code> answers <code>UP</code> while the server is running.</li>
+ * <li><code>GET /metrics</code> lists the counters of the server and, when a
+ * <code>DefaultMetricsCollector</code> is given, the metrics of the PDP, one
+ * <code>name value</code> pair per line.</li>
+ * </ul>
+ * Connections are kept alive between requests. Requests are handled on virtual threads when the
+ * JVM supports them and no thread count is given; otherwise they are handled on a fixed pool of
+ * threads with a bounded queue. When the queue is full, requests to evaluate are answered with
+ * <code>503</code> by a separate thread instead of waiting, while the health and metrics endpoints
+ * are still answered, so the thread that accepts connections never handles requests itself.
+ */
+public class PDPServer {
+
+    /**
+     * the path of the endpoint that evaluates requests
+     */
+    public static final String EVALUATE_PATH = "/evaluate";
+
+    /**
+     * the path of the health endpoint
+     */
+    public static final String HEALTH_PATH = "/health";
+
+    /**
+     * the path of the metrics endpoint
+     */
+    public static final String METRICS_PATH = "/metrics";
+
+    /**
+     * the port used when none is given
+     */
+    public static final int DEFAULT_PORT = 8080;
+
+    /**
+     * the content type of XML requests and responses
+     */
+    public static final String XML_CONTENT_TYPE = "application/xacml+xml";
+
+    /**
+     * the content type of JSON requests and responses
+     */
+    public static final String JSON_CONTENT_TYPE = "application/xacml+json";
+
+    private static final String NODELAY_PROPERTY = "sun.net.httpserver.nodelay";
+
+    private static final int BACKLOG = 1024;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final int QUEUE_PER_THREAD = 64;
+
+    private static final int OVERLOAD_THREADS = 2;
+
+    private static Log logger = LogFactory.getLog(PDPServer.class);
+
+    private PDP pdp;
+    private InetSocketAddress address;
+    private int threads;
+    private DefaultMetricsCollector metrics;
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private ExecutorService overloadExecutor;
+    private boolean virtualThreads;
+
+    private AtomicLong requests = new AtomicLong();
+    private AtomicLong failures = new AtomicLong();
+    private AtomicLong rejections = new AtomicLong();
+    private AtomicInteger activeRequests = new AtomicInteger();
+
+    /**
+     * Creates a server on the given port that handles requests on virtual threads, if the JVM
+     * supports them
+     *
+     * @param pdp the PDP to expose
+     * @param port the port to listen on, or 0 for any free port
+     */
+    public PDPServer(PDP pdp, int port) {
+        this(pdp, new InetSocketAddress(port), 0, null);
+    }
+
+    /**
+     * Creates a server
+     *
+     * @param pdp the PDP to expose
+     * @param address the address to listen on
+     * @param threads the number of threads that handle requests, or 0 to use virtual threads if
+     *                the JVM supports them and twice the number of processors otherwise
+     * @param metrics the metrics of the PDP to list on the metrics endpoint, or null
+     */
+    public PDPServer(PDP pdp, InetSocketAddress address, int threads,
+                     DefaultMetricsCollector metrics) {
+        this.pdp = pdp;
+        this.address = address;
+        this.threads = threads;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Starts listening for requests
+     *
+     * @throws IOException if the server can not listen on its address
+     */
+    public synchronized void start() throws IOException {
+        if (server != null) {
+            throw new IllegalStateException("the server is already started");
+        }
+        HttpServer httpServer = HttpServer.create(address, BACKLOG);
+        httpServer.createContext(EVALUATE_PATH, new EvaluateHandler());
+        httpServer.createContext(HEALTH_PATH, new HealthHandler());
+        httpServer.createContext(METRICS_PATH, new MetricsHandler());
+        executor = createExecutor();
+        httpServer.setExecutor(executor);
+        httpServer.start();
+        server = httpServer;
+        logger.info("PDP server listening on port " + getPort() + " using "
+                + (virtualThreads ? "virtual threads" : "a pool of threads"));
+    }
+
+    /**
+     * Stops the server, waiting for the requests that are being handled
+     *
+     * @param delaySeconds the longest time to wait for requests to finish
+     */
+    public synchronized void stop(int delaySeconds) {
+        if (server != null) {
+            server.stop(delaySeconds);
+            executor.shutdown();
+            if (overloadExecutor != null) {
+                overloadExecutor.shutdown();
+            }
+            server = null;
+            executor = null;
+            overloadExecutor = null;
+        }
+    }
+
+    /**
+     * @return the port the server listens on
+     */
+    public synchronized int getPort() {
+        if (server == null) {
+            throw new IllegalStateException("the server is not started");
+        }
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @return whether the server is running
+     */
+    public synchronized boolean isRunning() {
+        return server != null;
+    }
+
+    /**
+     * @return whether requests are handled on virtual threads
+     */
+    public synchronized boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * @return the number of requests that were evaluated
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @return the number of requests that could not be answered
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * @return the number of requests that were answered with <code>503</code> because the server
+     *         was overloaded
+     */
+    public long getRejectedCount() {
+        return rejections.get();
+    }
+
+    /**
+     * Private helper that creates the executor requests are handled on, and the executor that
+     * answers the requests it rejects
+     */
+    private ExecutorService createExecutor() {
+        virtualThreads = false;
+        overloadExecutor = null;
+        int poolSize = threads;
+        if (poolSize <= 0) {
+            try {
+                // virtual threads are only available from Java 21
+                Method method = java.util.concurrent.Executors.class.getMethod(
+                        "newVirtualThreadPerTaskExecutor");
+                ExecutorService service = (ExecutorService) method.invoke(null);
+                virtualThreads = true;
+                return service;
+            } catch (Exception e) {
+                poolSize = Runtime.getRuntime().availableProcessors() * 2;
+            }
+        }
+
+        final AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "arbitro-server-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        final AtomicInteger overloadCount = new AtomicInteger();
+        ThreadFactory overloadFactory = new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new OverloadThread(runnable,
+                        "arbitro-server-overload-" + overloadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        // when this queue is full as well, the task is rejected and the connection is closed
+        final ExecutorService overload = new ThreadPoolExecutor(OVERLOAD_THREADS,
+                OVERLOAD_THREADS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(BACKLOG), overloadFactory);
+        overloadExecutor = overload;
+        RejectedExecutionHandler rejectionHandler = new RejectedExecutionHandler() {
+            public void rejectedExecution(Runnable task, ThreadPoolExecutor pool) {
+                overload.execute(task);
+            }
+        };
+        return new ThreadPoolExecutor(poolSize, poolSize, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(poolSize * QUEUE_PER_THREAD), factory,
+                rejectionHandler);
+    }
+
+    /**
+     * Private helper that finds out whether the current exchange was rejected by the pool of
+     * threads, and must not be evaluated
+     */
+    private static boolean isOverloaded() {
+        return Thread.currentThread() instanceof OverloadThread;
+    }
+
+    /**
+     * Private helper that answers with a short text
+     */
+    private static void sendText(HttpExchange exchange, int code, String text)
+            throws IOException {
+        byte[] bytes = text.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        exchange.sendResponseHeaders(code, bytes.length);
+        OutputStream output = exchange.getResponseBody();
+        output.write(bytes);
+        output.close();
+    }
+
+    /**
+     * Evaluates the request in the body of a POST
+     */
+    private class EvaluateHandler implements HttpHandler {
+
+        public void handle(HttpExchange exchange) throws IOException {
+            activeRequests.incrementAndGet();
+            boolean aborted = false;
+            try {
+                if (!"POST".equals(exchange.getRequestMethod())) {
+                    exchange.getResponseHeaders().set("Allow", "POST");
+                    sendText(exchange, 405, "only POST is supported\n");
+                    return;
+                }
+
+                if (isOverloaded()) {
+                    rejections.incrementAndGet();
+                    exchange.getResponseHeaders().set("Retry-After", "1");
+                    sendText(exchange, 503, "the server is overloaded\n");
+                    return;
+                }
+
+                InputStream input = new BufferedInputStream(exchange.getRequestBody(),
+                        BUFFER_SIZE);
+                boolean json = JSONRequestParser.isJSON(input);
+                exchange.getResponseHeaders().set("Content-Type",
+                        json ? JSON_CONTENT_TYPE : XML_CONTENT_TYPE);
+                ResponseStream output = new ResponseStream(exchange);
+                try {
+                    pdp.evaluate(input, output);
+                } catch (RuntimeException e) {
+                    failures.incrementAndGet();
+                    logger.error("Could not evaluate request", e);
+                    if (output.isStarted()) {
+                        // the exchange is not closed, and the server closes the connection
+                        aborted = true;
+                        throw e;
+                    }
+                    sendText(exchange, 500, "the request could not be evaluated\n");
+                    return;
+                }
+                // counted before the response is completed, which the client may be waiting for
+                requests.incrementAndGet();
+                output.close();
+            } catch (IOException e) {
+                failures.incrementAndGet();
+                logger.debug("Could not answer request", e);
+                throw e;
+            } finally {
+                activeRequests.decrementAndGet();
+                if (!aborted) {
+                    // the rest of the request is read so that the connection can be kept alive
+                    exchange.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * The body of a response, which sends the headers of a chunked <code>200</code> response
+     * when the first byte is written
+     */
+    private static class ResponseStream extends OutputStream {
+
+        private HttpExchange exchange;
+        private OutputStream output;
+
+        ResponseStream(HttpExchange exchange) {
+            this.exchange = exchange;
+        }
+
+        /**
+         * @return whether the headers have been sent
+         */
+        boolean isStarted() {
+            return output != null;
+        }
+
+        private OutputStream getOutput() throws IOException {
+            if (output == null) {
+                exchange.sendResponseHeaders(200, 0);
+                output = exchange.getResponseBody();
+            }
+            return output;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            getOutput().write(b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            getOutput().write(bytes, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (output != null) {
+                output.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            getOutput().close();
+        }
+    }
+
+    /**
+     * Answers whether the server is running
+     */
+    private class HealthHandler implements HttpHandler {
+
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                if (isRunning()) {
+                    sendText(exchange, 200, "UP\n");
+                } else {
+                    sendText(exchange, 503, "DOWN\n");
+                }
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    /**
+     * Lists the counters of the server and the metrics of the PDP
+     */
+    private class MetricsHandler implements HttpHandler {
+
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                StringBuilder builder = new StringBuilder();
+                builder.append("Server.Requests ").append(requests.get()).append('\n');
+                builder.append("Server.Failures ").append(failures.get()).append('\n');
+                builder.append("Server.Rejected ").append(rejections.get()).append('\n');
+                builder.append("Server.ActiveRequests ").append(activeRequests.get())
+                        .append('\n');
+                if (metrics != null) {
+                    for (Map.Entry<String, Long> entry : metrics.getValues().entrySet()) {
+                        builder.append(entry.getKey()).append(' ').append(entry.getValue())
+                                .append('\n');
+                    }
+                }
+                sendText(exchange, 200, builder.toString());
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    /**
+     * The threads that answer the requests the pool of threads has no room for
+     */
+    private static class OverloadThread extends Thread {
+
+        OverloadThread(Runnable runnable, String name) {
+            super(runnable, name);
+        }
+    }
+
+    /**
+     * Starts a server for the policies in a directory, which stops when the JVM exits
+     *
+     * @param args the policy directory, and optionally the port and the number of threads
+     * @throws Exception if the server can not be started
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: PDPServer <policy directory> [port] [threads]");
+            System.exit(1);
+        }
+        System.setProperty(FileBasedPolicyFinderModule.POLICY_DIR_PROPERTY, args[0]);
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+        // the headers and the body of a response are written separately, and the body would
+        // otherwise wait for the delayed ack of the headers
+        if (System.getProperty(NODELAY_PROPERTY) == null) {
+            System.setProperty(NODELAY_PROPERTY, "true");
+        }
+
+        PDPConfig config = Balana.getInstance().getPdpConfig();
+        DefaultMetricsCollector metrics = new DefaultMetricsCollector();
+        PDPConfig pdpConfig = new PDPConfig(config.getAttributeFinder(), config.getPolicyFinder(),
+                config.getResourceFinder(), false);
+        pdpConfig.setMetricsCollector(metrics);
+        PDP pdp = new PDP(pdpConfig);
+
+        final PDPServer server = new PDPServer(pdp, new InetSocketAddress(port), threads,
+                metrics);
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                server.stop(1);
+            }
+        });
+    }
+}
@@ -0,0 +1,179 @@
+/*
+*  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.connexta.arbitro.metrics.LatencyHistogram;
+
+/**
+ * Sends the same request to a <code>PDPServer</code> from a number of threads for a while, and
+ * prints the throughput of every second and the latencies of all requests at the end. Every
+ * thread keeps its connection alive between requests, as the HTTP client of the JDK does by
+ * default.
+ */
+public class LoadGenerator {
+
+    private URL url;
+    private byte[] request;
+    private String contentType;
+    private int threads;
+
+    private LatencyHistogram latencies = new LatencyHistogram();
+    private AtomicLong errors = new AtomicLong();
+    private volatile boolean running;
+
+    /**
+     * Creates a load generator
+     *
+     * @param url the URL of the evaluate endpoint
+     * @param request the request to send
+     * @param contentType the content type of the request
+     * @param threads the number of threads that send requests
+     */
+    public LoadGenerator(URL url, byte[] request, String contentType, int threads) {
+        this.url = url;
+        this.request = request;
+        this.contentType = contentType;
+        this.threads = threads;
+    }
+
+    /**
+     * Sends requests for a while, printing the throughput of every second
+     *
+     * @param seconds how long to send requests
+     * @return the latencies of the requests that were answered, in nanoseconds
+     * @throws InterruptedException if interrupted while waiting for the threads
+     */
+    public LatencyHistogram run(int seconds) throws InterruptedException {
+        running = true;
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread("load-generator-" + i) {
+                public void run() {
+                    while (running) {
+                        send();
+                    }
+                }
+            };
+            workers[i].start();
+        }
+
+        long last = 0;
+        for (int i = 1; i <= seconds; i++) {
+            Thread.sleep(1000);
+            long count = latencies.getCount();
+            System.out.println("second " + i + ": " + (count - last) + " requests/s");
+            last = count;
+        }
+        running = false;
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return latencies;
+    }
+
+    /**
+     * @return the number of requests that failed
+     */
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    /**
+     * Private helper that sends a single request and reads the whole response
+     */
+    private void send() {
+        long start = System.nanoTime();
+        try {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", contentType);
+            connection.setFixedLengthStreamingMode(request.length);
+            OutputStream output = connection.getOutputStream();
+            output.write(request);
+            output.close();
+            if (connection.getResponseCode() != 200) {
+                errors.incrementAndGet();
+            }
+            // the whole response is read so that the connection is reused
+            InputStream input = connection.getResponseCode() < 400
+                    ? connection.getInputStream() : connection.getErrorStream();
+            if (input != null) {
+                byte[] buffer = new byte[4096];
+                while (input.read(buffer) >= 0) {
+                    // nothing to do
+                }
+                input.close();
+            }
+            latencies.record(System.nanoTime() - start);
+        } catch (IOException e) {
+            errors.incrementAndGet();
+        }
+    }
+
+    /**
+     * Runs a load test
+     *
+     * @param args the URL of the evaluate endpoint, a file with the request, and optionally the
+     *             number of threads and the number of seconds
+     * @throws Exception if the request can not be read
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("usage: LoadGenerator <url> <request file> [threads] [seconds]");
+            System.exit(1);
+        }
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 30;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        InputStream input = new FileInputStream(args[1]);
+        try {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = input.read(buffer)) >= 0) {
+                bytes.write(buffer, 0, read);
+            }
+        } finally {
+            input.close();
+        }
+        String contentType = args[1].endsWith(".json") ? PDPServer.JSON_CONTENT_TYPE
+                : PDPServer.XML_CONTENT_TYPE;
+
+        LoadGenerator generator = new LoadGenerator(new URL(args[0]), bytes.toByteArray(),
+                contentType, threads);
+        LatencyHistogram latencies = generator.run(seconds);
+        System.out.println("requests: " + latencies.getCount() + ", errors: "
+                + generator.getErrorCount() + ", throughput: "
+                + latencies.getCount() / seconds + " requests/s");
+        System.out.println("latency: mean " + latencies.getMean() / 1000 + " us, p50 "
+                + latencies.getPercentile(50) / 1000 + " us, p99 "
+                + latencies.getPercentile(99) / 1000 + " us, max "
+                + latencies.getMax() / 1000 + " us");
+    }
+}
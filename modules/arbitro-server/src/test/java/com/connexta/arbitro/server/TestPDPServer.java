@@ -0,0 +1,375 @@
+/*
+ *  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ *  WSO2 Inc. licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except
+ *  in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.connexta.arbitro.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.connexta.arbitro.PDP;
+import com.connexta.arbitro.PDPConfig;
+import com.connexta.arbitro.attr.AttributeValue;
+import com.connexta.arbitro.attr.BagAttribute;
+import com.connexta.arbitro.attr.StringAttribute;
+import com.connexta.arbitro.cond.EvaluationResult;
+import com.connexta.arbitro.ctx.EvaluationCtx;
+import com.connexta.arbitro.finder.AttributeFinder;
+import com.connexta.arbitro.finder.AttributeFinderModule;
+import com.connexta.arbitro.finder.PolicyFinder;
+import com.connexta.arbitro.finder.PolicyFinderModule;
+import com.connexta.arbitro.finder.impl.FileBasedPolicyFinderModule;
+
+import junit.framework.TestCase;
+
+/**
+ * This would test the endpoints of the PDP server, and how it answers failing requests and
+ * requests it has no room for
+ */
+public class TestPDPServer extends TestCase {
+
+    // the gate is in the action category, since the context only asks the attribute finder for
+    // categories that are in the request
+    private static final String GATE_ID = "urn:test:gate";
+
+    private static final String POLICY = "<Policy xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" " +
+            "PolicyId=\"server-policy\" Version=\"1.0\" " +
+            "RuleCombiningAlgId=\"urn:oasis:names:tc:xacml:3.0:rule-combining-algorithm:deny-overrides\">" +
+            "<Target/><Rule RuleId=\"server-rule\" Effect=\"Permit\"><Target/><Condition>" +
+            "<Apply FunctionId=\"urn:oasis:names:tc:xacml:1.0:function:string-is-in\">" +
+            "<AttributeValue DataType=\"http://www.w3.org/2001/XMLSchema#string\">open</AttributeValue>" +
+            "<AttributeDesignator AttributeId=\"" + GATE_ID + "\" " +
+            "Category=\"urn:oasis:names:tc:xacml:3.0:attribute-category:action\" " +
+            "DataType=\"http://www.w3.org/2001/XMLSchema#string\" MustBePresent=\"false\"/>" +
+            "</Apply></Condition></Rule></Policy>";
+
+    private static final String XML_REQUEST = "<Request xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" " +
+            "CombinedDecision=\"false\" ReturnPolicyIdList=\"false\">" +
+            "<Attributes Category=\"urn:oasis:names:tc:xacml:3.0:attribute-category:action\">" +
+            "<Attribute AttributeId=\"urn:oasis:names:tc:xacml:1.0:action:action-id\" " +
+            "IncludeInResult=\"false\"><AttributeValue " +
+            "DataType=\"http://www.w3.org/2001/XMLSchema#string\">read</AttributeValue>" +
+            "</Attribute></Attributes></Request>";
+
+    private static final String MULTIPLE_REQUEST = "<Request xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" " +
+            "CombinedDecision=\"false\" ReturnPolicyIdList=\"false\">" +
+            "<Attributes Category=\"urn:oasis:names:tc:xacml:3.0:attribute-category:action\">" +
+            "<Attribute AttributeId=\"urn:oasis:names:tc:xacml:1.0:action:action-id\" " +
+            "IncludeInResult=\"false\"><AttributeValue " +
+            "DataType=\"http://www.w3.org/2001/XMLSchema#string\">read</AttributeValue>" +
+            "</Attribute></Attributes>" +
+            "<Attributes Category=\"urn:oasis:names:tc:xacml:3.0:attribute-category:action\">" +
+            "<Attribute AttributeId=\"urn:oasis:names:tc:xacml:1.0:action:action-id\" " +
+            "IncludeInResult=\"false\"><AttributeValue " +
+            "DataType=\"http://www.w3.org/2001/XMLSchema#string\">write</AttributeValue>" +
+            "</Attribute></Attributes></Request>";
+
+    private static final String JSON_REQUEST = "{\"Request\":{\"Action\":{\"Attribute\":[" +
+            "{\"AttributeId\":\"urn:oasis:names:tc:xacml:1.0:action:action-id\"," +
+            "\"Value\":\"read\"}]}}}";
+
+    private File directory;
+    private File policyFile;
+    private GateModule gate;
+    private PDPServer server;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = Files.createTempDirectory("arbitro-server").toFile();
+        policyFile = new File(directory, "policy.xml");
+        FileWriter writer = new FileWriter(policyFile);
+        try {
+            writer.write(POLICY);
+        } finally {
+            writer.close();
+        }
+        gate = new GateModule();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        gate.open.countDown();
+        if (server != null) {
+            server.stop(0);
+        }
+        policyFile.delete();
+        directory.delete();
+    }
+
+    public void testEvaluate() throws Exception {
+        start(2);
+
+        Answer xml = send(PDPServer.EVALUATE_PATH, "POST", XML_REQUEST,
+                PDPServer.XML_CONTENT_TYPE);
+        assertEquals(200, xml.code);
+        assertEquals(PDPServer.XML_CONTENT_TYPE, xml.contentType);
+        assertTrue(xml.body, xml.body.contains("<Decision>Permit</Decision>"));
+
+        Answer json = send(PDPServer.EVALUATE_PATH, "POST", JSON_REQUEST,
+                PDPServer.JSON_CONTENT_TYPE);
+        assertEquals(200, json.code);
+        assertEquals(PDPServer.JSON_CONTENT_TYPE, json.contentType);
+        assertTrue(json.body, json.body.contains("\"Permit\""));
+
+        assertEquals(405, send(PDPServer.EVALUATE_PATH, "GET", null, null).code);
+        assertEquals(2, server.getRequestCount());
+        assertEquals(0, server.getFailureCount());
+    }
+
+    public void testHealthAndMetrics() throws Exception {
+        start(2);
+        send(PDPServer.EVALUATE_PATH, "POST", XML_REQUEST, PDPServer.XML_CONTENT_TYPE);
+
+        Answer health = send(PDPServer.HEALTH_PATH, "GET", null, null);
+        assertEquals(200, health.code);
+        assertEquals("UP\n", health.body);
+
+        Answer metrics = send(PDPServer.METRICS_PATH, "GET", null, null);
+        assertEquals(200, metrics.code);
+        assertTrue(metrics.body, metrics.body.contains("Server.Requests 1\n"));
+        assertTrue(metrics.body, metrics.body.contains("Server.Rejected 0\n"));
+    }
+
+    public void testFailedEvaluation() throws Exception {
+        gate.failing = true;
+        start(2);
+
+        // nothing has been sent when the evaluation fails, so it is not answered with 200
+        Answer answer = send(PDPServer.EVALUATE_PATH, "POST", XML_REQUEST,
+                PDPServer.XML_CONTENT_TYPE);
+        assertEquals(500, answer.code);
+        assertEquals(1, server.getFailureCount());
+        assertEquals(0, server.getRequestCount());
+
+        gate.failing = false;
+        assertEquals(200, send(PDPServer.EVALUATE_PATH, "POST", XML_REQUEST,
+                PDPServer.XML_CONTENT_TYPE).code);
+    }
+
+    public void testFailedStream() throws Exception {
+        start(2);
+
+        Answer answer = send(PDPServer.EVALUATE_PATH, "POST", MULTIPLE_REQUEST,
+                PDPServer.XML_CONTENT_TYPE);
+        assertEquals(200, answer.code);
+        assertEquals(2, count(answer.body, "<Decision>Permit</Decision>"));
+
+        // the first result has been sent when the second one fails, so the connection is
+        // closed instead of the response being completed
+        gate.failAfter = gate.entered + 1;
+        try {
+            send(PDPServer.EVALUATE_PATH, "POST", MULTIPLE_REQUEST, PDPServer.XML_CONTENT_TYPE);
+            fail("a truncated response was completed");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(1, server.getFailureCount());
+        assertEquals(1, server.getRequestCount());
+
+        gate.failAfter = Integer.MAX_VALUE;
+        assertEquals(200, send(PDPServer.EVALUATE_PATH, "POST", XML_REQUEST,
+                PDPServer.XML_CONTENT_TYPE).code);
+    }
+
+    public void testOverload() throws Exception {
+        gate.open = new CountDownLatch(1);
+        start(1);
+
+        // one request is evaluated and blocks, the queue takes the next ones, and the rest are
+        // rejected
+        final int count = 100;
+        final int[] codes = new int[count];
+        List<Thread> clients = new ArrayList<Thread>();
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            Thread client = new Thread() {
+                public void run() {
+                    try {
+                        codes[index] = send(PDPServer.EVALUATE_PATH, "POST", XML_REQUEST,
+                                PDPServer.XML_CONTENT_TYPE).code;
+                    } catch (IOException e) {
+                        codes[index] = -1;
+                    }
+                }
+            };
+            client.start();
+            clients.add(client);
+        }
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (server.getRejectedCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(server.getRejectedCount() > 0);
+
+        // the queue stays full while the gate is closed, and the server is still healthy
+        Answer health = send(PDPServer.HEALTH_PATH, "GET", null, null);
+        assertEquals(200, health.code);
+        assertEquals("UP\n", health.body);
+
+        gate.open.countDown();
+        for (Thread client : clients) {
+            client.join(10000);
+        }
+        int evaluated = 0;
+        int rejected = 0;
+        for (int code : codes) {
+            if (code == 200) {
+                evaluated++;
+            } else if (code == 503) {
+                rejected++;
+            }
+        }
+        assertEquals(count, evaluated + rejected);
+        assertEquals(server.getRejectedCount(), rejected);
+        assertEquals(server.getRequestCount(), evaluated);
+        assertEquals(evaluated, gate.entered);
+    }
+
+    /**
+     * Starts a server for the policy with the given number of threads
+     */
+    private void start(int threads) throws IOException {
+        FileBasedPolicyFinderModule module = new FileBasedPolicyFinderModule(
+                Collections.singleton(directory.getPath()));
+        PolicyFinder policyFinder = new PolicyFinder();
+        policyFinder.setModules(Collections.<PolicyFinderModule>singleton(module));
+        AttributeFinder attributeFinder = new AttributeFinder();
+        attributeFinder.setModules(Collections.<AttributeFinderModule>singletonList(gate));
+        PDP pdp = new PDP(new PDPConfig(attributeFinder, policyFinder, null, true));
+
+        server = new PDPServer(pdp, new InetSocketAddress("127.0.0.1", 0), threads, null);
+        server.start();
+    }
+
+    /**
+     * Sends a request to the server
+     */
+    private Answer send(String path, String method, String body, String contentType)
+            throws IOException {
+        URL url = new URL("http://127.0.0.1:" + server.getPort() + path);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(10000);
+        connection.setReadTimeout(30000);
+        if (body != null) {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", contentType);
+            OutputStream output = connection.getOutputStream();
+            output.write(body.getBytes("UTF-8"));
+            output.close();
+        }
+
+        Answer answer = new Answer();
+        answer.code = connection.getResponseCode();
+        answer.contentType = connection.getContentType();
+        InputStream input = answer.code < 400 ? connection.getInputStream()
+                : connection.getErrorStream();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        if (input != null) {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                bytes.write(buffer, 0, read);
+            }
+            input.close();
+        }
+        answer.body = bytes.toString("UTF-8");
+        return answer;
+    }
+
+    private static int count(String text, String token) {
+        int count = 0;
+        int index = text.indexOf(token);
+        while (index >= 0) {
+            count++;
+            index = text.indexOf(token, index + token.length());
+        }
+        return count;
+    }
+
+    /**
+     * The status, content type and body of an answer
+     */
+    private static class Answer {
+        int code;
+        String contentType;
+        String body;
+    }
+
+    /**
+     * Finds the gate attribute, which can wait until it is opened, fail, or fail once it has
+     * been found a number of times
+     */
+    private static class GateModule extends AttributeFinderModule {
+
+        volatile CountDownLatch open = new CountDownLatch(0);
+        volatile boolean failing;
+        volatile int failAfter = Integer.MAX_VALUE;
+        volatile int entered;
+
+        @Override
+        public boolean isDesignatorSupported() {
+            return true;
+        }
+
+        @Override
+        public Set<String> getSupportedCategories() {
+            return Collections.singleton(
+                    "urn:oasis:names:tc:xacml:3.0:attribute-category:action");
+        }
+
+        @Override
+        public EvaluationResult findAttribute(URI attributeType, URI attributeId, String issuer,
+                                              URI category, EvaluationCtx context) {
+            if (!GATE_ID.equals(attributeId.toString())) {
+                return super.findAttribute(attributeType, attributeId, issuer, category,
+                        context);
+            }
+            if (failing || entered >= failAfter) {
+                throw new IllegalStateException("the gate is broken");
+            }
+            synchronized (this) {
+                entered++;
+            }
+            try {
+                if (!open.await(30, TimeUnit.SECONDS)) {
+                    throw new IllegalStateException("the gate was never opened");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new EvaluationResult(new BagAttribute(attributeType,
+                    Collections.<AttributeValue>singletonList(new StringAttribute("open"))));
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+*  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.sidecar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The framing of the sidecar protocol. Every request and every response is a frame made of an
+ * 8 byte header, which holds the length of the payload and the id of the request as big-endian
+ * ints, followed by the payload. A response has the id of its request, so a client may send
+ * several requests before reading any response, and responses may arrive in any order.
+ */
+final class Frames {
+
+    /**
+     * the size of the header of a frame
+     */
+    static final int HEADER_SIZE = 8;
+
+    /**
+     * the largest payload a frame may have, if no other limit is given
+     */
+    static final int DEFAULT_MAX_PAYLOAD = 16 * 1024 * 1024;
+
+    private Frames() {
+    }
+
+    /**
+     * Reads until the buffer is full
+     *
+     * @param channel the channel to read from
+     * @param buffer the buffer to fill
+     * @return false if the channel was closed before anything was read
+     * @throws IOException if the channel can not be read, or is closed half way
+     */
+    static boolean readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                if (buffer.position() == 0) {
+                    return false;
+                }
+                throw new EOFException("connection closed in the middle of a frame");
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the payload of a frame whose header has been read
+     *
+     * @param channel the channel to read from
+     * @param length the length of the payload
+     * @param maxPayload the largest payload allowed
+     * @return the payload
+     * @throws IOException if the payload can not be read or is too large
+     */
+    static byte[] readPayload(ReadableByteChannel channel, int length, int maxPayload)
+            throws IOException {
+        if (length < 0 || length > maxPayload) {
+            throw new IOException("invalid frame length : " + length);
+        }
+        byte[] payload = new byte[length];
+        readFully(channel, ByteBuffer.wrap(payload));
+        return payload;
+    }
+
+    /**
+     * Writes a frame with a single gathering write, without copying the payload. Callers must
+     * not write other frames to the channel at the same time.
+     *
+     * @param channel the channel to write to
+     * @param header a buffer of <code>HEADER_SIZE</code> bytes to use for the header
+     * @param id the id of the request
+     * @param payload the array that holds the payload
+     * @param length the length of the payload
+     * @throws IOException if the frame can not be written
+     */
+    static void write(SocketChannel channel, ByteBuffer header, int id, byte[] payload,
+                      int length) throws IOException {
+        header.clear();
+        header.putInt(length).putInt(id).flip();
+        ByteBuffer[] buffers = {header, ByteBuffer.wrap(payload, 0, length)};
+        while (buffers[1].hasRemaining() || header.hasRemaining()) {
+            channel.write(buffers);
+        }
+    }
+
+    /**
+     * An output stream whose buffer can be written out without copying it
+     */
+    static class Buffer extends ByteArrayOutputStream {
+
+        Buffer(int size) {
+            super(size);
+        }
+
+        /**
+         * @return the array that holds the first <code>size()</code> bytes written
+         */
+        byte[] getArray() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+*  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.sidecar;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import com.connexta.arbitro.Balana;
+import com.connexta.arbitro.PDP;
+import com.connexta.arbitro.finder.impl.FileBasedPolicyFinderModule;
+import com.connexta.arbitro.metrics.LatencyHistogram;
+
+/**
+ * Compares the same exchange over a Unix domain socket and over loopback TCP. For each
+ * transport a server is started in this JVM, and a single client sends the same request for a
+ * while, once waiting for every response and once keeping a number of requests in flight.
+ */
+public class SidecarBenchmark {
+
+    /**
+     * Runs the benchmark
+     *
+     * @param args the policy directory, a file with the request, and optionally the number of
+     *             seconds per run and the number of requests kept in flight
+     * @throws Exception if the servers can not be started
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("usage: SidecarBenchmark <policy directory> <request file> "
+                    + "[seconds] [pipeline depth]");
+            System.exit(1);
+        }
+        System.setProperty(FileBasedPolicyFinderModule.POLICY_DIR_PROPERTY, args[0]);
+        byte[] request = Files.readAllBytes(Paths.get(args[1]));
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int depth = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+        int threads = Runtime.getRuntime().availableProcessors();
+        PDP pdp = new PDP(Balana.getInstance().getPdpConfig());
+
+        Path directory = Files.createTempDirectory("arbitro-sidecar");
+        Path socket = directory.resolve("pdp.sock");
+        SidecarServer uds = new SidecarServer(pdp, socket, threads);
+        SidecarServer tcp = new SidecarServer(pdp,
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), threads);
+        uds.start();
+        tcp.start();
+        try {
+            // both transports are warmed up before they are measured
+            run("warm-up", uds.getAddress(), request, seconds, depth);
+            run("warm-up", tcp.getAddress(), request, seconds, depth);
+            run("uds, 1 in flight", uds.getAddress(), request, seconds, 1);
+            run("tcp, 1 in flight", tcp.getAddress(), request, seconds, 1);
+            run("uds, " + depth + " in flight", uds.getAddress(), request, seconds, depth);
+            run("tcp, " + depth + " in flight", tcp.getAddress(), request, seconds, depth);
+        } finally {
+            uds.stop();
+            tcp.stop();
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    /**
+     * Private helper that sends requests for a while and prints the throughput and latencies
+     */
+    private static void run(String name, SocketAddress address, byte[] request, int seconds,
+                            int depth) throws IOException, InterruptedException {
+        LatencyHistogram latencies = new LatencyHistogram();
+        SidecarClient client = new SidecarClient(address);
+        try {
+            long end = System.nanoTime() + seconds * 1000000000L;
+            List<Future<byte[]>> responses = new ArrayList<Future<byte[]>>(depth);
+            while (System.nanoTime() < end) {
+                long start = System.nanoTime();
+                for (int i = 0; i < depth; i++) {
+                    responses.add(client.submit(request));
+                }
+                for (Future<byte[]> response : responses) {
+                    try {
+                        response.get();
+                    } catch (Exception e) {
+                        throw new IOException(e);
+                    }
+                }
+                responses.clear();
+                long nanos = System.nanoTime() - start;
+                for (int i = 0; i < depth; i++) {
+                    latencies.record(nanos);
+                }
+            }
+        } finally {
+            client.close();
+        }
+        System.out.println(name + ": " + latencies.getCount() / seconds + " requests/s, "
+                + "mean " + latencies.getMean() / 1000 + " us, p99 "
+                + latencies.getPercentile(99) / 1000 + " us");
+    }
+}
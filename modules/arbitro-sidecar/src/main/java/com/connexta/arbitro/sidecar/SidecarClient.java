@@ -0,0 +1,183 @@
+/*
+*  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.sidecar;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A client of a <code>SidecarServer</code>. Every request is sent as a frame with an 8 byte
+ * header, holding the length of the request and an id as big-endian ints, followed by the XML or
+ * JSON request. The server answers with a frame that has the same id, followed by the response.
+ * <p>
+ * A client may be used by several threads at the same time, and requests may be pipelined:
+ * <code>submit</code> sends a request without waiting for its response, and a single thread
+ * reads the responses as they arrive and completes the futures of their requests.
+ * </p>
+ */
+public class SidecarClient implements Closeable {
+
+    private SocketChannel channel;
+    private int maxPayload = Frames.DEFAULT_MAX_PAYLOAD;
+
+    private AtomicInteger ids = new AtomicInteger();
+    private ConcurrentHashMap<Integer, CompletableFuture<byte[]>> pending =
+            new ConcurrentHashMap<Integer, CompletableFuture<byte[]>>();
+    private ByteBuffer header = ByteBuffer.allocate(Frames.HEADER_SIZE);
+    private volatile IOException failure;
+
+    /**
+     * Connects to a server
+     *
+     * @param address a <code>UnixDomainSocketAddress</code>, or an
+     *                <code>InetSocketAddress</code> of a server that serves over TCP
+     * @throws IOException if the server can not be reached
+     */
+    public SidecarClient(SocketAddress address) throws IOException {
+        if (address instanceof UnixDomainSocketAddress) {
+            channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        } else {
+            channel = SocketChannel.open();
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        }
+        channel.connect(address);
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                read();
+            }
+        }, "arbitro-sidecar-client");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Sends a request without waiting for its response
+     *
+     * @param request the XML or JSON request
+     * @return the future response
+     * @throws IOException if the request can not be sent
+     */
+    public Future<byte[]> submit(byte[] request) throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        int id = ids.incrementAndGet();
+        CompletableFuture<byte[]> response = new CompletableFuture<byte[]>();
+        pending.put(id, response);
+        try {
+            synchronized (header) {
+                Frames.write(channel, header, id, request, request.length);
+            }
+        } catch (IOException e) {
+            pending.remove(id);
+            throw e;
+        }
+        // the connection may have been lost after the request was registered
+        if (failure != null && pending.remove(id) != null) {
+            response.completeExceptionally(failure);
+        }
+        return response;
+    }
+
+    /**
+     * Sends a request and waits for its response
+     *
+     * @param request the XML or JSON request
+     * @return the response
+     * @throws IOException if the request can not be sent or the connection is lost
+     */
+    public byte[] evaluate(byte[] request) throws IOException {
+        try {
+            return submit(request).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for response", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Sends a request and waits for its response
+     *
+     * @param request the XML or JSON request
+     * @return the response
+     * @throws IOException if the request can not be sent or the connection is lost
+     */
+    public String evaluate(String request) throws IOException {
+        return new String(evaluate(request.getBytes(StandardCharsets.UTF_8)),
+                StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Closes the connection. Requests that have not been answered fail.
+     *
+     * @throws IOException if the connection can not be closed
+     */
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Private helper that reads responses until the connection is closed
+     */
+    private void read() {
+        ByteBuffer responseHeader = ByteBuffer.allocate(Frames.HEADER_SIZE);
+        try {
+            while (true) {
+                responseHeader.clear();
+                if (!Frames.readFully(channel, responseHeader)) {
+                    break;
+                }
+                responseHeader.flip();
+                int length = responseHeader.getInt();
+                int id = responseHeader.getInt();
+                byte[] payload = Frames.readPayload(channel, length, maxPayload);
+                CompletableFuture<byte[]> response = pending.remove(id);
+                if (response != null) {
+                    response.complete(payload);
+                }
+            }
+            failure = new IOException("connection closed by server");
+        } catch (IOException e) {
+            failure = e;
+        }
+        for (Integer id : pending.keySet()) {
+            CompletableFuture<byte[]> response = pending.remove(id);
+            if (response != null) {
+                response.completeExceptionally(failure);
+            }
+        }
+    }
+}
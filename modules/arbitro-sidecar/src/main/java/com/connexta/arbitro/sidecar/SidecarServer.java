@@ -0,0 +1,397 @@
+/*
+*  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.sidecar;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.connexta.arbitro.PDP;
+
+/**
+ * Serves a <code>PDP</code> to processes on the same host over a Unix domain socket, or over TCP
+ * for comparison. Every request is a frame whose payload is an XML or JSON request, and is
+ * answered with a frame whose payload is the response in the same format (see
+ * <code>SidecarClient</code> for the framing).
+ * <p>
+ * A connection may have several requests in flight. Each connection has a thread that reads
+ * frames and hands them to a pool of evaluation threads, so requests on the same connection are
+ * evaluated concurrently, and a thread that writes the responses of the connection as soon as
+ * they are done. The evaluation threads never write to a connection, so a client that does not
+ * read its responses only holds up its own connection. The bytes of a request are parsed
+ * straight from the array they were read into, and the response is written from the array it
+ * was encoded into. When a connection has as many requests in flight as it may have, its frames
+ * are not read until one of them has been answered.
+ * </p>
+ */
+public class SidecarServer {
+
+    /**
+     * the number of requests a connection may have in flight, if no other limit is given
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
+    private static final int RESPONSE_BUFFER_SIZE = 4096;
+
+    private static Log logger = LogFactory.getLog(SidecarServer.class);
+
+    private PDP pdp;
+    private SocketAddress address;
+    private int threads;
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private int maxPayload = Frames.DEFAULT_MAX_PAYLOAD;
+
+    private ServerSocketChannel serverChannel;
+    private ExecutorService connectionExecutor;
+    private ExecutorService evaluationExecutor;
+    private Set<SocketChannel> connections =
+            ConcurrentHashMap.<SocketChannel>newKeySet();
+
+    private AtomicLong requests = new AtomicLong();
+
+    /**
+     * Creates a server that listens on a Unix domain socket
+     *
+     * @param pdp the PDP to serve
+     * @param path the path of the socket, which must not exist yet
+     * @param threads the number of threads that evaluate requests
+     */
+    public SidecarServer(PDP pdp, java.nio.file.Path path, int threads) {
+        this(pdp, UnixDomainSocketAddress.of(path), threads);
+    }
+
+    /**
+     * Creates a server
+     *
+     * @param pdp the PDP to serve
+     * @param address a <code>UnixDomainSocketAddress</code>, or an
+     *                <code>InetSocketAddress</code> to serve over TCP
+     * @param threads the number of threads that evaluate requests
+     */
+    public SidecarServer(PDP pdp, SocketAddress address, int threads) {
+        this.pdp = pdp;
+        this.address = address;
+        this.threads = threads;
+    }
+
+    /**
+     * Sets the number of requests a connection may have in flight. Connections that are already
+     * open keep the limit they were opened with.
+     *
+     * @param maxInFlight the number of requests
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Sets the largest request that is accepted
+     *
+     * @param maxPayload the largest payload of a request frame, in bytes
+     */
+    public void setMaxPayload(int maxPayload) {
+        this.maxPayload = maxPayload;
+    }
+
+    /**
+     * Starts listening for connections
+     *
+     * @throws IOException if the server can not listen on its address
+     */
+    public synchronized void start() throws IOException {
+        if (serverChannel != null) {
+            throw new IllegalStateException("the server is already started");
+        }
+        if (address instanceof UnixDomainSocketAddress) {
+            serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        } else {
+            serverChannel = ServerSocketChannel.open();
+        }
+        serverChannel.bind(address);
+        address = serverChannel.getLocalAddress();
+
+        connectionExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory("connection"));
+        evaluationExecutor = Executors.newFixedThreadPool(threads,
+                new DaemonThreadFactory("evaluation"));
+        final ServerSocketChannel channel = serverChannel;
+        Thread acceptor = new DaemonThreadFactory("acceptor").newThread(new Runnable() {
+            public void run() {
+                accept(channel);
+            }
+        });
+        acceptor.start();
+        logger.info("PDP sidecar listening on " + address);
+    }
+
+    /**
+     * Stops the server and closes all connections
+     */
+    public synchronized void stop() {
+        if (serverChannel == null) {
+            return;
+        }
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            logger.debug("Could not close server channel", e);
+        }
+        for (SocketChannel connection : connections) {
+            close(connection);
+        }
+        connectionExecutor.shutdown();
+        evaluationExecutor.shutdown();
+        if (address instanceof UnixDomainSocketAddress) {
+            try {
+                Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());
+            } catch (IOException e) {
+                logger.debug("Could not delete socket file", e);
+            }
+        }
+        serverChannel = null;
+    }
+
+    /**
+     * @return the address the server listens on, which has the actual port of a TCP server
+     */
+    public synchronized SocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * @return the number of requests that were answered
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * Private helper that accepts connections until the server channel is closed
+     */
+    private void accept(ServerSocketChannel channel) {
+        while (true) {
+            final SocketChannel connection;
+            try {
+                connection = channel.accept();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                logger.error("Could not accept connection", e);
+                return;
+            }
+            if (!(address instanceof UnixDomainSocketAddress)) {
+                try {
+                    // responses are small frames, which would otherwise wait for delayed acks
+                    connection.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                } catch (IOException e) {
+                    logger.debug("Could not disable Nagle's algorithm", e);
+                }
+            }
+            connections.add(connection);
+            connectionExecutor.execute(new Runnable() {
+                public void run() {
+                    serve(connection);
+                }
+            });
+        }
+    }
+
+    /**
+     * Private helper that reads the requests of a connection until it is closed
+     */
+    private void serve(final SocketChannel connection) {
+        // the limit is read once, so that all permits can be taken back when the connection ends
+        final int limit = maxInFlight;
+        final Semaphore inFlight = new Semaphore(limit);
+        final BlockingQueue<Response> responses = new LinkedBlockingQueue<Response>();
+        try {
+            connectionExecutor.execute(new Runnable() {
+                public void run() {
+                    write(connection, inFlight, responses);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the server is stopping
+            close(connection);
+            return;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(Frames.HEADER_SIZE);
+        try {
+            while (true) {
+                header.clear();
+                if (!Frames.readFully(connection, header)) {
+                    break;
+                }
+                header.flip();
+                int length = header.getInt();
+                final int id = header.getInt();
+                final byte[] payload = Frames.readPayload(connection, length, maxPayload);
+
+                inFlight.acquireUninterruptibly();
+                execute(inFlight, new Runnable() {
+                    public void run() {
+                        try {
+                            Frames.Buffer response = new Frames.Buffer(RESPONSE_BUFFER_SIZE);
+                            pdp.evaluate(new ByteArrayInputStream(payload), response);
+                            // the permit is given back once the response has been written
+                            responses.add(new Response(id, response));
+                        } catch (IOException e) {
+                            logger.debug("Could not answer request " + id, e);
+                            close(connection);
+                            inFlight.release();
+                        } catch (RuntimeException e) {
+                            logger.error("Could not evaluate request " + id, e);
+                            close(connection);
+                            inFlight.release();
+                        }
+                    }
+                });
+            }
+        } catch (RejectedExecutionException e) {
+            // the server is stopping
+        } catch (IOException e) {
+            logger.debug("Connection failed", e);
+        } finally {
+            // requests in flight are still answered before the connection is closed
+            inFlight.acquireUninterruptibly(limit);
+            responses.add(Response.END);
+            close(connection);
+        }
+    }
+
+    /**
+     * Private helper that writes the responses of a connection until it ends. Once a write
+     * fails, the remaining responses are dropped, so that their permits are still given back.
+     */
+    private void write(SocketChannel connection, Semaphore inFlight,
+                       BlockingQueue<Response> responses) {
+        ByteBuffer header = ByteBuffer.allocate(Frames.HEADER_SIZE);
+        boolean failed = false;
+        while (true) {
+            Response response;
+            try {
+                response = responses.take();
+            } catch (InterruptedException e) {
+                // nothing is written any more, but the permits are still given back
+                failed = true;
+                close(connection);
+                continue;
+            }
+            if (response == Response.END) {
+                return;
+            }
+            try {
+                if (!failed) {
+                    requests.incrementAndGet();
+                    Frames.write(connection, header, response.id, response.payload.getArray(),
+                            response.payload.size());
+                }
+            } catch (IOException e) {
+                logger.debug("Could not answer request " + response.id, e);
+                failed = true;
+                close(connection);
+            } finally {
+                inFlight.release();
+            }
+        }
+    }
+
+    /**
+     * Private helper that hands a request to the evaluation threads, giving its permit back if
+     * the server is stopping
+     */
+    private void execute(Semaphore inFlight, Runnable evaluation) {
+        try {
+            evaluationExecutor.execute(evaluation);
+        } catch (RejectedExecutionException e) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    private void close(SocketChannel connection) {
+        connections.remove(connection);
+        try {
+            connection.close();
+        } catch (IOException e) {
+            logger.debug("Could not close connection", e);
+        }
+    }
+
+    /**
+     * A response that is waiting to be written
+     */
+    private static class Response {
+
+        /**
+         * marks the end of the responses of a connection
+         */
+        static final Response END = new Response(0, null);
+
+        final int id;
+        final Frames.Buffer payload;
+
+        Response(int id, Frames.Buffer payload) {
+            this.id = id;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * Creates the daemon threads of the server
+     */
+    private static class DaemonThreadFactory implements ThreadFactory {
+
+        private String name;
+        private AtomicInteger count = new AtomicInteger();
+
+        DaemonThreadFactory(String name) {
+            this.name = name;
+        }
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "arbitro-sidecar-" + name + "-"
+                    + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
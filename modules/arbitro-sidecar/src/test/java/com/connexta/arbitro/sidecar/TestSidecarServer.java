@@ -0,0 +1,275 @@
+/*
+ *  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ *  WSO2 Inc. licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except
+ *  in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.connexta.arbitro.sidecar;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.connexta.arbitro.PDP;
+import com.connexta.arbitro.PDPConfig;
+import com.connexta.arbitro.finder.AttributeFinder;
+import com.connexta.arbitro.finder.PolicyFinder;
+import com.connexta.arbitro.finder.PolicyFinderModule;
+import com.connexta.arbitro.finder.impl.FileBasedPolicyFinderModule;
+
+import junit.framework.TestCase;
+
+/**
+ * This would test the framing of the sidecar protocol, pipelined requests, and clients that do
+ * not read their responses
+ */
+public class TestSidecarServer extends TestCase {
+
+    private static final String POLICY = "<Policy xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" " +
+            "PolicyId=\"sidecar-policy\" Version=\"1.0\" " +
+            "RuleCombiningAlgId=\"urn:oasis:names:tc:xacml:3.0:rule-combining-algorithm:deny-overrides\">" +
+            "<Target/><Rule RuleId=\"sidecar-rule\" Effect=\"Permit\"><Target/></Rule></Policy>";
+
+    private static final String JSON_REQUEST = "{\"Request\":{\"Action\":{\"Attribute\":[" +
+            "{\"AttributeId\":\"urn:oasis:names:tc:xacml:1.0:action:action-id\"," +
+            "\"Value\":\"read\"}]}}}";
+
+    private File directory;
+    private File policyFile;
+    private PDP pdp;
+    private SidecarServer server;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = Files.createTempDirectory("arbitro-sidecar").toFile();
+        policyFile = new File(directory, "policy.xml");
+        FileWriter writer = new FileWriter(policyFile);
+        try {
+            writer.write(POLICY);
+        } finally {
+            writer.close();
+        }
+        FileBasedPolicyFinderModule module = new FileBasedPolicyFinderModule(
+                Collections.singleton(directory.getPath()));
+        PolicyFinder finder = new PolicyFinder();
+        finder.setModules(Collections.<PolicyFinderModule>singleton(module));
+        pdp = new PDP(new PDPConfig(new AttributeFinder(), finder, null, false));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (server != null) {
+            server.stop();
+        }
+        policyFile.delete();
+        directory.delete();
+    }
+
+    public void testEvaluateOverTCP() throws Exception {
+        server = new SidecarServer(pdp, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                2);
+        server.start();
+        assertEvaluate(server.getAddress());
+    }
+
+    public void testEvaluateOverUnixSocket() throws Exception {
+        server = new SidecarServer(pdp, new File(directory, "sidecar.sock").toPath(), 2);
+        server.start();
+        assertEvaluate(server.getAddress());
+    }
+
+    public void testInvalidFrame() throws Exception {
+        server = new SidecarServer(pdp, new File(directory, "sidecar.sock").toPath(), 2);
+        server.setMaxPayload(1024);
+        server.start();
+
+        SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            channel.connect(server.getAddress());
+            ByteBuffer header = ByteBuffer.allocate(Frames.HEADER_SIZE);
+            header.putInt(2048).putInt(1).flip();
+            channel.write(header);
+            // the connection is closed without an answer
+            assertEquals(-1, channel.read(ByteBuffer.allocate(Frames.HEADER_SIZE)));
+        } finally {
+            channel.close();
+        }
+        assertEquals(0, server.getRequestCount());
+    }
+
+    public void testPipelining() throws Exception {
+        server = new SidecarServer(pdp, new File(directory, "sidecar.sock").toPath(), 2);
+        server.setMaxInFlight(4);
+        server.start();
+
+        SidecarClient client = new SidecarClient(server.getAddress());
+        try {
+            List<Future<byte[]>> responses = new ArrayList<Future<byte[]>>();
+            for (int i = 0; i < 200; i++) {
+                responses.add(client.submit(bytes(i % 2 == 0 ? getXMLRequest("read")
+                        : JSON_REQUEST)));
+            }
+            for (int i = 0; i < responses.size(); i++) {
+                String response = new String(responses.get(i).get(10, TimeUnit.SECONDS),
+                        StandardCharsets.UTF_8);
+                if (i % 2 == 0) {
+                    assertTrue(response, response.contains("<Decision>Permit</Decision>"));
+                } else {
+                    assertTrue(response, response.contains("\"Permit\""));
+                }
+            }
+        } finally {
+            client.close();
+        }
+        assertEquals(200, server.getRequestCount());
+    }
+
+    public void testSlowReader() throws Exception {
+        server = new SidecarServer(pdp, new File(directory, "sidecar.sock").toPath(), 1);
+        server.start();
+
+        // every response echoes a large attribute, so the socket buffers of a client that never
+        // reads fill up quickly
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 16 * 1024; i++) {
+            value.append('x');
+        }
+        final byte[] request = bytes(getXMLRequest(value.toString()));
+        final SocketChannel slow = SocketChannel.open(StandardProtocolFamily.UNIX);
+        slow.connect(server.getAddress());
+        ExecutorService sender = Executors.newSingleThreadExecutor();
+        sender.execute(new Runnable() {
+            public void run() {
+                ByteBuffer header = ByteBuffer.allocate(Frames.HEADER_SIZE);
+                try {
+                    for (int i = 1; i <= 1000; i++) {
+                        Frames.write(slow, header, i, request, request.length);
+                    }
+                } catch (IOException e) {
+                    // the connection was closed when the test ended
+                }
+            }
+        });
+
+        try {
+            // waits until the slow connection is stuck
+            long deadline = System.currentTimeMillis() + 10000;
+            long answered = -1;
+            while (answered != server.getRequestCount()
+                    && System.currentTimeMillis() < deadline) {
+                answered = server.getRequestCount();
+                Thread.sleep(300);
+            }
+            assertTrue(answered < 1000);
+
+            SidecarClient client = new SidecarClient(server.getAddress());
+            try {
+                String response = new String(client.submit(bytes(getXMLRequest("read")))
+                        .get(10, TimeUnit.SECONDS), StandardCharsets.UTF_8);
+                assertTrue(response, response.contains("<Decision>Permit</Decision>"));
+            } finally {
+                client.close();
+            }
+        } finally {
+            slow.close();
+            sender.shutdownNow();
+        }
+    }
+
+    public void testMaxInFlightChangedWhileOpen() throws Exception {
+        server = new SidecarServer(pdp, new File(directory, "sidecar.sock").toPath(), 2);
+        server.setMaxInFlight(2);
+        server.start();
+
+        SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            channel.connect(server.getAddress());
+            byte[] request = bytes(getXMLRequest("read"));
+            Frames.write(channel, ByteBuffer.allocate(Frames.HEADER_SIZE), 7, request,
+                    request.length);
+            ByteBuffer header = ByteBuffer.allocate(Frames.HEADER_SIZE);
+            assertTrue(Frames.readFully(channel, header));
+            header.flip();
+            int length = header.getInt();
+            assertEquals(7, header.getInt());
+            Frames.readPayload(channel, length, Frames.DEFAULT_MAX_PAYLOAD);
+
+            // the connection keeps the limit it was opened with, so it still ends
+            server.setMaxInFlight(8);
+            channel.shutdownOutput();
+            final SocketChannel closing = channel;
+            ExecutorService reader = Executors.newSingleThreadExecutor();
+            try {
+                Future<Integer> end = reader.submit(new Callable<Integer>() {
+                    public Integer call() throws IOException {
+                        return closing.read(ByteBuffer.allocate(1));
+                    }
+                });
+                assertEquals(-1, end.get(10, TimeUnit.SECONDS).intValue());
+            } finally {
+                reader.shutdownNow();
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Evaluates an XML and a JSON request over a new client
+     */
+    private void assertEvaluate(SocketAddress address) throws IOException {
+        SidecarClient client = new SidecarClient(address);
+        try {
+            String xml = client.evaluate(getXMLRequest("read"));
+            assertTrue(xml, xml.contains("<Decision>Permit</Decision>"));
+            String json = client.evaluate(JSON_REQUEST);
+            assertTrue(json, json.contains("\"Permit\""));
+        } finally {
+            client.close();
+        }
+        assertEquals(2, server.getRequestCount());
+    }
+
+    private static String getXMLRequest(String action) {
+        return "<Request xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" " +
+                "CombinedDecision=\"false\" ReturnPolicyIdList=\"false\">" +
+                "<Attributes Category=\"urn:oasis:names:tc:xacml:3.0:attribute-category:action\">" +
+                "<Attribute AttributeId=\"urn:oasis:names:tc:xacml:1.0:action:action-id\" " +
+                "IncludeInResult=\"true\"><AttributeValue " +
+                "DataType=\"http://www.w3.org/2001/XMLSchema#string\">" + action +
+                "</AttributeValue></Attribute></Attributes></Request>";
+    }
+
+    private static byte[] bytes(String request) {
+        return request.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,374 @@
+/*
+*  Copyright (c)  WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.utils.optimizer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import com.connexta.arbitro.DOMHelper;
+import com.connexta.arbitro.ObligationResult;
+import com.connexta.arbitro.PDP;
+import com.connexta.arbitro.PDPConfig;
+import com.connexta.arbitro.ParsingException;
+import com.connexta.arbitro.ctx.AbstractRequestCtx;
+import com.connexta.arbitro.ctx.AbstractResult;
+import com.connexta.arbitro.ctx.RequestCtxFactory;
+import com.connexta.arbitro.ctx.ResponseCtx;
+import com.connexta.arbitro.finder.AttributeFinder;
+import com.connexta.arbitro.finder.AttributeFinderModule;
+import com.connexta.arbitro.finder.PolicyFinder;
+import com.connexta.arbitro.finder.PolicyFinderModule;
+import com.connexta.arbitro.finder.impl.CurrentEnvModule;
+import com.connexta.arbitro.finder.impl.FileBasedPolicyFinderModule;
+import com.connexta.arbitro.finder.impl.SelectorModule;
+import com.connexta.arbitro.xacml3.Advice;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Evaluates the same requests with the original and the optimized policies, and compares and
+ * times the results. The requests are generated from the attribute designators and the
+ * values that the original policies use, so that most of them are applicable to some rule.
+ */
+public class DifferentialEvaluator {
+
+    private static final String REQUEST_NAMESPACE = "urn:oasis:names:tc:xacml:3.0:core:schema:wd-17";
+
+    private static final String EMPTY_CATEGORY =
+            "urn:oasis:names:tc:xacml:3.0:attribute-category:resource";
+
+    /**
+     * the chance that a generated request has an attribute that the policies use
+     */
+    private static final double ATTRIBUTE_CHANCE = 0.6;
+
+    /**
+     * the chance that a generated attribute has a value the policies do not use
+     */
+    private static final double UNKNOWN_VALUE_CHANCE = 0.1;
+
+    private File originalDirectory;
+
+    private File optimizedDirectory;
+
+    private PDP originalPDP;
+
+    private PDP optimizedPDP;
+
+    /**
+     * Creates an evaluator
+     *
+     * @param originalDirectory directory with the original policies
+     * @param optimizedDirectory directory with the optimized policies, which is only read when
+     *                           the results are compared
+     */
+    public DifferentialEvaluator(File originalDirectory, File optimizedDirectory) {
+        this.originalDirectory = originalDirectory;
+        this.optimizedDirectory = optimizedDirectory;
+    }
+
+    /**
+     * Generates requests from the attributes that the given policies use
+     *
+     * @param roots root elements of the policy documents
+     * @param count the number of requests
+     * @param seed the seed of the random generator, so that runs can be repeated
+     * @return the requests, as XACML 3 request documents
+     */
+    public List<String> generateRequests(List<Element> roots, int count, long seed) {
+
+        // values by designator, and by data type for values the designator is not matched with
+        Map<Designator, Set<String>> designators = new LinkedHashMap<Designator, Set<String>>();
+        Map<String, Set<String>> valuesByType = new LinkedHashMap<String, Set<String>>();
+        for (Element root : roots) {
+            collect(root, designators, valuesByType);
+        }
+
+        List<Designator> keys = new ArrayList<Designator>(designators.keySet());
+        Random random = new Random(seed);
+        List<String> requests = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            Map<String, StringBuilder> categories = new LinkedHashMap<String, StringBuilder>();
+            for (Designator designator : keys) {
+                if (random.nextDouble() >= ATTRIBUTE_CHANCE) {
+                    continue;
+                }
+                String value = pick(designators.get(designator), random);
+                if (value == null || random.nextDouble() < UNKNOWN_VALUE_CHANCE) {
+                    value = pick(valuesByType.get(designator.dataType), random);
+                }
+                if (value == null) {
+                    continue;
+                }
+                StringBuilder attributes = categories.get(designator.category);
+                if (attributes == null) {
+                    attributes = new StringBuilder();
+                    categories.put(designator.category, attributes);
+                }
+                attributes.append("<Attribute AttributeId=\"").append(escape(designator.id))
+                        .append("\" IncludeInResult=\"false\"><AttributeValue DataType=\"")
+                        .append(escape(designator.dataType)).append("\">").append(escape(value))
+                        .append("</AttributeValue></Attribute>");
+            }
+
+            if (categories.isEmpty()) {
+                // a request needs at least one category, even if it has no attributes
+                categories.put(EMPTY_CATEGORY, new StringBuilder());
+            }
+
+            StringBuilder request = new StringBuilder();
+            request.append("<Request xmlns=\"").append(REQUEST_NAMESPACE)
+                    .append("\" CombinedDecision=\"false\" ReturnPolicyIdList=\"false\">");
+            for (Map.Entry<String, StringBuilder> entry : categories.entrySet()) {
+                request.append("<Attributes Category=\"").append(escape(entry.getKey()))
+                        .append("\">").append(entry.getValue()).append("</Attributes>");
+            }
+            request.append("</Request>");
+            requests.add(request.toString());
+        }
+        return requests;
+    }
+
+    /**
+     * Evaluates the requests with the original and the optimized policies, and adds the
+     * results to the report. Results are the same if they have the same decision, status code,
+     * obligations and advice.
+     *
+     * @param requests the requests
+     * @param report the report
+     * @throws ParsingException if a request is not valid
+     */
+    public void compare(List<String> requests, OptimizationReport report)
+            throws ParsingException {
+        PDP original = getOriginalPDP();
+        PDP optimized = getOptimizedPDP();
+        List<AbstractRequestCtx> parsed = parse(requests);
+        for (int i = 0; i < parsed.size(); i++) {
+            String expected = describe(original.evaluate(parsed.get(i)));
+            String actual = describe(optimized.evaluate(parsed.get(i)));
+            report.request(expected.equals(actual) ? null : "request " + i + " : " + expected +
+                    " became " + actual);
+        }
+    }
+
+    /**
+     * Times the evaluation of the requests with the original and the optimized policies, after
+     * a round to warm up, and adds the times of the best round to the report
+     *
+     * @param requests the requests
+     * @param rounds the number of timed rounds
+     * @param report the report
+     * @throws ParsingException if a request is not valid
+     */
+    public void measure(List<String> requests, int rounds, OptimizationReport report)
+            throws ParsingException {
+        PDP original = getOriginalPDP();
+        PDP optimized = getOptimizedPDP();
+        // requests are parsed once, so that only their evaluation is timed
+        List<AbstractRequestCtx> parsed = parse(requests);
+        time(original, parsed);
+        time(optimized, parsed);
+        long originalNanos = Long.MAX_VALUE;
+        long optimizedNanos = Long.MAX_VALUE;
+        // the rounds alternate, so that both are affected alike by the rest of the system
+        for (int i = 0; i < rounds; i++) {
+            originalNanos = Math.min(originalNanos, time(original, parsed));
+            optimizedNanos = Math.min(optimizedNanos, time(optimized, parsed));
+        }
+        if (rounds > 0) {
+            report.timing(originalNanos, optimizedNanos);
+        }
+    }
+
+    private static long time(PDP pdp, List<AbstractRequestCtx> requests) {
+        long start = System.nanoTime();
+        for (AbstractRequestCtx request : requests) {
+            pdp.evaluate(request);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private PDP getOriginalPDP() {
+        if (originalPDP == null) {
+            originalPDP = getPDP(originalDirectory);
+        }
+        return originalPDP;
+    }
+
+    private PDP getOptimizedPDP() {
+        if (optimizedPDP == null) {
+            optimizedPDP = getPDP(optimizedDirectory);
+        }
+        return optimizedPDP;
+    }
+
+    private static PDP getPDP(File directory) {
+        Set<String> locations = new HashSet<String>();
+        locations.add(directory.getPath());
+        PolicyFinder policyFinder = new PolicyFinder();
+        Set<PolicyFinderModule> policyModules = new HashSet<PolicyFinderModule>();
+        policyModules.add(new FileBasedPolicyFinderModule(locations, null));
+        policyFinder.setModules(policyModules);
+
+        AttributeFinder attributeFinder = new AttributeFinder();
+        List<AttributeFinderModule> attributeModules = new ArrayList<AttributeFinderModule>();
+        attributeModules.add(new CurrentEnvModule());
+        attributeModules.add(new SelectorModule());
+        attributeFinder.setModules(attributeModules);
+
+        return new PDP(new PDPConfig(attributeFinder, policyFinder, null, false));
+    }
+
+    /**
+     * Private helper that describes the parts of the results that must not change
+     */
+    private static String describe(ResponseCtx response) {
+        StringBuilder builder = new StringBuilder();
+        for (AbstractResult result : response.getResults()) {
+            builder.append('[').append(AbstractResult.DECISIONS.length > result.getDecision() ?
+                    AbstractResult.DECISIONS[result.getDecision()] :
+                    String.valueOf(result.getDecision()));
+            if (result.getStatus() != null) {
+                builder.append(' ').append(result.getStatus().getCode());
+            }
+            List<String> effects = new ArrayList<String>();
+            if (result.getObligations() != null) {
+                for (ObligationResult obligation : result.getObligations()) {
+                    effects.add(obligation.encode());
+                }
+            }
+            if (result.getAdvices() != null) {
+                for (Advice advice : result.getAdvices()) {
+                    effects.add(advice.encode());
+                }
+            }
+            Collections.sort(effects);
+            for (String effect : effects) {
+                builder.append(' ').append(effect);
+            }
+            builder.append(']');
+        }
+        return builder.toString();
+    }
+
+    private static List<AbstractRequestCtx> parse(List<String> requests)
+            throws ParsingException {
+        List<AbstractRequestCtx> parsed = new ArrayList<AbstractRequestCtx>(requests.size());
+        for (String request : requests) {
+            parsed.add(RequestCtxFactory.getFactory().getRequestCtx(request));
+        }
+        return parsed;
+    }
+
+    /**
+     * Private helper that collects the designators of the policies, with the values they are
+     * matched with, and all values by data type
+     */
+    private static void collect(Element element, Map<Designator, Set<String>> designators,
+                                Map<String, Set<String>> valuesByType) {
+        String name = DOMHelper.getLocalName(element);
+        if (name.equals("AttributeDesignator")) {
+            Designator designator = new Designator(element);
+            if (!designators.containsKey(designator)) {
+                designators.put(designator, new LinkedHashSet<String>());
+            }
+            // the value of a match is the sibling of its designator
+            if ("Match".equals(DOMHelper.getLocalName((Element) element.getParentNode()))) {
+                for (Node node = element.getParentNode().getFirstChild(); node != null;
+                     node = node.getNextSibling()) {
+                    if (node.getNodeType() == Node.ELEMENT_NODE &&
+                            DOMHelper.getLocalName(node).equals("AttributeValue")) {
+                        designators.get(designator).add(node.getTextContent().trim());
+                    }
+                }
+            }
+        } else if (name.equals("AttributeValue")) {
+            String dataType = element.getAttribute("DataType");
+            Set<String> values = valuesByType.get(dataType);
+            if (values == null) {
+                values = new LinkedHashSet<String>();
+                valuesByType.put(dataType, values);
+            }
+            values.add(element.getTextContent().trim());
+        }
+        for (Node node = element.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeType() == Node.ELEMENT_NODE) {
+                collect((Element) node, designators, valuesByType);
+            }
+        }
+    }
+
+    private static String pick(Set<String> values, Random random) {
+        if (values == null || values.isEmpty()) {
+            return null;
+        }
+        Iterator<String> iterator = values.iterator();
+        for (int i = random.nextInt(values.size()); i > 0; i--) {
+            iterator.next();
+        }
+        return iterator.next();
+    }
+
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;")
+                .replace("\"", "&quot;");
+    }
+
+    /**
+     * The category, id and data type of an attribute designator
+     */
+    private static class Designator {
+
+        private String category;
+
+        private String id;
+
+        private String dataType;
+
+        Designator(Element element) {
+            category = element.getAttribute("Category");
+            id = element.getAttribute("AttributeId");
+            dataType = element.getAttribute("DataType");
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Designator)) {
+                return false;
+            }
+            Designator other = (Designator) o;
+            return category.equals(other.category) && id.equals(other.id) &&
+                    dataType.equals(other.dataType);
+        }
+
+        @Override
+        public int hashCode() {
+            return (category.hashCode() * 31 + id.hashCode()) * 31 + dataType.hashCode();
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+*  Copyright (c)  WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.utils.optimizer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What the <code>PolicyOptimizer</code> changed, whether the optimized policies gave the same
+ * results as the original ones, and how much faster they were
+ */
+public class OptimizationReport {
+
+    /**
+     * the number of mismatches of which the details are kept
+     */
+    private static final int MAX_MISMATCH_DETAILS = 10;
+
+    private int policies;
+    private int optimizedPolicies;
+    private int foldedApplies;
+    private int removedConditions;
+    private int removedRules;
+    private int deadRules;
+    private int duplicateMatches;
+    private int hoistedMatches;
+    private int flattenedPolicySets;
+
+    private int requests;
+    private int mismatches;
+    private List<String> mismatchDetails = new ArrayList<String>();
+    private long originalNanos;
+    private long optimizedNanos;
+
+    /**
+     * @return the number of policy documents that were looked at
+     */
+    public int getPolicies() {
+        return policies;
+    }
+
+    /**
+     * @return the number of policy documents that were changed
+     */
+    public int getOptimizedPolicies() {
+        return optimizedPolicies;
+    }
+
+    /**
+     * @return the number of <code>Apply</code> expressions that were replaced by their value
+     */
+    public int getFoldedApplies() {
+        return foldedApplies;
+    }
+
+    /**
+     * @return the number of conditions that were always true, and were removed
+     */
+    public int getRemovedConditions() {
+        return removedConditions;
+    }
+
+    /**
+     * @return the number of rules of which the condition was always false, and were removed
+     */
+    public int getRemovedRules() {
+        return removedRules;
+    }
+
+    /**
+     * @return the number of rules that could never be reached under first-applicable
+     */
+    public int getDeadRules() {
+        return deadRules;
+    }
+
+    /**
+     * @return the number of <code>AnyOf</code> elements that repeated one of their target or of
+     *         the target of their policy
+     */
+    public int getDuplicateMatches() {
+        return duplicateMatches;
+    }
+
+    /**
+     * @return the number of <code>AnyOf</code> elements that were moved from every rule of a
+     *         policy to the target of the policy
+     */
+    public int getHoistedMatches() {
+        return hoistedMatches;
+    }
+
+    /**
+     * @return the number of policy sets with a single child that were replaced by their child
+     */
+    public int getFlattenedPolicySets() {
+        return flattenedPolicySets;
+    }
+
+    /**
+     * @return the number of requests the policies were compared with
+     */
+    public int getRequests() {
+        return requests;
+    }
+
+    /**
+     * @return the number of requests that had a different result with the optimized policies
+     */
+    public int getMismatches() {
+        return mismatches;
+    }
+
+    /**
+     * @return details of the first mismatches
+     */
+    public List<String> getMismatchDetails() {
+        return mismatchDetails;
+    }
+
+    /**
+     * @return whether all requests had the same result with the optimized policies
+     */
+    public boolean isEquivalent() {
+        return mismatches == 0;
+    }
+
+    /**
+     * @return the time the original policies took to evaluate the requests, in nanoseconds
+     */
+    public long getOriginalNanos() {
+        return originalNanos;
+    }
+
+    /**
+     * @return the time the optimized policies took to evaluate the requests, in nanoseconds
+     */
+    public long getOptimizedNanos() {
+        return optimizedNanos;
+    }
+
+    /**
+     * @return how many times faster the optimized policies evaluated the requests, or 0 if
+     *         they were not timed
+     */
+    public double getSpeedup() {
+        return optimizedNanos == 0 ? 0 : (double) originalNanos / optimizedNanos;
+    }
+
+    void policy(boolean optimized) {
+        policies++;
+        if (optimized) {
+            optimizedPolicies++;
+        }
+    }
+
+    void foldedApply() {
+        foldedApplies++;
+    }
+
+    void removedCondition() {
+        removedConditions++;
+    }
+
+    void removedRule() {
+        removedRules++;
+    }
+
+    void deadRules(int count) {
+        deadRules += count;
+    }
+
+    void duplicateMatch() {
+        duplicateMatches++;
+    }
+
+    void hoistedMatch() {
+        hoistedMatches++;
+    }
+
+    void flattenedPolicySet() {
+        flattenedPolicySets++;
+    }
+
+    void request(String mismatch) {
+        requests++;
+        if (mismatch != null) {
+            mismatches++;
+            if (mismatchDetails.size() < MAX_MISMATCH_DETAILS) {
+                mismatchDetails.add(mismatch);
+            }
+        }
+    }
+
+    void timing(long originalNanos, long optimizedNanos) {
+        this.originalNanos = originalNanos;
+        this.optimizedNanos = optimizedNanos;
+    }
+
+    /**
+     * @return the number of changes the optimizer made
+     */
+    public int getChanges() {
+        return foldedApplies + removedConditions + removedRules + deadRules + duplicateMatches
+                + hoistedMatches + flattenedPolicySets;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("Optimized ").append(optimizedPolicies).append(" of ").append(policies)
+                .append(" policies\n");
+        builder.append("  constant applies folded      : ").append(foldedApplies).append('\n');
+        builder.append("  always true conditions       : ").append(removedConditions).append('\n');
+        builder.append("  never applicable rules       : ").append(removedRules).append('\n');
+        builder.append("  unreachable rules            : ").append(deadRules).append('\n');
+        builder.append("  duplicate target matches     : ").append(duplicateMatches).append('\n');
+        builder.append("  target matches hoisted       : ").append(hoistedMatches).append('\n');
+        builder.append("  single child sets flattened  : ").append(flattenedPolicySets)
+                .append('\n');
+        if (requests > 0) {
+            builder.append("Compared ").append(requests).append(" requests, ").append(mismatches)
+                    .append(" mismatches\n");
+            for (String detail : mismatchDetails) {
+                builder.append("  ").append(detail).append('\n');
+            }
+        }
+        if (optimizedNanos > 0) {
+            builder.append(String.format("Evaluation took %.1f ms originally and %.1f ms " +
+                    "optimized, a speedup of %.2fx%n", originalNanos / 1e6, optimizedNanos / 1e6,
+                    getSpeedup()));
+        }
+        return builder.toString();
+    }
+}
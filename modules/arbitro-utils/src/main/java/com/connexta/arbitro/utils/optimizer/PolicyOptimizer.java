@@ -0,0 +1,611 @@
+/*
+*  Copyright (c)  WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.connexta.arbitro.utils.optimizer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.xml.XMLConstants;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import com.connexta.arbitro.DOMHelper;
+import com.connexta.arbitro.ParsingException;
+import com.connexta.arbitro.PolicyMetaData;
+import com.connexta.arbitro.TargetMatch;
+import com.connexta.arbitro.XACMLConstants;
+import com.connexta.arbitro.attr.AttributeValue;
+import com.connexta.arbitro.attr.xacml3.AttributeDesignator;
+import com.connexta.arbitro.cond.Apply;
+import com.connexta.arbitro.cond.EqualFunction;
+import com.connexta.arbitro.cond.EvaluationResult;
+import com.connexta.arbitro.finder.impl.PolicyLoader;
+import com.connexta.arbitro.finder.impl.TargetKeyExtractor;
+import com.connexta.arbitro.xacml3.AllOfSelection;
+import com.connexta.arbitro.xacml3.AnyOfSelection;
+import org.w3c.dom.Document;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Rewrites XACML 3 policies so that they are faster to evaluate, with the same results. The
+ * optimizer
+ * <ul>
+ * <li>folds <code>Apply</code> expressions of which all arguments are constant into their
+ * value,</li>
+ * <li>removes conditions that are always true, and rules of which the condition is always
+ * false and the target can not be Indeterminate,</li>
+ * <li>removes <code>AnyOf</code> elements that repeat another one of their target, or one of the
+ * target of their policy,</li>
+ * <li>moves <code>AnyOf</code> elements that can not be Indeterminate and that every rule of a
+ * policy has to the target of the policy, unless rules that are all not applicable make a
+ * decision,</li>
+ * <li>removes the rules after a rule without target and condition under first-applicable,
+ * and</li>
+ * <li>replaces policy sets with a single child, an empty target and no obligations or advice
+ * by their child, unless they are referenced by id or their combining algorithm could change
+ * the decision of the child.</li>
+ * </ul>
+ * The policies are rewritten in their DOM, so everything else is kept as it is. The results
+ * are checked, and the speedup measured, by the <code>DifferentialEvaluator</code>.
+ */
+public class PolicyOptimizer {
+
+    private static final String FIRST_APPLICABLE =
+            "urn:oasis:names:tc:xacml:1.0:rule-combining-algorithm:first-applicable";
+
+    private static final String FIRST_APPLICABLE_POLICY =
+            "urn:oasis:names:tc:xacml:1.0:policy-combining-algorithm:first-applicable";
+
+    private static final String BOOLEAN = "http://www.w3.org/2001/XMLSchema#boolean";
+
+    /**
+     * the policy combining algorithms that return the result of a single child as it is. The
+     * legacy overrides algorithms are not, since they turn an Indeterminate into a Deny or drop
+     * its extended decision, and neither are the -unless- algorithms, which turn NotApplicable
+     * into a decision
+     */
+    private static final Set<String> PASS_THROUGH_ALGORITHMS = new HashSet<String>(Arrays.asList(
+            FIRST_APPLICABLE_POLICY,
+            "urn:oasis:names:tc:xacml:3.0:policy-combining-algorithm:deny-overrides",
+            "urn:oasis:names:tc:xacml:3.0:policy-combining-algorithm:permit-overrides",
+            "urn:oasis:names:tc:xacml:3.0:policy-combining-algorithm:ordered-deny-overrides",
+            "urn:oasis:names:tc:xacml:3.0:policy-combining-algorithm:ordered-permit-overrides"));
+
+    private static final Set<String> POLICY_ELEMENTS = new HashSet<String>(Arrays.asList(
+            "Policy", "PolicySet", "PolicyIdReference", "PolicySetIdReference"));
+
+    private static final Set<String> OTHER_POLICY_SET_ELEMENTS = new HashSet<String>(
+            Arrays.asList("Description", "PolicyIssuer", "Target"));
+
+    private PolicyMetaData metaData = new PolicyMetaData(XACMLConstants.XACML_3_0_IDENTIFIER,
+            null);
+
+    private OptimizationReport report;
+
+    private Set<String> referencedPolicySets;
+
+    /**
+     * Creates an optimizer
+     *
+     * @param report the report of what the optimizer changes
+     * @param referencedPolicySets ids of the policy sets that are referenced by id, which are
+     *                             never flattened
+     */
+    public PolicyOptimizer(OptimizationReport report, Set<String> referencedPolicySets) {
+        this.report = report;
+        this.referencedPolicySets = referencedPolicySets;
+    }
+
+    /**
+     * Optimizes a policy document. Documents that are not XACML 3 policies are not changed.
+     *
+     * @param root the root element of the policy document, which is changed in place
+     * @return the root element of the optimized policy document, which differs from the given
+     *         one if a policy set was replaced by its child
+     */
+    public Element optimize(Element root) {
+        int changes = report.getChanges();
+        if (XACMLConstants.XACML_3_0_IDENTIFIER.equals(root.getNamespaceURI())) {
+            String name = DOMHelper.getLocalName(root);
+            if (name.equals("Policy")) {
+                optimizePolicy(root);
+            } else if (name.equals("PolicySet")) {
+                optimizePolicySet(root);
+                // the PDP answers Indeterminate when the target of a root policy is, as
+                // first-applicable does
+                Element child = getFlattenedChild(root, FIRST_APPLICABLE_POLICY);
+                if (child != null && !getLocalName(child).endsWith("Reference")) {
+                    Document document = root.getOwnerDocument();
+                    copyNamespaces(root, child);
+                    document.replaceChild(child, root);
+                    report.flattenedPolicySet();
+                    root = child;
+                }
+            }
+        }
+        report.policy(report.getChanges() > changes);
+        return root;
+    }
+
+    /**
+     * Returns the ids of the policy sets that the given policy documents reference
+     *
+     * @param roots root elements of policy documents
+     * @return policy set ids
+     */
+    public static Set<String> getReferencedPolicySets(List<Element> roots) {
+        Set<String> ids = new HashSet<String>();
+        for (Element root : roots) {
+            for (Element reference : getDescendants(root, "PolicySetIdReference")) {
+                ids.add(reference.getTextContent().trim());
+            }
+        }
+        return ids;
+    }
+
+    private void optimizePolicySet(Element policySet) {
+        for (Element child : getChildren(policySet)) {
+            String name = getLocalName(child);
+            if (name.equals("Policy")) {
+                optimizePolicy(child);
+            } else if (name.equals("PolicySet")) {
+                optimizePolicySet(child);
+                Element grandChild = getFlattenedChild(child,
+                        policySet.getAttribute("PolicyCombiningAlgId"));
+                if (grandChild != null) {
+                    copyNamespaces(child, grandChild);
+                    policySet.replaceChild(grandChild, child);
+                    report.flattenedPolicySet();
+                }
+            } else if (name.equals("Target")) {
+                removeDuplicates(child, new HashSet<String>());
+            }
+        }
+    }
+
+    private void optimizePolicy(Element policy) {
+
+        for (Element apply : getDescendants(policy, "Apply")) {
+            // nested applies are folded with their parent
+            Node parent = apply.getParentNode();
+            if (parent != null && !"Apply".equals(DOMHelper.getLocalName(parent))) {
+                fold(apply);
+            }
+        }
+
+        List<Element> rules = new ArrayList<Element>();
+        for (Element rule : getChildren(policy, "Rule")) {
+            Element condition = getChild(rule, "Condition");
+            Boolean constant = condition == null ? null : getConstant(condition);
+            if (Boolean.TRUE.equals(constant)) {
+                rule.removeChild(condition);
+                report.removedCondition();
+            } else if (Boolean.FALSE.equals(constant)
+                    && isDeterminate(getChild(rule, "Target"))) {
+                // a rule of which the target is Indeterminate is Indeterminate as well
+                policy.removeChild(rule);
+                report.removedRule();
+                continue;
+            }
+            rules.add(rule);
+        }
+
+        Element target = getChild(policy, "Target");
+        Set<String> policyMatches = new HashSet<String>();
+        if (target != null) {
+            removeDuplicates(target, policyMatches);
+        }
+        for (Element rule : rules) {
+            Element ruleTarget = getChild(rule, "Target");
+            if (ruleTarget != null) {
+                removeDuplicates(ruleTarget, new HashSet<String>(policyMatches));
+            }
+        }
+
+        String algorithm = policy.getAttribute("RuleCombiningAlgId");
+        if (target != null && !algorithm.contains("-unless-") && rules.size() > 1) {
+            hoist(target, rules);
+        }
+
+        if (algorithm.equals(FIRST_APPLICABLE)) {
+            int dead = 0;
+            boolean decided = false;
+            for (Element rule : rules) {
+                if (decided) {
+                    policy.removeChild(rule);
+                    dead++;
+                } else if (getChild(rule, "Condition") == null) {
+                    Element ruleTarget = getChild(rule, "Target");
+                    decided = ruleTarget == null || getChildren(ruleTarget, "AnyOf").isEmpty();
+                }
+            }
+            if (dead > 0) {
+                report.deadRules(dead);
+            }
+        }
+    }
+
+    /**
+     * Private helper that folds the constant arguments of an <code>Apply</code>, and then the
+     * <code>Apply</code> itself if all its arguments are constant
+     */
+    private void fold(Element apply) {
+        for (Element child : getChildren(apply, "Apply")) {
+            fold(child);
+        }
+        boolean constant = true;
+        int arguments = 0;
+        for (Element child : getChildren(apply)) {
+            String name = getLocalName(child);
+            if (name.equals("AttributeValue")) {
+                arguments++;
+            } else if (!name.equals("Description")) {
+                constant = false;
+            }
+        }
+        if (!constant || arguments == 0) {
+            return;
+        }
+
+        AttributeValue value;
+        try {
+            EvaluationResult result = Apply.getInstance(apply, metaData, null).evaluate(null);
+            if (result.indeterminate() || result.getAttributeValue().isBag()) {
+                return;
+            }
+            value = result.getAttributeValue();
+        } catch (Exception e) {
+            // functions that need the context, or fail on their arguments, are kept
+            return;
+        }
+
+        Document document = apply.getOwnerDocument();
+        String prefix = apply.getPrefix();
+        Element element = document.createElementNS(apply.getNamespaceURI(),
+                prefix == null ? "AttributeValue" : prefix + ":AttributeValue");
+        element.setAttribute("DataType", value.getType().toString());
+        element.setTextContent(value.encode());
+        apply.getParentNode().replaceChild(element, apply);
+        report.foldedApply();
+    }
+
+    /**
+     * Private helper that returns the value of a condition that is a boolean constant
+     *
+     * @return the value, or null if the condition is not constant
+     */
+    private static Boolean getConstant(Element condition) {
+        List<Element> children = getChildren(condition);
+        if (children.size() != 1 || !getLocalName(children.get(0)).equals("AttributeValue")
+                || !BOOLEAN.equals(children.get(0).getAttribute("DataType"))) {
+            return null;
+        }
+        return Boolean.valueOf(children.get(0).getTextContent().trim());
+    }
+
+    /**
+     * Private helper that removes the <code>AnyOf</code> elements of a target that are in the
+     * given set, or repeat an earlier one, and adds the others to the set
+     */
+    private void removeDuplicates(Element target, Set<String> matches) {
+        for (Element anyOf : getChildren(target, "AnyOf")) {
+            String canonical = getCanonicalForm(anyOf);
+            if (canonical != null && !matches.add(canonical)) {
+                target.removeChild(anyOf);
+                report.duplicateMatch();
+            }
+        }
+    }
+
+    /**
+     * Private helper that moves the <code>AnyOf</code> elements that every rule has to the
+     * target of the policy. Since a target that does not match is not applicable whatever else
+     * is Indeterminate, an <code>AnyOf</code> that can be Indeterminate is left in the rules.
+     */
+    private void hoist(Element target, List<Element> rules) {
+        Map<String, Element> common = null;
+        for (Element rule : rules) {
+            Map<String, Element> matches = new LinkedHashMap<String, Element>();
+            Element ruleTarget = getChild(rule, "Target");
+            if (ruleTarget != null) {
+                for (Element anyOf : getChildren(ruleTarget, "AnyOf")) {
+                    AnyOfSelection selection = getAnyOf(anyOf);
+                    if (selection != null && isDeterminate(selection)) {
+                        matches.put(getCanonicalForm(selection), anyOf);
+                    }
+                }
+            }
+            if (common == null) {
+                common = matches;
+            } else {
+                common.keySet().retainAll(matches.keySet());
+            }
+        }
+        if (common == null || common.isEmpty()) {
+            return;
+        }
+
+        for (Map.Entry<String, Element> entry : common.entrySet()) {
+            target.appendChild(entry.getValue().cloneNode(true));
+            for (Element rule : rules) {
+                Element ruleTarget = getChild(rule, "Target");
+                for (Element anyOf : getChildren(ruleTarget, "AnyOf")) {
+                    if (entry.getKey().equals(getCanonicalForm(anyOf))) {
+                        ruleTarget.removeChild(anyOf);
+                        break;
+                    }
+                }
+            }
+            report.hoistedMatch();
+        }
+    }
+
+    /**
+     * Private helper that returns the only child of a policy set that can be replaced by it.
+     * The combining algorithm of the policy set must return the result of the child as it is.
+     * If the target of the child may be Indeterminate, which every algorithm handles in its own
+     * way, the policy set must also be combined by the same algorithm as the child would be
+     * without it.
+     *
+     * @param policySet the policy set
+     * @param parentAlgorithm the algorithm that combines the policy set
+     * @return the child, or null if the policy set can not be flattened
+     */
+    private Element getFlattenedChild(Element policySet, String parentAlgorithm) {
+        String algorithm = policySet.getAttribute("PolicyCombiningAlgId");
+        if (!PASS_THROUGH_ALGORITHMS.contains(algorithm)
+                || referencedPolicySets.contains(policySet.getAttribute("PolicySetId"))) {
+            return null;
+        }
+        Element child = null;
+        for (Element element : getChildren(policySet)) {
+            String name = getLocalName(element);
+            if (POLICY_ELEMENTS.contains(name)) {
+                if (child != null) {
+                    return null;
+                }
+                child = element;
+            } else if (!OTHER_POLICY_SET_ELEMENTS.contains(name)) {
+                return null;
+            } else if (name.equals("Target") && !getChildren(element, "AnyOf").isEmpty()) {
+                return null;
+            }
+        }
+        if (child != null && !algorithm.equals(parentAlgorithm)) {
+            // the target of a referenced policy is not known here
+            Element target = getChild(child, "Target");
+            if (getLocalName(child).endsWith("Reference")
+                    || (target != null && !getChildren(target, "AnyOf").isEmpty())) {
+                return null;
+            }
+        }
+        return child;
+    }
+
+    /**
+     * Private helper that declares the namespaces of a policy set that is flattened on its
+     * child, since XPath expressions and other values of the child may use their prefixes
+     */
+    private static void copyNamespaces(Element policySet, Element child) {
+        NamedNodeMap attributes = policySet.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Attr attribute = (Attr) attributes.item(i);
+            if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attribute.getNamespaceURI())
+                    && !child.hasAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
+                    attribute.getLocalName())) {
+                child.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, attribute.getName(),
+                        attribute.getValue());
+            }
+        }
+    }
+
+    /**
+     * Private helper that returns whether a target can only match or not match, because it
+     * only compares values with attributes that need not be present using equality functions,
+     * as <code>IPRangeIndex</code> requires of the targets it indexes
+     *
+     * @param target a target, or null
+     */
+    private boolean isDeterminate(Element target) {
+        if (target != null) {
+            for (Element anyOf : getChildren(target, "AnyOf")) {
+                AnyOfSelection selection = getAnyOf(anyOf);
+                if (selection == null || !isDeterminate(selection)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Private helper that returns whether an <code>AnyOf</code> can only match or not match
+     */
+    private boolean isDeterminate(AnyOfSelection anyOf) {
+        for (AllOfSelection allOf : anyOf.getAllOfSelections()) {
+            if (allOf.getMatches() == null) {
+                continue;
+            }
+            for (TargetMatch match : allOf.getMatches()) {
+                String function = match.getMatchFunction().getIdentifier().toString();
+                if (!TargetKeyExtractor.isEqualityFunction(function)
+                        && !function.equals(EqualFunction.NAME_IPADDRESS_EQUAL)) {
+                    return false;
+                }
+                if (!(match.getMatchEvaluatable() instanceof AttributeDesignator)
+                        || ((AttributeDesignator) match.getMatchEvaluatable()).mustBePresent()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private String getCanonicalForm(Element anyOf) {
+        AnyOfSelection selection = getAnyOf(anyOf);
+        return selection == null ? null : getCanonicalForm(selection);
+    }
+
+    private static String getCanonicalForm(AnyOfSelection anyOf) {
+        StringBuilder builder = new StringBuilder();
+        anyOf.encode(builder);
+        return builder.toString();
+    }
+
+    private AnyOfSelection getAnyOf(Element anyOf) {
+        try {
+            return AnyOfSelection.getInstance(anyOf, metaData);
+        } catch (ParsingException e) {
+            return null;
+        }
+    }
+
+    private static String getLocalName(Element element) {
+        return DOMHelper.getLocalName(element);
+    }
+
+    private static List<Element> getChildren(Element parent) {
+        List<Element> children = new ArrayList<Element>();
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeType() == Node.ELEMENT_NODE) {
+                children.add((Element) node);
+            }
+        }
+        return children;
+    }
+
+    private static List<Element> getChildren(Element parent, String name) {
+        List<Element> children = new ArrayList<Element>();
+        for (Element child : getChildren(parent)) {
+            if (getLocalName(child).equals(name)) {
+                children.add(child);
+            }
+        }
+        return children;
+    }
+
+    private static Element getChild(Element parent, String name) {
+        List<Element> children = getChildren(parent, name);
+        return children.isEmpty() ? null : children.get(0);
+    }
+
+    private static List<Element> getDescendants(Element parent, String name) {
+        List<Element> descendants = new ArrayList<Element>();
+        for (Element child : getChildren(parent)) {
+            if (getLocalName(child).equals(name)) {
+                descendants.add(child);
+            }
+            descendants.addAll(getDescendants(child, name));
+        }
+        return descendants;
+    }
+
+    /**
+     * Optimizes the policies in a directory, writes them to another directory, compares the
+     * results of the original and optimized policies for generated requests, and reports the
+     * changes and the speedup.
+     *
+     * @param args the policy directory, the output directory, and optionally the number of
+     *             requests (1000 by default) and of timed rounds (5 by default)
+     * @throws Exception if the policies can not be read or written
+     */
+    public static void main(String[] args) throws Exception {
+
+        if (args.length < 2) {
+            System.err.println("Usage: PolicyOptimizer <policy directory> <output directory> " +
+                    "[requests] [rounds]");
+            System.exit(2);
+        }
+        File input = new File(args[0]);
+        File output = new File(args[1]);
+        int requestCount = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+        String[] names = input.list();
+        if (names == null) {
+            throw new IOException("Not a directory : " + input);
+        }
+        Arrays.sort(names);
+        Map<String, Element> roots = new LinkedHashMap<String, Element>();
+        for (String name : names) {
+            File file = new File(input, name);
+            if (file.isFile()) {
+                roots.put(name, PolicyLoader.parse(file.getPath()));
+            }
+        }
+
+        List<Element> originals = new ArrayList<Element>(roots.values());
+        DifferentialEvaluator evaluator = new DifferentialEvaluator(input, output);
+        List<String> requests = evaluator.generateRequests(originals, requestCount, 42);
+
+        OptimizationReport report = new OptimizationReport();
+        PolicyOptimizer optimizer = new PolicyOptimizer(report,
+                new LinkedHashSet<String>(getReferencedPolicySets(originals)));
+        if (!output.isDirectory() && !output.mkdirs()) {
+            throw new IOException("Can not create directory : " + output);
+        }
+        for (Map.Entry<String, Element> entry : roots.entrySet()) {
+            Element root = optimizer.optimize(entry.getValue());
+            // the optimized policy must still be valid
+            PolicyLoader.build(root, null);
+            write(root, new File(output, entry.getKey()));
+        }
+
+        evaluator.compare(requests, report);
+        evaluator.measure(requests, rounds, report);
+        System.out.print(report);
+        if (!report.isEquivalent()) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Writes a policy document
+     *
+     * @param root the root element of the policy document
+     * @param file the file to write
+     * @throws IOException if the file can not be written
+     * @throws TransformerException if the document can not be serialized
+     */
+    public static void write(Element root, File file) throws IOException, TransformerException {
+        Transformer transformer = TransformerFactory.newInstance().newTransformer();
+        OutputStream stream = new FileOutputStream(file);
+        try {
+            transformer.transform(new DOMSource(root.getOwnerDocument()),
+                    new StreamResult(stream));
+        } finally {
+            stream.close();
+        }
+    }
+}
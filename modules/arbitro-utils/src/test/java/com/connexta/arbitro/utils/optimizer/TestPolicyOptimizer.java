@@ -0,0 +1,334 @@
+/*
+ *  Copyright (c) WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ *  WSO2 Inc. licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except
+ *  in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.connexta.arbitro.utils.optimizer;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.connexta.arbitro.finder.impl.PolicyLoader;
+import org.w3c.dom.Element;
+
+import junit.framework.TestCase;
+
+/**
+ * This would test that the rewrites of the optimizer keep the decisions of the policies, and
+ * that flattening policy sets does so whatever the combining algorithm of the policy set
+ */
+public class TestPolicyOptimizer extends TestCase {
+
+    private static final String NAMESPACE = "urn:oasis:names:tc:xacml:3.0:core:schema:wd-17";
+
+    private static final String ACTION = "urn:oasis:names:tc:xacml:3.0:attribute-category:action";
+
+    private static final String POLICY_ALGORITHM = "urn:oasis:names:tc:xacml:3.0:policy-combining-algorithm:";
+
+    private static final String LEGACY_ALGORITHM = "urn:oasis:names:tc:xacml:1.0:policy-combining-algorithm:";
+
+    private static final String ORDERED_LEGACY_ALGORITHM = "urn:oasis:names:tc:xacml:1.1:policy-combining-algorithm:";
+
+    private static final String DENY_OVERRIDES = "urn:oasis:names:tc:xacml:3.0:rule-combining-algorithm:deny-overrides";
+
+    private static final String FIRST_APPLICABLE = "urn:oasis:names:tc:xacml:1.0:rule-combining-algorithm:first-applicable";
+
+    private static final String ACTION_ID = "urn:oasis:names:tc:xacml:1.0:action:action-id";
+
+    private static final String GATE_ID = "urn:test:gate";
+
+    private static final String GATE_CONDITION = "<Apply FunctionId=\"" +
+            "urn:oasis:names:tc:xacml:1.0:function:string-is-in\">" + getValue("open") +
+            "<AttributeDesignator AttributeId=\"" + GATE_ID + "\" Category=\"" + ACTION + "\" " +
+            "DataType=\"http://www.w3.org/2001/XMLSchema#string\" MustBePresent=\"true\"/></Apply>";
+
+    // read is permitted when the gate is open, and Indeterminate when it is missing
+    private static final List<String> REQUESTS = Arrays.asList(
+            getRequest("<Attribute AttributeId=\"urn:oasis:names:tc:xacml:1.0:action:action-id\" " +
+                    "IncludeInResult=\"false\">" + getValue("read") + "</Attribute>" +
+                    "<Attribute AttributeId=\"urn:test:gate\" IncludeInResult=\"false\">" +
+                    getValue("open") + "</Attribute>"),
+            getRequest("<Attribute AttributeId=\"urn:oasis:names:tc:xacml:1.0:action:action-id\" " +
+                    "IncludeInResult=\"false\">" + getValue("read") + "</Attribute>"),
+            getRequest("<Attribute AttributeId=\"urn:oasis:names:tc:xacml:1.0:action:action-id\" " +
+                    "IncludeInResult=\"false\">" + getValue("write") + "</Attribute>"),
+            getRequest(""));
+
+    private File original;
+    private File optimized;
+
+    @Override
+    protected void setUp() throws Exception {
+        original = Files.createTempDirectory("arbitro-original").toFile();
+        optimized = Files.createTempDirectory("arbitro-optimized").toFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File directory : new File[] {original, optimized}) {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    public void testPassThroughAlgorithms() throws Exception {
+        for (String algorithm : new String[] {POLICY_ALGORITHM + "deny-overrides",
+                POLICY_ALGORITHM + "permit-overrides", POLICY_ALGORITHM + "ordered-deny-overrides",
+                POLICY_ALGORITHM + "ordered-permit-overrides",
+                LEGACY_ALGORITHM + "first-applicable"}) {
+            OptimizationReport report = optimize(getPolicySet("set", algorithm, "",
+                    getPolicy("")));
+            assertEquals(algorithm, 1, report.getFlattenedPolicySets());
+            assertTrue(algorithm + " " + report.getMismatchDetails(), report.isEquivalent());
+        }
+    }
+
+    public void testOtherAlgorithms() throws Exception {
+        // the legacy overrides algorithms change an Indeterminate child, and the -unless- ones a
+        // NotApplicable child
+        for (String algorithm : new String[] {LEGACY_ALGORITHM + "deny-overrides",
+                LEGACY_ALGORITHM + "permit-overrides",
+                ORDERED_LEGACY_ALGORITHM + "ordered-deny-overrides",
+                ORDERED_LEGACY_ALGORITHM + "ordered-permit-overrides",
+                LEGACY_ALGORITHM + "only-one-applicable", POLICY_ALGORITHM + "deny-unless-permit",
+                POLICY_ALGORITHM + "permit-unless-deny"}) {
+            OptimizationReport report = optimize(getPolicySet("set", algorithm, "",
+                    getPolicy("")));
+            assertEquals(algorithm, 0, report.getFlattenedPolicySets());
+            assertTrue(algorithm + " " + report.getMismatchDetails(), report.isEquivalent());
+        }
+    }
+
+    public void testIndeterminateTarget() throws Exception {
+        // the target of the policy is Indeterminate when the gate is missing
+        String target = "<AnyOf><AllOf><Match MatchId=\"" +
+                "urn:oasis:names:tc:xacml:1.0:function:string-equal\">" + getValue("open") +
+                "<AttributeDesignator AttributeId=\"urn:test:gate\" Category=\"" + ACTION +
+                "\" DataType=\"http://www.w3.org/2001/XMLSchema#string\" " +
+                "MustBePresent=\"true\"/></Match></AllOf></AnyOf>";
+
+        // the PDP answers Indeterminate for the target, as first-applicable does
+        OptimizationReport report = optimize(getPolicySet("set",
+                LEGACY_ALGORITHM + "first-applicable", "", getPolicy(target)));
+        assertEquals(1, report.getFlattenedPolicySets());
+        assertTrue(report.getMismatchDetails().toString(), report.isEquivalent());
+
+        report = optimize(getPolicySet("set", POLICY_ALGORITHM + "deny-overrides", "",
+                getPolicy(target)));
+        assertEquals(0, report.getFlattenedPolicySets());
+        assertTrue(report.getMismatchDetails().toString(), report.isEquivalent());
+
+        // a nested policy set is flattened if its parent combines the child the same way
+        report = optimize(getPolicySet("outer", POLICY_ALGORITHM + "deny-overrides", "",
+                getPolicySet("inner", POLICY_ALGORITHM + "deny-overrides", "",
+                        getPolicy(target))));
+        assertEquals(1, report.getFlattenedPolicySets());
+        assertTrue(report.getMismatchDetails().toString(), report.isEquivalent());
+
+        // only the outer policy set is, since the target of the inner one is empty
+        report = optimize(getPolicySet("outer", POLICY_ALGORITHM + "deny-overrides", "",
+                getPolicySet("inner", POLICY_ALGORITHM + "permit-overrides", "",
+                        getPolicy(target))));
+        assertEquals(1, report.getFlattenedPolicySets());
+        assertEquals("PolicySet", PolicyLoader.parse(new File(optimized, "policy.xml").getPath())
+                .getLocalName());
+        assertTrue(report.getMismatchDetails().toString(), report.isEquivalent());
+    }
+
+    public void testNamespaces() throws Exception {
+        String policySet = getPolicySet("set", POLICY_ALGORITHM + "deny-overrides",
+                " xmlns:ext=\"urn:test:ext\"", getPolicy(""));
+        OptimizationReport report = new OptimizationReport();
+        Element root = optimize(policySet, report);
+        assertEquals(1, report.getFlattenedPolicySets());
+        assertEquals("Policy", root.getLocalName());
+        assertEquals("urn:test:ext", root.getAttributeNS("http://www.w3.org/2000/xmlns/", "ext"));
+
+        // the declaration is written with the policy
+        Element written = PolicyLoader.parse(new File(optimized, "policy.xml").getPath());
+        assertEquals("urn:test:ext",
+                written.getAttributeNS("http://www.w3.org/2000/xmlns/", "ext"));
+    }
+
+    public void testHoisting() throws Exception {
+        OptimizationReport report = optimize(getPolicy(DENY_OVERRIDES, "",
+                getRule("permit", "Permit", getAnyOf(ACTION_ID, "read", false), GATE_CONDITION),
+                getRule("deny", "Deny", getAnyOf(ACTION_ID, "read", false), "")));
+        assertEquals(1, report.getHoistedMatches());
+        assertTrue(report.getMismatchDetails().toString(), report.isEquivalent());
+
+        // the gate of the policy target would be Indeterminate for a request without it, which
+        // the rules are not since their action does not match
+        report = optimize(getPolicy(DENY_OVERRIDES, "",
+                getRule("permit", "Permit", getAnyOf(GATE_ID, "open", true) +
+                        getAnyOf(ACTION_ID, "write", false), ""),
+                getRule("deny", "Deny", getAnyOf(GATE_ID, "open", true) +
+                        getAnyOf(ACTION_ID, "write", false), GATE_CONDITION)));
+        assertEquals(1, report.getHoistedMatches());
+        assertTrue(report.getMismatchDetails().toString(), report.isEquivalent());
+    }
+
+    public void testConstantFolding() throws Exception {
+        OptimizationReport report = optimize(getPolicy(DENY_OVERRIDES, "",
+                getRule("rule", "Permit", getAnyOf(ACTION_ID, "read", false),
+                        "<Apply FunctionId=\"urn:oasis:names:tc:xacml:1.0:function:and\">" +
+                        "<Apply FunctionId=\"urn:oasis:names:tc:xacml:1.0:function:string-equal\">" +
+                        "<Apply FunctionId=\"" +
+                        "urn:oasis:names:tc:xacml:1.0:function:string-normalize-space\">" +
+                        getValue(" open ") + "</Apply>" + getValue("open") + "</Apply>" +
+                        GATE_CONDITION + "</Apply>")));
+        // the comparison is folded after the normalization it compares
+        assertEquals(2, report.getFoldedApplies());
+        assertEquals(0, report.getRemovedConditions());
+        assertTrue(report.getMismatchDetails().toString(), report.isEquivalent());
+    }
+
+    public void testTrueConditions() throws Exception {
+        OptimizationReport report = optimize(getPolicy(DENY_OVERRIDES, "",
+                getRule("rule", "Permit", getAnyOf(ACTION_ID, "read", false),
+                        "<Apply FunctionId=\"urn:oasis:names:tc:xacml:1.0:function:string-equal\">" +
+                        getValue("open") + getValue("open") + "</Apply>")));
+        assertEquals(1, report.getFoldedApplies());
+        assertEquals(1, report.getRemovedConditions());
+        assertTrue(report.getMismatchDetails().toString(), report.isEquivalent());
+    }
+
+    public void testFalseConditions() throws Exception {
+        String condition = "<AttributeValue DataType=\"http://www.w3.org/2001/XMLSchema#boolean\">" +
+                "false</AttributeValue>";
+        OptimizationReport report = optimize(getPolicy(FIRST_APPLICABLE, "",
+                getRule("never", "Deny", getAnyOf(ACTION_ID, "read", false), condition),
+                getRule("rule", "Permit", getAnyOf(ACTION_ID, "read", false), GATE_CONDITION)));
+        assertEquals(1, report.getRemovedRules());
+        assertTrue(report.getMismatchDetails().toString(), report.isEquivalent());
+
+        // a rule of which the target is Indeterminate is Indeterminate, whatever its condition
+        report = optimize(getPolicy(FIRST_APPLICABLE, "",
+                getRule("never", "Deny", getAnyOf(GATE_ID, "open", true), condition),
+                getRule("rule", "Permit", getAnyOf(ACTION_ID, "read", false), "")));
+        assertEquals(0, report.getRemovedRules());
+        assertTrue(report.getMismatchDetails().toString(), report.isEquivalent());
+    }
+
+    public void testDeadRules() throws Exception {
+        OptimizationReport report = optimize(getPolicy(FIRST_APPLICABLE, "",
+                getRule("read", "Permit", getAnyOf(ACTION_ID, "read", false), GATE_CONDITION),
+                getRule("any", "Deny", "", ""),
+                getRule("write", "Permit", getAnyOf(ACTION_ID, "write", false), "")));
+        assertEquals(1, report.getDeadRules());
+        assertTrue(report.getMismatchDetails().toString(), report.isEquivalent());
+    }
+
+    public void testDuplicateMatches() throws Exception {
+        OptimizationReport report = optimize(getPolicy(DENY_OVERRIDES,
+                getAnyOf(ACTION_ID, "read", false),
+                getRule("rule", "Permit", getAnyOf(GATE_ID, "open", true) +
+                        getAnyOf(ACTION_ID, "read", false) + getAnyOf(GATE_ID, "open", true),
+                        "")));
+        assertEquals(2, report.getDuplicateMatches());
+        assertTrue(report.getMismatchDetails().toString(), report.isEquivalent());
+    }
+
+    /**
+     * Optimizes the policy, and compares its results with the ones of the optimized policy
+     */
+    private OptimizationReport optimize(String policy) throws Exception {
+        OptimizationReport report = new OptimizationReport();
+        optimize(policy, report);
+        new DifferentialEvaluator(original, optimized).compare(REQUESTS, report);
+        assertEquals(REQUESTS.size(), report.getRequests());
+        return report;
+    }
+
+    private Element optimize(String policy, OptimizationReport report) throws Exception {
+        File file = new File(original, "policy.xml");
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(policy);
+        } finally {
+            writer.close();
+        }
+        Element root = PolicyLoader.parse(file.getPath());
+        PolicyOptimizer optimizer = new PolicyOptimizer(report,
+                PolicyOptimizer.getReferencedPolicySets(Collections.singletonList(root)));
+        root = optimizer.optimize(root);
+        PolicyOptimizer.write(root, new File(optimized, "policy.xml"));
+        return root;
+    }
+
+    private static String getPolicySet(String id, String algorithm, String declarations,
+                                       String child) {
+        return "<PolicySet xmlns=\"" + NAMESPACE + "\"" + declarations + " PolicySetId=\"" + id +
+                "\" Version=\"1.0\" PolicyCombiningAlgId=\"" + algorithm + "\"><Target/>" +
+                child + "</PolicySet>";
+    }
+
+    private static String getPolicy(String target) {
+        return "<Policy xmlns=\"" + NAMESPACE + "\" PolicyId=\"policy\" Version=\"1.0\" " +
+                "RuleCombiningAlgId=\"urn:oasis:names:tc:xacml:3.0:rule-combining-algorithm:" +
+                "deny-overrides\"><Target>" + target + "</Target>" +
+                "<Rule RuleId=\"rule\" Effect=\"Permit\"><Target><AnyOf><AllOf><Match MatchId=\"" +
+                "urn:oasis:names:tc:xacml:1.0:function:string-equal\">" + getValue("read") +
+                "<AttributeDesignator AttributeId=\"urn:oasis:names:tc:xacml:1.0:action:action-id\" " +
+                "Category=\"" + ACTION + "\" DataType=\"http://www.w3.org/2001/XMLSchema#string\" " +
+                "MustBePresent=\"false\"/></Match></AllOf></AnyOf></Target><Condition>" +
+                "<Apply FunctionId=\"urn:oasis:names:tc:xacml:1.0:function:string-is-in\">" +
+                getValue("open") + "<AttributeDesignator AttributeId=\"urn:test:gate\" " +
+                "Category=\"" + ACTION + "\" DataType=\"http://www.w3.org/2001/XMLSchema#string\" " +
+                "MustBePresent=\"true\"/></Apply></Condition></Rule></Policy>";
+    }
+
+    private static String getPolicy(String algorithm, String target, String... rules) {
+        StringBuilder policy = new StringBuilder("<Policy xmlns=\"" + NAMESPACE + "\" " +
+                "PolicyId=\"policy\" Version=\"1.0\" RuleCombiningAlgId=\"" + algorithm + "\">" +
+                "<Target>" + target + "</Target>");
+        for (String rule : rules) {
+            policy.append(rule);
+        }
+        return policy.append("</Policy>").toString();
+    }
+
+    private static String getRule(String id, String effect, String target, String condition) {
+        return "<Rule RuleId=\"" + id + "\" Effect=\"" + effect + "\"><Target>" + target +
+                "</Target>" + (condition.length() == 0 ? "" :
+                "<Condition>" + condition + "</Condition>") + "</Rule>";
+    }
+
+    private static String getAnyOf(String attributeId, String value, boolean mustBePresent) {
+        return "<AnyOf><AllOf><Match MatchId=\"" +
+                "urn:oasis:names:tc:xacml:1.0:function:string-equal\">" + getValue(value) +
+                "<AttributeDesignator AttributeId=\"" + attributeId + "\" Category=\"" + ACTION +
+                "\" DataType=\"http://www.w3.org/2001/XMLSchema#string\" MustBePresent=\"" +
+                mustBePresent + "\"/></Match></AllOf></AnyOf>";
+    }
+
+    private static String getRequest(String attributes) {
+        return "<Request xmlns=\"" + NAMESPACE + "\" CombinedDecision=\"false\" " +
+                "ReturnPolicyIdList=\"false\"><Attributes Category=\"" + ACTION + "\">" +
+                attributes + "</Attributes></Request>";
+    }
+
+    private static String getValue(String value) {
+        return "<AttributeValue DataType=\"http://www.w3.org/2001/XMLSchema#string\">" + value +
+                "</AttributeValue>";
+    }
+}